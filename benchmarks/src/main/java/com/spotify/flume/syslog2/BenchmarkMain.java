@@ -0,0 +1,49 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * Run the benchmarks with the GC profiler enabled.
+ *
+ * Takes the usual JMH command line options, so a subset can be run with
+ * e.g. "java -jar benchmarks.jar SyslogParserBenchmark.readEventStream".
+ * If any profiler is given with -prof, the GC profiler isn't added.
+ */
+public class BenchmarkMain {
+	public static void main(String[] argv) throws Exception {
+		CommandLineOptions cmdline = new CommandLineOptions(argv);
+
+		if (cmdline.shouldHelp() || cmdline.shouldList() || cmdline.shouldListProfilers() || !cmdline.getProfilers().isEmpty()) {
+			Main.main(argv);
+			return;
+		}
+
+		Options opts = new OptionsBuilder()
+			.parent(cmdline)
+			.addProfiler(GCProfiler.class)
+			.build();
+
+		new Runner(opts).run();
+	}
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * ByteScanner against a plain byte loop.
+ *
+ * Each operation finds the delimiter at the end of a run of printable
+ * bytes, like the end of a syslog body.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ByteScannerBenchmark {
+	final private static ByteScanner NL = new ByteScanner((byte) '\n');
+	final private static ByteScanner TAG_END = new ByteScanner((byte) ':', (byte) '[', (byte) '\r', (byte) '\n');
+
+	@Param({ "8", "64", "1024" })
+	public int length;
+
+	private byte[] data;
+	private ByteBuffer heap;
+	private ByteBuffer direct;
+
+	@Setup
+	public void setUp() {
+		Random r = new Random(4711);
+
+		data = new byte[length + 1];
+
+		for (int i = 0; i < length; ++i)
+			data[i] = (byte) ('a' + r.nextInt(26));
+
+		data[length] = '\n';
+		heap = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+		direct = ByteBuffer.allocateDirect(data.length).order(ByteOrder.LITTLE_ENDIAN);
+		direct.put(data).clear();
+	}
+
+	@Benchmark
+	public int naive() {
+		for (int i = 0; i < data.length; ++i) {
+			if (data[i] == '\n')
+				return i;
+		}
+
+		return -1;
+	}
+
+	@Benchmark
+	public int naiveFour() {
+		for (int i = 0; i < data.length; ++i) {
+			byte b = data[i];
+
+			if (b == ':' || b == '[' || b == '\r' || b == '\n')
+				return i;
+		}
+
+		return -1;
+	}
+
+	@Benchmark
+	public int scanHeap() {
+		return NL.indexIn(heap, 0, data.length);
+	}
+
+	@Benchmark
+	public int scanHeapFour() {
+		return TAG_END.indexIn(heap, 0, data.length);
+	}
+
+	@Benchmark
+	public int scanDirect() {
+		return NL.indexIn(direct, 0, data.length);
+	}
+}
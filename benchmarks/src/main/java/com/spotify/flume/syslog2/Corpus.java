@@ -0,0 +1,122 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Random;
+
+
+/**
+ * Generates realistic syslog messages for benchmarks and load tests.
+ *
+ * The output is deterministic for a given seed, so runs are comparable.
+ */
+public class Corpus {
+	public enum Format {
+		/// RFC 3164 with a "tag[pid]:" prefix.
+		RFC3164,
+		/// RFC 3164 without a tag.
+		RFC3164_NO_TAG,
+		/// RFC 5424 without structured data.
+		RFC5424,
+		/// RFC 5424 with two SD-ELEMENTs.
+		RFC5424_SD,
+	}
+
+	final private static String[] MONTHS = { "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+	final private static String[] APPS = { "nginx", "sshd", "cron", "kernel", "postfix", "java", "haproxy", "systemd" };
+	final private static String[] WORDS = {
+		"connection", "from", "accepted", "user", "request", "GET", "/api/v1/tracks", "200",
+		"latency_ms=12", "status=ok", "session", "closed", "error", "timeout", "upstream",
+		"retrying", "id=7f3a9c", "bytes=5120", "client=10.1.2.3", "took", "ms", "the", "a",
+	};
+
+	private Random random;
+
+	public Corpus(long seed) {
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Generate a single message, without line terminator.
+	 *
+	 * @param format the message format.
+	 * @param bodySize the approximate size of the message body, in bytes.
+	 */
+	public byte[] message(Format format, int bodySize) {
+		StringBuilder sb = new StringBuilder(bodySize + 128);
+		int facility = random.nextInt(24);
+		int severity = random.nextInt(8);
+		String host = "host-" + random.nextInt(1000) + ".example.net";
+		String app = APPS[random.nextInt(APPS.length)];
+		int pid = 100 + random.nextInt(30000);
+
+		sb.append('<').append(facility * 8 + severity).append('>');
+
+		switch (format) {
+		case RFC3164:
+		case RFC3164_NO_TAG:
+			sb.append(MONTHS[random.nextInt(12)]).append(' ');
+			sb.append(String.format("%2d %02d:%02d:%02d ", 1 + random.nextInt(28), random.nextInt(24), random.nextInt(60), random.nextInt(60)));
+			sb.append(host).append(' ');
+			if (format == Format.RFC3164) sb.append(app).append('[').append(pid).append("]: ");
+			break;
+
+		case RFC5424:
+		case RFC5424_SD:
+			sb.append("1 ");
+			sb.append(String.format("2011-10-%02dT%02d:%02d:%02d.%03dZ ", 1 + random.nextInt(28), random.nextInt(24), random.nextInt(60), random.nextInt(60), random.nextInt(1000)));
+			sb.append(host).append(' ').append(app).append(' ').append(pid).append(" ID").append(random.nextInt(50)).append(' ');
+			if (format == Format.RFC5424_SD)
+				sb.append("[exampleSDID@32473 iut=\"3\" eventSource=\"Application\" eventID=\"1011\"][origin ip=\"10.1.2.3\"] ");
+			else
+				sb.append("- ");
+			break;
+		}
+
+		int bodyStart = sb.length();
+
+		while (sb.length() - bodyStart < bodySize) {
+			if (sb.length() > bodyStart) sb.append(' ');
+			sb.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+
+		try {
+			return sb.toString().getBytes("UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Generate a stream of newline terminated messages.
+	 *
+	 * @param count the number of messages.
+	 */
+	public byte[] stream(Format format, int bodySize, int count) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(count * (bodySize + 100));
+
+		for (int i = 0; i < count; ++i) {
+			byte[] msg = message(format, bodySize);
+
+			out.write(msg, 0, msg.length);
+			out.write('\n');
+		}
+
+		return out.toByteArray();
+	}
+}
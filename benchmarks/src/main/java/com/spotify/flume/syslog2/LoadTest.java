@@ -0,0 +1,351 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.core.EventSource;
+
+
+/**
+ * An end-to-end load test of the TCP and UDP sources over loopback.
+ *
+ * Sender threads generate syslog traffic at a target rate, while a consumer
+ * thread calls next() like Flume would. When the senders are done, we wait
+ * for the source to drain and report sustained throughput, loss, CPU time
+ * per event (of the source and consumer threads only) and GC activity.
+ *
+ * Options are given as --name=value:
+ *
+ *  * protocol: tcp or udp (tcp)
+ *  * port: the loopback port to use (15514)
+ *  * rate: the total target rate in messages per second, 0 for unlimited (100000)
+ *  * connections: the number of sender sockets (4)
+ *  * duration: the number of seconds to send for (10)
+ *  * size: the approximate body size in bytes (200)
+ *  * format: a Corpus.Format (RFC5424)
+ *  * framing: lf or crlf, for TCP (lf)
+ *  * raw: true to only parse the priority in the source (false)
+ *
+ * For example:
+ *
+ *   java -cp target/benchmarks.jar com.spotify.flume.syslog2.LoadTest --protocol=udp --rate=50000
+ */
+public class LoadTest {
+	/// Thread name prefix used to exclude senders from CPU accounting.
+	final private static String SENDER_PREFIX = "loadgen-";
+	/// The number of distinct messages each sender cycles through.
+	final private static int MESSAGES_PER_SENDER = 1024;
+
+	private Map<String, String> options = new HashMap<String, String>();
+	private AtomicLong numSent = new AtomicLong();
+	private AtomicLong numReceived = new AtomicLong();
+
+	public static void main(String[] argv) throws Exception {
+		new LoadTest(argv).run();
+	}
+
+	public LoadTest(String[] argv) {
+		for (String arg : argv) {
+			if (!arg.startsWith("--") || arg.indexOf('=') < 0)
+				throw new IllegalArgumentException("expected --name=value: " + arg);
+
+			options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+		}
+	}
+
+	public void run() throws Exception {
+		String protocol = getOption("protocol", "tcp");
+		InetSocketAddress addr = new InetSocketAddress("127.0.0.1", Integer.parseInt(getOption("port", "15514")));
+		boolean raw = Boolean.parseBoolean(getOption("raw", "false"));
+		final EventSource source;
+
+		if ("tcp".equals(protocol)) {
+			SyslogSocketSource s = new SyslogSocketSource(addr);
+
+			s.setRaw(raw);
+			source = s;
+		} else if ("udp".equals(protocol)) {
+			SyslogDatagramSocketSource s = new SyslogDatagramSocketSource(addr, 1 << 16);
+
+			s.setRaw(raw);
+			source = s;
+		} else {
+			throw new IllegalArgumentException("unknown protocol: " + protocol);
+		}
+
+		source.open();
+
+		Thread consumer = new Thread("consumer") {
+			public void run() {
+				try {
+					while (source.next() != null)
+						numReceived.incrementAndGet();
+				} catch (Exception ex) {
+					// Closed.
+				}
+			}
+		};
+
+		consumer.start();
+
+		List<Sender> senders = createSenders(protocol, addr);
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long gcCount0 = getGcCount();
+		long gcTime0 = getGcTime();
+		long t0 = System.nanoTime();
+
+		for (Sender s : senders)
+			s.start();
+
+		for (Sender s : senders)
+			s.join();
+
+		long sendNanos = System.nanoTime() - t0;
+
+		long elapsedNanos = awaitDrain() - t0;
+		long cpuNanos = getSourceCpuTime(threads);
+		long gcCount = getGcCount() - gcCount0;
+		long gcTime = getGcTime() - gcTime0;
+
+		for (Sender s : senders)
+			s.close();
+
+		source.close();
+		consumer.join(1000);
+
+		long sent = numSent.get();
+		long received = numReceived.get();
+
+		System.out.printf("protocol:        %s%n", protocol);
+		System.out.printf("sent:            %d (%.0f/s)%n", sent, sent * 1e9 / sendNanos);
+		System.out.printf("received:        %d (%.0f/s)%n", received, received * 1e9 / elapsedNanos);
+		System.out.printf("lost:            %d (%.3f%%)%n", sent - received, sent > 0 ? 100.0 * (sent - received) / sent : 0);
+		System.out.printf("cpu per event:   %.0f ns%n", received > 0 ? (double) cpuNanos / received : 0);
+		System.out.printf("gc collections:  %d (%.1f/s)%n", gcCount, gcCount * 1e9 / elapsedNanos);
+		System.out.printf("gc time:         %d ms (%.2f%%)%n", gcTime, 100.0 * gcTime * 1e6 / elapsedNanos);
+	}
+
+	private List<Sender> createSenders(String protocol, InetSocketAddress addr) throws IOException {
+		int connections = Integer.parseInt(getOption("connections", "4"));
+		long rate = Long.parseLong(getOption("rate", "100000"));
+		long duration = Long.parseLong(getOption("duration", "10"));
+		int size = Integer.parseInt(getOption("size", "200"));
+		Corpus.Format format = Corpus.Format.valueOf(getOption("format", "RFC5424"));
+		String framing = getOption("framing", "lf");
+		List<Sender> ret = new ArrayList<Sender>();
+
+		if (!"lf".equals(framing) && !"crlf".equals(framing))
+			throw new IllegalArgumentException("unknown framing: " + framing);
+
+		for (int i = 0; i < connections; ++i) {
+			byte[][] messages = new byte[MESSAGES_PER_SENDER][];
+			Corpus corpus = new Corpus(i);
+
+			for (int j = 0; j < messages.length; ++j)
+				messages[j] = corpus.message(format, size);
+
+			if ("tcp".equals(protocol))
+				ret.add(new StreamSender(i, addr, messages, "crlf".equals(framing) ? "\r\n" : "\n", rate / connections, duration));
+			else
+				ret.add(new DatagramSender(i, addr, messages, rate / connections, duration));
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Wait until the received count has stopped growing for a second.
+	 *
+	 * @return the System.nanoTime() when it last grew.
+	 */
+	private long awaitDrain() throws InterruptedException {
+		long last = numReceived.get();
+		long lastChange = System.nanoTime();
+
+		while (System.nanoTime() - lastChange < 1000000000L) {
+			Thread.sleep(10);
+
+			if (numReceived.get() != last) {
+				last = numReceived.get();
+				lastChange = System.nanoTime();
+			}
+		}
+
+		return lastChange;
+	}
+
+	/**
+	 * Return the CPU time used by all live threads except the senders.
+	 */
+	private static long getSourceCpuTime(ThreadMXBean threads) {
+		Map<Thread, StackTraceElement[]> all = Thread.getAllStackTraces();
+		long ret = 0;
+
+		for (Thread t : all.keySet()) {
+			if (t.getName().startsWith(SENDER_PREFIX))
+				continue;
+
+			long cpu = threads.getThreadCpuTime(t.getId());
+
+			if (cpu > 0) ret += cpu;
+		}
+
+		return ret;
+	}
+
+	private static long getGcCount() {
+		long ret = 0;
+
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			ret += gc.getCollectionCount();
+
+		return ret;
+	}
+
+	private static long getGcTime() {
+		long ret = 0;
+
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			ret += gc.getCollectionTime();
+
+		return ret;
+	}
+
+	private String getOption(String name, String def) {
+		String ret = options.get(name);
+
+		return (ret != null ? ret : def);
+	}
+
+	/**
+	 * A thread sending messages at a fixed rate.
+	 *
+	 * Messages are sent in bursts once a millisecond, to keep timing
+	 * overhead low.
+	 */
+	private abstract class Sender extends Thread {
+		private byte[][] messages;
+		private long rate;
+		private long duration;
+
+		public Sender(int id, byte[][] messages, long rate, long duration) {
+			super(SENDER_PREFIX + id);
+			this.messages = messages;
+			this.rate = rate;
+			this.duration = duration;
+		}
+
+		public void run() {
+			try {
+				long start = System.nanoTime();
+				long end = start + duration * 1000000000L;
+				long sent = 0;
+				int next = 0;
+
+				for (long now = start; now < end; now = System.nanoTime()) {
+					long due = (rate > 0 ? (now - start) * rate / 1000000000L : sent + 1000);
+
+					if (sent >= due) {
+						flush();
+						Thread.sleep(1);
+						continue;
+					}
+
+					for (long i = sent; i < due; ++i) {
+						send(messages[next]);
+						next = (next + 1) % messages.length;
+					}
+
+					numSent.addAndGet(due - sent);
+					sent = due;
+				}
+
+				flush();
+			} catch (Exception ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+
+		protected abstract void send(byte[] msg) throws IOException;
+
+		protected void flush() throws IOException {
+		}
+
+		public abstract void close() throws IOException;
+	}
+
+	private class StreamSender extends Sender {
+		private Socket socket;
+		private OutputStream out;
+		private byte[] terminator;
+
+		public StreamSender(int id, InetSocketAddress addr, byte[][] messages, String terminator, long rate, long duration) throws IOException {
+			super(id, messages, rate, duration);
+			this.socket = new Socket(addr.getAddress(), addr.getPort());
+			this.out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+			this.terminator = terminator.getBytes("US-ASCII");
+		}
+
+		protected void send(byte[] msg) throws IOException {
+			out.write(msg);
+			out.write(terminator);
+		}
+
+		protected void flush() throws IOException {
+			out.flush();
+		}
+
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	private class DatagramSender extends Sender {
+		private DatagramSocket socket;
+		private DatagramPacket packet;
+
+		public DatagramSender(int id, InetSocketAddress addr, byte[][] messages, long rate, long duration) throws IOException {
+			super(id, messages, rate, duration);
+			this.socket = new DatagramSocket();
+			this.packet = new DatagramPacket(new byte[0], 0, addr);
+		}
+
+		protected void send(byte[] msg) throws IOException {
+			packet.setData(msg);
+			socket.send(packet);
+		}
+
+		public void close() {
+			socket.close();
+		}
+	}
+}
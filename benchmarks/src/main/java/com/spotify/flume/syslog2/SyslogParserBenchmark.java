@@ -0,0 +1,123 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.cloudera.flume.core.Event;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Throughput of SyslogParser.readEvent().
+ *
+ * Two access patterns are measured: a long-lived parser reading a stream of
+ * lines, like a TCP connection, and a parser reset to one message at a time,
+ * like a UDP packet. Events are lazy, so readEventStreamAllFields also
+ * decodes everything, like a sink writing the whole event would. Run with the GC profiler (the default in BenchmarkMain) to get
+ * bytes allocated per operation as gc.alloc.rate.norm.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SyslogParserBenchmark {
+	/// Number of distinct messages to cycle through.
+	final private static int CORPUS_SIZE = 1024;
+
+	@Param({ "RFC3164", "RFC3164_NO_TAG", "RFC5424", "RFC5424_SD" })
+	public Corpus.Format format;
+
+	@Param({ "64", "4096" })
+	public int bodySize;
+
+	private boolean parseTag;
+	private byte[][] messages;
+	private byte[] stream;
+	private int next = 0;
+	private SyslogParser streamParser;
+	private SyslogParser datagramParser;
+
+	@Setup
+	public void setUp() {
+		Corpus corpus = new Corpus(4711);
+
+		// Tag-less messages are only parseable with tag parsing disabled.
+		parseTag = (format != Corpus.Format.RFC3164_NO_TAG);
+
+		messages = new byte[CORPUS_SIZE][];
+
+		for (int i = 0; i < messages.length; ++i)
+			messages[i] = corpus.message(format, bodySize);
+
+		stream = corpus.stream(format, bodySize, CORPUS_SIZE);
+		streamParser = newStreamParser();
+		datagramParser = new SyslogParser(parseTag, "UTF-8");
+	}
+
+	@Benchmark
+	public Event readEventStream() throws IOException {
+		Event e = streamParser.readEvent();
+
+		if (e == null) {
+			// Wrap around. This happens once per CORPUS_SIZE operations.
+			streamParser = newStreamParser();
+			e = streamParser.readEvent();
+		}
+
+		return e;
+	}
+
+	@Benchmark
+	public Event readEventStreamAllFields() throws IOException {
+		Event e = readEventStream();
+
+		e.getBody();
+		e.getHost();
+		e.getAttrs();
+
+		return e;
+	}
+
+	@Benchmark
+	public Event readEventDatagram() throws IOException {
+		byte[] msg = messages[next];
+
+		next = (next + 1) % messages.length;
+
+		datagramParser.reset(msg, 0, msg.length);
+
+		return datagramParser.readEvent();
+	}
+
+	private SyslogParser newStreamParser() {
+		return new SyslogParser(new ByteArrayInputStream(stream), parseTag, "UTF-8");
+	}
+}
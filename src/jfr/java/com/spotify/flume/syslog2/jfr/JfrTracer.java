@@ -0,0 +1,241 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2.jfr;
+
+import java.net.SocketAddress;
+
+import com.cloudera.flume.core.Event;
+import com.spotify.flume.syslog2.SyslogParser;
+import com.spotify.flume.syslog2.Tracer;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+
+/**
+ * A tracer emitting JDK Flight Recorder events.
+ *
+ * Connection, rejection and blocked hand-off events are rare and enabled by
+ * default. Parse and datagram events would be one per message, so only one
+ * in SAMPLE_RATE_PROPERTY (default 100) messages is recorded. Datagrams are
+ * aggregated into batches rather than sampled, so byte counts add up.
+ *
+ * When no recording is running, the begin methods return null after a
+ * volatile read, and nothing is allocated.
+ */
+public class JfrTracer extends Tracer {
+	final public static String SAMPLE_RATE_PROPERTY = "syslog2.jfr.sampleRate";
+
+	final private static EventType PARSE = EventType.getEventType(ParseEvent.class);
+	final private static EventType PARSE_REJECTED = EventType.getEventType(ParseRejectedEvent.class);
+	final private static EventType QUEUE_PUT = EventType.getEventType(QueuePutEvent.class);
+	final private static EventType CONNECTION = EventType.getEventType(ConnectionEvent.class);
+	final private static EventType DATAGRAM_BATCH = EventType.getEventType(DatagramBatchEvent.class);
+
+	private int sampleRate = Math.max(1, Integer.getInteger(SAMPLE_RATE_PROPERTY, 100));
+
+	/// Racy on purpose. Losing an increment only shifts the sample.
+	private int parseCount = 0;
+
+	private ThreadLocal<DatagramBatchEvent> datagramBatch = new ThreadLocal<DatagramBatchEvent>();
+
+	@Override
+	public Object beginParse() {
+		if (!PARSE.isEnabled() || ++parseCount % sampleRate != 0)
+			return null;
+
+		ParseEvent e = new ParseEvent();
+
+		e.begin();
+
+		return e;
+	}
+
+	@Override
+	public void endParse(Object span, Event e) {
+		ParseEvent pe = (ParseEvent) span;
+
+		pe.end();
+
+		if (e != null && pe.shouldCommit()) {
+			byte[] version = e.get(SyslogParser.SYSLOG_VERSION);
+			byte[] facility = e.get(SyslogParser.SYSLOG_FACILITY);
+			byte[] severity = e.get(SyslogParser.SYSLOG_SEVERITY);
+
+			if (version != null) pe.version = version[0];
+			if (facility != null) pe.facility = facility[0];
+			if (severity != null) pe.severity = severity[0];
+			pe.hostname = e.getHost();
+			pe.bodySize = e.getBody().length;
+			pe.sampleRate = sampleRate;
+			pe.commit();
+		}
+	}
+
+	@Override
+	public void parseRejected(Exception ex) {
+		if (!PARSE_REJECTED.isEnabled())
+			return;
+
+		ParseRejectedEvent e = new ParseRejectedEvent();
+
+		e.reason = String.valueOf(ex.getMessage());
+		e.commit();
+	}
+
+	@Override
+	public Object beginQueuePut() {
+		if (!QUEUE_PUT.isEnabled())
+			return null;
+
+		QueuePutEvent e = new QueuePutEvent();
+
+		e.begin();
+
+		return e;
+	}
+
+	@Override
+	public void endQueuePut(Object span) {
+		if (span != null)
+			((QueuePutEvent) span).commit();
+	}
+
+	@Override
+	public Object beginConnection(SocketAddress remote) {
+		if (!CONNECTION.isEnabled())
+			return null;
+
+		ConnectionEvent e = new ConnectionEvent();
+
+		e.remoteAddress = String.valueOf(remote);
+		e.begin();
+
+		return e;
+	}
+
+	@Override
+	public void endConnection(Object span, long numEvents, long numRejected) {
+		if (span == null)
+			return;
+
+		ConnectionEvent e = (ConnectionEvent) span;
+
+		e.numEvents = numEvents;
+		e.numRejected = numRejected;
+		e.commit();
+	}
+
+	@Override
+	public void datagramReceived(int length) {
+		if (!DATAGRAM_BATCH.isEnabled())
+			return;
+
+		DatagramBatchEvent e = datagramBatch.get();
+
+		if (e == null) {
+			e = new DatagramBatchEvent();
+			e.begin();
+			datagramBatch.set(e);
+		}
+
+		++e.numPackets;
+		e.numBytes += length;
+
+		if (e.numPackets >= sampleRate) {
+			e.commit();
+			datagramBatch.remove();
+		}
+	}
+
+	@Name("com.spotify.flume.syslog2.Parse")
+	@Label("Syslog Parse")
+	@Description("A syslog message was parsed. Only one in sampleRate messages is recorded.")
+	@Category({ "Flume", "Syslog" })
+	@StackTrace(false)
+	static class ParseEvent extends jdk.jfr.Event {
+		@Label("Version")
+		int version;
+
+		@Label("Facility")
+		int facility;
+
+		@Label("Severity")
+		int severity;
+
+		@Label("Hostname")
+		String hostname;
+
+		@Label("Body Size")
+		@DataAmount
+		long bodySize;
+
+		@Label("Sample Rate")
+		int sampleRate;
+	}
+
+	@Name("com.spotify.flume.syslog2.ParseRejected")
+	@Label("Syslog Parse Rejected")
+	@Description("A syslog message could not be parsed.")
+	@Category({ "Flume", "Syslog" })
+	static class ParseRejectedEvent extends jdk.jfr.Event {
+		@Label("Reason")
+		String reason;
+	}
+
+	@Name("com.spotify.flume.syslog2.QueuePut")
+	@Label("Syslog Queue Hand-off Blocked")
+	@Description("A stream processor blocked handing an event to the Flume consumer.")
+	@Category({ "Flume", "Syslog" })
+	@Threshold("10 ms")
+	static class QueuePutEvent extends jdk.jfr.Event {
+	}
+
+	@Name("com.spotify.flume.syslog2.Connection")
+	@Label("Syslog Connection")
+	@Description("A stream connection, from accept to close.")
+	@Category({ "Flume", "Syslog" })
+	@StackTrace(false)
+	static class ConnectionEvent extends jdk.jfr.Event {
+		@Label("Remote Address")
+		String remoteAddress;
+
+		@Label("Events")
+		long numEvents;
+
+		@Label("Rejected Messages")
+		long numRejected;
+	}
+
+	@Name("com.spotify.flume.syslog2.DatagramBatch")
+	@Label("Syslog Datagram Batch")
+	@Description("A batch of sampleRate datagrams received by one thread.")
+	@Category({ "Flume", "Syslog" })
+	@StackTrace(false)
+	static class DatagramBatchEvent extends jdk.jfr.Event {
+		@Label("Packets")
+		int numPackets;
+
+		@Label("Bytes")
+		@DataAmount
+		long numBytes;
+	}
+}
@@ -15,20 +15,432 @@
  */
 package com.spotify.flume.syslog2;
 
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.cloudera.flume.core.Event;
 import com.cloudera.flume.core.EventSource;
 import com.cloudera.flume.reporter.ReportEvent;
+import com.cloudera.util.Clock;
 
 
 /**
  * A Flume source that adds a metric on rejected messages.
+ *
+ * It also estimates the number of distinct hostnames, appnames and message
+ * IDs seen since the metrics were last reported. These use HyperLogLog, so
+ * memory use is fixed no matter how many senders there are.
+ *
+ * Finally, the lag between the message timestamp and when the event was
+ * handed to Flume is recorded per reporting interval. Growing lag means
+ * relays are backlogged, or that we are falling behind.
+ *
+ * If the source has a filter, the messages dropped by each rule are
+ * reported as well. So are the messages dropped by a rate limiter, and the
+ * number of keys limited per reporting interval, the lines joined by a
+ * MultiLineAssembler, the repeats suppressed by a Deduplicator, the
+ * batches created by a Batcher, the events spilled to disk by a
+ * SpillQueue, the off-heap slabs in use by a SlabAllocator and the cache
+ * misses of a PeerResolver.
+ *
+ * With a Batcher, the distinct value estimates and lag cover the messages
+ * going into the batches, not the batch events. Events go through the
+ * MultiLineAssembler, Deduplicator and Batcher in that order.
+ *
+ * A source can also be a listener of a SyslogMultiSource, which then owns
+ * the queue, the processing and the metrics.
  */
 public abstract class BaseSource extends EventSource.Base {
 	final public static String R_NUM_REJECTED = "number of rejected messages";
+	final public static String R_DISTINCT_HOSTNAMES = "estimated distinct hostnames";
+	final public static String R_DISTINCT_APPNAMES = "estimated distinct appnames";
+	final public static String R_DISTINCT_MSG_IDS = "estimated distinct message ids";
+	final public static String R_LAG_P50 = "event lag p50 ms";
+	final public static String R_LAG_P90 = "event lag p90 ms";
+	final public static String R_LAG_P99 = "event lag p99 ms";
+	final public static String R_LAG_MAX = "event lag max ms";
+	final public static String R_FUTURE_SHARE = "share of events from the future";
+	final public static String R_NUM_FILTERED = "number of filtered messages";
+	/// Followed by the rule.
+	final public static String R_NUM_FILTERED_BY = "number of messages filtered by ";
+	final public static String R_NUM_RATE_LIMITED = "number of rate limited messages";
+	final public static String R_RATE_LIMITED_KEYS = "number of rate limited keys";
+	final public static String R_RATE_LIMITER_KEYS = "number of rate limiter keys";
+	final public static String R_NUM_JOINED = "number of joined lines";
+	final public static String R_NUM_SUPPRESSED = "number of suppressed repeats";
+	final public static String R_NUM_BATCHES = "number of batches";
+	final public static String R_NUM_SPILLED = "number of spilled events";
+	final public static String R_SPILL_BACKLOG = "number of events on disk";
+	final public static String R_OFF_HEAP_SLABS = "number of off-heap slabs in use";
+	final public static String R_OFF_HEAP_FALLBACKS = "number of messages kept on heap";
+	final public static String R_PEER_NAME_MISSES = "number of peer name cache misses";
+	final public static String R_PEER_NAMES = "number of cached peer names";
 
 	private AtomicLong numRejectedMessages = new AtomicLong();
+	private HyperLogLog hostnames = new HyperLogLog();
+	private HyperLogLog appnames = new HyperLogLog();
+	private HyperLogLog msgIds = new HyperLogLog();
+	private Histogram lag = new Histogram();
+	private long numFutureEvents = 0;
+	private SyslogFilter filter;
+	private RateLimiter limiter;
+	private MultiLineAssembler assembler;
+	private Deduplicator dedup;
+	private Batcher batcher;
+	private SpillQueue spillQueue;
+	private SlabAllocator allocator;
+	private KeyValueExtractor extractor;
+	private boolean peerAttrs = false;
+	private PeerResolver resolver;
+	/// Set when a listener of a SyslogMultiSource.
+	private BlockingQueue<Event> handOffQueue;
+	private String listener;
+
+	/**
+	 * Drop messages matching a filter in the parser.
+	 *
+	 * Call before open().
+	 *
+	 * @param filter the filter, or null to keep all messages.
+	 */
+	public void setFilter(SyslogFilter filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * Return the filter to give the parsers, or null.
+	 */
+	protected SyslogFilter getFilter() {
+		return filter;
+	}
+
+	/**
+	 * Drop messages from senders exceeding a rate limit in the parser.
+	 *
+	 * Call before open().
+	 *
+	 * @param limiter the limiter, or null for no limit.
+	 */
+	public void setRateLimiter(RateLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	/**
+	 * Return the rate limiter to give the parsers, or null.
+	 */
+	protected RateLimiter getRateLimiter() {
+		return limiter;
+	}
+
+	/**
+	 * Join continuation lines into one event.
+	 *
+	 * Call before open().
+	 *
+	 * @param assembler the assembler, or null for one event per line.
+	 */
+	public void setMultiLineAssembler(MultiLineAssembler assembler) {
+		this.assembler = assembler;
+	}
+
+	/**
+	 * Collapse repeated messages.
+	 *
+	 * Call before open().
+	 *
+	 * @param dedup the deduplicator, or null to pass repeats on.
+	 */
+	public void setDeduplicator(Deduplicator dedup) {
+		this.dedup = dedup;
+	}
+
+	/**
+	 * Pack messages into batch events.
+	 *
+	 * Call before open().
+	 *
+	 * @param batcher the batcher, or null for one event per message.
+	 */
+	public void setBatcher(Batcher batcher) {
+		this.batcher = batcher;
+	}
+
+	/**
+	 * Spill events to disk instead of blocking when next() falls behind.
+	 *
+	 * Call before open(). The queue is closed by close(), which drops any
+	 * events left in it.
+	 *
+	 * @param spillQueue the queue, or null to block or drop.
+	 */
+	public void setSpillQueue(SpillQueue spillQueue) {
+		this.spillQueue = spillQueue;
+	}
+
+	/**
+	 * Return the spill queue to hand events to next() through, or null.
+	 */
+	protected SpillQueue getSpillQueue() {
+		return spillQueue;
+	}
+
+	/**
+	 * Keep queued messages off-heap in the parsers.
+	 *
+	 * Events are copied to the heap when first read, which is when they
+	 * are handed to Flume, unless a Deduplicator or Batcher reads them
+	 * first. Call before open().
+	 *
+	 * @param allocator the allocator, or null to use the heap.
+	 */
+	public void setSlabAllocator(SlabAllocator allocator) {
+		this.allocator = allocator;
+	}
+
+	/**
+	 * Return the slab allocator to give the parsers, or null.
+	 */
+	protected SlabAllocator getSlabAllocator() {
+		return allocator;
+	}
+
+	/**
+	 * Make this source a listener of another source.
+	 *
+	 * Events are put in the queue of the owner, tagged with the listener
+	 * name, instead of being returned by next(). The parsers share the
+	 * filter, rate limiter, slab allocator, key/value extractor, peer
+	 * tagging and rejection count of the owner, which does the
+	 * deduplication and batching. The owner opens and closes the
+	 * listener, and owns the queue. Call before open().
+	 *
+	 * @param name the listener name, for the tag.
+	 * @param queue the queue to put events in.
+	 * @param owner the source to share parser settings and metrics with.
+	 */
+	void attach(String name, BlockingQueue<Event> queue, BaseSource owner) {
+		listener = name;
+		handOffQueue = queue;
+		filter = owner.filter;
+		limiter = owner.limiter;
+		allocator = owner.allocator;
+		extractor = owner.extractor;
+		peerAttrs = owner.peerAttrs;
+		resolver = owner.resolver;
+		numRejectedMessages = owner.numRejectedMessages;
+	}
+
+	/**
+	 * Return the listener name to give the parsers, or null.
+	 */
+	protected String getListener() {
+		return listener;
+	}
+
+	/**
+	 * Return the queue of the owner, or null if not a listener.
+	 *
+	 * @see #attach(String, BlockingQueue, BaseSource)
+	 */
+	protected BlockingQueue<Event> getHandOffQueue() {
+		return handOffQueue;
+	}
+
+	/**
+	 * Make attributes of "key=value" pairs in message bodies.
+	 *
+	 * Call before open().
+	 *
+	 * @param extractor the extractor, or null for none.
+	 */
+	public void setKeyValueExtractor(KeyValueExtractor extractor) {
+		this.extractor = extractor;
+	}
+
+	/**
+	 * Return the key/value extractor to give the parsers, or null.
+	 */
+	protected KeyValueExtractor getKeyValueExtractor() {
+		return extractor;
+	}
+
+	/**
+	 * Tag events with the address of their sender.
+	 *
+	 * The address is the "syslog.peer" attribute. Call before open().
+	 *
+	 * @param peerAttrs true to tag.
+	 */
+	public void setPeerAttributes(boolean peerAttrs) {
+		this.peerAttrs = peerAttrs;
+	}
+
+	/**
+	 * Tag events with the name of their sender as well.
+	 *
+	 * The name is the "syslog.peerName" attribute, when the resolver has
+	 * it cached. Implies setPeerAttributes(true). Call before open().
+	 *
+	 * @param resolver the resolver, or null to leave out names.
+	 */
+	public void setPeerResolver(PeerResolver resolver) {
+		this.resolver = resolver;
+
+		if (resolver != null) peerAttrs = true;
+	}
+
+	/**
+	 * Return the peer tag to give the parsers for a sender.
+	 *
+	 * @return the tag, or null if events aren't tagged.
+	 */
+	protected SyslogEvent.Peer createPeer(InetAddress address) {
+		return (peerAttrs ? new SyslogEvent.Peer(address, resolver) : null);
+	}
+
+	/**
+	 * Return true if the parsers need a peer tag for each sender.
+	 */
+	protected boolean hasPeerAttributes() {
+		return peerAttrs;
+	}
+
+	/**
+	 * Free the off-heap message of an event that won't be returned.
+	 */
+	protected void discard(Event e) {
+		if (e instanceof SyslogEvent) ((SyslogEvent) e).release();
+	}
+
+	/**
+	 * Free the off-heap messages of the events left in a queue on close().
+	 *
+	 * This stops at the first event on disk, since SpillQueue.peek() only
+	 * looks in memory. Those events are on the heap anyway. Other events,
+	 * like wake ups, are put back, since a next() call may be waiting for
+	 * them.
+	 */
+	protected void discardQueued(Queue<Event> q) {
+		if (allocator == null) return;
+
+		List<Event> kept = new ArrayList<Event>();
+		Event e;
+
+		while (q.peek() != null && (e = q.poll()) != null) {
+			if (e instanceof SyslogEvent)
+				discard(e);
+			else
+				kept.add(e);
+		}
+
+		for (Event k : kept)
+			q.offer(k);
+	}
+
+	/**
+	 * Pass a new event through the assembler, deduplicator and batcher,
+	 * if any.
+	 *
+	 * @return the event to return from next(), or null if it was held
+	 *         back. Then call pollPending() later.
+	 */
+	protected Event process(Event e) {
+		if (assembler == null && dedup == null && batcher == null) return e;
+
+		long now = Clock.unixTime();
+
+		if (assembler != null) {
+			e = assembler.offer(e, now);
+
+			if (e == null) return null;
+		}
+
+		return deduplicateAndBatch(e, now);
+	}
+
+	/**
+	 * Pass an assembled event through the deduplicator and batcher.
+	 */
+	private Event deduplicateAndBatch(Event e, long now) {
+		if (dedup != null) {
+			e = dedup.offer(e, now);
+
+			if (e == null) return null;
+		}
+
+		if (batcher == null) return e;
+
+		recordMessage(e);
+		batcher.add(e, now);
+
+		return batcher.poll(now);
+	}
+
+	/**
+	 * Return an assembled message, a summary of repeats or a batch, if one
+	 * is due.
+	 *
+	 * next() should return these before waiting for new events.
+	 *
+	 * @param eof true to close all messages, windows and batches, since
+	 *            there will be no more events.
+	 * @return an event, or null.
+	 */
+	protected Event pollPending(boolean eof) {
+		long now = Clock.unixTime();
+
+		if (assembler != null) {
+			Event a;
+
+			while ((a = (eof ? assembler.flush() : assembler.poll(now))) != null) {
+				a = deduplicateAndBatch(a, now);
+
+				if (a != null) return a;
+			}
+		}
+
+		if (dedup != null) {
+			Event s;
+
+			while ((s = (eof ? dedup.flush() : dedup.poll(now))) != null) {
+				if (batcher == null) return s;
+
+				recordMessage(s);
+				batcher.add(s, now);
+			}
+		}
+
+		if (batcher == null) return null;
+
+		return (eof ? batcher.flush() : batcher.poll(now));
+	}
+
+	/**
+	 * Return the longest next() may wait before calling pollPending().
+	 *
+	 * @return the time in ms, or 0 to wait for ever.
+	 */
+	protected long getPendingTimeout() {
+		if (assembler == null && dedup == null && batcher == null) return 0;
+
+		long now = Clock.unixTime();
+		long a = (assembler == null ? 0 : assembler.getTimeout(now));
+		long b = (dedup == null ? 0 : dedup.getTimeout(now));
+		long c = (batcher == null ? 0 : batcher.getTimeout(now));
+
+		return minTimeout(minTimeout(a, b), c);
+	}
+
+	/**
+	 * Return the shorter of two timeouts, where 0 means none.
+	 */
+	private static long minTimeout(long a, long b) {
+		return (a == 0 || b == 0 ? a + b : Math.min(a, b));
+	}
 	
 	/**
 	 * Note that another message has been rejected.
@@ -46,11 +458,114 @@ public abstract class BaseSource extends EventSource.Base {
 		numRejectedMessages.addAndGet(n);
 	}
 	
+	@Override
+	synchronized protected void updateEventProcessingStats(Event e) {
+		super.updateEventProcessingStats(e);
+
+		// Batches were recorded message by message.
+		if (e != null && batcher == null) recordMessage(e);
+	}
+
+	/**
+	 * Update the distinct value estimates and lag with a message.
+	 */
+	synchronized private void recordMessage(Event e) {
+		if (e instanceof SyslogEvent) {
+			// Don't decode fields just for this.
+			SyslogEvent se = (SyslogEvent) e;
+
+			se.offer(SyslogEvent.HOST, hostnames);
+			se.offer(SyslogEvent.APPNAME, appnames);
+			se.offer(SyslogEvent.MSG_ID, msgIds);
+		} else {
+			byte[] appname = e.get(SyslogParser.SYSLOG_APPNAME);
+			byte[] msgId = e.get(SyslogParser.SYSLOG_MSG_ID);
+
+			if (e.getHost() != null) hostnames.offer(HyperLogLog.hash(e.getHost()));
+			if (appname != null) appnames.offer(HyperLogLog.hash(appname));
+			if (msgId != null) msgIds.offer(HyperLogLog.hash(msgId));
+		}
+
+		long dt = Clock.unixTime() - e.getTimestamp();
+
+		if (dt < 0) {
+			// Clock skew, or a BSD timestamp in the wrong time zone.
+			++numFutureEvents;
+			dt = 0;
+		}
+
+		lag.record(dt);
+	}
+
+	/**
+	 * Return the metrics of this source.
+	 *
+	 * The distinct value estimates and lag distribution cover the events
+	 * seen since the previous call, and are reset by this call. Future
+	 * events count as zero lag in the percentiles.
+	 */
 	@Override
 	synchronized public ReportEvent getMetrics() {
 		ReportEvent e = super.getMetrics();
 		
 		e.setLongMetric(R_NUM_REJECTED, numRejectedMessages.longValue());
+		e.setLongMetric(R_DISTINCT_HOSTNAMES, hostnames.cardinality());
+		e.setLongMetric(R_DISTINCT_APPNAMES, appnames.cardinality());
+		e.setLongMetric(R_DISTINCT_MSG_IDS, msgIds.cardinality());
+		e.setLongMetric(R_LAG_P50, lag.getPercentile(50));
+		e.setLongMetric(R_LAG_P90, lag.getPercentile(90));
+		e.setLongMetric(R_LAG_P99, lag.getPercentile(99));
+		e.setLongMetric(R_LAG_MAX, lag.getMax());
+		e.setDoubleMetric(R_FUTURE_SHARE, lag.getCount() > 0 ? (double) numFutureEvents / lag.getCount() : 0);
+
+		if (filter != null) {
+			long total = 0;
+
+			for (int i = 0; i < filter.getNumRules(); ++i) {
+				long n = filter.getDropped(i);
+
+				e.setLongMetric(R_NUM_FILTERED_BY + filter.getRule(i), n);
+				total += n;
+			}
+
+			e.setLongMetric(R_NUM_FILTERED, total);
+		}
+
+		if (limiter != null) {
+			e.setLongMetric(R_NUM_RATE_LIMITED, limiter.getLimited());
+			e.setLongMetric(R_RATE_LIMITED_KEYS, limiter.getLimitedKeys());
+			e.setLongMetric(R_RATE_LIMITER_KEYS, limiter.getNumKeys());
+		}
+
+		if (assembler != null)
+			e.setLongMetric(R_NUM_JOINED, assembler.getNumJoined());
+
+		if (dedup != null)
+			e.setLongMetric(R_NUM_SUPPRESSED, dedup.getSuppressed());
+
+		if (batcher != null)
+			e.setLongMetric(R_NUM_BATCHES, batcher.getNumBatches());
+
+		if (spillQueue != null) {
+			e.setLongMetric(R_NUM_SPILLED, spillQueue.getTotalSpilled());
+			e.setLongMetric(R_SPILL_BACKLOG, spillQueue.getNumSpilled());
+		}
+
+		if (allocator != null) {
+			e.setLongMetric(R_OFF_HEAP_SLABS, allocator.getSlabsInUse());
+			e.setLongMetric(R_OFF_HEAP_FALLBACKS, allocator.getFallbacks());
+		}
+
+		if (resolver != null) {
+			e.setLongMetric(R_PEER_NAME_MISSES, resolver.getMisses());
+			e.setLongMetric(R_PEER_NAMES, resolver.getNumEntries());
+		}
+
+		hostnames.clear();
+		appnames.clear();
+		msgIds.clear();
+		lag.clear();
+		numFutureEvents = 0;
 		
 		return e;
 	}
@@ -0,0 +1,221 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.core.EventImpl;
+
+
+/**
+ * Unpacks the events created by a Batcher.
+ *
+ * A batch body is a format version byte, currently 1, followed by the
+ * messages. Each message is
+ *
+ *  * the Flume priority, as the ordinal of Event.Priority in one byte.
+ *  * the timestamp, in ms as an 8 byte big endian long.
+ *  * the nanos, as an 8 byte big endian long.
+ *  * the host, as a string with its varint length plus one, or 0 if the
+ *    event has no host.
+ *  * the body, as a varint length and the bytes.
+ *  * the number of attributes, as a varint, and for each attribute
+ *    - the name, as a varint reference. 0 means a new name follows as a
+ *      string, and N > 0 means the Nth new name of the batch.
+ *    - the value, as a varint length and the bytes.
+ *
+ * Varints are unsigned LEB128, and strings are UTF-8 with a varint length
+ * in bytes. Referring back to attribute names keeps the overhead per
+ * message at a few bytes, since they are all the same.
+ */
+public class BatchDecoder {
+	private byte[] buf;
+	private int pos;
+	private int limit;
+	private List<String> names = new ArrayList<String>();
+
+	private BatchDecoder(byte[] buf, int offset, int length) {
+		this.buf = buf;
+		this.pos = offset;
+		this.limit = offset + length;
+	}
+
+	/**
+	 * Construct a decoder for single records, like those of SpillQueue.
+	 *
+	 * Attribute names are remembered between records.
+	 */
+	BatchDecoder() {
+	}
+
+	/**
+	 * Return true if an event was created by a Batcher.
+	 */
+	public static boolean isBatch(Event e) {
+		return e.get(SyslogParser.SYSLOG_BATCH) != null;
+	}
+
+	/**
+	 * Unpack the messages of a batch event.
+	 *
+	 * @throws IOException if the body is malformed.
+	 */
+	public static List<Event> decode(Event batch) throws IOException {
+		return decode(batch.getBody());
+	}
+
+	/**
+	 * Unpack the messages of a batch body.
+	 *
+	 * @throws IOException if the body is malformed.
+	 */
+	public static List<Event> decode(byte[] body) throws IOException {
+		return new BatchDecoder(body, 0, body.length).readEvents();
+	}
+
+	private List<Event> readEvents() throws IOException {
+		int version = read();
+
+		if (version != Batcher.FORMAT_VERSION)
+			throw new IOException("Unsupported batch format: " + version);
+
+		List<Event> ret = new ArrayList<Event>();
+
+		while (pos < limit)
+			ret.add(readEvent());
+
+		return ret;
+	}
+
+	/**
+	 * Decode one record.
+	 *
+	 * @throws IOException if the record is malformed.
+	 */
+	Event readRecord(byte[] record, int offset, int length) throws IOException {
+		buf = record;
+		pos = offset;
+		limit = offset + length;
+
+		Event e = readEvent();
+
+		if (pos != limit)
+			throw new IOException("Trailing bytes in record");
+
+		return e;
+	}
+
+	private Event readEvent() throws IOException {
+		int pri = read();
+
+		if (pri >= Event.Priority.values().length)
+			throw new IOException("Invalid batch priority: " + pri);
+
+		long timestamp = readLong();
+		long nanos = readLong();
+		String host = readHost();
+		byte[] body = readBytes();
+		int n = readVarint();
+		Map<String, byte[]> attrs = new HashMap<String, byte[]>();
+
+		for (int i = 0; i < n; ++i) {
+			int ref = readVarint();
+			String name;
+
+			if (ref == 0) {
+				name = readString();
+				names.add(name);
+			} else if (ref <= names.size()) {
+				name = names.get(ref - 1);
+			} else {
+				throw new IOException("Invalid batch attribute reference: " + ref);
+			}
+
+			attrs.put(name, readBytes());
+		}
+
+		return new EventImpl(body, timestamp, Event.Priority.values()[pri], nanos, host, attrs);
+	}
+
+	private int read() throws IOException {
+		if (pos >= limit)
+			throw new EOFException("Unexpected end of batch");
+
+		return buf[pos++] & 0xFF;
+	}
+
+	private long readLong() throws IOException {
+		long v = 0;
+
+		for (int i = 0; i < 8; ++i)
+			v = (v << 8) | read();
+
+		return v;
+	}
+
+	private int readVarint() throws IOException {
+		int v = 0;
+
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = read();
+
+			v |= (b & 0x7F) << shift;
+
+			if ((b & 0x80) == 0) return v;
+		}
+
+		throw new IOException("Batch varint too long");
+	}
+
+	private byte[] readBytes() throws IOException {
+		int n = readVarint();
+
+		if (n < 0 || n > limit - pos)
+			throw new EOFException("Unexpected end of batch");
+
+		byte[] ret = new byte[n];
+
+		System.arraycopy(buf, pos, ret, 0, n);
+		pos += n;
+
+		return ret;
+	}
+
+	private String readHost() throws IOException {
+		int n = readVarint();
+
+		if (n == 0) return null;
+
+		if (n < 0 || n - 1 > limit - pos)
+			throw new EOFException("Unexpected end of batch");
+
+		String ret = new String(buf, pos, n - 1, "UTF-8");
+
+		pos += n - 1;
+
+		return ret;
+	}
+
+	private String readString() throws IOException {
+		return new String(readBytes(), "UTF-8");
+	}
+}
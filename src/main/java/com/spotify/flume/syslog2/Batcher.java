@@ -0,0 +1,303 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.core.EventImpl;
+
+
+/**
+ * Packs many messages into one Flume event.
+ *
+ * Each Flume event costs an EventImpl, an attribute map and framing on
+ * every hop downstream, which dominates for small syslog lines. Messages
+ * are collected into one open batch per key, like the facility or appname,
+ * and a batch is closed when it reaches a number of messages or bytes, or
+ * has been open for a while. A message that would take a batch past the
+ * byte limit starts a new one instead, since Flume rejects events larger
+ * than flume.event.max.size.bytes. Its event has
+ *
+ *  * the messages, in the format described by BatchDecoder, as the body.
+ *  * the number of messages in the SyslogParser.SYSLOG_BATCH attribute.
+ *  * the key as an attribute, if it is the facility or appname, or as the
+ *    host if it is the host. Otherwise, the host of the first message.
+ *  * the timestamp of the first message.
+ *  * the most severe priority of the messages.
+ *
+ * The number of open batches is bounded. When a new key arrives and the
+ * table is full, the oldest batch is closed early.
+ *
+ * This class is not thread safe, except for getNumBatches(). It is meant to
+ * be used by the thread calling next() on a source.
+ */
+public class Batcher {
+	final public static int DEFAULT_MAX_BATCHES = 1000;
+
+	/// The first byte of each batch body.
+	final public static int FORMAT_VERSION = 1;
+
+	final private static Object NO_KEY = new Object();
+
+	/**
+	 * What to group messages by.
+	 */
+	public static enum Key {
+		NONE,
+		FACILITY,
+		APPNAME,
+		HOST,
+	}
+
+	private Key key;
+	private int maxEvents;
+	private int maxBytes;
+	private long maxDelay;
+	private int maxBatches;
+	/// In insertion order, so the eldest batch is due first.
+	private LinkedHashMap<Object, Batch> batches = new LinkedHashMap<Object, Batch>();
+	/// Closed batches, waiting to be polled.
+	private LinkedList<Event> ready = new LinkedList<Event>();
+	private AtomicLong numBatches = new AtomicLong();
+
+	/**
+	 * Construct a new batcher.
+	 *
+	 * @param key what to group messages by.
+	 * @param maxEvents the most messages per batch.
+	 * @param maxBytes the largest batch body, unless a single message is
+	 *                 larger.
+	 * @param maxDelay the longest a batch stays open, in ms.
+	 * @param maxBatches the maximum number of open batches.
+	 * @throws IllegalArgumentException if a number is not positive.
+	 */
+	public Batcher(Key key, int maxEvents, int maxBytes, long maxDelay, int maxBatches) {
+		if (maxEvents < 1 || maxBytes < 1 || maxDelay < 1 || maxBatches < 1)
+			throw new IllegalArgumentException("Batch limits must be positive");
+
+		this.key = key;
+		this.maxEvents = maxEvents;
+		this.maxBytes = maxBytes;
+		this.maxDelay = maxDelay;
+		this.maxBatches = maxBatches;
+	}
+
+	/**
+	 * Parse a key name, like "appname".
+	 *
+	 * @throws IllegalArgumentException if the name is unknown.
+	 */
+	public static Key parseKey(String name) {
+		for (Key k : Key.values()) {
+			if (k.name().equalsIgnoreCase(name))
+				return k;
+		}
+
+		throw new IllegalArgumentException("Unknown batch key: " + name);
+	}
+
+	/**
+	 * Return the number of batches closed so far.
+	 */
+	public long getNumBatches() {
+		return numBatches.get();
+	}
+
+	/**
+	 * Add a message to its batch.
+	 *
+	 * @param e the message.
+	 * @param now the current time in ms.
+	 */
+	void add(Event e, long now) {
+		Object k = getKey(e);
+		Batch b = batches.get(k);
+
+		if (b == null) {
+			if (batches.size() >= maxBatches) {
+				Iterator<Batch> it = batches.values().iterator();
+
+				close(it.next());
+				it.remove();
+			}
+
+			b = new Batch(e, now);
+			batches.put(k, b);
+		}
+
+		if (!b.add(e, maxBytes)) {
+			batches.remove(k);
+			close(b);
+
+			b = new Batch(e, now);
+			batches.put(k, b);
+			b.add(e, maxBytes);
+		}
+
+		if (b.numEvents >= maxEvents || b.body.length >= maxBytes) {
+			batches.remove(k);
+			close(b);
+		}
+	}
+
+	/**
+	 * Return a closed batch, if any.
+	 *
+	 * @param now the current time in ms.
+	 * @return a batch event, or null if none is due.
+	 */
+	Event poll(long now) {
+		Iterator<Batch> it = batches.values().iterator();
+
+		while (it.hasNext()) {
+			Batch b = it.next();
+
+			if (b.opened + maxDelay > now) break;
+
+			close(b);
+			it.remove();
+		}
+
+		return ready.poll();
+	}
+
+	/**
+	 * Close all batches, and return the first.
+	 *
+	 * Call poll() for the rest. For when the source reaches EOF.
+	 *
+	 * @return a batch event, or null if there were no messages.
+	 */
+	Event flush() {
+		for (Batch b : batches.values())
+			close(b);
+
+		batches.clear();
+
+		return ready.poll();
+	}
+
+	/**
+	 * Return how long until a batch may be due.
+	 *
+	 * @param now the current time in ms.
+	 * @return the time in ms, or 0 if there are no open batches.
+	 */
+	long getTimeout(long now) {
+		if (!ready.isEmpty()) return 1;
+
+		Iterator<Batch> it = batches.values().iterator();
+
+		if (!it.hasNext()) return 0;
+
+		return Math.max(1, it.next().opened + maxDelay - now);
+	}
+
+	private Object getKey(Event e) {
+		Object ret = null;
+
+		switch (key) {
+		case FACILITY:
+			byte[] f = e.get(SyslogParser.SYSLOG_FACILITY);
+
+			if (f != null) ret = Integer.valueOf(f[0]);
+			break;
+
+		case APPNAME:
+			byte[] app = e.get(SyslogParser.SYSLOG_APPNAME);
+
+			if (app != null) ret = ByteBuffer.wrap(app);
+			break;
+
+		case HOST:
+			ret = e.getHost();
+			break;
+
+		default:
+			break;
+		}
+
+		return (ret == null ? NO_KEY : ret);
+	}
+
+	private void close(Batch b) {
+		Map<String, byte[]> attrs = new HashMap<String, byte[]>();
+		byte[] body = new byte[b.body.length];
+
+		System.arraycopy(b.body.buf, 0, body, 0, body.length);
+		attrs.put(SyslogParser.SYSLOG_BATCH, ByteBuffer.allocate(8).putLong(b.numEvents).array());
+
+		if (key == Key.FACILITY || key == Key.APPNAME) {
+			String attr = (key == Key.FACILITY ? SyslogParser.SYSLOG_FACILITY : SyslogParser.SYSLOG_APPNAME);
+			byte[] v = b.first.get(attr);
+
+			if (v != null) attrs.put(attr, v);
+		}
+
+		ready.add(new EventImpl(body, b.first.getTimestamp(), b.priority, b.first.getNanos(), b.first.getHost(), attrs));
+		numBatches.incrementAndGet();
+	}
+
+	/**
+	 * An open batch, and its body so far.
+	 */
+	private static class Batch {
+		final Event first;
+		/// When the batch was opened, in ms.
+		final long opened;
+		EventEncoder body = new EventEncoder();
+		int numEvents = 0;
+		Event.Priority priority;
+
+		Batch(Event first, long opened) {
+			this.first = first;
+			this.opened = opened;
+			this.priority = first.getPriority();
+			body.write(FORMAT_VERSION);
+		}
+
+		/**
+		 * Append a message, unless that takes a non-empty batch past
+		 * maxBytes.
+		 *
+		 * @return false if the message didn't fit.
+		 */
+		boolean add(Event e, int maxBytes) {
+			int length = body.length;
+
+			body.writeEvent(e);
+
+			if (numEvents > 0 && body.length > maxBytes) {
+				body.length = length;
+				return false;
+			}
+
+			if (e.getPriority().compareTo(priority) < 0)
+				priority = e.getPriority();
+
+			++numEvents;
+
+			return true;
+		}
+	}
+}
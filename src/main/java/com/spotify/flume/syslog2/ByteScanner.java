@@ -0,0 +1,121 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/**
+ * Finds the first of a set of delimiter bytes in a buffer.
+ *
+ * This looks at eight bytes at a time, using long reads and SIMD-within-a-
+ * register bit tricks: XOR a word with the delimiter repeated in every byte,
+ * and the bytes that matched are zero. Those are found without branching,
+ * and the lowest one gives the index. Long reads from a ByteBuffer compile to
+ * single unaligned loads on modern JVMs.
+ *
+ * Up to four delimiters are supported, which covers the syslog grammar.
+ *
+ * Instances are immutable, so make them constants.
+ */
+public final class ByteScanner {
+	final private static long ONES = 0x0101010101010101L;
+	final private static long LOWS = 0x7F7F7F7F7F7F7F7FL;
+
+	final private int count;
+	final private byte b1, b2, b3, b4;
+	final private long m1, m2, m3, m4;
+
+	/**
+	 * Construct a new scanner.
+	 *
+	 * @param delimiters between one and four bytes to look for.
+	 */
+	public ByteScanner(byte... delimiters) {
+		if (delimiters.length < 1 || delimiters.length > 4)
+			throw new IllegalArgumentException("Expected 1-4 delimiters, got " + delimiters.length);
+
+		count = delimiters.length;
+		// Pad with the first delimiter. Matching it twice is harmless.
+		b1 = delimiters[0];
+		b2 = (count > 1 ? delimiters[1] : b1);
+		b3 = (count > 2 ? delimiters[2] : b1);
+		b4 = (count > 3 ? delimiters[3] : b1);
+		m1 = (b1 & 0xFFL) * ONES;
+		m2 = (b2 & 0xFFL) * ONES;
+		m3 = (b3 & 0xFFL) * ONES;
+		m4 = (b4 & 0xFFL) * ONES;
+	}
+
+	/**
+	 * Find the first delimiter in a range of a buffer.
+	 *
+	 * The position and limit of the buffer are ignored and left alone.
+	 *
+	 * @param buf the buffer, heap or direct, in any byte order.
+	 * @param from the first index to look at.
+	 * @param to the index after the last one to look at.
+	 * @return the absolute index of the first delimiter, or -1.
+	 */
+	public int indexIn(ByteBuffer buf, int from, int to) {
+		boolean littleEndian = (buf.order() == ByteOrder.LITTLE_ENDIAN);
+		int i = from;
+
+		for (; i <= to - 8; i += 8) {
+			long found = match(buf.getLong(i));
+
+			if (found != 0) {
+				// The first byte in memory is the least significant
+				// one in little endian.
+				int bit = (littleEndian ? Long.numberOfTrailingZeros(found) : Long.numberOfLeadingZeros(found));
+
+				return i + (bit >>> 3);
+			}
+		}
+
+		for (; i < to; ++i) {
+			byte b = buf.get(i);
+
+			if (b == b1 || b == b2 || b == b3 || b == b4)
+				return i;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Return a word with the high bit set in every byte that matched.
+	 */
+	private long match(long w) {
+		long ret = zeroBytes(w ^ m1);
+
+		if (count > 1)
+			ret |= zeroBytes(w ^ m2) | zeroBytes(w ^ m3) | zeroBytes(w ^ m4);
+
+		return ret;
+	}
+
+	/**
+	 * Return a word with the high bit set in every byte that is zero.
+	 *
+	 * This is the exact version, which has no false positives above a zero
+	 * byte. We need that for big endian.
+	 */
+	private static long zeroBytes(long x) {
+		return ~(((x & LOWS) + LOWS) | x | LOWS);
+	}
+}
@@ -0,0 +1,239 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.core.EventImpl;
+
+
+/**
+ * Suppression of repeated messages.
+ *
+ * Syslog storms are mostly the same message over and over. Events are
+ * fingerprinted by host, appname and body. The first event with a
+ * fingerprint is passed on at once, and opens a window. Repeats within the
+ * window are dropped and counted. When the window closes, a copy of the
+ * first event is emitted with the number of repeats in the
+ * SyslogParser.SYSLOG_REPEATED attribute, and the timestamp of the last
+ * repeat. Nothing is emitted for windows without repeats, so unique
+ * messages are neither delayed nor duplicated.
+ *
+ * Fingerprints are 64 bit hashes, so distinct messages colliding is
+ * possible in theory, but not worth worrying about.
+ *
+ * The number of open windows is bounded. When a new fingerprint arrives
+ * and the table is full, the oldest window is closed early.
+ *
+ * This class is not thread safe, except for getSuppressed(). It is meant to
+ * be used by the thread calling next() on a source.
+ */
+public class Deduplicator {
+	final public static int DEFAULT_MAX_ENTRIES = 10000;
+
+	private long window;
+	private int maxEntries;
+	/// In insertion order, so the eldest window closes first.
+	private LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>();
+	/// Summaries of closed windows, waiting to be polled.
+	private LinkedList<Event> ready = new LinkedList<Event>();
+	private AtomicLong suppressed = new AtomicLong();
+
+	/**
+	 * Construct a new deduplicator.
+	 *
+	 * @param window the window length in ms.
+	 * @param maxEntries the maximum number of open windows.
+	 * @throws IllegalArgumentException if a number is not positive.
+	 */
+	public Deduplicator(long window, int maxEntries) {
+		if (window < 1 || maxEntries < 1)
+			throw new IllegalArgumentException("Dedup window and size must be positive");
+
+		this.window = window;
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Return the number of repeats dropped so far.
+	 */
+	public long getSuppressed() {
+		return suppressed.get();
+	}
+
+	/**
+	 * Pass an event through.
+	 *
+	 * @param e the event.
+	 * @param now the current time in ms.
+	 * @return e, or null if it is a repeat.
+	 */
+	Event offer(Event e, long now) {
+		expire(now);
+
+		Long key = fingerprint(e);
+		Entry x = entries.get(key);
+
+		if (x != null) {
+			++x.repeats;
+			x.lastTimestamp = e.getTimestamp();
+			suppressed.incrementAndGet();
+
+			return null;
+		}
+
+		if (entries.size() >= maxEntries) {
+			Iterator<Entry> it = entries.values().iterator();
+
+			close(it.next());
+			it.remove();
+		}
+
+		entries.put(key, new Entry(e, now));
+
+		return e;
+	}
+
+	/**
+	 * Return the summary of a closed window, if any.
+	 *
+	 * @param now the current time in ms.
+	 * @return a summary event, or null if none is due.
+	 */
+	Event poll(long now) {
+		expire(now);
+
+		return ready.poll();
+	}
+
+	/**
+	 * Close all windows, and return the first summary.
+	 *
+	 * Call poll() for the rest. For when the source reaches EOF.
+	 *
+	 * @return a summary event, or null if there are no repeats.
+	 */
+	Event flush() {
+		for (Entry x : entries.values())
+			close(x);
+
+		entries.clear();
+
+		return ready.poll();
+	}
+
+	/**
+	 * Return how long until a summary may be due.
+	 *
+	 * @param now the current time in ms.
+	 * @return the time in ms, or 0 if there are no open windows.
+	 */
+	long getTimeout(long now) {
+		if (!ready.isEmpty()) return 1;
+
+		Iterator<Entry> it = entries.values().iterator();
+
+		if (!it.hasNext()) return 0;
+
+		return Math.max(1, it.next().opened + window - now);
+	}
+
+	/**
+	 * Close the windows that have ended.
+	 */
+	private void expire(long now) {
+		Iterator<Entry> it = entries.values().iterator();
+
+		while (it.hasNext()) {
+			Entry x = it.next();
+
+			if (x.opened + window > now) break;
+
+			close(x);
+			it.remove();
+		}
+	}
+
+	/**
+	 * Queue the summary of a window, if there were repeats.
+	 */
+	private void close(Entry x) {
+		if (x.repeats == 0) return;
+
+		x.attrs.put(SyslogParser.SYSLOG_REPEATED, ByteBuffer.allocate(8).putLong(x.repeats).array());
+		ready.add(new EventImpl(x.body, x.lastTimestamp, x.priority, x.nanos, x.host, x.attrs));
+	}
+
+	/**
+	 * Hash the host, appname and body of an event.
+	 */
+	static long fingerprint(Event e) {
+		long h;
+
+		if (e instanceof SyslogEvent) {
+			// Don't decode fields just for this.
+			SyslogEvent se = (SyslogEvent) e;
+
+			h = se.hash(SyslogEvent.HOST);
+			h = 31 * h + se.hash(SyslogEvent.APPNAME);
+			h = 31 * h + se.hash(SyslogEvent.BODY);
+		} else {
+			byte[] appname = e.get(SyslogParser.SYSLOG_APPNAME);
+
+			h = (e.getHost() == null ? 0 : HyperLogLog.hash(e.getHost()));
+			h = 31 * h + (appname == null ? 0 : HyperLogLog.hash(appname));
+			h = 31 * h + HyperLogLog.hash(e.getBody());
+		}
+
+		return h;
+	}
+
+	/**
+	 * An open window.
+	 *
+	 * The first event is copied, not kept, since it belongs to Flume once
+	 * returned. Later decorators may add attributes to it, or its message
+	 * may be released.
+	 */
+	private static class Entry {
+		final byte[] body;
+		final String host;
+		final Event.Priority priority;
+		final long nanos;
+		final Map<String, byte[]> attrs;
+		/// When the window was opened, in ms.
+		final long opened;
+		long repeats = 0;
+		long lastTimestamp;
+
+		Entry(Event first, long opened) {
+			this.body = first.getBody();
+			this.host = first.getHost();
+			this.priority = first.getPriority();
+			this.nanos = first.getNanos();
+			this.attrs = new HashMap<String, byte[]>(first.getAttrs());
+			this.opened = opened;
+			this.lastTimestamp = first.getTimestamp();
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.cloudera.flume.core.Event;
+
+
+/**
+ * Serializes events in the record format described by BatchDecoder.
+ *
+ * Attribute names are written once and then referred back to, so a stream
+ * of records must be decoded in order, by one BatchDecoder, from the first
+ * record after reset(). Used by Batcher for batch bodies and by SpillQueue
+ * for segment files.
+ */
+class EventEncoder {
+	byte[] buf = new byte[1024];
+	int length = 0;
+	/// Attribute names written so far, and their references.
+	private Map<String, Integer> names = new HashMap<String, Integer>();
+
+	/**
+	 * Forget the written bytes, but not the attribute names.
+	 */
+	void clear() {
+		length = 0;
+	}
+
+	/**
+	 * Start a new stream of records.
+	 */
+	void reset() {
+		length = 0;
+		names.clear();
+	}
+
+	/**
+	 * Append the record of an event.
+	 */
+	void writeEvent(Event e) {
+		byte[] body = e.getBody();
+		Map<String, byte[]> attrs = e.getAttrs();
+
+		write(e.getPriority().ordinal());
+		writeLong(e.getTimestamp());
+		writeLong(e.getNanos());
+		writeHost(e.getHost());
+		writeVarint(body.length);
+		write(body, 0, body.length);
+		writeVarint(attrs.size());
+
+		for (Map.Entry<String, byte[]> attr : attrs.entrySet()) {
+			Integer ref = names.get(attr.getKey());
+
+			if (ref == null) {
+				writeVarint(0);
+				writeString(attr.getKey());
+				names.put(attr.getKey(), names.size() + 1);
+			} else {
+				writeVarint(ref);
+			}
+
+			writeVarint(attr.getValue().length);
+			write(attr.getValue(), 0, attr.getValue().length);
+		}
+	}
+
+	void write(int b) {
+		ensure(1);
+		buf[length++] = (byte) b;
+	}
+
+	private void write(byte[] b, int offset, int n) {
+		ensure(n);
+		System.arraycopy(b, offset, buf, length, n);
+		length += n;
+	}
+
+	private void writeLong(long v) {
+		for (int shift = 56; shift >= 0; shift -= 8)
+			write((int) (v >>> shift));
+	}
+
+	/**
+	 * Write an unsigned LEB128 integer.
+	 */
+	private void writeVarint(int v) {
+		while ((v & ~0x7F) != 0) {
+			write((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+
+		write(v);
+	}
+
+	private void writeString(String s) {
+		byte[] b;
+
+		try {
+			b = s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new RuntimeException(ex);
+		}
+
+		writeVarint(b.length);
+		write(b, 0, b.length);
+	}
+
+	/**
+	 * Write a string with its length plus one, so null can be 0.
+	 */
+	private void writeHost(String host) {
+		if (host == null) {
+			writeVarint(0);
+			return;
+		}
+
+		byte[] b;
+
+		try {
+			b = host.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new RuntimeException(ex);
+		}
+
+		writeVarint(b.length + 1);
+		write(b, 0, b.length);
+	}
+
+	private void ensure(int n) {
+		if (length + n <= buf.length) return;
+
+		byte[] b = new byte[Math.max(buf.length * 2, length + n)];
+
+		System.arraycopy(buf, 0, b, 0, length);
+		buf = b;
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.util.Arrays;
+
+
+/**
+ * A fixed-size histogram of non-negative longs.
+ *
+ * Buckets are logarithmic, with four linear sub-buckets per power of two.
+ * Values below four are exact, and larger values are accurate to within
+ * 25%. That's plenty for latencies, and it covers the whole long range in
+ * a couple of kilobytes.
+ *
+ * This class is not thread safe.
+ */
+public class Histogram {
+	final private static int NUM_BUCKETS = 62 * 4;
+
+	private long[] counts = new long[NUM_BUCKETS];
+	private long count = 0;
+	private long max = 0;
+
+	/**
+	 * Record a value.
+	 *
+	 * @param v a non-negative value.
+	 */
+	public void record(long v) {
+		if (v < 0)
+			throw new IllegalArgumentException("Negative histogram value: " + v);
+
+		++counts[getBucket(v)];
+		++count;
+		if (v > max) max = v;
+	}
+
+	/**
+	 * Return the number of recorded values.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Return the largest recorded value, or zero if empty.
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Return an upper bound of the given percentile.
+	 *
+	 * @param p the percentile, in the range [0, 100].
+	 * @return the upper bound of the bucket the percentile falls in,
+	 *         or zero if empty.
+	 */
+	public long getPercentile(double p) {
+		long rank = (long) Math.ceil(count * p / 100);
+		long seen = 0;
+
+		if (rank < 1) rank = 1;
+
+		for (int i = 0; i < counts.length; ++i) {
+			seen += counts[i];
+
+			if (seen >= rank)
+				return Math.min(getUpperBound(i), max);
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Forget all recorded values.
+	 */
+	public void clear() {
+		Arrays.fill(counts, 0);
+		count = 0;
+		max = 0;
+	}
+
+	private static int getBucket(long v) {
+		if (v < 4) return (int) v;
+
+		int exp = 63 - Long.numberOfLeadingZeros(v);
+
+		return (exp - 1) * 4 + (int) ((v >>> (exp - 2)) & 3);
+	}
+
+	private static long getUpperBound(int bucket) {
+		if (bucket < 4) return bucket;
+
+		int exp = bucket / 4 + 1;
+		long lower = (long) (4 + bucket % 4) << (exp - 2);
+
+		return lower + (1L << (exp - 2)) - 1;
+	}
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.util.Arrays;
+
+
+/**
+ * A HyperLogLog distinct value estimator.
+ *
+ * Memory use is fixed at 2^precision bytes, regardless of how many values
+ * are offered. The standard error is roughly 1.04 / sqrt(2^precision), so
+ * the default precision of 12 gives about 1.6% using 4 kB.
+ *
+ * Values are offered as 64-bit hashes. The static hash() functions are
+ * provided for the types we see in events, and avoid allocating.
+ *
+ * This class is not thread safe.
+ *
+ * @see "Flajolet et al., HyperLogLog: the analysis of a near-optimal
+ *       cardinality estimation algorithm, 2007."
+ */
+public class HyperLogLog {
+	final public static int DEFAULT_PRECISION = 12;
+
+	private int precision;
+	private byte[] registers;
+
+	/**
+	 * Construct a new estimator with the default precision.
+	 */
+	public HyperLogLog() {
+		this(DEFAULT_PRECISION);
+	}
+
+	/**
+	 * Construct a new estimator.
+	 *
+	 * @param precision the number of index bits, in the range [4, 16].
+	 */
+	public HyperLogLog(int precision) {
+		if (precision < 4 || precision > 16)
+			throw new IllegalArgumentException("HyperLogLog precision out of range: " + precision);
+
+		this.precision = precision;
+		this.registers = new byte[1 << precision];
+	}
+
+	/**
+	 * Record a hashed value.
+	 *
+	 * @param hash a well-mixed 64-bit hash of the value.
+	 */
+	public void offer(long hash) {
+		int index = (int) (hash >>> (64 - precision));
+		// Make sure the rank is bounded even if the remaining bits are zero.
+		long rest = (hash << precision) | (1L << (precision - 1));
+		byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+
+		if (rank > registers[index])
+			registers[index] = rank;
+	}
+
+	/**
+	 * Return the estimated number of distinct values offered.
+	 */
+	public long cardinality() {
+		int m = registers.length;
+		double sum = 0;
+		int zeros = 0;
+
+		for (byte r : registers) {
+			sum += 1.0 / (1L << r);
+			if (r == 0) ++zeros;
+		}
+
+		double estimate = alpha(m) * m * m / sum;
+
+		// Small range correction; linear counting is better here.
+		if (estimate <= 2.5 * m && zeros > 0)
+			estimate = m * Math.log((double) m / zeros);
+
+		return Math.round(estimate);
+	}
+
+	/**
+	 * Forget all offered values.
+	 */
+	public void clear() {
+		Arrays.fill(registers, (byte) 0);
+	}
+
+	/**
+	 * Hash a byte array.
+	 */
+	public static long hash(byte[] b) {
+		return hash(b, 0, b.length);
+	}
+
+	/**
+	 * Hash part of a byte array.
+	 */
+	public static long hash(byte[] b, int offset, int length) {
+		long h = FNV_OFFSET;
+
+		for (int i = offset; i < offset + length; ++i) {
+			h ^= b[i] & 0xFF;
+			h *= FNV_PRIME;
+		}
+
+		return mix(h);
+	}
+
+	/**
+	 * Hash a string.
+	 *
+	 * This hashes UTF-16 code units, so it will not match hash(byte[]) for
+	 * the encoded string. That's fine as long as each estimator only sees
+	 * one kind.
+	 */
+	public static long hash(CharSequence s) {
+		long h = FNV_OFFSET;
+
+		for (int i = 0; i < s.length(); ++i) {
+			h ^= s.charAt(i);
+			h *= FNV_PRIME;
+		}
+
+		return mix(h);
+	}
+
+	final private static long FNV_OFFSET = 0xcbf29ce484222325L;
+	final private static long FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * Spread the bits of a FNV hash.
+	 *
+	 * FNV-1a is cheap but its high bits are poorly mixed for short inputs,
+	 * and those are the ones we index by. This is the MurmurHash3 finalizer.
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+
+		return h;
+	}
+
+	private static double alpha(int m) {
+		switch (m) {
+		case 16: return 0.673;
+		case 32: return 0.697;
+		case 64: return 0.709;
+		default: return 0.7213 / (1 + 1.079 / m);
+		}
+	}
+}
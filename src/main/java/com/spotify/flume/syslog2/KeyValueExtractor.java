@@ -0,0 +1,293 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Makes attributes of "key=value" pairs in message bodies.
+ *
+ * The configuration is a list of groups separated by semicolons. A group
+ * is an appname, a colon and a comma separated list of keys. The appname
+ * "*", or leaving out the appname and colon, applies to every message.
+ * For example
+ *
+ *   nginx:status,bytes;sshd:user;*:request_id
+ *
+ * Each key found in the body of a matching message becomes an attribute
+ * named "syslog.kv.KEY". Pairs are separated by whitespace. A value in
+ * double quotes may contain whitespace, and backslash escapes of quotes
+ * and backslashes. Tokens without an equals sign are skipped, and the
+ * first occurrence of a key wins.
+ *
+ * The groups are compiled into one list of keys per appname, the keys for
+ * all appnames included, so a message is matched against its appname once
+ * and the body scanned once. The scan looks for delimiters with a
+ * ByteScanner, and only compares bytes, so nothing is decoded or allocated
+ * for pairs that aren't wanted. Events do this when their attributes are
+ * created.
+ *
+ * Extractors are immutable, and can be shared between threads.
+ */
+public class KeyValueExtractor {
+	/// Ends a key or an unquoted value.
+	final private static ByteScanner KEY_END = new ByteScanner((byte) '=', (byte) ' ', (byte) '\t', (byte) '\r');
+	final private static ByteScanner VALUE_END = new ByteScanner((byte) ' ', (byte) '\t', (byte) '\r');
+	final private static ByteScanner QUOTE_END = new ByteScanner((byte) '"', (byte) '\\');
+
+	/// Per appname, in the order configured.
+	final private Keys[] byAppname;
+	/// For any other appname, or none. May be null.
+	final private Keys any;
+
+	private KeyValueExtractor(Keys[] byAppname, Keys any) {
+		this.byAppname = byAppname;
+		this.any = any;
+	}
+
+	/**
+	 * Compile a configuration.
+	 *
+	 * @throws IllegalArgumentException if it is empty or malformed.
+	 */
+	public static KeyValueExtractor parse(String spec) {
+		// Keys per appname, with "*" for any.
+		Map<String, Set<String>> groups = new LinkedHashMap<String, Set<String>>();
+
+		for (String group : spec.split(";")) {
+			group = group.trim();
+
+			if (group.length() == 0) continue;
+
+			int colon = group.indexOf(':');
+			String appname = (colon < 0 ? "*" : group.substring(0, colon).trim());
+			Set<String> keys = groups.get(appname);
+
+			if (appname.length() == 0)
+				throw new IllegalArgumentException("Expected APPNAME:KEY,...: " + group);
+
+			if (keys == null) {
+				keys = new LinkedHashSet<String>();
+				groups.put(appname, keys);
+			}
+
+			for (String key : group.substring(colon + 1).split(",")) {
+				key = key.trim();
+
+				if (key.length() == 0 || key.indexOf('=') >= 0 || key.indexOf(' ') >= 0)
+					throw new IllegalArgumentException("Bad key in " + group + ": '" + key + "'");
+
+				keys.add(key);
+			}
+		}
+
+		if (groups.isEmpty())
+			throw new IllegalArgumentException("Empty key/value configuration: " + spec);
+
+		Set<String> anyKeys = groups.remove("*");
+		List<Keys> byAppname = new ArrayList<Keys>();
+
+		for (Map.Entry<String, Set<String>> g : groups.entrySet()) {
+			Set<String> keys = new LinkedHashSet<String>(g.getValue());
+
+			if (anyKeys != null) keys.addAll(anyKeys);
+
+			byAppname.add(new Keys(g.getKey(), keys));
+		}
+
+		return new KeyValueExtractor(byAppname.toArray(new Keys[byAppname.size()]), anyKeys == null ? null : new Keys(null, anyKeys));
+	}
+
+	/**
+	 * Extract the wanted pairs of a message into an attribute map.
+	 *
+	 * @param raw the message.
+	 * @param appOffset the offset of the appname in raw.
+	 * @param appLength the length of the appname, or -1 if none.
+	 * @param bodyOffset the offset of the body in raw.
+	 * @param bodyLength the length of the body.
+	 * @param attrs the map to add attributes to.
+	 */
+	void extract(byte[] raw, int appOffset, int appLength, int bodyOffset, int bodyLength, Map<String, byte[]> attrs) {
+		Keys keys = find(raw, appOffset, appLength);
+
+		if (keys == null || bodyLength <= 0) return;
+
+		ByteBuffer buf = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN);
+		int end = bodyOffset + bodyLength;
+		int i = bodyOffset;
+		int found = 0;
+
+		while (i < end && found < keys.keys.length) {
+			byte b = raw[i];
+
+			if (b == ' ' || b == '\t' || b == '\r') {
+				++i;
+				continue;
+			}
+
+			int keyEnd = KEY_END.indexIn(buf, i, end);
+
+			if (keyEnd < 0 || raw[keyEnd] != '=') {
+				// Not a pair. Skip the token.
+				i = (keyEnd < 0 ? end : keyEnd);
+				continue;
+			}
+
+			int k = keys.indexOf(raw, i, keyEnd - i);
+			int valueStart = keyEnd + 1;
+			int valueEnd;
+			boolean quoted = (valueStart < end && raw[valueStart] == '"');
+
+			if (quoted) {
+				valueEnd = findQuote(buf, raw, valueStart + 1, end);
+			} else {
+				valueEnd = VALUE_END.indexIn(buf, valueStart, end);
+
+				if (valueEnd < 0) valueEnd = end;
+			}
+
+			if (k >= 0 && !attrs.containsKey(keys.attrs[k])) {
+				attrs.put(keys.attrs[k], quoted ? unescape(raw, valueStart + 1, valueEnd) : copy(raw, valueStart, valueEnd));
+				++found;
+			}
+
+			// Past the closing quote, if any.
+			i = (quoted && valueEnd < end ? valueEnd + 1 : valueEnd);
+		}
+	}
+
+	/**
+	 * Return the keys for an appname, or null if none.
+	 */
+	private Keys find(byte[] raw, int off, int len) {
+		if (len >= 0) {
+			for (Keys k : byAppname) {
+				if (regionEquals(raw, off, len, k.appname)) return k;
+			}
+		}
+
+		return any;
+	}
+
+	/**
+	 * Return the index of the closing quote, or end if unterminated.
+	 */
+	private static int findQuote(ByteBuffer buf, byte[] raw, int from, int end) {
+		for (int i = from; i < end;) {
+			int q = QUOTE_END.indexIn(buf, i, end);
+
+			if (q < 0) return end;
+			if (raw[q] == '"') return q;
+
+			// Skip the escaped byte.
+			i = q + 2;
+		}
+
+		return end;
+	}
+
+	/**
+	 * Copy a quoted value, removing escapes of quotes and backslashes.
+	 */
+	private static byte[] unescape(byte[] raw, int from, int to) {
+		byte[] ret = new byte[to - from];
+		int n = 0;
+
+		for (int i = from; i < to; ++i) {
+			byte b = raw[i];
+
+			if (b == '\\' && i + 1 < to && (raw[i + 1] == '"' || raw[i + 1] == '\\'))
+				b = raw[++i];
+
+			ret[n++] = b;
+		}
+
+		if (n == ret.length) return ret;
+
+		return copy(ret, 0, n);
+	}
+
+	private static byte[] copy(byte[] raw, int from, int to) {
+		byte[] ret = new byte[to - from];
+
+		System.arraycopy(raw, from, ret, 0, ret.length);
+
+		return ret;
+	}
+
+	private static boolean regionEquals(byte[] raw, int off, int len, byte[] b) {
+		if (len != b.length) return false;
+
+		for (int i = 0; i < len; ++i) {
+			if (raw[off + i] != b[i]) return false;
+		}
+
+		return true;
+	}
+
+	private static byte[] getBytes(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * The compiled keys for one appname.
+	 */
+	private static class Keys {
+		/// Null for any.
+		final byte[] appname;
+		final byte[][] keys;
+		final String[] attrs;
+
+		Keys(String appname, Set<String> keys) {
+			this.appname = (appname == null ? null : getBytes(appname));
+			this.keys = new byte[keys.size()][];
+			this.attrs = new String[keys.size()];
+
+			int i = 0;
+
+			for (String key : keys) {
+				this.keys[i] = getBytes(key);
+				this.attrs[i] = SyslogParser.SYSLOG_KV_PREFIX + key;
+				++i;
+			}
+		}
+
+		/**
+		 * Return the index of a key, or -1 if not wanted.
+		 */
+		int indexOf(byte[] raw, int off, int len) {
+			for (int i = 0; i < keys.length; ++i) {
+				if (regionEquals(raw, off, len, keys[i])) return i;
+			}
+
+			return -1;
+		}
+	}
+}
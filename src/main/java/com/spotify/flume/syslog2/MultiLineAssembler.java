@@ -0,0 +1,351 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.core.EventImpl;
+
+
+/**
+ * Joins continuation lines, like stack traces, into one event.
+ *
+ * Loggers writing to syslog send each line of a multi-line message as a
+ * message of its own. Messages are grouped by host, appname and process
+ * id. A message whose body starts with one of the continuation prefixes
+ * is appended to the open message of its group. Any other message closes
+ * the open message of its group, and opens a new one. The continuation
+ * rules are a list separated by semicolons, of prefixes, taken as is, or
+ * "indent", which stands for a space or a tab. Note that the parser drops
+ * the spaces before the message, so only tabs are left of the indentation
+ * of most syslog lines. See JAVA.
+ *
+ * A message is closed when no line has been added for a while, or when it
+ * reaches a number of lines or bytes. A line that would take the body past
+ * the byte limit starts a new message instead, since Flume rejects events
+ * larger than flume.event.max.size.bytes. Its event has
+ *
+ *  * the bodies of the lines, joined by NL, as the body.
+ *  * the number of lines in the SyslogParser.SYSLOG_LINES attribute.
+ *  * the attributes, timestamp, priority and host of the first line.
+ *
+ * Messages without continuation lines are passed on as they are, once
+ * closed. This delays every message by the timeout, so keep it short.
+ *
+ * The number of open messages is bounded. When a new group arrives and
+ * the table is full, the least recently extended message is closed early.
+ *
+ * This class is not thread safe, except for getNumJoined(). It is meant to
+ * be used by the thread calling next() on a source.
+ */
+public class MultiLineAssembler {
+	final public static int DEFAULT_MAX_ENTRIES = 1000;
+
+	/// Java stack traces: "\tat ...", "\t... 5 more" and "Caused by: ...".
+	final public static String JAVA = "indent;Caused by:";
+
+	final private static String INDENT = "indent";
+
+	private byte[][] prefixes;
+	private long timeout;
+	private int maxLines;
+	private int maxBytes;
+	private int maxEntries;
+	/// In access order, so the eldest message is the most idle.
+	private LinkedHashMap<Long, Message> messages = new LinkedHashMap<Long, Message>(16, 0.75f, true);
+	/// Closed messages, waiting to be polled.
+	private LinkedList<Event> ready = new LinkedList<Event>();
+	private AtomicLong numJoined = new AtomicLong();
+
+	/**
+	 * Construct a new assembler.
+	 *
+	 * @param rules the continuation prefixes, like JAVA.
+	 * @param timeout how long a message stays open without new lines, in
+	 *                ms.
+	 * @param maxLines the most lines per message.
+	 * @param maxBytes the largest joined body, unless its first line is
+	 *                 larger.
+	 * @param maxEntries the maximum number of open messages.
+	 * @throws IllegalArgumentException if there are no rules, or a number
+	 *                                  is not positive.
+	 */
+	public MultiLineAssembler(String rules, long timeout, int maxLines, int maxBytes, int maxEntries) {
+		if (timeout < 1 || maxLines < 1 || maxBytes < 1 || maxEntries < 1)
+			throw new IllegalArgumentException("Multi-line limits must be positive");
+
+		List<byte[]> p = new ArrayList<byte[]>();
+
+		for (String rule : rules.split(";")) {
+			if (rule.trim().equals(INDENT)) {
+				p.add(new byte[] { ' ' });
+				p.add(new byte[] { '\t' });
+			} else if (rule.length() > 0) {
+				try {
+					p.add(rule.getBytes("UTF-8"));
+				} catch (UnsupportedEncodingException ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		}
+
+		if (p.isEmpty())
+			throw new IllegalArgumentException("No continuation rules: " + rules);
+
+		this.prefixes = p.toArray(new byte[p.size()][]);
+		this.timeout = timeout;
+		this.maxLines = maxLines;
+		this.maxBytes = maxBytes;
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Return the number of continuation lines joined so far.
+	 */
+	public long getNumJoined() {
+		return numJoined.get();
+	}
+
+	/**
+	 * Pass an event through.
+	 *
+	 * @param e the event.
+	 * @param now the current time in ms.
+	 * @return a closed message, or null. Call poll() for more.
+	 */
+	Event offer(Event e, long now) {
+		expire(now);
+
+		Long key = key(e);
+		Message m = messages.get(key);
+
+		if (m != null && isContinuation(e) && m.bytes + 1 + length(e) <= maxBytes) {
+			m.add(e, now);
+			numJoined.incrementAndGet();
+
+			if (m.lines.size() >= maxLines || m.bytes >= maxBytes) {
+				messages.remove(key);
+				close(m);
+			}
+		} else {
+			if (m != null) {
+				messages.remove(key);
+				close(m);
+			} else if (messages.size() >= maxEntries) {
+				Iterator<Message> it = messages.values().iterator();
+
+				close(it.next());
+				it.remove();
+			}
+
+			m = new Message();
+			m.add(e, now);
+			messages.put(key, m);
+		}
+
+		return ready.poll();
+	}
+
+	/**
+	 * Return a closed message, if any.
+	 *
+	 * @param now the current time in ms.
+	 * @return an event, or null if none is due.
+	 */
+	Event poll(long now) {
+		expire(now);
+
+		return ready.poll();
+	}
+
+	/**
+	 * Close all messages, and return the first.
+	 *
+	 * Call poll() or flush() for the rest. For when the source reaches EOF.
+	 *
+	 * @return an event, or null if there are no messages.
+	 */
+	Event flush() {
+		for (Message m : messages.values())
+			close(m);
+
+		messages.clear();
+
+		return ready.poll();
+	}
+
+	/**
+	 * Return how long until a message may be closed.
+	 *
+	 * @param now the current time in ms.
+	 * @return the time in ms, or 0 if there are no open messages.
+	 */
+	long getTimeout(long now) {
+		if (!ready.isEmpty()) return 1;
+
+		Iterator<Message> it = messages.values().iterator();
+
+		if (!it.hasNext()) return 0;
+
+		return Math.max(1, it.next().updated + timeout - now);
+	}
+
+	/**
+	 * Close the messages that have been idle for the timeout.
+	 */
+	private void expire(long now) {
+		Iterator<Message> it = messages.values().iterator();
+
+		while (it.hasNext()) {
+			Message m = it.next();
+
+			if (m.updated + timeout > now) break;
+
+			close(m);
+			it.remove();
+		}
+	}
+
+	/**
+	 * Queue the event of a message.
+	 */
+	private void close(Message m) {
+		Event first = m.lines.get(0);
+
+		if (m.lines.size() == 1) {
+			ready.add(first);
+			return;
+		}
+
+		int size = m.lines.size() - 1;
+
+		for (Event line : m.lines)
+			size += line.getBody().length;
+
+		byte[] body = new byte[size];
+		int n = 0;
+
+		for (Event line : m.lines) {
+			byte[] b = line.getBody();
+
+			if (n > 0) body[n++] = '\n';
+
+			System.arraycopy(b, 0, body, n, b.length);
+			n += b.length;
+		}
+
+		Map<String, byte[]> attrs = new HashMap<String, byte[]>(first.getAttrs());
+
+		attrs.put(SyslogParser.SYSLOG_LINES, ByteBuffer.allocate(8).putLong(m.lines.size()).array());
+		ready.add(new EventImpl(body, first.getTimestamp(), first.getPriority(), first.getNanos(), first.getHost(), attrs));
+	}
+
+	/**
+	 * Return true if the body of an event starts with a continuation
+	 * prefix.
+	 */
+	private boolean isContinuation(Event e) {
+		if (e instanceof SyslogEvent) {
+			SyslogEvent se = (SyslogEvent) e;
+
+			for (byte[] p : prefixes) {
+				if (se.startsWith(SyslogEvent.BODY, p)) return true;
+			}
+
+			return false;
+		}
+
+		byte[] body = e.getBody();
+
+		for (byte[] p : prefixes) {
+			if (startsWith(body, p)) return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Return the length of the body of an event.
+	 *
+	 * CRs are counted for SyslogEvents, so this may be a little more.
+	 */
+	private static int length(Event e) {
+		// Don't decode the body just for this.
+		return (e instanceof SyslogEvent ? ((SyslogEvent) e).length(SyslogEvent.BODY) : e.getBody().length);
+	}
+
+	private static boolean startsWith(byte[] b, byte[] prefix) {
+		if (b.length < prefix.length) return false;
+
+		for (int i = 0; i < prefix.length; ++i) {
+			if (b[i] != prefix[i]) return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Hash the host, appname and process id of an event.
+	 */
+	static long key(Event e) {
+		long h;
+
+		if (e instanceof SyslogEvent) {
+			// Don't decode fields just for this.
+			SyslogEvent se = (SyslogEvent) e;
+
+			h = se.hash(SyslogEvent.HOST);
+			h = 31 * h + se.hash(SyslogEvent.APPNAME);
+			h = 31 * h + se.hash(SyslogEvent.PROC_ID);
+		} else {
+			byte[] appname = e.get(SyslogParser.SYSLOG_APPNAME);
+			byte[] procId = e.get(SyslogParser.SYSLOG_PROC_ID);
+
+			h = (e.getHost() == null ? 0 : HyperLogLog.hash(e.getHost()));
+			h = 31 * h + (appname == null ? 0 : HyperLogLog.hash(appname));
+			h = 31 * h + (procId == null ? 0 : HyperLogLog.hash(procId));
+		}
+
+		return h;
+	}
+
+	private static class Message {
+		final List<Event> lines = new ArrayList<Event>();
+		/// The size of the joined body, or a little more.
+		int bytes = 0;
+		/// When the last line was added, in ms.
+		long updated;
+
+		void add(Event e, long now) {
+			// The NL joining the lines.
+			if (!lines.isEmpty()) ++bytes;
+
+			lines.add(e);
+			bytes += length(e);
+			updated = now;
+		}
+	}
+}
@@ -0,0 +1,240 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloudera.util.Clock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A cache of peer names, resolved in the background.
+ *
+ * lookup() never blocks. A peer that isn't cached yet gets no name, and is
+ * queued for resolution, so later messages from it get the name. Names
+ * are kept for a TTL, after which the stale name is still returned until
+ * it has been resolved again. Peers without a name are cached as well, so
+ * a sender without a PTR record doesn't cost a query per message. If the
+ * resolver throws, the old name is kept for another TTL. Note that DNS
+ * can't tell a failed query from a missing name, so with it, a failure
+ * is cached as no name.
+ *
+ * The cache is bounded. When it is full, the peer looked up the longest
+ * time ago is evicted. Resolution is done by a few daemon threads, started
+ * by the first lookups. If too many lookups are queued, new ones are
+ * dropped and retried on the next message.
+ *
+ * Resolvers are thread safe, and can be shared between sources.
+ */
+public class PeerResolver {
+	static final Logger LOG = LoggerFactory.getLogger(PeerResolver.class);
+
+	final public static int DEFAULT_MAX_ENTRIES = 10000;
+	final public static long DEFAULT_TTL = 300000;
+	final public static int DEFAULT_THREADS = 4;
+
+	/// Lookups queued beyond this are dropped.
+	final public static int MAX_QUEUED = 1000;
+
+	/**
+	 * Resolves addresses to names. May block.
+	 */
+	public static interface Resolver {
+		/**
+		 * Return the name of an address.
+		 *
+		 * @return the name, or null if there is none.
+		 * @throws Exception if the lookup failed, so the old name is
+		 *                   kept.
+		 */
+		public String resolve(InetAddress address) throws Exception;
+	}
+
+	/**
+	 * Reverse DNS through the system resolver.
+	 *
+	 * This never throws, since InetAddress reports failed queries like
+	 * missing names, by returning the address.
+	 */
+	final public static Resolver DNS = new Resolver() {
+		@Override
+		public String resolve(InetAddress address) {
+			String name = address.getCanonicalHostName();
+
+			return (name.equals(address.getHostAddress()) ? null : name);
+		}
+	};
+
+	private Resolver resolver;
+	private long ttl;
+	/// In access order, so the eldest entry is the least recently used.
+	/// Also guards the entries.
+	private LinkedHashMap<InetAddress, CachedName> cache;
+	private ThreadPoolExecutor executor;
+
+	private AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Construct a new resolver with the default settings.
+	 */
+	public PeerResolver(Resolver resolver) {
+		this(resolver, DEFAULT_MAX_ENTRIES, DEFAULT_TTL, DEFAULT_THREADS);
+	}
+
+	/**
+	 * Construct a new resolver.
+	 *
+	 * @param resolver what resolves the names, like DNS.
+	 * @param maxEntries the maximum number of peers to cache.
+	 * @param ttl how long to keep a name before resolving it again, in ms.
+	 * @param threads the maximum number of lookups at once.
+	 * @throws IllegalArgumentException if a number is not positive.
+	 */
+	public PeerResolver(Resolver resolver, final int maxEntries, long ttl, int threads) {
+		if (maxEntries < 1 || ttl < 1 || threads < 1)
+			throw new IllegalArgumentException("Peer resolver settings must be positive");
+
+		this.resolver = resolver;
+		this.ttl = ttl;
+		this.cache = new LinkedHashMap<InetAddress, CachedName>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<InetAddress, CachedName> eldest) {
+				return size() > maxEntries;
+			}
+		};
+		// The threads are kept, since letting core threads time out is
+		// Java 6. They are only started on demand.
+		this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(MAX_QUEUED), new ThreadFactory() {
+			final private AtomicInteger n = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "peer-resolver-" + n.incrementAndGet());
+
+				t.setDaemon(true);
+
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Return the cached name of a peer, without blocking.
+	 *
+	 * Queues a lookup if the peer isn't cached, or the name has expired.
+	 *
+	 * @return the name, or null if not known (yet).
+	 */
+	public String lookup(InetAddress address) {
+		long now = Clock.unixTime();
+		CachedName e;
+
+		synchronized (cache) {
+			e = cache.get(address);
+
+			if (e == null) {
+				e = new CachedName();
+				cache.put(address, e);
+				misses.incrementAndGet();
+			} else if (e.pending || now < e.expires) {
+				return e.name;
+			}
+
+			e.pending = true;
+		}
+
+		try {
+			executor.execute(new Lookup(address, e));
+		} catch (RejectedExecutionException ex) {
+			// Too far behind. Try again next time.
+			synchronized (cache) {
+				e.pending = false;
+			}
+		}
+
+		return e.name;
+	}
+
+	/**
+	 * Return the number of peers looked up that weren't cached.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Return the number of peers in the cache.
+	 */
+	public int getNumEntries() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	/**
+	 * A cached name. Guarded by the cache.
+	 */
+	private static class CachedName {
+		/// Null if unknown.
+		volatile String name;
+		/// When to resolve again, in ms since the epoch.
+		long expires = 0;
+		/// A lookup is queued or running.
+		boolean pending = false;
+	}
+
+	/**
+	 * A background lookup.
+	 */
+	private class Lookup implements Runnable {
+		final private InetAddress address;
+		final private CachedName entry;
+
+		public Lookup(InetAddress address, CachedName entry) {
+			this.address = address;
+			this.entry = entry;
+		}
+
+		@Override
+		public void run() {
+			// Keep serving the old name if the resolver fails.
+			String name = entry.name;
+
+			try {
+				name = resolver.resolve(address);
+			} catch (Exception ex) {
+				LOG.debug("Failed to resolve " + address, ex);
+			}
+
+			synchronized (cache) {
+				entry.name = name;
+				entry.expires = Clock.unixTime() + ttl;
+				entry.pending = false;
+			}
+		}
+	}
+}
@@ -0,0 +1,260 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Token bucket rate limiting per sender, applied in the parser.
+ *
+ * Each key gets a bucket holding up to "burst" tokens, refilled at "rate"
+ * tokens per second. A message takes a token, and is dropped if there is
+ * none. The key is one of
+ *
+ *  * PEER, the address of the connection or datagram sender.
+ *  * HOST, the hostname of the message.
+ *  * APPNAME, the appname of the message.
+ *
+ * Messages are checked as soon as the key is known: right after the
+ * priority for PEER, after the header otherwise. Over-limit messages are
+ * skipped without creating events, so a storm costs little more than
+ * finding the line ends. Messages missing the key share one bucket.
+ *
+ * The key table is bounded. When it is full, the bucket that has been idle
+ * the longest is evicted. A sender coming back after that starts with a
+ * full bucket, which is what it would have had anyway unless it sent
+ * recently.
+ *
+ * Limiters are thread safe, and can be shared between connections.
+ */
+public class RateLimiter {
+	final public static int DEFAULT_MAX_KEYS = 10000;
+
+	/**
+	 * What to limit by.
+	 */
+	public static enum Key {
+		PEER,
+		HOST,
+		APPNAME,
+	}
+
+	private Key key;
+	/// Tokens per nanosecond.
+	private double rate;
+	private double burst;
+
+	/// In access order, so the eldest entry is the most idle.
+	private LinkedHashMap<Bytes, Bucket> buckets;
+	/// Reused for lookups. Guarded by this.
+	private Bytes probe = new Bytes();
+
+	private AtomicLong limited = new AtomicLong();
+	/// Incremented by getLimitedKeys(), to tell reporting intervals apart.
+	private int epoch = 0;
+	private int limitedKeys = 0;
+
+	/**
+	 * Construct a new limiter.
+	 *
+	 * @param key what to limit by.
+	 * @param rate the sustained number of messages per second per key.
+	 * @param burst the number of messages a key may send at once.
+	 * @param maxKeys the maximum number of buckets to keep.
+	 * @throws IllegalArgumentException if a number is not positive.
+	 */
+	public RateLimiter(Key key, double rate, int burst, final int maxKeys) {
+		if (!(rate > 0) || burst < 1 || maxKeys < 1)
+			throw new IllegalArgumentException("Rate limits must be positive");
+
+		this.key = key;
+		this.rate = rate / 1e9;
+		this.burst = burst;
+		this.buckets = new LinkedHashMap<Bytes, Bucket>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Bytes, Bucket> eldest) {
+				return size() > maxKeys;
+			}
+		};
+	}
+
+	/**
+	 * Parse a key name, like "peer".
+	 *
+	 * @throws IllegalArgumentException if the name is unknown.
+	 */
+	public static Key parseKey(String name) {
+		for (Key k : Key.values()) {
+			if (k.name().equals(name.toUpperCase(Locale.ROOT)))
+				return k;
+		}
+
+		throw new IllegalArgumentException("Unknown rate limit key: " + name);
+	}
+
+	/**
+	 * Return what this limiter limits by.
+	 */
+	public Key getKey() {
+		return key;
+	}
+
+	/**
+	 * Return the number of messages dropped so far.
+	 */
+	public long getLimited() {
+		return limited.get();
+	}
+
+	/**
+	 * Return the number of keys in the table.
+	 */
+	synchronized public int getNumKeys() {
+		return buckets.size();
+	}
+
+	/**
+	 * Return the number of keys limited since the previous call.
+	 */
+	synchronized public int getLimitedKeys() {
+		int ret = limitedKeys;
+
+		++epoch;
+		limitedKeys = 0;
+
+		return ret;
+	}
+
+	/**
+	 * Take a token for a message, and count it if there was none.
+	 *
+	 * @param buf a buffer holding the key.
+	 * @param offset the offset of the key in buf.
+	 * @param length the length of the key, or -1 if absent.
+	 * @return true if the message is within the limit.
+	 */
+	boolean acquire(byte[] buf, int offset, int length) {
+		return acquire(buf, offset, length, System.nanoTime());
+	}
+
+	/**
+	 * Take a token, at the given time in nanoseconds.
+	 */
+	synchronized boolean acquire(byte[] buf, int offset, int length, long now) {
+		if (length < 0) length = 0;
+
+		probe.set(buf, offset, length);
+
+		Bucket b = buckets.get(probe);
+
+		if (b == null) {
+			// New buckets are full.
+			b = new Bucket(burst, now);
+			buckets.put(probe.copy(), b);
+		} else {
+			b.tokens = Math.min(burst, b.tokens + (now - b.time) * rate);
+			b.time = now;
+		}
+
+		// Don't keep a reference to the parser buffer.
+		probe.set(null, 0, 0);
+
+		if (b.tokens >= 1) {
+			b.tokens -= 1;
+			return true;
+		}
+
+		if (b.limitedEpoch != epoch) {
+			b.limitedEpoch = epoch;
+			++limitedKeys;
+		}
+
+		limited.incrementAndGet();
+
+		return false;
+	}
+
+	private class Bucket {
+		double tokens;
+		/// When tokens was last updated, from System.nanoTime().
+		long time;
+		/// The epoch this key was last limited in.
+		int limitedEpoch;
+
+		Bucket(double tokens, long time) {
+			this.tokens = tokens;
+			this.time = time;
+			this.limitedEpoch = epoch - 1;
+		}
+	}
+
+	/**
+	 * A byte range usable as a map key.
+	 */
+	private static class Bytes {
+		byte[] buf;
+		int offset;
+		int length;
+		int hash;
+
+		void set(byte[] buf, int offset, int length) {
+			this.buf = buf;
+			this.offset = offset;
+			this.length = length;
+
+			int h = 1;
+
+			for (int i = 0; i < length; ++i)
+				h = 31 * h + buf[offset + i];
+
+			hash = h;
+		}
+
+		Bytes copy() {
+			Bytes ret = new Bytes();
+			byte[] b = new byte[length];
+
+			System.arraycopy(buf, offset, b, 0, length);
+			ret.set(b, 0, length);
+
+			return ret;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Bytes)) return false;
+
+			Bytes b = (Bytes) o;
+
+			if (b.length != length || b.hash != hash) return false;
+
+			for (int i = 0; i < length; ++i) {
+				if (buf[offset + i] != b.buf[b.offset + i]) return false;
+			}
+
+			return true;
+		}
+	}
+}
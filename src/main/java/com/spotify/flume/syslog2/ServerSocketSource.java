@@ -20,10 +20,14 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.concurrent.BlockingQueue;
 import java.util.HashSet;
+import java.util.List;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import com.cloudera.flume.core.Event;
 import com.cloudera.flume.core.EventImpl;
@@ -36,20 +40,34 @@ import org.slf4j.LoggerFactory;
  *
  * The source will listen for incoming connections and dispatch the sockets to
  * one thread each. A blocking queue is used to collect events from the threads.
+ * With a SpillQueue, the threads spill to disk instead of blocking when
+ * next() falls behind. As a listener of a SyslogMultiSource, they put events
+ * in its queue instead.
  */
 public abstract class ServerSocketSource extends BaseSource {
 	static final Logger LOG = LoggerFactory.getLogger(ServerSocketSource.class);
 
 	/// Object used to wake up the next() call.
 	static final Event WAKE_EVENT = new EventImpl();
+
+	/// How often next() checks whether the source has been closed. Wake
+	/// events can be lost, since a spill queue refuses them while events
+	/// are on disk, and drops them on close.
+	static final long POLL_MS = 100;
+
+	static final Tracer TRACER = Tracer.get();
+
+	/// Time to wait after a failed accept().
+	static final long ACCEPT_BACKOFF_MS = 100;
 	
 	private SocketAddress addr;
 	private int backlog;
-	private boolean opened = false;
-	private boolean accepting = false;
+	private volatile boolean opened = false;
+	private volatile boolean accepting = false;
 	private ServerSocket socket;
 	private Thread acceptorThread;
-	private Set<Processor> processors = new HashSet<Processor>();
+	/// Mutated by the acceptor and processor threads.
+	private Set<Processor> processors = Collections.synchronizedSet(new HashSet<Processor>());
 	private BlockingQueue<Event> eventQueue = new LinkedBlockingQueue<Event>(2);
 	
 	/**
@@ -65,6 +83,11 @@ public abstract class ServerSocketSource extends BaseSource {
 	
 	@Override
 	public void open() throws IOException {
+		if (getHandOffQueue() != null)
+			eventQueue = getHandOffQueue();
+		else if (getSpillQueue() != null)
+			eventQueue = getSpillQueue();
+
 		opened = true;
 		accepting = true;
 		socket = createServerSocket(addr, backlog);
@@ -98,14 +121,24 @@ public abstract class ServerSocketSource extends BaseSource {
 		for (;;) {
 			// Somewhat racy, but I don't think it matters.
 			// The acceptor thread shouldn't normally die anyway.
-			if (processors.isEmpty() && !accepting)
-				return null;
+			boolean eof = (processors.isEmpty() && !accepting);
+			Event e = pollPending(eof);
 
-			Event e = eventQueue.take();
-			
-			// If we got a wake event, re-evaluate our situation.
-			if (e == WAKE_EVENT)
-				continue;
+			if (e == null) {
+				if (eof) return null;
+
+				long timeout = getPendingTimeout();
+
+				e = eventQueue.poll(timeout > 0 ? Math.min(timeout, POLL_MS) : POLL_MS, TimeUnit.MILLISECONDS);
+
+				// If we got a wake event, re-evaluate our situation.
+				if (e == null || e == WAKE_EVENT)
+					continue;
+
+				e = process(e);
+
+				if (e == null) continue;
+			}
 
 			updateEventProcessingStats(e);
 
@@ -121,8 +154,27 @@ public abstract class ServerSocketSource extends BaseSource {
 		acceptorThread.join();
 	
 		// Create a copy as the threads will be mutating the set.
-		for (Processor p : new HashSet<Processor>(processors))
-			p.close();
+		List<Processor> ps;
+
+		synchronized (processors) {
+			ps = new ArrayList<Processor>(processors);
+		}
+
+		// Stop them all before waiting for any, or closing thousands of
+		// connections takes thousands of round trips.
+		for (Processor p : ps)
+			p.shutdown();
+
+		for (Processor p : ps)
+			p.join();
+
+		// The owner of a shared queue empties it.
+		if (getHandOffQueue() != null) return;
+
+		discardQueued(eventQueue);
+
+		if (getSpillQueue() != null)
+			getSpillQueue().close();
 	}
 
 	/**
@@ -136,15 +188,40 @@ public abstract class ServerSocketSource extends BaseSource {
 	 * Process incoming connections on the server socket.
 	 *
 	 * Creates a new Processor per connection and starts it.
+	 *
+	 * Running out of file descriptors or threads is not fatal. We back off
+	 * for a while and let existing connections finish.
 	 */
 	private void processServerSocket() {
+		ServerSocket ss = socket;
+
 		try {
-			for (;;) {
-				final Socket s = socket.accept();
+			while (opened) {
+				Socket s;
+
+				try {
+					s = ss.accept();
+				} catch (IOException ex) {
+					if (!opened) break;
+
+					LOG.error("Accept failed, backing off", ex);
+					Thread.sleep(ACCEPT_BACKOFF_MS);
+					continue;
+				}
+
 				Processor p = new Processor(s);
 
 				processors.add(p);
-				p.start();
+
+				try {
+					p.start();
+				} catch (OutOfMemoryError ex) {
+					// Thread creation failed. The heap is most likely fine.
+					processors.remove(p);
+					s.close();
+					LOG.error("Failed to start processor, backing off", ex);
+					Thread.sleep(ACCEPT_BACKOFF_MS);
+				}
 			}
 		} catch (Exception ex) {
 			if (opened) LOG.error("Acceptor failed", ex);
@@ -165,27 +242,31 @@ public abstract class ServerSocketSource extends BaseSource {
 	 * One thread per streaming socket.
 	 */
 	private class Processor extends Thread {
-		private Socket socket;
+		final private Socket socket;
+		final private SocketAddress remoteAddress;
 		
 		public Processor(Socket socket) {
 			super("socket-processor-" + socket.getRemoteSocketAddress());
 			this.socket = socket;
+			this.remoteAddress = socket.getRemoteSocketAddress();
 		}
 
 		/**
-		 * Close the processor.
+		 * Stop the processor.
 		 *
-		 * This stops the processor, closes the socket and frees
-		 * all resources.
+		 * This closes the socket, which makes the processor free all
+		 * resources and exit. Use join() to wait for it.
 		 */
-		public void close() throws IOException, InterruptedException {
+		public void shutdown() throws IOException {
 			socket.close();
-			socket = null;
 			interrupt(); // For eventQueue.put()
-			join();
 		}
 		
 		public void run() {
+			Object span = TRACER.beginConnection(remoteAddress);
+			long numEvents = 0;
+			long numRejected = 0;
+
 			try {
 				SocketSource source = createSocketSource(socket);
 				
@@ -196,15 +277,33 @@ public abstract class ServerSocketSource extends BaseSource {
 						try {
 							e = source.next();
 						} catch (Exception ex) {
-							addRejectedMessages(source.recover());
+							int n = source.recover();
+
+							addRejectedMessages(n);
+							numRejected += n;
 							continue;
 						}
 
 						// EOF is fine if we are not opened.
-						if (e == null || !opened)
+						if (e == null || !opened) {
+							if (e != null) discard(e);
 							break;
+						}
 			
-						eventQueue.put(e);
+						if (!eventQueue.offer(e)) {
+							Object putSpan = TRACER.beginQueuePut();
+
+							try {
+								eventQueue.put(e);
+							} catch (InterruptedException ex) {
+								discard(e);
+								throw ex;
+							}
+
+							TRACER.endQueuePut(putSpan);
+						}
+
+						++numEvents;
 					}
 				} finally {
 					source.close();
@@ -212,6 +311,7 @@ public abstract class ServerSocketSource extends BaseSource {
 			} catch (Exception ex) {
 				if (opened) LOG.error("Processor failed", ex);
 			} finally {
+				TRACER.endConnection(span, numEvents, numRejected);
 				processors.remove(this);
 				wakeUp();
 			}
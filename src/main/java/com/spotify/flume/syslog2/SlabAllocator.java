@@ -0,0 +1,243 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Off-heap storage for the bytes of queued messages.
+ *
+ * A backlog of events is a lot of small byte arrays, which live long enough
+ * to be promoted, and then cost a full collection to get rid of. With an
+ * allocator, the parser copies each message into a slab instead: a large
+ * direct ByteBuffer, filled front to back. The event holds a Slice of it,
+ * and only copies the message to the heap when its bytes are first needed,
+ * normally as it is handed to Flume. So the heap stays flat however many
+ * events are waiting.
+ *
+ * Slabs are reference counted. Every slice holds a reference, and so does
+ * the allocator for the slab being filled. A slab whose slices have all
+ * been released goes back on a free list and is refilled from the start.
+ *
+ * The number of slabs is bounded. When they are all in use, or a message is
+ * larger than a slab, allocate() returns null and the caller keeps the
+ * message on the heap. Those fallbacks are counted.
+ *
+ * Allocators are thread safe, and can be shared between connections.
+ */
+public class SlabAllocator {
+	final public static int DEFAULT_SLAB_SIZE = 1 << 20;
+	final public static int DEFAULT_MAX_SLABS = 64;
+
+	private int slabSize;
+	private int maxSlabs;
+
+	/// The slab being filled, or null. Guarded by this.
+	private Slab current;
+	/// Guarded by this.
+	private LinkedList<Slab> free = new LinkedList<Slab>();
+	/// The number of slabs created. Guarded by this.
+	private int numSlabs = 0;
+
+	private AtomicLong fallbacks = new AtomicLong();
+
+	/**
+	 * Construct a new allocator.
+	 *
+	 * Slabs are created as needed, and kept until the allocator is garbage
+	 * collected.
+	 *
+	 * @param slabSize the size of each slab, in bytes.
+	 * @param maxSlabs the maximum number of slabs.
+	 */
+	public SlabAllocator(int slabSize, int maxSlabs) {
+		if (slabSize <= 0)
+			throw new IllegalArgumentException("slab size must be positive: " + slabSize);
+
+		if (maxSlabs <= 0)
+			throw new IllegalArgumentException("max slabs must be positive: " + maxSlabs);
+
+		this.slabSize = slabSize;
+		this.maxSlabs = maxSlabs;
+	}
+
+	/**
+	 * Copy bytes into a slab.
+	 *
+	 * @return the slice, or null if there is no room. Then keep the bytes
+	 *         on the heap.
+	 */
+	synchronized Slice allocate(byte[] src, int off, int len) {
+		if (len > slabSize) {
+			fallbacks.incrementAndGet();
+			return null;
+		}
+
+		if (current == null || current.used + len > slabSize) {
+			// Drop our reference, so it is freed with its last slice.
+			if (current != null) current.release();
+
+			current = nextSlab();
+
+			if (current == null) {
+				fallbacks.incrementAndGet();
+				return null;
+			}
+		}
+
+		Slice ret = new Slice(current, current.used, len);
+
+		current.put(current.used, src, off, len);
+		current.used += len;
+		current.refs.incrementAndGet();
+
+		return ret;
+	}
+
+	/**
+	 * Return an empty slab, creating one if allowed.
+	 *
+	 * @return the slab, with one reference for the allocator, or null.
+	 */
+	private Slab nextSlab() {
+		Slab s = free.poll();
+
+		if (s == null) {
+			if (numSlabs >= maxSlabs) return null;
+
+			s = new Slab(ByteBuffer.allocateDirect(slabSize));
+			++numSlabs;
+		}
+
+		s.used = 0;
+		s.refs.set(1);
+
+		return s;
+	}
+
+	synchronized private void recycle(Slab s) {
+		free.add(s);
+	}
+
+	/**
+	 * Return the number of slabs created so far.
+	 */
+	synchronized public int getNumSlabs() {
+		return numSlabs;
+	}
+
+	/**
+	 * Return the number of slabs holding messages, or being filled.
+	 */
+	synchronized public int getSlabsInUse() {
+		return numSlabs - free.size();
+	}
+
+	/**
+	 * Return the number of messages kept on the heap for lack of room.
+	 */
+	public long getFallbacks() {
+		return fallbacks.get();
+	}
+
+	/**
+	 * A direct buffer and its reference count.
+	 */
+	private class Slab {
+		final ByteBuffer buf;
+		/// Bytes allocated. Guarded by the allocator.
+		int used;
+		final AtomicInteger refs = new AtomicInteger();
+
+		Slab(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		/**
+		 * Copy bytes into the buffer.
+		 *
+		 * The position is shared, so all access goes through a lock on the
+		 * slab.
+		 */
+		synchronized void put(int index, byte[] src, int off, int len) {
+			buf.position(index);
+			buf.put(src, off, len);
+		}
+
+		/**
+		 * Copy bytes out of the buffer.
+		 */
+		synchronized void get(int index, byte[] dst, int off, int len) {
+			buf.position(index);
+			buf.get(dst, off, len);
+		}
+
+		void release() {
+			if (refs.decrementAndGet() == 0) recycle(this);
+		}
+	}
+
+	/**
+	 * A message in a slab.
+	 *
+	 * A slice must be released exactly once, after which it may be
+	 * overwritten by another message. It is not thread safe.
+	 */
+	class Slice {
+		private Slab slab;
+		private int offset;
+		private int length;
+
+		private Slice(Slab slab, int offset, int length) {
+			this.slab = slab;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		int length() {
+			return length;
+		}
+
+		/**
+		 * Copy the bytes to the heap and release the slice.
+		 */
+		byte[] copy() {
+			byte[] ret = new byte[length];
+
+			slab.get(offset, ret, 0, length);
+			release();
+
+			return ret;
+		}
+
+		/**
+		 * Give the bytes back to the allocator.
+		 */
+		void release() {
+			if (slab == null)
+				throw new IllegalStateException("slice already released");
+
+			Slab s = slab;
+
+			slab = null;
+			s.release();
+		}
+	}
+}
@@ -0,0 +1,470 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloudera.flume.core.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * An event queue that spills to memory mapped files instead of blocking.
+ *
+ * Up to a watermark, events are kept in memory. Beyond it, put() appends
+ * them to segment files in a directory instead of waiting for the consumer.
+ * Once anything is on disk, new events go there too, so the order is kept.
+ * The consumer drains the memory first, and then the segments. A segment
+ * that has been read is recycled for the next spill, or deleted if there
+ * already is a spare one.
+ *
+ * Events are serialized in the record format of BatchDecoder, so they come
+ * back as EventImpls with the same contents, nanos and a missing host
+ * included. Each record is prefixed by its length as a 4 byte int.
+ *
+ * Disk use is bounded by the segment size and count. When all segments are
+ * full, put() blocks like a regular bounded queue. offer() never spills,
+ * and only succeeds if the event can go in memory.
+ *
+ * The segments are only a buffer, not a journal. They are created with
+ * unique names, so a directory can be shared, and deleted by close() or on
+ * exit. Nothing is recovered after a crash.
+ *
+ * This is a BlockingQueue so sources can use it in place of their usual
+ * one, but only the methods needed for that are efficient. iterator() is
+ * not supported.
+ */
+public class SpillQueue extends AbstractQueue<Event> implements BlockingQueue<Event> {
+	static final Logger LOG = LoggerFactory.getLogger(SpillQueue.class);
+
+	final public static int DEFAULT_WATERMARK = 10000;
+	final public static int DEFAULT_SEGMENT_SIZE = 64 << 20;
+	final public static int DEFAULT_MAX_SEGMENTS = 16;
+
+	final public static String SEGMENT_PREFIX = "spill-";
+	final public static String SEGMENT_SUFFIX = ".seg";
+
+	private File dir;
+	private int watermark;
+	private int segmentSize;
+	private int maxSegments;
+
+	/// The events older than anything on disk.
+	private LinkedList<Event> memory = new LinkedList<Event>();
+	/// Reading from the first, writing to the last.
+	private LinkedList<Segment> segments = new LinkedList<Segment>();
+	/// A read segment waiting for reuse. May be null.
+	private Segment spare;
+	/// Events on disk.
+	private int numSpilled = 0;
+	private AtomicLong totalSpilled = new AtomicLong();
+	/// Reused for reading records.
+	private byte[] record = new byte[1024];
+
+	/**
+	 * Construct a new queue.
+	 *
+	 * @param dir the directory for the segment files. Created if missing.
+	 * @param watermark the number of events to keep in memory.
+	 * @param segmentSize the size of each segment file, in bytes.
+	 * @param maxSegments the maximum number of segment files.
+	 * @throws IOException if the directory can't be created.
+	 * @throws IllegalArgumentException if a number is not positive.
+	 */
+	public SpillQueue(File dir, int watermark, int segmentSize, int maxSegments) throws IOException {
+		if (watermark < 1 || segmentSize < 1024 || maxSegments < 1)
+			throw new IllegalArgumentException("Spill sizes must be positive");
+
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Failed to create spill directory: " + dir);
+
+		this.dir = dir;
+		this.watermark = watermark;
+		this.segmentSize = segmentSize;
+		this.maxSegments = maxSegments;
+	}
+
+	/**
+	 * Return the number of events spilled to disk so far.
+	 */
+	public long getTotalSpilled() {
+		return totalSpilled.get();
+	}
+
+	/**
+	 * Return the number of events on disk right now.
+	 */
+	synchronized public int getNumSpilled() {
+		return numSpilled;
+	}
+
+	/**
+	 * Add an event to memory, if that keeps the order.
+	 *
+	 * @return false if the memory is full, or events are on disk.
+	 */
+	@Override
+	synchronized public boolean offer(Event e) {
+		if (numSpilled > 0 || memory.size() >= watermark)
+			return false;
+
+		memory.add(e);
+		notifyAll();
+
+		return true;
+	}
+
+	/**
+	 * Add an event, spilling it to disk if the memory is full.
+	 *
+	 * Blocks if the disk is full too, or if spilling fails.
+	 */
+	@Override
+	synchronized public void put(Event e) throws InterruptedException {
+		while (!tryPut(e))
+			wait();
+
+		notifyAll();
+	}
+
+	@Override
+	synchronized public boolean offer(Event e, long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		while (!tryPut(e)) {
+			long left = deadline - System.nanoTime();
+
+			if (left <= 0) return false;
+
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+
+		notifyAll();
+
+		return true;
+	}
+
+	@Override
+	synchronized public Event poll() {
+		Event e = memory.poll();
+
+		if (e == null && numSpilled > 0) e = readSpilled();
+
+		// Producers may be waiting for space.
+		if (e != null) notifyAll();
+
+		return e;
+	}
+
+	@Override
+	synchronized public Event take() throws InterruptedException {
+		Event e;
+
+		while ((e = poll()) == null)
+			wait();
+
+		return e;
+	}
+
+	@Override
+	synchronized public Event poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		Event e;
+
+		while ((e = poll()) == null) {
+			long left = deadline - System.nanoTime();
+
+			if (left <= 0) return null;
+
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+
+		return e;
+	}
+
+	/**
+	 * Return the next event without removing it.
+	 *
+	 * Only looks in memory, so this returns null while events are
+	 * waiting on disk.
+	 */
+	@Override
+	synchronized public Event peek() {
+		return memory.peek();
+	}
+
+	@Override
+	synchronized public int size() {
+		return memory.size() + numSpilled;
+	}
+
+	@Override
+	synchronized public int remainingCapacity() {
+		// Unknown, since it depends on the size of the events.
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public int drainTo(Collection<? super Event> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	synchronized public int drainTo(Collection<? super Event> c, int maxElements) {
+		int n = 0;
+		Event e;
+
+		while (n < maxElements && (e = poll()) != null) {
+			c.add(e);
+			++n;
+		}
+
+		return n;
+	}
+
+	@Override
+	public Iterator<Event> iterator() {
+		throw new UnsupportedOperationException("SpillQueue can't be iterated");
+	}
+
+	/**
+	 * Drop all events and delete the segment files.
+	 *
+	 * The queue can be used again, and will create new files if needed.
+	 */
+	synchronized public void close() {
+		memory.clear();
+
+		for (Segment s : segments)
+			s.delete();
+
+		if (spare != null) spare.delete();
+
+		segments.clear();
+		spare = null;
+		numSpilled = 0;
+		notifyAll();
+	}
+
+	/**
+	 * Add an event to memory or disk, if there is room.
+	 */
+	private boolean tryPut(Event e) {
+		if (numSpilled == 0 && memory.size() < watermark) {
+			memory.add(e);
+			return true;
+		}
+
+		try {
+			return spill(e);
+		} catch (IOException ex) {
+			// Full disk, most likely. Wait for the consumer.
+			LOG.error("Failed to spill event, blocking", ex);
+			return false;
+		}
+	}
+
+	/**
+	 * Append an event to the last segment, starting a new one if needed.
+	 *
+	 * @return false if there is no room.
+	 */
+	private boolean spill(Event e) throws IOException {
+		Segment s = (segments.isEmpty() ? null : segments.getLast());
+
+		if (s == null || s.full) {
+			if (segments.size() >= maxSegments) return false;
+
+			s = newSegment();
+			segments.add(s);
+		}
+
+		s.encoder.clear();
+		s.encoder.writeEvent(e);
+
+		if (!s.write()) {
+			if (s.writePos == 0) {
+				// Too large for any segment. It has to wait until it
+				// can go in memory.
+				s.encoder.reset();
+				return false;
+			}
+
+			// The encoder may have names that never made it to disk,
+			// so the segment is done.
+			s.full = true;
+
+			return spill(e);
+		}
+
+		++numSpilled;
+		totalSpilled.incrementAndGet();
+
+		return true;
+	}
+
+	/**
+	 * Read the next event from disk, recycling read segments.
+	 */
+	private Event readSpilled() {
+		Segment s = segments.getFirst();
+
+		while (s.readPos == s.writePos) {
+			// Read to the end, and the writer has moved on.
+			retire(segments.removeFirst());
+			s = segments.getFirst();
+		}
+
+		Event e;
+
+		try {
+			e = s.read();
+		} catch (IOException ex) {
+			// We wrote it, so this is a bug.
+			throw new IllegalStateException("Corrupt spill segment " + s.file, ex);
+		}
+
+		if (--numSpilled == 0) {
+			// All caught up. Reuse the last segment from the start.
+			while (segments.size() > 1)
+				retire(segments.removeFirst());
+
+			segments.getFirst().clear();
+		}
+
+		return e;
+	}
+
+	/**
+	 * Keep a read segment as the spare, or delete it.
+	 */
+	private void retire(Segment s) {
+		if (spare == null) {
+			s.clear();
+			spare = s;
+		} else {
+			s.delete();
+		}
+	}
+
+	private Segment newSegment() throws IOException {
+		Segment s = spare;
+
+		if (s != null) {
+			spare = null;
+			return s;
+		}
+
+		return new Segment(File.createTempFile(SEGMENT_PREFIX, SEGMENT_SUFFIX, dir));
+	}
+
+	/**
+	 * A memory mapped segment file.
+	 */
+	private class Segment {
+		final File file;
+		final RandomAccessFile raf;
+		final MappedByteBuffer buf;
+		int writePos = 0;
+		int readPos = 0;
+		/// True once a record didn't fit.
+		boolean full = false;
+		/// The attribute names of a segment are only written once.
+		EventEncoder encoder = new EventEncoder();
+		BatchDecoder decoder = new BatchDecoder();
+
+		Segment(File file) throws IOException {
+			this.file = file;
+			file.deleteOnExit();
+			raf = new RandomAccessFile(file, "rw");
+
+			try {
+				buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+			} catch (IOException ex) {
+				raf.close();
+				file.delete();
+				throw ex;
+			}
+		}
+
+		/**
+		 * Append the record in the encoder.
+		 *
+		 * @return false if it doesn't fit.
+		 */
+		boolean write() {
+			int n = encoder.length;
+
+			if (writePos + 4 + n > segmentSize)
+				return false;
+
+			buf.putInt(writePos, n);
+			buf.position(writePos + 4);
+			buf.put(encoder.buf, 0, n);
+			writePos += 4 + n;
+
+			return true;
+		}
+
+		Event read() throws IOException {
+			int n = buf.getInt(readPos);
+
+			if (n > record.length) record = new byte[Math.max(n, 2 * record.length)];
+
+			buf.position(readPos + 4);
+			buf.get(record, 0, n);
+			readPos += 4 + n;
+
+			return decoder.readRecord(record, 0, n);
+		}
+
+		/**
+		 * Forget the contents, to be written again.
+		 */
+		void clear() {
+			writePos = 0;
+			readPos = 0;
+			full = false;
+			encoder = new EventEncoder();
+			decoder = new BatchDecoder();
+		}
+
+		void delete() {
+			try {
+				raf.close();
+			} catch (IOException ex) {
+				LOG.warn("Failed to close spill segment " + file, ex);
+			}
+
+			// The mapping stays until the buffer is collected, but the
+			// name can go now.
+			if (!file.delete())
+				LOG.warn("Failed to delete spill segment " + file);
+		}
+	}
+}
@@ -15,26 +15,64 @@
  */
 package com.spotify.flume.syslog2;
 
-import java.io.ByteArrayInputStream;
 import java.io.EOFException;
 import java.io.InputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import com.cloudera.flume.core.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 
 /**
  * A Flume event source backed by a datagram socket and a syslog parser.
  *
- * Currently a new parser is created for every packet.
+ * The parser and the packet buffer are reused between packets, and each
+ * packet is parsed in place.
+ *
+ * Packets are normally received by next(), so they pile up in the socket
+ * buffer while Flume is busy. With a SpillQueue, a thread receives them
+ * instead, and events go through the queue, spilling to disk when next()
+ * falls behind. The same thread is used as a listener of a SyslogMultiSource,
+ * putting events in its queue.
  */
 public class SyslogDatagramSocketSource extends BaseSource {
+	static final Logger LOG = LoggerFactory.getLogger(SyslogDatagramSocketSource.class);
+
+	static final Tracer TRACER = Tracer.get();
+
+	/// How often next() checks whether the receiver has stopped.
+	static final long POLL_MS = 100;
+
 	private SocketAddress addr;
 	private DatagramSocket socket;
 	private int bufferSize;
+	/// Reused between calls, since the parser copies what it keeps.
+	private DatagramPacket packet;
+	private SyslogParser parser;
+	private SyslogEvent.StructuredDataParams sdParams;
+	private boolean raw = false;
+	/// The last sender, since senders tend to repeat.
+	private InetAddress lastPeer;
+	/// Created on demand.
+	private String lastPeerHost;
+	/// The current SO_TIMEOUT, for pending events.
+	private long timeout = 0;
+	/// Only used with a spill queue or as a listener.
+	private Thread receiverThread;
+	/// The spill queue or the queue of the owner. Kept after close(),
+	/// since next() may still be polling it.
+	private BlockingQueue<Event> queue;
+	private volatile boolean opened = false;
 
 	/**
 	 * Construct a new source.
@@ -47,9 +85,55 @@ public class SyslogDatagramSocketSource extends BaseSource {
 		this.bufferSize = bufferSize;
 	}
 	
+	/**
+	 * Make attributes of some structured data parameters.
+	 *
+	 * Call before open().
+	 *
+	 * @see SyslogParser#setStructuredDataParams(Collection)
+	 */
+	public void setStructuredDataParams(Collection<String> params) {
+		if (params == null || params.isEmpty())
+			sdParams = null;
+		else
+			sdParams = new SyslogEvent.StructuredDataParams(params, Charset.forName("UTF-8"));
+	}
+
+	/**
+	 * Only parse the priority, and use the rest of the line as is.
+	 *
+	 * The timestamp is the time of receipt, and the host is the peer
+	 * address. Call before open().
+	 *
+	 * @see SyslogParser#readRawEvent(String)
+	 */
+	public void setRaw(boolean raw) {
+		this.raw = raw;
+	}
+
 	@Override
 	public void open() throws IOException {
 		socket = createDatagramSocket();
+		packet = new DatagramPacket(new byte[bufferSize], bufferSize);
+		parser = new SyslogParser(true, "UTF-8");
+		parser.setStructuredDataParams(sdParams);
+		parser.setFilter(getFilter());
+		parser.setRateLimiter(getRateLimiter());
+		parser.setSlabAllocator(getSlabAllocator());
+		parser.setKeyValueExtractor(getKeyValueExtractor());
+		parser.setListener(getListener());
+		opened = true;
+		queue = (getHandOffQueue() != null ? getHandOffQueue() : getSpillQueue());
+
+		if (queue != null) {
+			receiverThread = new Thread("datagram-receiver-" + addr) {
+				public void run() {
+					processDatagramSocket();
+				}
+			};
+
+			receiverThread.start();
+		}
 	}
 
 	/**
@@ -60,19 +144,90 @@ public class SyslogDatagramSocketSource extends BaseSource {
 	}
 	
 	@Override
-	public Event next() throws IOException {
-		byte[] buf = new byte[bufferSize];
-		DatagramPacket packet = new DatagramPacket(buf, buf.length);
+	public Event next() throws IOException, InterruptedException {
+		Event e;
+		// close() clears this while we may be polling.
+		Thread receiver = receiverThread;
+
+		if (receiver == null) {
+			e = receive();
+		} else {
+			while ((e = queue.poll(POLL_MS, TimeUnit.MILLISECONDS)) == null) {
+				if (!opened) return null;
+
+				if (!receiver.isAlive())
+					throw new IOException("Datagram receiver stopped");
+			}
+		}
+
+		updateEventProcessingStats(e);
+
+		return e;
+	}
+
+	/**
+	 * Receive packets into the queue until closed.
+	 */
+	private void processDatagramSocket() {
+		try {
+			while (opened) {
+				Event e = receive();
+
+				try {
+					queue.put(e);
+				} catch (InterruptedException ex) {
+					discard(e);
+					throw ex;
+				}
+			}
+		} catch (Exception ex) {
+			if (opened) LOG.error("Receiver failed", ex);
+		}
+	}
 
+	/**
+	 * Receive and parse packets until there is an event.
+	 */
+	private Event receive() throws IOException {
 		for (;;) {
+			Event pending = pollPending(false);
+
+			if (pending != null) return pending;
+
+			long t = getPendingTimeout();
+
+			if (t != timeout) {
+				socket.setSoTimeout((int) Math.min(t, Integer.MAX_VALUE));
+				timeout = t;
+			}
+
+			// receive() shrinks the length to that of the packet.
+			packet.setLength(bufferSize);
+
 			// IOExceptions from here should not be counted as
 			// rejected.
-			socket.receive(packet);
+			try {
+				socket.receive(packet);
+			} catch (SocketTimeoutException ex) {
+				// A summary or batch is due.
+				continue;
+			}
+
+			TRACER.datagramReceived(packet.getLength());
 			
 			try {
-				Event e = new SyslogParser(new ByteArrayInputStream(packet.getData(), packet.getOffset(), packet.getLength())).readEvent();
-				
-				updateEventProcessingStats(e);
+				parser.reset(packet.getData(), packet.getOffset(), packet.getLength());
+
+				if (raw || getRateLimiter() != null || hasPeerAttributes()) updatePeer();
+
+				Event e = (raw ? parser.readRawEvent(getPeerHost()) : parser.readEvent());
+
+				// An empty packet. Returning null would mean EOF.
+				if (e == null) continue;
+
+				e = process(e);
+
+				if (e == null) continue;
 
 				return e;
 			} catch (IOException ex) {
@@ -81,9 +236,49 @@ public class SyslogDatagramSocketSource extends BaseSource {
 		}
 	}
 	
+	/**
+	 * Tell the parser about the sender of the current packet.
+	 */
+	private void updatePeer() {
+		InetAddress peer = packet.getAddress();
+
+		if (!peer.equals(lastPeer)) {
+			lastPeer = peer;
+			lastPeerHost = null;
+			parser.setPeer(peer.getAddress());
+			parser.setPeerTag(createPeer(peer));
+		}
+	}
+
+	/**
+	 * Return the address of the sender of the current packet, as a string.
+	 */
+	private String getPeerHost() {
+		if (lastPeerHost == null)
+			lastPeerHost = lastPeer.getHostAddress();
+
+		return lastPeerHost;
+	}
+
 	@Override
-	public void close() throws IOException {
+	public void close() throws IOException, InterruptedException {
+		opened = false;
 		socket.close();
+
+		if (receiverThread != null) {
+			receiverThread.interrupt(); // For SpillQueue.put()
+			receiverThread.join();
+			receiverThread = null;
+
+			// The owner of a shared queue empties it.
+			if (getHandOffQueue() == null) {
+				discardQueued(queue);
+				getSpillQueue().close();
+			}
+		}
+
 		socket = null;
+		packet = null;
+		parser = null;
 	}
 }
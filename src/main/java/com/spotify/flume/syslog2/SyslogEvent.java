@@ -0,0 +1,526 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.core.EventImpl;
+
+
+/**
+ * A syslog event backed by the raw message.
+ *
+ * The parser only decodes what it needs to validate the message, the
+ * priority and the timestamp. The other fields are kept as offsets into a
+ * single copy of the message, and the body, hostname and attribute map are
+ * created on first access. Flows that only route on severity or hostname
+ * never pay for the rest.
+ *
+ * RFC 5424 structured data is also indexed down to each parameter. The
+ * parameters asked for by the parser configuration become attributes named
+ * "syslog.sd.SD-ID.PARAM-NAME" when the attribute map is created, without
+ * reparsing the structured data. Body "key=value" pairs are extracted at
+ * the same time, by a KeyValueExtractor.
+ *
+ * Raw events, from SyslogParser.readRawEvent(), only have the priority
+ * decoded. Their body is the rest of the line, as is, and they have no
+ * version attribute.
+ *
+ * With a SlabAllocator, the message is kept off-heap until anything is
+ * read from the event, which then copies it to the heap and releases the
+ * slice. Events that are dropped unread keep their slice, so they must be
+ * read or go through release().
+ *
+ * To everyone else this is an EventImpl with the same contents as the
+ * parser used to create, including toString(). Like EventImpl, it is not
+ * thread safe.
+ */
+class SyslogEvent extends EventImpl {
+	// Field numbers for the index.
+	final static int HOST = 0;
+	final static int APPNAME = 1;
+	final static int PROC_ID = 2;
+	final static int MSG_ID = 3;
+	final static int STRUCTURED_DATA = 4;
+	final static int BODY = 5;
+	final static int NUM_FIELDS = 6;
+
+	/// Ints per structured data parameter in the SD index: offset and
+	/// length of the SD-ID, the PARAM-NAME and the escaped PARAM-VALUE.
+	final static int SD_PARAM_SIZE = 6;
+
+	/// The version of raw events.
+	final static int RAW_VERSION = -1;
+
+	final private static byte[] NO_BODY = new byte[0];
+	final private static Map<String, byte[]> NO_FIELDS = Collections.emptyMap();
+
+	/// Null while the message is in the slice.
+	private byte[] raw;
+	private SlabAllocator.Slice slice;
+	/// Offset and length in raw, per field. Absent fields have length -1.
+	private int[] index;
+	/// Null if there are no structured data parameters.
+	/// @see SD_PARAM_SIZE
+	private int[] sdIndex;
+	/// Parameters to turn into attributes. May be null.
+	private StructuredDataParams sdParams;
+	private Charset charset;
+	private int version;
+	private int priority;
+	/// Shared by the events of a parser. May be null.
+	private byte[] listener;
+	/// Shared by the events of a sender. May be null.
+	private Peer peer;
+	/// Shared by the events of a parser. May be null.
+	private KeyValueExtractor extractor;
+
+	private byte[] body;
+	private String host;
+	private boolean attrsCreated = false;
+
+	/**
+	 * Construct a new event.
+	 *
+	 * @param raw the message, owned by the event from now on. Null if
+	 *            off-heap.
+	 * @param slice the off-heap message, owned by the event from now on.
+	 *              Null if raw is given.
+	 * @param index the field offsets, owned by the event from now on.
+	 * @param sdIndex the parameter offsets, owned by the event from now
+	 *                on. Null if none.
+	 * @param sdParams the parameters to make attributes of, or null.
+	 * @param charset the encoding of the hostname.
+	 * @param host the hostname, or null to decode the HOST field.
+	 * @param version the syslog version, 0 for RFC 3164, or RAW_VERSION.
+	 * @param priority the syslog priority, according to RFC 5424
+	 * @param timestamp the timestamp of the message.
+	 * @param pri the Flume priority.
+	 */
+	SyslogEvent(byte[] raw, SlabAllocator.Slice slice, int[] index, int[] sdIndex, StructuredDataParams sdParams, Charset charset, String host, int version, int priority, long timestamp, Event.Priority pri) {
+		// EventImpl insists on a body, but ours is created in getBody().
+		super(NO_BODY, timestamp, pri, 0, "", NO_FIELDS);
+		this.raw = raw;
+		this.slice = slice;
+		this.index = index;
+		this.sdIndex = sdIndex;
+		this.sdParams = sdParams;
+		this.charset = charset;
+		this.host = host;
+		this.version = version;
+		this.priority = priority;
+	}
+
+	@Override
+	public byte[] getBody() {
+		if (body == null) {
+			toHeap();
+
+			int off = index[2 * BODY];
+			int end = off + index[2 * BODY + 1];
+			int n = 0;
+
+			// CRs are dropped from the body, unless raw.
+			for (int i = off; i < end; ++i) {
+				if (raw[i] != '\r' || version == RAW_VERSION) ++n;
+			}
+
+			body = new byte[n];
+
+			if (n == end - off) {
+				System.arraycopy(raw, off, body, 0, n);
+			} else {
+				n = 0;
+
+				for (int i = off; i < end; ++i) {
+					if (raw[i] != '\r') body[n++] = raw[i];
+				}
+			}
+		}
+
+		return body;
+	}
+
+	@Override
+	public String getHost() {
+		if (host == null) {
+			toHeap();
+
+			try {
+				host = new String(raw, index[2 * HOST], index[2 * HOST + 1], charset.name());
+			} catch (UnsupportedEncodingException ex) {
+				// The parser already resolved the charset.
+				throw new RuntimeException(ex);
+			}
+		}
+
+		return host;
+	}
+
+	@Override
+	public byte[] get(String attr) {
+		createAttrs();
+
+		return super.get(attr);
+	}
+
+	@Override
+	public void set(String attr, byte[] v) {
+		createAttrs();
+		super.set(attr, v);
+	}
+
+	@Override
+	public Map<String, byte[]> getAttrs() {
+		createAttrs();
+
+		return super.getAttrs();
+	}
+
+	@Override
+	public void merge(Event e) {
+		createAttrs();
+		super.merge(e);
+	}
+
+	@Override
+	public void hierarchicalMerge(String prefix, Event e) {
+		createAttrs();
+		super.hierarchicalMerge(prefix, e);
+	}
+
+	@Override
+	public String toString() {
+		// EventImpl reads the attributes directly.
+		createAttrs();
+
+		return super.toString();
+	}
+
+	/**
+	 * Offer a field to a distinct value estimator, without decoding it.
+	 *
+	 * Absent fields are ignored.
+	 */
+	void offer(int field, HyperLogLog h) {
+		toHeap();
+
+		int len = index[2 * field + 1];
+
+		if (len >= 0)
+			h.offer(HyperLogLog.hash(raw, index[2 * field], len));
+		else if (field == HOST && host != null)
+			h.offer(HyperLogLog.hash(host));
+	}
+
+	/**
+	 * Hash a field without decoding it.
+	 *
+	 * @return the hash, or 0 if the field is absent.
+	 */
+	long hash(int field) {
+		toHeap();
+
+		int len = index[2 * field + 1];
+
+		if (len >= 0)
+			return HyperLogLog.hash(raw, index[2 * field], len);
+		else if (field == HOST && host != null)
+			return HyperLogLog.hash(host);
+
+		return 0;
+	}
+
+	/**
+	 * Return the length of a field, without decoding it.
+	 *
+	 * CRs are counted, so this may be more than the length of the body.
+	 *
+	 * @return the length, or -1 if the field is absent.
+	 */
+	int length(int field) {
+		return index[2 * field + 1];
+	}
+
+	/**
+	 * Check whether a field starts with some bytes, without decoding it.
+	 *
+	 * @return false if the field is absent or shorter.
+	 */
+	boolean startsWith(int field, byte[] prefix) {
+		int len = index[2 * field + 1];
+
+		if (len < prefix.length) return false;
+
+		toHeap();
+
+		return regionEquals(index[2 * field], prefix.length, prefix);
+	}
+
+	/**
+	 * Return the unescaped value of a structured data parameter.
+	 *
+	 * This looks in the index, so it doesn't need the parameter to be an
+	 * attribute. If the parameter is repeated, the first one is returned.
+	 *
+	 * @param sdId the SD-ID of the element, as bytes.
+	 * @param name the PARAM-NAME, as bytes.
+	 * @return the value, or null if not found.
+	 */
+	byte[] getStructuredDataParam(byte[] sdId, byte[] name) {
+		if (sdIndex == null) return null;
+
+		toHeap();
+
+		for (int i = 0; i < sdIndex.length; i += SD_PARAM_SIZE) {
+			if (regionEquals(sdIndex[i], sdIndex[i + 1], sdId) && regionEquals(sdIndex[i + 2], sdIndex[i + 3], name))
+				return unescape(sdIndex[i + 4], sdIndex[i + 5]);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Tag the event with the listener it arrived on.
+	 *
+	 * @param listener the name, shared between events.
+	 */
+	void setListener(byte[] listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Tag the event with its sender.
+	 *
+	 * @param peer the sender, shared between events.
+	 */
+	void setPeer(Peer peer) {
+		this.peer = peer;
+	}
+
+	/**
+	 * Make attributes of "key=value" pairs in the body.
+	 *
+	 * @param extractor the extractor, shared between events.
+	 */
+	void setKeyValueExtractor(KeyValueExtractor extractor) {
+		this.extractor = extractor;
+	}
+
+	/**
+	 * Copy the message to the heap, if it is off-heap.
+	 */
+	private void toHeap() {
+		if (raw == null) {
+			raw = slice.copy();
+			slice = null;
+		}
+	}
+
+	/**
+	 * Give up the off-heap message of an event that won't be read.
+	 *
+	 * The event is unusable afterwards. Does nothing for heap events.
+	 */
+	void release() {
+		if (slice != null) {
+			slice.release();
+			slice = null;
+		}
+	}
+
+	private boolean regionEquals(int off, int len, byte[] b) {
+		if (len != b.length) return false;
+
+		for (int i = 0; i < len; ++i) {
+			if (raw[off + i] != b[i]) return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Unescape a PARAM-VALUE.
+	 *
+	 * Only '"', '\' and ']' are escaped. Other backslashes are kept, as
+	 * required by RFC 5424.
+	 */
+	private byte[] unescape(int off, int len) {
+		byte[] ret = new byte[len];
+		int n = 0;
+
+		for (int i = off; i < off + len; ++i) {
+			byte b = raw[i];
+
+			if (b == '\\' && i + 1 < off + len) {
+				byte next = raw[i + 1];
+
+				if (next == '"' || next == '\\' || next == ']') {
+					b = next;
+					++i;
+				}
+			}
+
+			ret[n++] = b;
+		}
+
+		if (n == len) return ret;
+
+		byte[] shorter = new byte[n];
+
+		System.arraycopy(ret, 0, shorter, 0, n);
+
+		return shorter;
+	}
+
+	/**
+	 * Create the attribute map, if not done already.
+	 */
+	private void createAttrs() {
+		if (attrsCreated) return;
+
+		toHeap();
+
+		Map<String, byte[]> f = new HashMap<String, byte[]>();
+
+		f.put(SyslogParser.SYSLOG_FACILITY, new byte[] { (byte) (priority / 8) });
+		f.put(SyslogParser.SYSLOG_SEVERITY, new byte[] { (byte) (priority % 8) });
+		if (version != RAW_VERSION) f.put(SyslogParser.SYSLOG_VERSION, new byte[] { (byte) version });
+		putField(f, SyslogParser.SYSLOG_APPNAME, APPNAME);
+		putField(f, SyslogParser.SYSLOG_PROC_ID, PROC_ID);
+		putField(f, SyslogParser.SYSLOG_MSG_ID, MSG_ID);
+		putField(f, SyslogParser.SYSLOG_STRUCTURED_DATA, STRUCTURED_DATA);
+		if (listener != null) f.put(SyslogParser.SYSLOG_LISTENER, listener.clone());
+		if (peer != null) peer.putAttrs(f);
+
+		if (extractor != null)
+			extractor.extract(raw, index[2 * APPNAME], index[2 * APPNAME + 1], index[2 * BODY], index[2 * BODY + 1], f);
+
+		if (sdParams != null) {
+			for (int i = 0; i < sdParams.attrs.length; ++i) {
+				byte[] v = getStructuredDataParam(sdParams.sdIds[i], sdParams.names[i]);
+
+				if (v != null) f.put(sdParams.attrs[i], v);
+			}
+		}
+
+		fields = f;
+		attrsCreated = true;
+	}
+
+	private void putField(Map<String, byte[]> f, String attr, int field) {
+		int len = index[2 * field + 1];
+
+		if (len < 0) return;
+
+		byte[] v = new byte[len];
+
+		System.arraycopy(raw, index[2 * field], v, 0, len);
+		f.put(attr, v);
+	}
+
+	/**
+	 * A list of structured data parameters to make attributes of.
+	 *
+	 * Compiled once per parser, and shared by its events.
+	 */
+	static class StructuredDataParams {
+		final byte[][] sdIds;
+		final byte[][] names;
+		final String[] attrs;
+
+		/**
+		 * Compile a parameter list.
+		 *
+		 * @param params "SD-ID.PARAM-NAME" strings. The SD-ID ends at
+		 *               the first dot.
+		 * @param charset the encoding of the message.
+		 */
+		StructuredDataParams(Collection<String> params, Charset charset) {
+			sdIds = new byte[params.size()][];
+			names = new byte[params.size()][];
+			attrs = new String[params.size()];
+
+			int i = 0;
+
+			for (String param : params) {
+				int dot = param.indexOf('.');
+
+				if (dot <= 0 || dot == param.length() - 1)
+					throw new IllegalArgumentException("Expected SD-ID.PARAM-NAME: " + param);
+
+				try {
+					sdIds[i] = param.substring(0, dot).getBytes(charset.name());
+					names[i] = param.substring(dot + 1).getBytes(charset.name());
+				} catch (UnsupportedEncodingException ex) {
+					throw new RuntimeException(ex);
+				}
+
+				attrs[i] = SyslogParser.SYSLOG_STRUCTURED_DATA_PARAM_PREFIX + param;
+				++i;
+			}
+		}
+	}
+
+	/**
+	 * The sender of events, for the peer attributes.
+	 *
+	 * Created once per connection, or per change of datagram sender, and
+	 * shared by its events. The address is formatted and the name looked
+	 * up when the attributes are created, so events that are never read
+	 * cost nothing more.
+	 */
+	static class Peer {
+		final InetAddress address;
+		/// Null to leave out the name.
+		final PeerResolver resolver;
+
+		/**
+		 * Create a new peer.
+		 *
+		 * A name lookup is queued right away, so it is likely done by the
+		 * time the first event is read.
+		 *
+		 * @param address the sender.
+		 * @param resolver the resolver to name it with, or null.
+		 */
+		Peer(InetAddress address, PeerResolver resolver) {
+			this.address = address;
+			this.resolver = resolver;
+
+			if (resolver != null) resolver.lookup(address);
+		}
+
+		void putAttrs(Map<String, byte[]> f) {
+			try {
+				f.put(SyslogParser.SYSLOG_PEER, address.getHostAddress().getBytes("UTF-8"));
+
+				String name = (resolver == null ? null : resolver.lookup(address));
+
+				if (name != null) f.put(SyslogParser.SYSLOG_PEER_NAME, name.getBytes("UTF-8"));
+			} catch (UnsupportedEncodingException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,489 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import com.cloudera.flume.core.Event;
+
+
+/**
+ * A Flume event source replaying a file of NL terminated syslog messages.
+ *
+ * This is for backfills of archived logs, through the same parser as live
+ * traffic. The file is cut into chunks ending at NLs, and the chunks are
+ * parsed in parallel on a pool of threads, one per processor by default.
+ * next() cuts the chunks as it goes, keeping two chunks per thread in
+ * flight, so memory use is bounded however large the file is.
+ *
+ * Plain files are read through memory mappings. Gzip files, recognized by
+ * their magic number, are decompressed as a stream, which limits them to
+ * the speed of one core, but parsing is still parallel.
+ *
+ * Events are returned in file order by default. With relaxed order, each
+ * chunk is returned as soon as it has been parsed, which keeps all threads
+ * busy when chunks take uneven time. Messages within a chunk stay in
+ * order either way.
+ *
+ * next() returns null at the end of the file. Like the socket sources,
+ * messages that fail to parse are skipped and counted as rejected.
+ */
+public class SyslogFileSource extends BaseSource {
+	final public static int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+	/// Chunks in flight per thread. One being parsed and one waiting.
+	final private static int CHUNKS_PER_THREAD = 2;
+	/// The most of a plain file mapped at once.
+	final private static int MAP_SIZE = 1 << 28;
+
+	private File file;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private boolean ordered = true;
+	private SyslogEvent.StructuredDataParams sdParams;
+
+	private ExecutorService executor;
+	/// Null once the file has been read.
+	private ChunkReader reader;
+	/// In file order, if ordered.
+	private LinkedList<Future<Chunk>> pending = new LinkedList<Future<Chunk>>();
+	/// In completion order, if not ordered.
+	private CompletionService<Chunk> completed;
+	private int inFlight = 0;
+	/// The events of the chunk being returned.
+	private Iterator<Event> current;
+	/// Chunk buffers, for reuse. Only of chunkSize bytes.
+	private ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+
+	/**
+	 * Construct a new source.
+	 *
+	 * @param file the file to replay, plain or gzipped.
+	 */
+	public SyslogFileSource(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Set the number of parser threads.
+	 *
+	 * The default is one per processor. Call before open().
+	 */
+	public void setThreads(int threads) {
+		if (threads <= 0)
+			throw new IllegalArgumentException("threads must be positive: " + threads);
+
+		this.threads = threads;
+	}
+
+	/**
+	 * Set the number of bytes to parse at a time.
+	 *
+	 * Chunks end at the last NL, and grow to fit lines longer than this.
+	 * Call before open().
+	 */
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize <= 0)
+			throw new IllegalArgumentException("chunk size must be positive: " + chunkSize);
+
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Return events in file order, or a chunk at a time as parsed.
+	 *
+	 * The default is file order. Call before open().
+	 */
+	public void setOrdered(boolean ordered) {
+		this.ordered = ordered;
+	}
+
+	/**
+	 * Make attributes of some structured data parameters.
+	 *
+	 * Call before open().
+	 *
+	 * @see SyslogParser#setStructuredDataParams(Collection)
+	 */
+	public void setStructuredDataParams(Collection<String> params) {
+		if (params == null || params.isEmpty())
+			sdParams = null;
+		else
+			sdParams = new SyslogEvent.StructuredDataParams(params, Charset.forName("UTF-8"));
+	}
+
+	@Override
+	public void open() throws IOException {
+		reader = new ChunkReader(openFile());
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private AtomicInteger n = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "file-parser-" + n.incrementAndGet() + "-" + file.getName());
+
+				t.setDaemon(true);
+
+				return t;
+			}
+		});
+
+		if (!ordered)
+			completed = new ExecutorCompletionService<Chunk>(executor);
+	}
+
+	/**
+	 * Open the file as a stream of plain bytes.
+	 */
+	private InputStream openFile() throws IOException {
+		RandomAccessFile f = new RandomAccessFile(file, "r");
+
+		try {
+			boolean gzip = (f.length() >= 2 && f.read() == 0x1F && f.read() == 0x8B);
+
+			if (!gzip)
+				return new MappedInputStream(f.getChannel());
+
+			f.close();
+
+			return new GZIPInputStream(new FileInputStream(file), 1 << 16);
+		} catch (IOException ex) {
+			f.close();
+			throw ex;
+		}
+	}
+
+	@Override
+	public Event next() throws IOException, InterruptedException {
+		for (;;) {
+			Event e = pollPending(false);
+
+			if (e == null) {
+				e = nextParsed();
+
+				if (e == null) {
+					// The end of the file. Flush summaries and batches.
+					e = pollPending(true);
+
+					if (e == null) return null;
+				} else {
+					e = process(e);
+
+					if (e == null) continue;
+				}
+			}
+
+			updateEventProcessingStats(e);
+
+			return e;
+		}
+	}
+
+	/**
+	 * Return the next parsed message, or null at the end of the file.
+	 */
+	private Event nextParsed() throws IOException, InterruptedException {
+		while (current == null || !current.hasNext()) {
+			submitChunks();
+
+			if (inFlight == 0) return null;
+
+			Chunk c = takeChunk();
+
+			addRejectedMessages(c.rejected);
+			current = c.events.iterator();
+		}
+
+		return current.next();
+	}
+
+	/**
+	 * Read and submit chunks until enough are in flight.
+	 */
+	private void submitChunks() throws IOException {
+		while (reader != null && inFlight < threads * CHUNKS_PER_THREAD) {
+			Chunk c = reader.read();
+
+			if (c == null) {
+				reader.close();
+				reader = null;
+				break;
+			}
+
+			if (ordered)
+				pending.add(executor.submit(c));
+			else
+				completed.submit(c);
+
+			++inFlight;
+		}
+	}
+
+	private Chunk takeChunk() throws IOException, InterruptedException {
+		Future<Chunk> f = (ordered ? pending.removeFirst() : completed.take());
+
+		--inFlight;
+
+		try {
+			return f.get();
+		} catch (ExecutionException ex) {
+			// IOException(String, Throwable) is Java 6.
+			IOException ioe = new IOException("Failed to parse " + file);
+
+			ioe.initCause(ex.getCause());
+			throw ioe;
+		}
+	}
+
+	@Override
+	public void close() throws IOException, InterruptedException {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+
+		if (reader != null) {
+			reader.close();
+			reader = null;
+		}
+
+		pending.clear();
+		completed = null;
+		inFlight = 0;
+		current = null;
+		buffers.clear();
+	}
+
+	/**
+	 * Return a buffer of chunkSize bytes.
+	 */
+	private byte[] getBuffer() {
+		byte[] b = buffers.poll();
+
+		return (b != null ? b : new byte[chunkSize]);
+	}
+
+	/**
+	 * A chunk of whole lines, and the events parsed from it.
+	 */
+	private class Chunk implements Callable<Chunk> {
+		/// Null once parsed.
+		byte[] buf;
+		int length;
+		List<Event> events = new ArrayList<Event>();
+		int rejected = 0;
+
+		Chunk(byte[] buf, int length) {
+			this.buf = buf;
+			this.length = length;
+		}
+
+		/**
+		 * Parse the chunk.
+		 */
+		@Override
+		public Chunk call() throws IOException {
+			SyslogParser parser = new SyslogParser(true, "UTF-8");
+
+			parser.setStructuredDataParams(sdParams);
+			parser.setFilter(getFilter());
+			parser.setRateLimiter(getRateLimiter());
+			parser.setSlabAllocator(getSlabAllocator());
+			parser.setKeyValueExtractor(getKeyValueExtractor());
+			parser.reset(buf, 0, length);
+
+			for (;;) {
+				try {
+					Event e = parser.readEvent();
+
+					if (e == null) break;
+
+					events.add(e);
+				} catch (IOException ex) {
+					++rejected;
+					parser.skipLine();
+				}
+			}
+
+			// The events have their own copies.
+			if (buf.length == chunkSize) buffers.add(buf);
+
+			buf = null;
+
+			return this;
+		}
+	}
+
+	/**
+	 * Cuts a stream into chunks ending at NLs.
+	 */
+	private class ChunkReader {
+		private InputStream in;
+		/// The bytes after the last NL of the previous chunk.
+		private byte[] tail = new byte[0];
+		private int tailLength = 0;
+
+		ChunkReader(InputStream in) {
+			this.in = in;
+		}
+
+		/**
+		 * Return the next chunk, or null at EOF.
+		 *
+		 * The last line of the file may lack its NL.
+		 */
+		Chunk read() throws IOException {
+			byte[] b = (tailLength < chunkSize ? getBuffer() : new byte[2 * tailLength]);
+			int n = tailLength;
+
+			System.arraycopy(tail, 0, b, 0, tailLength);
+			tailLength = 0;
+
+			for (;;) {
+				int r = 0;
+
+				while (n < b.length && (r = in.read(b, n, b.length - n)) >= 0)
+					n += r;
+
+				if (r < 0) {
+					if (n > 0) return new Chunk(b, n);
+
+					if (b.length == chunkSize) buffers.add(b);
+
+					return null;
+				}
+
+				int end = lastIndexOf(b, n, (byte) '\n') + 1;
+
+				if (end > 0) {
+					saveTail(b, end, n - end);
+
+					return new Chunk(b, end);
+				}
+
+				// A line longer than the buffer.
+				byte[] bigger = new byte[2 * b.length];
+
+				System.arraycopy(b, 0, bigger, 0, n);
+				b = bigger;
+			}
+		}
+
+		private void saveTail(byte[] b, int off, int len) {
+			if (tail.length < len) tail = new byte[Math.max(len, 2 * tail.length)];
+
+			System.arraycopy(b, off, tail, 0, len);
+			tailLength = len;
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+	}
+
+	private static int lastIndexOf(byte[] b, int length, byte c) {
+		for (int i = length - 1; i >= 0; --i) {
+			if (b[i] == c) return i;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Reads a file through memory mappings of up to MAP_SIZE bytes.
+	 *
+	 * This saves a copy into the kernel page cache per read. The mappings
+	 * are released when garbage collected.
+	 */
+	private static class MappedInputStream extends InputStream {
+		private FileChannel channel;
+		private long size;
+		/// The file offset of the next mapping.
+		private long position = 0;
+		private MappedByteBuffer map;
+
+		MappedInputStream(FileChannel channel) throws IOException {
+			this.channel = channel;
+			this.size = channel.size();
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!mapNext()) return -1;
+
+			return map.get() & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+
+			if (!mapNext()) return -1;
+
+			int n = Math.min(len, map.remaining());
+
+			map.get(b, off, n);
+
+			return n;
+		}
+
+		/**
+		 * Make sure there are bytes left in the mapping.
+		 *
+		 * @return false at EOF.
+		 */
+		private boolean mapNext() throws IOException {
+			if (map != null && map.hasRemaining()) return true;
+
+			if (position >= size) return false;
+
+			long n = Math.min(MAP_SIZE, size - position);
+
+			map = channel.map(FileChannel.MapMode.READ_ONLY, position, n);
+			position += n;
+
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			map = null;
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,323 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Rules for dropping messages in the parser, before creating events.
+ *
+ * A filter is a list of rules separated by semicolons. A rule is a list of
+ * conditions separated by ampersands, and matches if all its conditions do.
+ * A message matching any rule is dropped, and counted for the first rule it
+ * matched. Conditions are one of
+ *
+ *  * facility OP VALUE
+ *  * severity OP VALUE
+ *  * appname = NAME[,NAME...]
+ *  * appname != NAME[,NAME...]
+ *
+ * where OP is one of =, !=, <, <=, > and >=. Facilities and severities are
+ * numbers or their RFC 5424 keywords (like local0 and warning). Note that
+ * lower severities are more severe, so "severity>warning" drops notice, info
+ * and debug. The equality operators also take comma separated lists, like
+ * "facility=local6,local7". A message without an appname doesn't equal any
+ * name.
+ *
+ * Rules only using facility and severity are evaluated right after the
+ * priority. Otherwise, the whole header is parsed first. Either way, nothing
+ * is allocated for dropped messages.
+ *
+ * Filters are immutable, except for the counters, and can be shared between
+ * threads.
+ */
+public class SyslogFilter {
+	final private static int FACILITY = 0;
+	final private static int SEVERITY = 1;
+	final private static int APPNAME = 2;
+
+	final private static String[] FIELD_NAMES = { "facility", "severity", "appname" };
+
+	final private static int EQ = 0;
+	final private static int NE = 1;
+	final private static int LT = 2;
+	final private static int LE = 3;
+	final private static int GT = 4;
+	final private static int GE = 5;
+
+	/// Longest first, so "<=" isn't taken for "<".
+	final private static String[] OPS = { "!=", "<=", ">=", "=", "<", ">" };
+	final private static int[] OP_CODES = { NE, LE, GE, EQ, LT, GT };
+
+	final private static String[] SEVERITIES = { "emerg", "alert", "crit", "err", "warning", "notice", "info", "debug" };
+	final private static String[] FACILITIES = {
+		"kern", "user", "mail", "daemon", "auth", "syslog", "lpr", "news",
+		"uucp", "cron", "authpriv", "ftp", "ntp", "security", "console", "solaris-cron",
+		"local0", "local1", "local2", "local3", "local4", "local5", "local6", "local7",
+	};
+
+	private String[] rules;
+	/// Conditions per rule.
+	private Condition[][] conditions;
+	private boolean usesAppname = false;
+	private AtomicLongArray dropped;
+
+	private SyslogFilter(List<String> rules, List<Condition[]> conditions) {
+		this.rules = rules.toArray(new String[rules.size()]);
+		this.conditions = conditions.toArray(new Condition[conditions.size()][]);
+		this.dropped = new AtomicLongArray(this.rules.length);
+
+		for (Condition[] cs : this.conditions) {
+			for (Condition c : cs) {
+				if (c.field == APPNAME) usesAppname = true;
+			}
+		}
+	}
+
+	/**
+	 * Parse a filter specification.
+	 *
+	 * @param spec rules, as described in the class documentation.
+	 * @throws IllegalArgumentException if the specification is invalid.
+	 */
+	public static SyslogFilter parse(String spec) {
+		List<String> rules = new ArrayList<String>();
+		List<Condition[]> conditions = new ArrayList<Condition[]>();
+
+		for (String rule : spec.split(";")) {
+			rule = rule.trim();
+
+			if (rule.length() == 0) continue;
+
+			String[] parts = rule.split("&");
+			Condition[] cs = new Condition[parts.length];
+
+			for (int i = 0; i < parts.length; ++i)
+				cs[i] = parseCondition(parts[i].trim());
+
+			rules.add(rule);
+			conditions.add(cs);
+		}
+
+		if (rules.isEmpty())
+			throw new IllegalArgumentException("Empty filter: " + spec);
+
+		return new SyslogFilter(rules, conditions);
+	}
+
+	private static Condition parseCondition(String s) {
+		for (int i = 0; i < OPS.length; ++i) {
+			int at = s.indexOf(OPS[i]);
+
+			if (at < 0) continue;
+
+			String name = s.substring(0, at).trim();
+			String value = s.substring(at + OPS[i].length()).trim();
+			int op = OP_CODES[i];
+			int field = indexOf(FIELD_NAMES, name);
+
+			if (field < 0)
+				throw new IllegalArgumentException("Unknown filter field: " + name);
+
+			String[] values = value.split(",");
+
+			if (values.length > 1 && op != EQ && op != NE)
+				throw new IllegalArgumentException("Lists need = or !=: " + s);
+
+			if (field == APPNAME) {
+				if (op != EQ && op != NE)
+					throw new IllegalArgumentException("Appnames need = or !=: " + s);
+
+				byte[][] names = new byte[values.length][];
+
+				for (int j = 0; j < values.length; ++j) {
+					try {
+						names[j] = values[j].trim().getBytes("UTF-8");
+					} catch (UnsupportedEncodingException ex) {
+						throw new RuntimeException(ex);
+					}
+				}
+
+				return new Condition(field, op, null, names);
+			}
+
+			int[] ints = new int[values.length];
+
+			for (int j = 0; j < values.length; ++j)
+				ints[j] = parseValue(field == FACILITY ? FACILITIES : SEVERITIES, values[j].trim());
+
+			return new Condition(field, op, ints, null);
+		}
+
+		throw new IllegalArgumentException("Expected a comparison: " + s);
+	}
+
+	private static int parseValue(String[] keywords, String s) {
+		int i = indexOf(keywords, s);
+
+		if (i >= 0) return i;
+
+		// A few common aliases.
+		if ("error".equals(s)) return 3;
+		if ("warn".equals(s)) return 4;
+
+		try {
+			i = Integer.parseInt(s);
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Unknown filter value: " + s);
+		}
+
+		if (i < 0 || i >= keywords.length)
+			throw new IllegalArgumentException("Filter value out of range: " + s);
+
+		return i;
+	}
+
+	private static int indexOf(String[] a, String s) {
+		for (int i = 0; i < a.length; ++i) {
+			if (a[i].equals(s)) return i;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Return the number of rules.
+	 */
+	public int getNumRules() {
+		return rules.length;
+	}
+
+	/**
+	 * Return the text of a rule, as given.
+	 */
+	public String getRule(int rule) {
+		return rules[rule];
+	}
+
+	/**
+	 * Return the number of messages dropped by a rule so far.
+	 */
+	public long getDropped(int rule) {
+		return dropped.get(rule);
+	}
+
+	/**
+	 * Return true if any rule needs the appname.
+	 */
+	boolean usesAppname() {
+		return usesAppname;
+	}
+
+	/**
+	 * Decide whether to drop a message, and count it if so.
+	 *
+	 * @param priority the syslog priority.
+	 * @param buf a buffer holding the appname.
+	 * @param appOffset the offset of the appname in buf.
+	 * @param appLength the length of the appname, or -1 if absent.
+	 * @return true if the message should be dropped.
+	 */
+	boolean drop(int priority, byte[] buf, int appOffset, int appLength) {
+		for (int i = 0; i < conditions.length; ++i) {
+			if (matches(conditions[i], priority, buf, appOffset, appLength)) {
+				dropped.incrementAndGet(i);
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static boolean matches(Condition[] cs, int priority, byte[] buf, int appOffset, int appLength) {
+		for (Condition c : cs) {
+			boolean m;
+
+			if (c.field == APPNAME) {
+				m = c.matchesName(buf, appOffset, appLength);
+			} else {
+				m = c.matchesInt(c.field == FACILITY ? priority / 8 : priority % 8);
+			}
+
+			if (!m) return false;
+		}
+
+		return true;
+	}
+
+	private static class Condition {
+		final int field;
+		final int op;
+		final int[] ints;
+		final byte[][] names;
+
+		Condition(int field, int op, int[] ints, byte[][] names) {
+			this.field = field;
+			this.op = op;
+			this.ints = ints;
+			this.names = names;
+		}
+
+		boolean matchesInt(int v) {
+			switch (op) {
+			case EQ: return contains(v);
+			case NE: return !contains(v);
+			case LT: return v < ints[0];
+			case LE: return v <= ints[0];
+			case GT: return v > ints[0];
+			case GE: return v >= ints[0];
+			default: throw new AssertionError(op);
+			}
+		}
+
+		boolean matchesName(byte[] buf, int offset, int length) {
+			boolean found = false;
+
+			if (length >= 0) {
+				for (byte[] name : names) {
+					if (regionEquals(buf, offset, length, name)) {
+						found = true;
+						break;
+					}
+				}
+			}
+
+			return (op == EQ ? found : !found);
+		}
+
+		private boolean contains(int v) {
+			for (int i : ints) {
+				if (i == v) return true;
+			}
+
+			return false;
+		}
+
+		private static boolean regionEquals(byte[] buf, int offset, int length, byte[] b) {
+			if (length != b.length) return false;
+
+			for (int i = 0; i < length; ++i) {
+				if (buf[offset + i] != b[i]) return false;
+			}
+
+			return true;
+		}
+	}
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.reporter.ReportEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A Flume event source listening on several sockets at once.
+ *
+ * Each listener is a regular socket source, which runs its own threads and
+ * parsers, but hands its events to the queue of this source instead of
+ * returning them from next(). Events are tagged with the name of the
+ * listener they arrived on, as the "syslog.listener" attribute.
+ *
+ * The listeners share the filter, rate limiter and slab allocator of this
+ * source, and count their rejected messages here. Deduplication, batching
+ * and spilling are done once, by this source, for all listeners. The
+ * metrics of each listener, like the TLS handshake counts, are reported
+ * under its name by getReports().
+ */
+public class SyslogMultiSource extends BaseSource {
+	static final Logger LOG = LoggerFactory.getLogger(SyslogMultiSource.class);
+
+	/// Enough that listeners rarely wait for each other on the queue.
+	final public static int QUEUE_SIZE = 64;
+
+	/// How often next() checks whether the source has been closed.
+	static final long POLL_MS = 100;
+
+	private List<String> names = new ArrayList<String>();
+	private List<BaseSource> listeners = new ArrayList<BaseSource>();
+	/// Kept after close(), since next() may still be polling it.
+	private BlockingQueue<Event> queue;
+	private volatile boolean opened = false;
+
+	/**
+	 * Add a listener.
+	 *
+	 * The listener should not have a deduplicator, batcher, spill queue
+	 * or any of the settings shared with this source. Call before open().
+	 *
+	 * @param name the name to tag events with, unique for this source.
+	 * @param listener a ServerSocketSource or SyslogDatagramSocketSource.
+	 * @throws IllegalArgumentException if the name is taken, or the
+	 *                                  source can't be a listener.
+	 */
+	public void addListener(String name, BaseSource listener) {
+		if (names.contains(name))
+			throw new IllegalArgumentException("Duplicate listener: " + name);
+
+		if (!(listener instanceof ServerSocketSource) && !(listener instanceof SyslogDatagramSocketSource))
+			throw new IllegalArgumentException("Not a socket source: " + listener.getClass().getName());
+
+		names.add(name);
+		listeners.add(listener);
+	}
+
+	/**
+	 * Return the number of listeners.
+	 */
+	public int getNumListeners() {
+		return listeners.size();
+	}
+
+	@Override
+	public void open() throws IOException, InterruptedException {
+		if (listeners.isEmpty())
+			throw new IOException("No listeners");
+
+		queue = (getSpillQueue() != null ? getSpillQueue() : new LinkedBlockingQueue<Event>(QUEUE_SIZE));
+		opened = true;
+
+		for (int i = 0; i < listeners.size(); ++i) {
+			BaseSource l = listeners.get(i);
+
+			l.attach(names.get(i), queue, this);
+
+			boolean ok = false;
+
+			try {
+				l.open();
+				ok = true;
+			} finally {
+				// Don't leave the others bound.
+				if (!ok) closeListeners(i);
+			}
+		}
+	}
+
+	@Override
+	public Event next() throws IOException, InterruptedException {
+		for (;;) {
+			boolean eof = !opened;
+			Event e = pollPending(eof);
+
+			if (e == null) {
+				if (eof) return null;
+
+				long timeout = getPendingTimeout();
+
+				e = queue.poll(timeout > 0 ? Math.min(timeout, POLL_MS) : POLL_MS, TimeUnit.MILLISECONDS);
+
+				// Stream listeners wake us when a connection ends.
+				if (e == null || e == ServerSocketSource.WAKE_EVENT)
+					continue;
+
+				e = process(e);
+
+				if (e == null) continue;
+			}
+
+			updateEventProcessingStats(e);
+
+			return e;
+		}
+	}
+
+	@Override
+	public void close() throws IOException, InterruptedException {
+		opened = false;
+		closeListeners(listeners.size());
+		discardQueued(queue);
+
+		if (getSpillQueue() != null)
+			getSpillQueue().close();
+	}
+
+	/**
+	 * Close the first n listeners.
+	 *
+	 * All of them are closed, even if some fail. Failures are logged.
+	 */
+	private void closeListeners(int n) {
+		for (int i = 0; i < n; ++i) {
+			try {
+				listeners.get(i).close();
+			} catch (Exception ex) {
+				LOG.error("Failed to close listener " + names.get(i), ex);
+			}
+		}
+	}
+
+	/**
+	 * Add the reports of this source and its listeners.
+	 *
+	 * The listeners are named after this source and the listener name.
+	 */
+	@Override
+	public void getReports(String namePrefix, Map<String, ReportEvent> reports) {
+		super.getReports(namePrefix, reports);
+
+		for (int i = 0; i < listeners.size(); ++i)
+			listeners.get(i).getReports(namePrefix + getName() + "." + names.get(i) + ".", reports);
+	}
+}
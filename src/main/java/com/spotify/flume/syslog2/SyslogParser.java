@@ -15,22 +15,24 @@
  */
 package com.spotify.flume.syslog2;
 
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.InputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.GregorianCalendar;
-import java.util.HashMap;
 import java.util.Locale;
-import java.util.Map;
 import java.util.TimeZone;
 
 import com.cloudera.flume.core.Event;
 import com.cloudera.flume.core.EventImpl;
+import com.cloudera.util.Clock;
 
 /**
  * A Syslog protocol parser.
@@ -44,13 +46,16 @@ import com.cloudera.flume.core.EventImpl;
  * the MSG, rather than the header, parsing them can be turned off.
  *
  * This is basically an InputStream, so it takes an InputStream as primary
- * argument.
+ * argument. The stream is read in chunks into an internal buffer, and the
+ * hot loops looking for delimiters use ByteScanner on that buffer. The
+ * buffer always holds the whole message being parsed, so fields are just
+ * recorded as offsets, and the events are SyslogEvents copying the message
+ * once.
  *
  * Since Flume hostnames are Strings, we also give the user an opportunity to
  * specify the character set used.
  *
- * XXX: We need push backs, and this is implemented here for now. Maybe inherit
- *      PushbackInputStream instead?
+ * Single-byte push backs are done by stepping back in the buffer.
  */
 public class SyslogParser implements Closeable {
 	// These two are compatible with flume.handlers.syslog.SyslogConsts
@@ -64,16 +69,93 @@ public class SyslogParser implements Closeable {
 	final public static String SYSLOG_PROC_ID = "syslog.procId";
 	final public static String SYSLOG_MSG_ID = "syslog.msgId";
 	final public static String SYSLOG_STRUCTURED_DATA = "syslog.sd";
+	/// Prefix of single structured data parameters, followed by
+	/// "SD-ID.PARAM-NAME".
+	final public static String SYSLOG_STRUCTURED_DATA_PARAM_PREFIX = SYSLOG_STRUCTURED_DATA + ".";
+	/// The number of repeats a Deduplicator summary stands for, as an
+	/// 8 byte big endian long.
+	final public static String SYSLOG_REPEATED = "syslog.repeated";
+	/// The number of messages in a Batcher event, as an 8 byte big endian
+	/// long.
+	final public static String SYSLOG_BATCH = "syslog.batch";
+	/// The number of lines joined by a MultiLineAssembler, as an 8 byte
+	/// big endian long.
+	final public static String SYSLOG_LINES = "syslog.lines";
+	/// The listener of a SyslogMultiSource the message arrived on.
+	final public static String SYSLOG_LISTENER = "syslog.listener";
+	/// The address of the sender, as text.
+	final public static String SYSLOG_PEER = "syslog.peer";
+	/// The name of the sender, if resolved. See PeerResolver.
+	final public static String SYSLOG_PEER_NAME = "syslog.peerName";
+	/// Prefix of body "key=value" pairs, followed by the key. See
+	/// KeyValueExtractor.
+	final public static String SYSLOG_KV_PREFIX = "syslog.kv.";
 
 	// As defined in RFC 5424.	
 	final public static int MAX_SUPPORTED_VERSION = 1;
 
+	final private static Tracer TRACER = Tracer.get();
+
+	/// Returned by parseEvent() for messages dropped by the filter or
+	/// the rate limiter.
+	final private static Event DROPPED = new EventImpl();
+
+	final private static byte[] NO_PEER = new byte[0];
+
+	final private static int BUFFER_SIZE = 8192;
+
+	final private static ByteScanner SPACE = new ByteScanner((byte) ' ');
+	final private static ByteScanner NL = new ByteScanner((byte) '\n');
+	final private static ByteScanner TAG_END = new ByteScanner((byte) ':', (byte) '[', (byte) '\r', (byte) '\n');
+	final private static ByteScanner PID_END = new ByteScanner((byte) ']', (byte) '\r', (byte) '\n');
+
+	/// Null when parsing a single frame.
 	private InputStream in;
+	/// True if the body runs to the end of the frame, NLs included.
+	private boolean wholeFrame = false;
 	private boolean parseTag;
 	private Charset charset;
 
-	/// Push back buffer. -1 indicates that it is empty.
-	private int pushBack = -1;
+	/// Unread bytes are buf[pos, limit).
+	private byte[] buf;
+	/// A little endian view of buf, for ByteScanner.
+	private ByteBuffer view;
+	private int pos = 0;
+	private int limit = 0;
+	/// The start of the message being parsed, or -1 between messages.
+	private int mark = -1;
+
+	/// The last token read by scanToken().
+	private int tokenOffset;
+	private int tokenLength;
+
+	/// The fields of the message being parsed, relative to mark.
+	/// @see SyslogEvent
+	private int[] index = new int[2 * SyslogEvent.NUM_FIELDS];
+	/// The structured data parameters of the message being parsed.
+	private int[] sdIndex = new int[8 * SyslogEvent.SD_PARAM_SIZE];
+	private int sdIndexLength = 0;
+	private SyslogEvent.StructuredDataParams sdParams;
+	/// May be null.
+	private SyslogFilter filter;
+	/// May be null.
+	private RateLimiter limiter;
+	/// The key of PEER rate limits.
+	private byte[] peer = NO_PEER;
+	/// Null to keep messages on the heap.
+	private SlabAllocator allocator;
+	/// Null unless set.
+	private byte[] listener;
+	/// Null unless set.
+	private SyslogEvent.Peer peerTag;
+	/// The host of RFC 3164 messages, or null to parse their hostname.
+	private String localHost;
+	private KeyValueExtractor extractor;
+
+	/// Reused, since they are expensive to create. RFC 5424 timestamps
+	/// are converted to UTC, and RFC 3164 ones are in local time.
+	private Calendar utcCalendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"), Locale.getDefault());
+	private Calendar localCalendar = new GregorianCalendar(Locale.ROOT);
 
 	/**
 	 * Construct a new Syslog protocol parser.
@@ -87,19 +169,204 @@ public class SyslogParser implements Closeable {
 	/**
 	 * Construct a new Syslog protocol parser.
 	 *
-	 * @param in the stream to read data from. The InputStream#read()
-	 *           function is heavily used, so make sure it is buffered.
+	 * @param in the stream to read data from. It is read in chunks, so
+	 *           there is no need to buffer it.
 	 * @param parseTag true to parse the "tag[pid]:", false to leave it as
 	 *                 part of the message body.
 	 * @param encoding the encoding to use for various string conversions,
 	 *                 most notably the hostname.
 	 */
 	public SyslogParser(InputStream in, boolean parseTag, String encoding) {
+		this(parseTag, encoding);
 		this.in = in;
+		setBuffer(new byte[BUFFER_SIZE]);
+	}
+
+	/**
+	 * Construct a new Syslog protocol parser for single frames.
+	 *
+	 * Call reset(byte[], int, int) before each readEvent().
+	 */
+	SyslogParser(boolean parseTag, String encoding) {
 		this.parseTag = parseTag;
 		this.charset = Charset.forName(encoding);
 	}
 
+	/**
+	 * Point the parser at a frame.
+	 *
+	 * This is for parsers without an input stream. The frame is parsed in
+	 * place, and EOF is at the end of it. Anything left from a previous
+	 * frame is forgotten.
+	 */
+	void reset(byte[] frame, int offset, int length) {
+		reset(frame, offset, length, false);
+	}
+
+	/**
+	 * Point the parser at a frame.
+	 *
+	 * @param wholeFrame true if the frame holds exactly one message, like
+	 *                   an octet counted frame. The body is then the rest
+	 *                   of the frame, NLs included, except a trailing NL.
+	 * @see #reset(byte[], int, int)
+	 */
+	void reset(byte[] frame, int offset, int length, boolean wholeFrame) {
+		assert in == null : "Resetting a stream parser";
+
+		if (frame != buf) setBuffer(frame);
+
+		pos = offset;
+		limit = offset + length;
+		this.wholeFrame = wholeFrame;
+	}
+
+	/**
+	 * Make attributes of some structured data parameters.
+	 *
+	 * Each parameter becomes an attribute named
+	 * "syslog.sd.SD-ID.PARAM-NAME" with the unescaped value, if present.
+	 * They are found using offsets recorded while parsing, so there is no
+	 * need to split the whole structured data in a decorator.
+	 *
+	 * @param params "SD-ID.PARAM-NAME" strings, or null for none.
+	 * @throws IllegalArgumentException if a parameter lacks the dot.
+	 */
+	public void setStructuredDataParams(Collection<String> params) {
+		if (params == null || params.isEmpty())
+			sdParams = null;
+		else
+			sdParams = new SyslogEvent.StructuredDataParams(params, charset);
+	}
+
+	/**
+	 * Use an already compiled parameter list.
+	 *
+	 * The sources use this to share one list between connections.
+	 */
+	void setStructuredDataParams(SyslogEvent.StructuredDataParams params) {
+		sdParams = params;
+	}
+
+	/**
+	 * Drop messages matching a filter.
+	 *
+	 * Dropped messages are skipped by readEvent() and readRawEvent(), and
+	 * counted by the filter. They are skipped as soon as the filter can be
+	 * evaluated, and nothing is allocated for them.
+	 *
+	 * @param filter the filter, or null to keep all messages.
+	 */
+	public void setFilter(SyslogFilter filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * Drop messages from senders exceeding a rate limit.
+	 *
+	 * Messages are checked after the filter, so filtered messages don't
+	 * use up tokens, unless the filter needs the appname and the limit is
+	 * by peer. Limited messages are skipped by readEvent() and
+	 * readRawEvent(), and counted by the limiter.
+	 *
+	 * @param limiter the limiter, or null for no limit.
+	 * @see #setPeer(byte[])
+	 */
+	public void setRateLimiter(RateLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	/**
+	 * Set the sender of the following messages.
+	 *
+	 * This is the key of rate limits by PEER, and of HOST in raw mode.
+	 *
+	 * @param address the raw address, like InetAddress.getAddress(), or
+	 *                null if unknown.
+	 */
+	public void setPeer(byte[] address) {
+		peer = (address == null ? NO_PEER : address);
+	}
+
+	/**
+	 * Parse RFC 3164 messages without a hostname.
+	 *
+	 * Local senders, like the syslog(3) of glibc writing to /dev/log,
+	 * leave out the hostname: "<PRI>TIMESTAMP TAG[PID]: MSG". Such
+	 * messages get the given host instead. RFC 5424 messages always have
+	 * a hostname, so they are parsed as usual.
+	 *
+	 * @param host the host of RFC 3164 messages, usually the local host,
+	 *             or null to parse their hostname.
+	 */
+	public void setLocalHost(String host) {
+		localHost = host;
+	}
+
+	/**
+	 * Keep the messages of events off-heap.
+	 *
+	 * Events copy their message to the heap when first read. Messages that
+	 * don't fit in the allocator are kept on the heap as usual.
+	 *
+	 * @param allocator the allocator, or null to use the heap.
+	 */
+	public void setSlabAllocator(SlabAllocator allocator) {
+		this.allocator = allocator;
+	}
+
+	/**
+	 * Tag events with the listener they arrived on.
+	 *
+	 * The name becomes the "syslog.listener" attribute, in the encoding
+	 * of the parser.
+	 *
+	 * @param name the listener name, or null for no tag.
+	 */
+	public void setListener(String name) {
+		if (name == null) {
+			listener = null;
+			return;
+		}
+
+		try {
+			listener = name.getBytes(charset.name());
+		} catch (UnsupportedEncodingException ex) {
+			// The charset is already resolved.
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Make attributes of "key=value" pairs in the body.
+	 *
+	 * The pairs are extracted when the attributes of an event are
+	 * created, from the same copy of the message as the other fields.
+	 *
+	 * @param extractor the extractor, or null for none.
+	 */
+	public void setKeyValueExtractor(KeyValueExtractor extractor) {
+		this.extractor = extractor;
+	}
+
+	/**
+	 * Tag events with their sender.
+	 *
+	 * The address becomes the "syslog.peer" attribute, and the name the
+	 * "syslog.peerName" attribute, if resolved. This is separate from
+	 * setPeer(byte[]), since the sources only tag when asked to.
+	 *
+	 * @param peer the sender, or null for no tag.
+	 */
+	void setPeerTag(SyslogEvent.Peer peer) {
+		peerTag = peer;
+	}
+
+	private void setBuffer(byte[] b) {
+		buf = b;
+		view = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
 	/**
 	 * Free the resources used by this parser.
 	 *
@@ -107,7 +374,7 @@ public class SyslogParser implements Closeable {
 	 * stream.
 	 */
 	public void close() throws IOException {
-		in.close();
+		if (in != null) in.close();
 	}
 	
 	/**
@@ -119,6 +386,56 @@ public class SyslogParser implements Closeable {
 	 *                    bytes are seen.
 	 */
 	public Event readEvent() throws IOException {
+		return readEvent(false, null);
+	}
+
+	/**
+	 * Read the next line from the stream, only parsing the priority.
+	 *
+	 * This is much cheaper than readEvent(), for when the message doesn't
+	 * need to be normalized. The optional "<PRI>" is parsed into facility
+	 * and severity attributes, and the rest of the line is the body, except
+	 * a trailing CR. The timestamp is the current time. Blank lines are
+	 * skipped.
+	 *
+	 * @param host the hostname of the event, usually the peer address.
+	 * @return a Flume Event, or null on EOF.
+	 * @throw IOException if the underlying stream fails, or the priority
+	 *                    is malformed.
+	 */
+	public Event readRawEvent(String host) throws IOException {
+		return readEvent(true, host);
+	}
+
+	private Event readEvent(boolean raw, String host) throws IOException {
+		Object span = TRACER.beginParse();
+
+		try {
+			Event e;
+
+			do {
+				mark = pos;
+				e = (raw ? parseRawEvent(host) : parseEvent());
+			} while (e == DROPPED);
+
+			if (span != null) TRACER.endParse(span, e);
+
+			return e;
+		} catch (IOException ex) {
+			TRACER.parseRejected(ex);
+			throw ex;
+		} finally {
+			mark = -1;
+		}
+	}
+
+	/**
+	 * The implementation of readEvent().
+	 */
+	private Event parseEvent() throws IOException {
+		Arrays.fill(index, -1);
+		sdIndexLength = 0;
+
 		int priority = 0;
 		int c = read(false);
 
@@ -131,6 +448,19 @@ public class SyslogParser implements Closeable {
 			expect('>');
 		}
 
+		if (filter != null && !filter.usesAppname() && filter.drop(priority, null, 0, -1)) {
+			skipMessage();
+			return DROPPED;
+		}
+
+		// The peer is known already, but an appname filter goes first.
+		boolean limitEarly = (limiter != null && limiter.getKey() == RateLimiter.Key.PEER && (filter == null || !filter.usesAppname()));
+
+		if (limitEarly && !acquire(false)) {
+			skipMessage();
+			return DROPPED;
+		}
+
 		int version = 0;
 		Calendar cal = null;
 		
@@ -198,8 +528,9 @@ public class SyslogParser implements Closeable {
 				}
 			}
 
-			cal = new GregorianCalendar(TimeZone.getTimeZone("UTC"), Locale.getDefault());
+			cal = utcCalendar;
 			
+			cal.clear();
 			cal.set(y, m - 1, d, hh, mm, ss);
 			cal.set(Calendar.MILLISECOND, (int) (subss * 1000));
 			cal.add(Calendar.MINUTE, tz);
@@ -225,8 +556,10 @@ public class SyslogParser implements Closeable {
 			
 			int ss = readInt();
 			
-			cal = new GregorianCalendar(Locale.ROOT);
+			// The year and milliseconds are taken from the current time.
+			cal = localCalendar;
 
+			cal.setTimeInMillis(System.currentTimeMillis());
 			cal.set(Calendar.MONTH, m);
 			cal.set(Calendar.DAY_OF_MONTH, d);
 			cal.set(Calendar.HOUR_OF_DAY, hh);
@@ -236,88 +569,187 @@ public class SyslogParser implements Closeable {
 		
 		expect(' ');
 		skipSpaces();
-		
-		String hostname = readWordString(32);
-		
-		expect(' ');
-		
-		byte[] appname = null;
-		byte[] procId = null;
-		byte[] msgId = null;
-		byte[] structuredData = null;
+
+		// Local RFC 3164 messages go straight on to the tag.
+		String host = (version == 0 ? localHost : null);
+
+		if (host == null) {
+			readWord(SyslogEvent.HOST);
+			expect(' ');
+		}
 		
 		if (version >= 1) {
-			appname = readWordOrNil(20);
+			readWordOrNil(SyslogEvent.APPNAME);
 			expect(' ');
-			procId = readWordOrNil(20);
+			readWordOrNil(SyslogEvent.PROC_ID);
 			expect(' ');
-			msgId = readWordOrNil(20);
+			readWordOrNil(SyslogEvent.MSG_ID);
 			expect(' ');
-			structuredData = readStructuredData();
+			readStructuredData();
 			expect(' ');
 		} else if (version == 0 && parseTag) {
 			// Try to find a colon terminated tag.
-			appname = readTag();
-			if (peek(true) == '[') procId = readPid();
+			readTag();
+			if (peek(true) == '[') readPid();
 			expect(':');
 		}
 
+		if (filter != null && filter.usesAppname()) {
+			int app = 2 * SyslogEvent.APPNAME;
+
+			if (filter.drop(priority, buf, mark + index[app], index[app + 1])) {
+				skipMessage();
+				return DROPPED;
+			}
+		}
+
+		if (limiter != null && !limitEarly && !acquire(false)) {
+			skipMessage();
+			return DROPPED;
+		}
+
 		skipSpaces();
 
-		byte[] msg = readLine(128);
+		readLine();
 		
-		return createEvent(version, priority, cal, hostname, appname, procId, msgId, structuredData, msg);
+		return createEvent(version, priority, cal.getTimeInMillis(), host);
+	}
+
+	/**
+	 * The implementation of readRawEvent().
+	 */
+	private Event parseRawEvent(String host) throws IOException {
+		for (;;) {
+			Arrays.fill(index, -1);
+			sdIndexLength = 0;
+			mark = pos;
+
+			int priority = 0;
+			int c = read(false);
+
+			if (c == -1) return null;
+
+			if (c == '<') {
+				priority = readInt();
+				expect('>');
+			} else {
+				unread(c);
+			}
+
+			// There is no appname in raw mode.
+			if (filter != null && filter.drop(priority, null, 0, -1)) {
+				skipMessage();
+				continue;
+			}
+
+			if (limiter != null && !acquire(true)) {
+				skipMessage();
+				continue;
+			}
+
+			readLine();
+
+			int length = index[2 * SyslogEvent.BODY + 1];
+
+			// Drop the CR of CRLF framing.
+			if (length > 0 && buf[mark + index[2 * SyslogEvent.BODY] + length - 1] == '\r')
+				index[2 * SyslogEvent.BODY + 1] = --length;
+
+			if (length > 0 || c == '<')
+				return createEvent(SyslogEvent.RAW_VERSION, priority, Clock.unixTime(), host);
+		}
+	}
+
+	/**
+	 * Take a rate limiter token for the message being parsed.
+	 *
+	 * @return true if the message is within the limit.
+	 */
+	private boolean acquire(boolean raw) {
+		RateLimiter.Key key = limiter.getKey();
+
+		// Raw events take their host from the peer.
+		if (key == RateLimiter.Key.PEER || (raw && key == RateLimiter.Key.HOST))
+			return limiter.acquire(peer, 0, peer.length);
+
+		int field = 2 * (key == RateLimiter.Key.HOST ? SyslogEvent.HOST : SyslogEvent.APPNAME);
+
+		return limiter.acquire(buf, mark + index[field], index[field + 1]);
 	}
 
 	/**
 	 * Skip an entire line.
 	 *
-	 * The line is terminated by NL. EOF is silently ignored.
+	 * The line is terminated by NL. EOF is silently ignored. In whole
+	 * frame mode, the rest of the frame is skipped.
 	 *
 	 * Useful if a parsing failure has occurred and you want to skip the message.
 	 */
 	public void skipLine() throws IOException {
-		int c;
-		
-		do {
-			c = read(false);
-		} while (c != '\n' && c != -1);
+		if (wholeFrame) {
+			pos = limit;
+			return;
+		}
+
+		skipUntil(NL);
+		read(false);
+	}
+
+	/**
+	 * Skip the rest of a dropped message.
+	 *
+	 * Nothing of it is needed, so the mark is cleared first. Otherwise
+	 * fill() would keep the whole line, growing the buffer for it.
+	 */
+	private void skipMessage() throws IOException {
+		mark = -1;
+		skipLine();
 	}
 
 	/**
-	 * Create a Flume event from the given parameters.
+	 * Create a Flume event from the given parameters and the index.
 	 *
 	 * @param version the syslog version, 0 for RFC 3164
 	 * @param priority the syslog priority, according to RFC 5424
-	 * @param date the timestamp of the message. Note that timezone matters
-	 * @param hostname the hostname
-	 * @param appname the RFC 5424 appname
-	 * @param procId the RFC 5424 proc-id
-	 * @param msgId the RFC 5424 msg-id
-	 * @param structuredData the RFC 5424 structured-data
-	 * @param body the message body
-	 */
-	private Event createEvent(int version, int priority, Calendar date, String hostname, byte[] appname, byte[] procId, byte[] msgId, byte[] structuredData, byte[] body) {
-		Map<String, byte[]> fields = new HashMap<String, byte[]>();
-		byte[] facility = { (byte) (priority / 8) };
-		byte[] severity = { (byte) (priority % 8) };
-		byte[] versionBytes = { (byte) version };
-		
-		fields.put(SYSLOG_FACILITY, facility);
-		fields.put(SYSLOG_SEVERITY, severity);
-		fields.put(SYSLOG_VERSION, versionBytes);
-		if (appname != null) fields.put(SYSLOG_APPNAME, appname);
-		if (procId != null) fields.put(SYSLOG_PROC_ID, procId);
-		if (msgId != null) fields.put(SYSLOG_MSG_ID, msgId);
-		if (structuredData != null) fields.put(SYSLOG_STRUCTURED_DATA, structuredData);
+	 * @param timestamp the timestamp of the message, in ms since the epoch.
+	 * @param host the hostname, or null to use the HOST field.
+	 */
+	private Event createEvent(int version, int priority, long timestamp, String host) {
+		// The body is last, and the NL after it isn't needed.
+		int length = index[2 * SyslogEvent.BODY] + index[2 * SyslogEvent.BODY + 1];
+		SlabAllocator.Slice slice = (allocator == null ? null : allocator.allocate(buf, mark, length));
+		byte[] raw = null;
+
+		if (slice == null) {
+			raw = new byte[length];
+			System.arraycopy(buf, mark, raw, 0, length);
+		}
+
+		int[] sd = null;
+
+		if (sdIndexLength > 0) {
+			sd = new int[sdIndexLength];
+			System.arraycopy(sdIndex, 0, sd, 0, sdIndexLength);
+		}
 
-		return new EventImpl(
-			body,
-			date.getTimeInMillis(),
-			getEventPriorityBySyslog(priority),
-			0,
-			hostname,
-			fields);
+		SyslogEvent e = new SyslogEvent(
+			raw,
+			slice,
+			index.clone(),
+			sd,
+			sdParams,
+			charset,
+			host,
+			version,
+			priority,
+			timestamp,
+			getEventPriorityBySyslog(priority));
+
+		if (listener != null) e.setListener(listener);
+		if (peerTag != null) e.setPeer(peerTag);
+		if (extractor != null) e.setKeyValueExtractor(extractor);
+
+		return e;
 	}
 
 	/**
@@ -325,7 +757,7 @@ public class SyslogParser implements Closeable {
 	 *
 	 * This works like the mapping in flume.handlers.syslog.SyslogConsts.
 	 */
-	private Event.Priority getEventPriorityBySyslog(int priority) {
+	static Event.Priority getEventPriorityBySyslog(int priority) {
 		switch (priority % 8) {
 		case 0:
 		case 1:
@@ -470,31 +902,131 @@ public class SyslogParser implements Closeable {
 	 * @return the byte, or -1 on EOF.
 	 */
 	private int read(boolean checkEof) throws IOException {
-		if (pushBack != -1) {
-			int c = pushBack;
-			pushBack = -1;
-			return c;
+		if (pos == limit && !fill()) {
+			if (checkEof)
+				throw new EOFException("Unexpected end of syslog stream");
+
+			return -1;
 		}
-		
-		int c = in.read();
-		
-		if (checkEof && c == -1)
-			throw new EOFException("Unexpected end of syslog stream");
-		
-		return c;
+
+		return buf[pos++] & 0xFF;
 	}
 	
 	/**
 	 * Push back a character.
 	 *
-	 * Only a single character can be pushed back simultaneously.
+	 * Only the byte just read can be pushed back. Pushing back EOF does
+	 * nothing, since EOF didn't move us.
 	 */
 	private void unread(int c) {
-		assert c != -1 : "Trying to push back EOF";
-		assert pushBack == -1 : "Trying to push back two bytes";
-		pushBack = c;
+		if (c == -1) return;
+
+		assert pos > 0 : "Trying to push back past the buffer";
+		--pos;
 	}
-	
+
+	/**
+	 * Refill the empty buffer from the stream.
+	 *
+	 * The message being parsed is kept, and moved to the start of the
+	 * buffer. The buffer grows if the message doesn't fit.
+	 *
+	 * @return false on EOF.
+	 */
+	private boolean fill() throws IOException {
+		if (in == null) return false;
+
+		int keep = (mark >= 0 ? mark : pos);
+
+		if (keep > 0) {
+			System.arraycopy(buf, keep, buf, 0, limit - keep);
+			pos -= keep;
+			limit -= keep;
+			if (mark >= 0) mark = 0;
+		}
+
+		if (limit == buf.length) {
+			byte[] b = new byte[buf.length * 2];
+
+			System.arraycopy(buf, 0, b, 0, limit);
+			setBuffer(b);
+		}
+
+		int n = in.read(buf, limit, buf.length - limit);
+
+		if (n <= 0) return false;
+
+		limit += n;
+
+		return true;
+	}
+
+	/**
+	 * Read until a delimiter or EOF.
+	 *
+	 * The delimiter is not consumed. The bytes read are left in buf at
+	 * tokenOffset and tokenLength, which are only valid until the next read.
+	 *
+	 * @return true if a delimiter was found, false on EOF.
+	 */
+	private boolean scanToken(ByteScanner delimiters) throws IOException {
+		assert mark >= 0 : "Reading a token outside a message";
+
+		// Relative to mark, since fill() moves the data.
+		int start = pos - mark;
+		boolean found;
+
+		for (;;) {
+			int end = delimiters.indexIn(view, pos, limit);
+
+			if (end >= 0) {
+				pos = end;
+				found = true;
+				break;
+			}
+
+			pos = limit;
+
+			if (!fill()) {
+				found = false;
+				break;
+			}
+		}
+
+		tokenOffset = mark + start;
+		tokenLength = pos - tokenOffset;
+
+		return found;
+	}
+
+	/**
+	 * Record the last token as a field of the message.
+	 */
+	private void setField(int field) {
+		index[2 * field] = tokenOffset - mark;
+		index[2 * field + 1] = tokenLength;
+	}
+
+	/**
+	 * Read until a delimiter or EOF, discarding the input.
+	 *
+	 * The delimiter is not consumed.
+	 */
+	private void skipUntil(ByteScanner delimiters) throws IOException {
+		for (;;) {
+			int end = delimiters.indexIn(view, pos, limit);
+
+			if (end >= 0) {
+				pos = end;
+				return;
+			}
+
+			pos = limit;
+
+			if (!fill()) return;
+		}
+	}
+
 	/**
 	 * Read a positive integer and convert it from decimal text form.
 	 *
@@ -538,171 +1070,130 @@ public class SyslogParser implements Closeable {
 	 * The input is discarded.
 	 */
 	private void skipWord() throws IOException {
-		int c;
-		
-		do {
-			c = read(false);
-		} while (c != ' ' && c != -1);
-		
-		if (c != -1) unread(c);
-	}
-
-	/**
-	 * Read a word into the given output stream.
-	 *
-	 * Usually the output stream will be a ByteArrayOutputStream.
-	 */
-	private void readWord(OutputStream out) throws IOException {
-		int c;
-
-		while ((c = read(false)) != ' ' && c != -1)
-			out.write(c);
-
-		if (c != -1) unread(c);
+		skipUntil(SPACE);
 	}
 	
 	/**
-	 * Read a word (until next ASCII space or EOF) as a string.
+	 * Read a word (until next ASCII space or EOF) as a field.
 	 *
-	 * The encoding chosen while constructing the parser is used for decoding.
-	 *
-	 * @param sizeHint an guess on how large string will be, in bytes.
-	 * @return a valid, but perhaps empty, word.
+	 * The field is valid, but perhaps empty.
 	 */
-	private String readWordString(int sizeHint) throws IOException {
-		ByteArrayOutputStream out = new ByteArrayOutputStream(sizeHint);
-		readWord(out);
-		
-		return out.toString(charset.name());
+	private void readWord(int field) throws IOException {
+		scanToken(SPACE);
+		setField(field);
 	}
 
 	/**
-	 * Read a word (until next ASCII space or EOF) as a byte array.
+	 * Read a word (until next space or EOF) as a field.
 	 *
-	 * @param sizeHint an guess on how large string will be, in bytes.
-	 * @return a valid, but perhaps empty, word.
+	 * If the complete word is "-", the field is left absent.
 	 */
-	private byte[] readWord(int sizeHint) throws IOException {
-		ByteArrayOutputStream out = new ByteArrayOutputStream(sizeHint);
-		readWord(out);
+	private void readWordOrNil(int field) throws IOException {
+		scanToken(SPACE);
 
-		return out.toByteArray();
-	}
+		if (tokenLength == 1 && buf[tokenOffset] == '-')
+			return;
 
-	/**
-	 * Read a word (until next space or EOF) as a byte array.
-	 *
-	 * If the complete word is "-", return null.
-	 *
-	 * @param sizeHint an guess on how large string will be, in bytes.
-	 */
-	private byte[] readWordOrNil(int sizeHint) throws IOException {
-		byte[] ret = readWord(sizeHint);
-		
-		if (ret.length == 1 && ret[0] == '-')
-			return null;
-		
-		return ret;
+		setField(field);
 	}
 
 	/**
-	 * Read a line (until next ASCII NL or EOF) as a byte array.
+	 * Read a line (until next ASCII NL or EOF) as the body.
 	 *
-	 * @param sizeHint an guess on how large the line will be, in bytes.
+	 * The NL is consumed, but not part of the body. CRs are dropped by
+	 * SyslogEvent. In whole frame mode, the rest of the frame is the body.
 	 */
-	private byte[] readLine(int sizeHint) throws IOException {
-		ByteArrayOutputStream ret = new ByteArrayOutputStream(sizeHint);
-		int c;
-
-		while ((c = read(false)) != '\n' && c != -1) {
-			if (c != '\r')
-				ret.write(c);
+	private void readLine() throws IOException {
+		if (wholeFrame) {
+			int end = (limit > pos && buf[limit - 1] == '\n' ? limit - 1 : limit);
+
+			tokenOffset = pos;
+			tokenLength = end - pos;
+			setField(SyslogEvent.BODY);
+			pos = limit;
+			return;
 		}
 
-		return ret.toByteArray();
+		scanToken(NL);
+		setField(SyslogEvent.BODY);
+
+		read(false); // The NL, if any.
 	}
 
 	/**
-	 * Read a RFC 3164 tag.
+	 * Read a RFC 3164 tag as the appname.
 	 *
 	 * Tags end with left bracket, colon, ASCII CR, or ASCII NL.
 	 */
-	private byte[] readTag() throws IOException {
-		ByteArrayOutputStream ret = new ByteArrayOutputStream(16);
-		int c;
-
-		while ((c = read(true)) != ':' && c != '[' && c != '\r' && c != '\n')
-			ret.write(c);
-
-		unread(c);
+	private void readTag() throws IOException {
+		if (!scanToken(TAG_END))
+			throw new EOFException("Unexpected end of syslog stream");
 
-		return ret.toByteArray();
+		setField(SyslogEvent.APPNAME);
 	}
 
 	/**
-	 * Read a RFC 3164 pid.
+	 * Read a RFC 3164 pid as the proc-id.
 	 *
 	 * The format is "[1234]".
 	 */
-	private byte[] readPid() throws IOException {
-		ByteArrayOutputStream ret = new ByteArrayOutputStream(8);
-		int c;
-
+	private void readPid() throws IOException {
 		expect('[');
 
-		while ((c = read(true)) != ']' && c != '\r' && c != '\n')
-			ret.write(c);
+		if (!scanToken(PID_END))
+			throw new EOFException("Unexpected end of syslog stream");
+
+		setField(SyslogEvent.PROC_ID);
 
-		return ret.toByteArray();
+		read(true); // The terminator.
 	}
 
 	/**
 	 * Read RFC 5424 structured data.
 	 *
-	 * Just read the structured data, but don't create a map of it.
+	 * Just check the structured data and record where it is, and where each
+	 * parameter is, but don't create a map of it.
 	 */
-	private byte[] readStructuredData() throws IOException {
+	private void readStructuredData() throws IOException {
+		// Relative to mark, since reading may move the data.
+		int start = pos - mark;
 		int c = read(true);
 		
-		if (c == '-') return null;
-
-		ByteArrayOutputStream ret = new ByteArrayOutputStream(128);
+		if (c == '-') return;
 
 		if (c != '[') throw new IOException("Unexpected syslog character: " + (char) c);
 		
 		while (c == '[') {
-			ret.write(c);
-
 			// Read SD-ID
+			int idStart = pos - mark;
+
 			while ((c = read(true)) != ' ' && c != ']')
-				ret.write(c);
-			
-			ret.write(c);
+				;
+
+			int idLength = pos - mark - 1 - idStart;
 			
 			while (c == ' ') {
 				// Read PARAM-NAME
+				int nameStart = pos - mark;
+
 				while ((c = read(true)) != '=')
-					ret.write(c);
+					;
 
-				ret.write(c);
+				int nameLength = pos - mark - 1 - nameStart;
 
 				expect('"');
-				ret.write('"');
 
 				// Read PARAM-DATA
-				while ((c = read(true)) != '"') {
-					ret.write(c);
+				int valueStart = pos - mark;
 
-					if (c == '\\') {
-						c = read(true);
-						ret.write(c);
-					}
+				while ((c = read(true)) != '"') {
+					if (c == '\\')
+						read(true);
 				}
-				
-				ret.write(c);
 
+				addStructuredDataParam(idStart, idLength, nameStart, nameLength, valueStart, pos - mark - 1 - valueStart);
+				
 				c = read(true);
-				ret.write(c);
 			}
 			
 			if (c != ']') throw new IOException("Unexpected syslog character: " + (char) c);
@@ -712,6 +1203,26 @@ public class SyslogParser implements Closeable {
 		
 		unread(c);
 
-		return ret.toByteArray();
+		index[2 * SyslogEvent.STRUCTURED_DATA] = start;
+		index[2 * SyslogEvent.STRUCTURED_DATA + 1] = pos - mark - start;
+	}
+
+	/**
+	 * Add a parameter to the structured data index, growing it as needed.
+	 */
+	private void addStructuredDataParam(int idStart, int idLength, int nameStart, int nameLength, int valueStart, int valueLength) {
+		if (sdIndexLength + SyslogEvent.SD_PARAM_SIZE > sdIndex.length) {
+			int[] b = new int[sdIndex.length * 2];
+
+			System.arraycopy(sdIndex, 0, b, 0, sdIndexLength);
+			sdIndex = b;
+		}
+
+		sdIndex[sdIndexLength++] = idStart;
+		sdIndex[sdIndexLength++] = idLength;
+		sdIndex[sdIndexLength++] = nameStart;
+		sdIndex[sdIndexLength++] = nameLength;
+		sdIndex[sdIndexLength++] = valueStart;
+		sdIndex[sdIndexLength++] = valueLength;
 	}
 }
@@ -0,0 +1,413 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+import com.cloudera.flume.core.Event;
+
+
+/**
+ * A push-style Syslog parser for non-blocking I/O.
+ *
+ * SyslogParser pulls bytes from a blocking InputStream, so it can't stop
+ * half-way through a message when a read comes up short. This class is fed
+ * buffers of any size instead, and is an explicit state machine over the
+ * framing. Partial frames are kept between calls, and each complete frame
+ * is handed to a SyslogParser, so the events are identical.
+ *
+ * Two framings are supported, as described in RFC 6587:
+ *
+ *  * Non-transparent framing, where messages are terminated by ASCII NL.
+ *  * Octet counting, where messages are prefixed by their length in decimal
+ *    and an ASCII space. This is only enabled on request, since a message
+ *    without PRI could otherwise be mistaken for a length. The whole frame
+ *    is the message, so it may span lines.
+ *
+ * The framing is detected per message. Frames larger than the maximum frame
+ * size are rejected and skipped, so memory use is bounded.
+ *
+ * This class is not thread safe. Feed it from one thread at a time.
+ */
+public class SyslogPushParser {
+	final public static int DEFAULT_MAX_FRAME_SIZE = 1 << 16;
+
+	final private static ByteScanner NL = new ByteScanner((byte) '\n');
+
+	/**
+	 * Receives the output of the parser.
+	 */
+	public static interface Handler {
+		/**
+		 * Called for every successfully parsed message.
+		 */
+		public void event(Event e);
+
+		/**
+		 * Called for every message that couldn't be parsed or framed.
+		 */
+		public void rejected(IOException ex);
+	}
+
+	private enum State {
+		/// Between frames. Decides on the framing.
+		FRAME_START,
+		/// Reading a NL terminated frame.
+		LINE,
+		/// Reading the length of an octet counted frame.
+		OCTET_COUNT,
+		/// Reading the body of an octet counted frame.
+		OCTET_BODY,
+		/// Skipping a rejected NL terminated frame.
+		SKIP_LINE,
+		/// Skipping a rejected octet counted frame.
+		SKIP_OCTETS,
+	}
+
+	private Handler handler;
+	private boolean octetCounting;
+	private int maxFrameSize;
+	private SyslogParser parser;
+
+	private State state = State.FRAME_START;
+	/// The partial frame, if it spans feed() calls.
+	private byte[] frame = new byte[256];
+	private int frameLength = 0;
+	/// The octet count being read, or octets left of the frame.
+	private int octets = 0;
+
+	/**
+	 * Construct a new parser for NL terminated frames.
+	 *
+	 * Tags are parsed, and the encoding is assumed to be UTF-8.
+	 */
+	public SyslogPushParser(Handler handler) {
+		this(handler, true, "UTF-8", false, DEFAULT_MAX_FRAME_SIZE);
+	}
+
+	/**
+	 * Construct a new parser.
+	 *
+	 * @param handler the receiver of events and rejections.
+	 * @param parseTag true to parse the "tag[pid]:", false to leave it as
+	 *                 part of the message body.
+	 * @param encoding the encoding to use for various string conversions,
+	 *                 most notably the hostname.
+	 * @param octetCounting true to accept octet counted frames.
+	 * @param maxFrameSize the largest acceptable frame, in bytes.
+	 */
+	public SyslogPushParser(Handler handler, boolean parseTag, String encoding, boolean octetCounting, int maxFrameSize) {
+		this.handler = handler;
+		this.octetCounting = octetCounting;
+		this.maxFrameSize = maxFrameSize;
+		this.parser = new SyslogParser(parseTag, encoding);
+	}
+
+	/**
+	 * Make attributes of some structured data parameters.
+	 *
+	 * @see SyslogParser#setStructuredDataParams(Collection)
+	 */
+	public void setStructuredDataParams(Collection<String> params) {
+		parser.setStructuredDataParams(params);
+	}
+
+	/**
+	 * Drop messages matching a filter.
+	 *
+	 * @see SyslogParser#setFilter(SyslogFilter)
+	 */
+	public void setFilter(SyslogFilter filter) {
+		parser.setFilter(filter);
+	}
+
+	/**
+	 * Drop messages from senders exceeding a rate limit.
+	 *
+	 * @see SyslogParser#setRateLimiter(RateLimiter)
+	 */
+	public void setRateLimiter(RateLimiter limiter) {
+		parser.setRateLimiter(limiter);
+	}
+
+	/**
+	 * Set the sender of the following messages.
+	 *
+	 * @see SyslogParser#setPeer(byte[])
+	 */
+	public void setPeer(byte[] address) {
+		parser.setPeer(address);
+	}
+
+	/**
+	 * Make attributes of "key=value" pairs in the body.
+	 *
+	 * @see SyslogParser#setKeyValueExtractor(KeyValueExtractor)
+	 */
+	public void setKeyValueExtractor(KeyValueExtractor extractor) {
+		parser.setKeyValueExtractor(extractor);
+	}
+
+	/**
+	 * Tag events with their sender.
+	 *
+	 * @see SyslogParser#setPeerTag(SyslogEvent.Peer)
+	 */
+	void setPeerTag(SyslogEvent.Peer peer) {
+		parser.setPeerTag(peer);
+	}
+
+	/**
+	 * Tag events with the listener they arrived on.
+	 *
+	 * @see SyslogParser#setListener(String)
+	 */
+	public void setListener(String name) {
+		parser.setListener(name);
+	}
+
+	/**
+	 * Keep the messages of events off-heap.
+	 *
+	 * @see SyslogParser#setSlabAllocator(SlabAllocator)
+	 */
+	public void setSlabAllocator(SlabAllocator allocator) {
+		parser.setSlabAllocator(allocator);
+	}
+
+	/**
+	 * Parse as much as possible of the given buffer.
+	 *
+	 * All remaining bytes are consumed. Any complete messages are passed
+	 * to the handler before this returns.
+	 */
+	public void feed(ByteBuffer in) {
+		while (in.hasRemaining()) {
+			switch (state) {
+			case FRAME_START:
+				int c = in.get(in.position());
+
+				if (octetCounting && c >= '0' && c <= '9') {
+					octets = 0;
+					state = State.OCTET_COUNT;
+				} else {
+					state = State.LINE;
+				}
+				break;
+
+			case LINE:
+				feedLine(in);
+				break;
+
+			case OCTET_COUNT:
+				feedOctetCount(in);
+				break;
+
+			case OCTET_BODY:
+				feedOctetBody(in);
+				break;
+
+			case SKIP_LINE:
+				int nl = indexOf(in, NL);
+
+				if (nl < 0) {
+					in.position(in.limit());
+				} else {
+					in.position(nl + 1);
+					state = State.FRAME_START;
+				}
+				break;
+
+			case SKIP_OCTETS:
+				int n = Math.min(octets, in.remaining());
+
+				in.position(in.position() + n);
+				octets -= n;
+
+				if (octets == 0) state = State.FRAME_START;
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Signal the end of the stream.
+	 *
+	 * A partial NL terminated frame is parsed, like SyslogParser does at
+	 * EOF. A partial octet counted frame is rejected. The parser can be
+	 * reused for a new stream afterwards.
+	 */
+	public void finish() {
+		switch (state) {
+		case LINE:
+			parseFrame(frame, 0, frameLength, false);
+			break;
+
+		case OCTET_COUNT:
+		case OCTET_BODY:
+			handler.rejected(new EOFException("Unexpected end of syslog stream"));
+			break;
+
+		default:
+			break;
+		}
+
+		frameLength = 0;
+		state = State.FRAME_START;
+	}
+
+	/**
+	 * Consume bytes of a NL terminated frame.
+	 */
+	private void feedLine(ByteBuffer in) {
+		int nl = indexOf(in, NL);
+
+		if (nl < 0) {
+			append(in, in.remaining());
+
+			if (frameLength > maxFrameSize)
+				rejectFrame("Syslog line too long", State.SKIP_LINE);
+
+			return;
+		}
+
+		if (frameLength + (nl - in.position()) > maxFrameSize) {
+			rejectFrame("Syslog line too long", State.FRAME_START);
+			in.position(nl + 1);
+			return;
+		}
+
+		if (frameLength == 0 && in.hasArray()) {
+			// The whole frame is in the buffer. Parse it in place.
+			parseFrame(in.array(), in.arrayOffset() + in.position(), nl - in.position(), false);
+			in.position(nl + 1);
+		} else {
+			append(in, nl - in.position());
+			in.get(); // The NL.
+			parseFrame(frame, 0, frameLength, false);
+			frameLength = 0;
+		}
+
+		state = State.FRAME_START;
+	}
+
+	/**
+	 * Consume bytes of an octet count.
+	 */
+	private void feedOctetCount(ByteBuffer in) {
+		while (in.hasRemaining()) {
+			int c = in.get();
+
+			if (c >= '0' && c <= '9') {
+				octets = octets * 10 + (c - '0');
+
+				if (octets > maxFrameSize) {
+					// We don't know where it ends.
+					rejectFrame("Syslog frame too large", State.SKIP_LINE);
+					return;
+				}
+			} else if (c == ' ') {
+				state = (octets > 0 ? State.OCTET_BODY : State.FRAME_START);
+				return;
+			} else {
+				rejectFrame("Unexpected syslog character in octet count: " + (char) c, State.SKIP_LINE);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Consume bytes of an octet counted frame.
+	 */
+	private void feedOctetBody(ByteBuffer in) {
+		if (frameLength == 0 && in.hasArray() && in.remaining() >= octets) {
+			// The whole frame is in the buffer. Parse it in place.
+			parseFrame(in.array(), in.arrayOffset() + in.position(), octets, true);
+			in.position(in.position() + octets);
+		} else {
+			int n = Math.min(octets, in.remaining());
+
+			append(in, n);
+			octets -= n;
+
+			if (octets > 0) return;
+
+			parseFrame(frame, 0, frameLength, true);
+			frameLength = 0;
+		}
+
+		state = State.FRAME_START;
+	}
+
+	/**
+	 * Reject the current frame and skip the rest of it.
+	 */
+	private void rejectFrame(String message, State skipState) {
+		handler.rejected(new IOException(message));
+		frameLength = 0;
+		state = skipState;
+	}
+
+	/**
+	 * Parse a complete frame and pass on the result.
+	 *
+	 * Empty frames, like blank lines, are ignored.
+	 *
+	 * @param octetCounted true if the frame is octet counted. The whole
+	 *                     frame is then the message, NLs included.
+	 */
+	private void parseFrame(byte[] buf, int offset, int length, boolean octetCounted) {
+		if (length == 0 || (length == 1 && buf[offset] == '\r'))
+			return;
+
+		parser.reset(buf, offset, length, octetCounted);
+
+		try {
+			Event e = parser.readEvent();
+
+			if (e != null) handler.event(e);
+		} catch (IOException ex) {
+			handler.rejected(ex);
+		}
+	}
+
+	/**
+	 * Move bytes from the buffer to the partial frame, growing it as needed.
+	 */
+	private void append(ByteBuffer in, int n) {
+		if (frameLength + n > frame.length) {
+			byte[] newFrame = new byte[Math.max(frame.length * 2, frameLength + n)];
+
+			System.arraycopy(frame, 0, newFrame, 0, frameLength);
+			frame = newFrame;
+		}
+
+		in.get(frame, frameLength, n);
+		frameLength += n;
+	}
+
+	/**
+	 * Find a delimiter in the remaining part of a buffer.
+	 *
+	 * @return the absolute index, or -1 if not found.
+	 */
+	private static int indexOf(ByteBuffer in, ByteScanner b) {
+		return b.indexIn(in, in.position(), in.limit());
+	}
+}
@@ -15,10 +15,12 @@
  */
 package com.spotify.flume.syslog2;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.charset.Charset;
+import java.util.Collection;
 
 import com.cloudera.flume.core.Event;
 
@@ -27,9 +29,61 @@ import com.cloudera.flume.core.Event;
  * A Flume event source backed by a streaming socket and a syslog parser.
  */
 public class SyslogSocketSource extends ServerSocketSource {
+	/// Enough to ride out a reconnect storm from a few hundred relays.
+	final public static int BACKLOG = 128;
+
+	private SyslogEvent.StructuredDataParams sdParams;
+	private boolean raw = false;
+	private boolean hostless = false;
+	/// The host of hostless messages, looked up by open().
+	private String localHost;
+
 	public SyslogSocketSource(SocketAddress addr) {
-		// 1 in backlog. We expect at most one connection anyway.
-		super(addr, 1);
+		super(addr, BACKLOG);
+	}
+
+	/**
+	 * Make attributes of some structured data parameters.
+	 *
+	 * Call before open().
+	 *
+	 * @see SyslogParser#setStructuredDataParams(Collection)
+	 */
+	public void setStructuredDataParams(Collection<String> params) {
+		if (params == null || params.isEmpty())
+			sdParams = null;
+		else
+			sdParams = new SyslogEvent.StructuredDataParams(params, Charset.forName("UTF-8"));
+	}
+
+	/**
+	 * Only parse the priority, and use the rest of the line as is.
+	 *
+	 * The timestamp is the time of receipt, and the host is the peer
+	 * address. Call before open().
+	 *
+	 * @see SyslogParser#readRawEvent(String)
+	 */
+	public void setRaw(boolean raw) {
+		this.raw = raw;
+	}
+
+	/**
+	 * Parse RFC 3164 messages without a hostname, as local senders write
+	 * them.
+	 *
+	 * Their host is the name of the local host. Call before open().
+	 *
+	 * @see SyslogParser#setLocalHost(String)
+	 */
+	public void setHostless(boolean hostless) {
+		this.hostless = hostless;
+	}
+
+	@Override
+	public void open() throws IOException {
+		localHost = (hostless ? InetAddress.getLocalHost().getHostName() : null);
+		super.open();
 	}
 	
 	@Override
@@ -40,10 +94,22 @@ public class SyslogSocketSource extends ServerSocketSource {
 	private class SyslogSocketSourceImpl implements SocketSource {
 		private Socket socket;
 		private SyslogParser parser;
+		/// The host of raw events.
+		private String peerHost;
 		
 		public SyslogSocketSourceImpl(Socket socket) throws IOException {
 			this.socket = socket;
-			parser = new SyslogParser(new BufferedInputStream(socket.getInputStream()));
+			this.peerHost = socket.getInetAddress().getHostAddress();
+			parser = new SyslogParser(socket.getInputStream());
+			parser.setStructuredDataParams(sdParams);
+			parser.setFilter(getFilter());
+			parser.setRateLimiter(getRateLimiter());
+			parser.setSlabAllocator(getSlabAllocator());
+			parser.setKeyValueExtractor(getKeyValueExtractor());
+			parser.setListener(getListener());
+			parser.setPeer(socket.getInetAddress().getAddress());
+			parser.setPeerTag(createPeer(socket.getInetAddress()));
+			parser.setLocalHost(localHost);
 		}
 
 		@Override
@@ -54,7 +120,7 @@ public class SyslogSocketSource extends ServerSocketSource {
 		
 		@Override
 		public Event next() throws IOException, InterruptedException {
-			return parser.readEvent();
+			return (raw ? parser.readRawEvent(peerHost) : parser.readEvent());
 		}
 
 		@Override
@@ -15,8 +15,12 @@
  */
 package com.spotify.flume.syslog2;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.List;
 
 import com.cloudera.flume.conf.Context;
@@ -37,43 +41,527 @@ import com.cloudera.util.Pair;
  *  * syslog2(tcp, localhost)
  *  * syslog2(tcp, localhost, 4711)
  *  * syslog2(udp, localhost, 4711, 16384)
+ *  * syslog2(tls, localhost, 6514, keyStore="/etc/flume/syslog.jks")
+ *  * syslog2(unix, /run/flume/syslog.sock)
+ *  * syslog2(file, /var/log/archive/messages.gz)
+ *  * syslog2(multi, udp:0.0.0.0:514, tcp:0.0.0.0:514, tls:0.0.0.0:6514)
  *
- * The host defaults to "localhost" and the port defaults to 514. The
- * buffer size argument (last) is only used for UDP sockets and defines
- * the size of the DatagramPacket buffer.
+ * The host defaults to "localhost" and the port defaults to 514, or 6514
+ * for TLS. The buffer size argument (last) is only used for UDP sockets
+ * and defines the size of the DatagramPacket buffer. Unix domain stream
+ * sockets take a path instead, and need JDK 16 and the "unix" build
+ * profile. See SyslogUnixSocketSource. Files are replayed once, plain or
+ * gzipped. See SyslogFileSource.
+ *
+ * Multiple listeners, given as "protocol", "protocol:host:port" or
+ * "unix:path", share one queue, deduplicator, batcher and metrics. Their
+ * events are tagged with the listener as given. See SyslogMultiSource.
+ *
+ * Keyword arguments:
+ *
+ *  * sdParams="SD-ID.PARAM-NAME,..." makes attributes of the listed RFC 5424
+ *    structured data parameters. See SyslogParser#setStructuredDataParams.
+ *  * format="raw" only parses the priority, and passes the rest of the line
+ *    through as the body. The default is format="syslog". See
+ *    SyslogParser#readRawEvent.
+ *  * filter="RULE;..." drops messages matching any of the rules in the
+ *    parser. See SyslogFilter.
+ *  * rateLimit="N" drops messages from senders exceeding N messages per
+ *    second, allowing bursts of rateLimitBurst="N" messages (the rate by
+ *    default). rateLimitBy="peer|host|appname" picks what a sender is, and
+ *    defaults to the peer address. See RateLimiter.
+ *  * multiLine="RULE;..." joins continuation lines, whose body starts with
+ *    one of the prefixes (or a space or tab for "indent"), into the
+ *    previous message from the same host, appname and process id.
+ *    multiLine="java" is short for Java stack traces. A message is closed
+ *    after multiLineTimeout="MS" milliseconds (1000 by default) without
+ *    new lines, or at multiLineMaxLines="N" lines (500 by default) or
+ *    multiLineMaxBytes="N" bytes (32 kB by default). See
+ *    MultiLineAssembler.
+ *  * dedupWindow="MS" collapses messages repeated within MS milliseconds
+ *    into a summary event. See Deduplicator.
+ *  * batchSize="N" packs up to N messages into each event. Batches are
+ *    also closed at batchBytes="N" bytes (32 kB by default) or after
+ *    batchDelay="MS" milliseconds (1000 by default), and are per
+ *    batchBy="none|facility|appname|host" (none by default). See Batcher
+ *    and BatchDecoder.
+ *  * spillDir="PATH" spills events to memory mapped files in PATH when
+ *    Flume falls behind, instead of blocking TCP connections or dropping
+ *    UDP packets. Spilling starts at spillWatermark="N" events in memory,
+ *    and uses up to spillMaxSegments="N" files of spillSegmentSize="N"
+ *    bytes. See SpillQueue.
+ *  * keyStore="PATH" is the key store holding the server certificate, and
+ *    is required for TLS. It is opened with keyStorePassword="PASSWORD"
+ *    (empty by default) and is of keyStoreType="TYPE" (JKS by default).
+ *    Up to tlsSessionCacheSize="N" sessions are kept for resumption, for
+ *    tlsSessionTimeout="S" seconds. See SyslogTlsSocketSource.
+ *  * fileThreads="N" parses files on N threads (one per processor by
+ *    default), fileChunkSize="N" bytes at a time (1 MB by default).
+ *    fileOrder="relaxed" returns each chunk as soon as it has been parsed,
+ *    instead of in file order as with fileOrder="strict".
+ *  * kvFields="APPNAME:KEY,...;..." makes attributes of "key=value" pairs
+ *    in message bodies, per appname. See KeyValueExtractor.
+ *  * peer="address" tags events with the address of the sender, and
+ *    peer="name" with its reverse DNS name as well, once resolved. Up to
+ *    peerNameCacheSize="N" names (10000 by default) are cached for
+ *    peerNameTtl="S" seconds (300 by default). See PeerResolver.
+ *  * hostless="true" parses RFC 3164 messages without a hostname, like the
+ *    ones the syslog(3) of glibc writes to /dev/log, and uses the name of
+ *    the local host instead. Only for tcp and unix sockets.
+ *  * offHeapSlabs="N" keeps the messages of queued events in up to N
+ *    off-heap slabs of offHeapSlabSize="N" bytes (1 MB by default) until
+ *    Flume reads them. See SlabAllocator.
  */
 public class SyslogSourceBuilder extends SourceBuilder {
 	final public static String NAME = "syslog2";
-	final public static String USAGE = NAME + "(tcp|udp[, host[, port[, bufferSize]]])";
+	final public static String USAGE = NAME + "(tcp|udp|tls[, host[, port[, bufferSize]]]|unix|file, path|multi, listener[, listener...][, sdParams=\"id.name,...\"][, format=\"syslog|raw\"][, filter=\"rule;...\"][, rateLimit=\"n\"[, rateLimitBurst=\"n\"][, rateLimitBy=\"peer|host|appname\"]][, multiLine=\"java|rule;...\"[, multiLineTimeout=\"ms\"][, multiLineMaxLines=\"n\"][, multiLineMaxBytes=\"n\"]][, dedupWindow=\"ms\"][, batchSize=\"n\"[, batchBytes=\"n\"][, batchDelay=\"ms\"][, batchBy=\"none|facility|appname|host\"]][, spillDir=\"path\"[, spillWatermark=\"n\"][, spillSegmentSize=\"n\"][, spillMaxSegments=\"n\"]][, offHeapSlabs=\"n\"[, offHeapSlabSize=\"n\"]][, kvFields=\"appname:key,...;...\"][, peer=\"address|name\"[, peerNameCacheSize=\"n\"][, peerNameTtl=\"s\"]][, hostless=\"true\"][, keyStore=\"path\"[, keyStorePassword=\"password\"][, keyStoreType=\"type\"][, tlsSessionCacheSize=\"n\"][, tlsSessionTimeout=\"s\"]][, fileThreads=\"n\"][, fileChunkSize=\"n\"][, fileOrder=\"strict|relaxed\"])";
+
+	final public static String KW_SD_PARAMS = "sdParams";
+	final public static String KW_FORMAT = "format";
+	final public static String KW_FILTER = "filter";
+	final public static String KW_RATE_LIMIT = "rateLimit";
+	final public static String KW_RATE_LIMIT_BURST = "rateLimitBurst";
+	final public static String KW_RATE_LIMIT_BY = "rateLimitBy";
+	final public static String KW_MULTI_LINE = "multiLine";
+	final public static String KW_MULTI_LINE_TIMEOUT = "multiLineTimeout";
+	final public static String KW_MULTI_LINE_MAX_LINES = "multiLineMaxLines";
+	final public static String KW_MULTI_LINE_MAX_BYTES = "multiLineMaxBytes";
+	final public static String KW_DEDUP_WINDOW = "dedupWindow";
+	final public static String KW_BATCH_SIZE = "batchSize";
+	final public static String KW_BATCH_BYTES = "batchBytes";
+	final public static String KW_BATCH_DELAY = "batchDelay";
+	final public static String KW_BATCH_BY = "batchBy";
+	final public static String KW_SPILL_DIR = "spillDir";
+	final public static String KW_SPILL_WATERMARK = "spillWatermark";
+	final public static String KW_SPILL_SEGMENT_SIZE = "spillSegmentSize";
+	final public static String KW_SPILL_MAX_SEGMENTS = "spillMaxSegments";
+	final public static String KW_OFF_HEAP_SLABS = "offHeapSlabs";
+	final public static String KW_OFF_HEAP_SLAB_SIZE = "offHeapSlabSize";
+	final public static String KW_KEY_STORE = "keyStore";
+	final public static String KW_KEY_STORE_PASSWORD = "keyStorePassword";
+	final public static String KW_KEY_STORE_TYPE = "keyStoreType";
+	final public static String KW_TLS_SESSION_CACHE_SIZE = "tlsSessionCacheSize";
+	final public static String KW_TLS_SESSION_TIMEOUT = "tlsSessionTimeout";
+	final public static String KW_FILE_THREADS = "fileThreads";
+	final public static String KW_FILE_CHUNK_SIZE = "fileChunkSize";
+	final public static String KW_FILE_ORDER = "fileOrder";
+	final public static String KW_KV_FIELDS = "kvFields";
+	final public static String KW_PEER = "peer";
+	final public static String KW_PEER_NAME_CACHE_SIZE = "peerNameCacheSize";
+	final public static String KW_PEER_NAME_TTL = "peerNameTtl";
+	final public static String KW_HOSTLESS = "hostless";
+
+	/// Flume's default flume.event.max.size.bytes. Larger events are
+	/// rejected, so batches and joined lines must stay below it.
+	final public static int MAX_EVENT_SIZE = 1 << 15;
+
+	final public static int DEFAULT_BATCH_BYTES = MAX_EVENT_SIZE;
+	final public static long DEFAULT_BATCH_DELAY = 1000;
+	final public static long DEFAULT_MULTI_LINE_TIMEOUT = 1000;
+	final public static int DEFAULT_MULTI_LINE_MAX_LINES = 500;
+	final public static int DEFAULT_MULTI_LINE_MAX_BYTES = MAX_EVENT_SIZE;
+
+	/// The UDP packet buffer.
+	final public static int DEFAULT_BUFFER_SIZE = 1 << 16;
 
 	final public static int SYSLOG_PORT = 514;
+	/// As assigned in RFC 5425.
+	final public static int SYSLOG_TLS_PORT = 6514;
 
 	@Override
 	public EventSource build(Context ctx, String... argv) {
 		if (argv.length < 1)
 			throw new IllegalArgumentException("usage: " + USAGE);
 		
-		// So far we only do InetSocketAddress:
+		// Everything but unix and file is an InetSocketAddress. For those,
+		// the host is the path.
 		String host = "localhost";
-		int port = SYSLOG_PORT;
-		int bufferSize = 1 << 16;
+		int port = ("tls".equals(argv[0]) ? SYSLOG_TLS_PORT : SYSLOG_PORT);
+		int bufferSize = DEFAULT_BUFFER_SIZE;
 		
-		if (argv.length >= 2)
+		// The arguments of multi are listeners.
+		boolean multi = "multi".equals(argv[0]);
+
+		if (argv.length >= 2 && !multi)
 			host = argv[1];
 
-		if (argv.length >= 3)
+		if (argv.length >= 3 && !multi)
 			port = Integer.parseInt(argv[2]);
 		
-		if (argv.length >= 4)
+		if (argv.length >= 4 && !multi)
 			bufferSize = Integer.parseInt(argv[3]);
 		
-		SocketAddress addr = new InetSocketAddress(host, port);
-		
-		if ("tcp".equals(argv[0]))
-			return new SyslogSocketSource(addr);
-		else if ("udp".equals(argv[0]))
-			return new SyslogDatagramSocketSource(addr, bufferSize);
-		else
+		List<String> sdParams = getList(ctx, KW_SD_PARAMS);
+		String format = (ctx == null ? null : ctx.getValue(KW_FORMAT));
+		boolean raw = "raw".equals(format);
+		boolean hostless = (ctx != null && "true".equals(ctx.getValue(KW_HOSTLESS)));
+
+		if (format != null && !raw && !"syslog".equals(format))
+			throw new IllegalArgumentException("unknown format: " + format);
+
+		boolean tcp = "tcp".equals(argv[0]);
+		boolean udp = "udp".equals(argv[0]);
+		boolean tls = "tls".equals(argv[0]);
+		boolean unix = "unix".equals(argv[0]);
+		boolean file = "file".equals(argv[0]);
+
+		// Check everything we can before creating spill files and threads.
+		if (!tcp && !udp && !tls && !unix && !file && !multi)
 			throw new IllegalArgumentException("unknown protocol: " + argv[0]);
+
+		if ((unix || file) && argv.length < 2)
+			throw new IllegalArgumentException(argv[0] + " requires a path");
+
+		if (raw && tls)
+			throw new IllegalArgumentException("raw format is not supported over tls");
+
+		if (raw && file)
+			throw new IllegalArgumentException("raw format is not supported for files");
+
+		if (file && ctx != null && ctx.getValue(KW_SPILL_DIR) != null)
+			throw new IllegalArgumentException("spilling is not supported for files");
+
+		String peer = (ctx == null ? null : ctx.getValue(KW_PEER));
+
+		if (peer != null && !"address".equals(peer) && !"name".equals(peer))
+			throw new IllegalArgumentException("unknown peer attributes: " + peer);
+
+		if (file && peer != null)
+			throw new IllegalArgumentException("peer attributes are not supported for files");
+
+		if (hostless && !tcp && !unix && !multi)
+			throw new IllegalArgumentException("hostless is only supported for tcp and unix");
+
+		SocketAddress addr = (multi || unix || file ? null : new InetSocketAddress(host, port));
+		BaseSource source;
+
+		if (multi) {
+			SyslogMultiSource m = new SyslogMultiSource();
+
+			for (int i = 1; i < argv.length; ++i)
+				m.addListener(argv[i], createListener(argv[i], sdParams, raw, hostless, ctx));
+
+			if (m.getNumListeners() == 0)
+				throw new IllegalArgumentException("multi requires a listener");
+
+			source = m;
+		} else if (tcp || unix) {
+			SyslogSocketSource s = (unix ? new SyslogUnixSocketSource(host) : new SyslogSocketSource(addr));
+
+			s.setStructuredDataParams(sdParams);
+			s.setRaw(raw);
+			s.setHostless(hostless);
+			source = s;
+		} else if (udp) {
+			SyslogDatagramSocketSource s = new SyslogDatagramSocketSource(addr, bufferSize);
+
+			s.setStructuredDataParams(sdParams);
+			s.setRaw(raw);
+			source = s;
+		} else if (tls) {
+			SyslogTlsSocketSource s = createTlsSource(addr, ctx);
+
+			s.setStructuredDataParams(sdParams);
+			source = s;
+		} else {
+			SyslogFileSource s = createFileSource(new File(host), ctx);
+
+			s.setStructuredDataParams(sdParams);
+			source = s;
+		}
+
+		configure(source, ctx, peer);
+
+		return source;
+	}
+
+	/**
+	 * Set up the processing shared by all sources from the keyword
+	 * arguments.
+	 *
+	 * The spill queue and peer resolver create files and threads, so they
+	 * come last, once everything else has been accepted.
+	 *
+	 * @param peer the validated peer keyword, or null.
+	 */
+	private static void configure(BaseSource source, Context ctx, String peer) {
+		String filterSpec = (ctx == null ? null : ctx.getValue(KW_FILTER));
+		String kvSpec = (ctx == null ? null : ctx.getValue(KW_KV_FIELDS));
+		String dedupWindow = (ctx == null ? null : ctx.getValue(KW_DEDUP_WINDOW));
+
+		source.setFilter(filterSpec == null ? null : SyslogFilter.parse(filterSpec));
+		source.setKeyValueExtractor(kvSpec == null ? null : KeyValueExtractor.parse(kvSpec));
+		source.setRateLimiter(createRateLimiter(ctx));
+		source.setMultiLineAssembler(createMultiLineAssembler(ctx));
+		source.setDeduplicator(dedupWindow == null ? null : new Deduplicator(Long.parseLong(dedupWindow), Deduplicator.DEFAULT_MAX_ENTRIES));
+		source.setBatcher(createBatcher(ctx));
+		source.setSlabAllocator(createSlabAllocator(ctx));
+		source.setPeerAttributes(peer != null);
+		source.setSpillQueue(createSpillQueue(ctx));
+		source.setPeerResolver("name".equals(peer) ? createPeerResolver(ctx) : null);
+	}
+
+	/**
+	 * Create a listener of a SyslogMultiSource.
+	 *
+	 * Settings shared with the multi source are left to it.
+	 *
+	 * @param spec "protocol", "protocol:host:port" or "unix:path".
+	 */
+	private static BaseSource createListener(String spec, List<String> sdParams, boolean raw, boolean hostless, Context ctx) {
+		int colon = spec.indexOf(':');
+		String protocol = (colon < 0 ? spec : spec.substring(0, colon));
+
+		if ("unix".equals(protocol)) {
+			if (colon < 0)
+				throw new IllegalArgumentException("unix requires a path: " + spec);
+
+			SyslogSocketSource source = new SyslogUnixSocketSource(spec.substring(colon + 1));
+
+			source.setStructuredDataParams(sdParams);
+			source.setRaw(raw);
+			source.setHostless(hostless);
+
+			return source;
+		}
+
+		String host = "localhost";
+		int port = ("tls".equals(protocol) ? SYSLOG_TLS_PORT : SYSLOG_PORT);
+
+		if (colon >= 0) {
+			// The last colon, since IPv6 addresses have them too.
+			int portColon = spec.lastIndexOf(':');
+
+			if (portColon == colon)
+				throw new IllegalArgumentException("expected protocol:host:port: " + spec);
+
+			host = spec.substring(colon + 1, portColon);
+			port = Integer.parseInt(spec.substring(portColon + 1));
+		}
+
+		SocketAddress addr = new InetSocketAddress(host, port);
+
+		if ("tcp".equals(protocol)) {
+			SyslogSocketSource source = new SyslogSocketSource(addr);
+
+			source.setStructuredDataParams(sdParams);
+			source.setRaw(raw);
+			source.setHostless(hostless);
+
+			return source;
+		} else if ("udp".equals(protocol)) {
+			SyslogDatagramSocketSource source = new SyslogDatagramSocketSource(addr, DEFAULT_BUFFER_SIZE);
+
+			source.setStructuredDataParams(sdParams);
+			source.setRaw(raw);
+
+			return source;
+		} else if ("tls".equals(protocol)) {
+			if (raw)
+				throw new IllegalArgumentException("raw format is not supported over tls");
+
+			SyslogTlsSocketSource source = createTlsSource(addr, ctx);
+
+			source.setStructuredDataParams(sdParams);
+
+			return source;
+		} else {
+			throw new IllegalArgumentException("unknown listener protocol: " + spec);
+		}
+	}
+
+	/**
+	 * Create a rate limiter from the keyword arguments.
+	 *
+	 * @return the limiter, or null if there is no rate limit.
+	 */
+	private static RateLimiter createRateLimiter(Context ctx) {
+		String rate = (ctx == null ? null : ctx.getValue(KW_RATE_LIMIT));
+
+		if (rate == null) return null;
+
+		double r = Double.parseDouble(rate);
+		String burst = ctx.getValue(KW_RATE_LIMIT_BURST);
+		String by = ctx.getValue(KW_RATE_LIMIT_BY);
+
+		return new RateLimiter(
+			by == null ? RateLimiter.Key.PEER : RateLimiter.parseKey(by),
+			r,
+			burst == null ? (int) Math.max(1, Math.ceil(r)) : Integer.parseInt(burst),
+			RateLimiter.DEFAULT_MAX_KEYS);
+	}
+
+	/**
+	 * Create a multi-line assembler from the keyword arguments.
+	 *
+	 * @return the assembler, or null if lines aren't joined.
+	 */
+	private static MultiLineAssembler createMultiLineAssembler(Context ctx) {
+		String rules = (ctx == null ? null : ctx.getValue(KW_MULTI_LINE));
+
+		if (rules == null) return null;
+
+		String timeout = ctx.getValue(KW_MULTI_LINE_TIMEOUT);
+		String maxLines = ctx.getValue(KW_MULTI_LINE_MAX_LINES);
+		String maxBytes = ctx.getValue(KW_MULTI_LINE_MAX_BYTES);
+
+		return new MultiLineAssembler(
+			"java".equals(rules) ? MultiLineAssembler.JAVA : rules,
+			timeout == null ? DEFAULT_MULTI_LINE_TIMEOUT : Long.parseLong(timeout),
+			maxLines == null ? DEFAULT_MULTI_LINE_MAX_LINES : Integer.parseInt(maxLines),
+			maxBytes == null ? DEFAULT_MULTI_LINE_MAX_BYTES : Integer.parseInt(maxBytes),
+			MultiLineAssembler.DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * Create a batcher from the keyword arguments.
+	 *
+	 * @return the batcher, or null if there is no batching.
+	 */
+	private static Batcher createBatcher(Context ctx) {
+		String size = (ctx == null ? null : ctx.getValue(KW_BATCH_SIZE));
+
+		if (size == null) return null;
+
+		String bytes = ctx.getValue(KW_BATCH_BYTES);
+		String delay = ctx.getValue(KW_BATCH_DELAY);
+		String by = ctx.getValue(KW_BATCH_BY);
+
+		return new Batcher(
+			by == null ? Batcher.Key.NONE : Batcher.parseKey(by),
+			Integer.parseInt(size),
+			bytes == null ? DEFAULT_BATCH_BYTES : Integer.parseInt(bytes),
+			delay == null ? DEFAULT_BATCH_DELAY : Long.parseLong(delay),
+			Batcher.DEFAULT_MAX_BATCHES);
+	}
+
+	/**
+	 * Create a spill queue from the keyword arguments.
+	 *
+	 * @return the queue, or null if there is no spilling.
+	 */
+	private static SpillQueue createSpillQueue(Context ctx) {
+		String dir = (ctx == null ? null : ctx.getValue(KW_SPILL_DIR));
+
+		if (dir == null) return null;
+
+		String watermark = ctx.getValue(KW_SPILL_WATERMARK);
+		String segmentSize = ctx.getValue(KW_SPILL_SEGMENT_SIZE);
+		String maxSegments = ctx.getValue(KW_SPILL_MAX_SEGMENTS);
+
+		try {
+			return new SpillQueue(
+				new File(dir),
+				watermark == null ? SpillQueue.DEFAULT_WATERMARK : Integer.parseInt(watermark),
+				segmentSize == null ? SpillQueue.DEFAULT_SEGMENT_SIZE : Integer.parseInt(segmentSize),
+				maxSegments == null ? SpillQueue.DEFAULT_MAX_SEGMENTS : Integer.parseInt(maxSegments));
+		} catch (IOException ex) {
+			throw new IllegalArgumentException("bad spill directory: " + dir, ex);
+		}
+	}
+
+	/**
+	 * Create a TLS source from the keyword arguments.
+	 */
+	private static SyslogTlsSocketSource createTlsSource(SocketAddress addr, Context ctx) {
+		String keyStore = (ctx == null ? null : ctx.getValue(KW_KEY_STORE));
+
+		if (keyStore == null)
+			throw new IllegalArgumentException("tls requires " + KW_KEY_STORE);
+
+		String password = ctx.getValue(KW_KEY_STORE_PASSWORD);
+		String type = ctx.getValue(KW_KEY_STORE_TYPE);
+		String cacheSize = ctx.getValue(KW_TLS_SESSION_CACHE_SIZE);
+		String timeout = ctx.getValue(KW_TLS_SESSION_TIMEOUT);
+		SyslogTlsSocketSource source;
+
+		try {
+			source = new SyslogTlsSocketSource(addr, SyslogTlsSocketSource.loadKeyManagers(
+				new File(keyStore),
+				type == null ? "JKS" : type,
+				password == null ? new char[0] : password.toCharArray()));
+		} catch (IOException ex) {
+			throw new IllegalArgumentException("bad key store: " + keyStore, ex);
+		} catch (GeneralSecurityException ex) {
+			throw new IllegalArgumentException("bad key store: " + keyStore, ex);
+		}
+
+		if (cacheSize != null) source.setSessionCacheSize(Integer.parseInt(cacheSize));
+		if (timeout != null) source.setSessionTimeout(Integer.parseInt(timeout));
+
+		return source;
+	}
+
+	/**
+	 * Create a file source from the keyword arguments.
+	 */
+	private static SyslogFileSource createFileSource(File file, Context ctx) {
+		SyslogFileSource source = new SyslogFileSource(file);
+		String threads = (ctx == null ? null : ctx.getValue(KW_FILE_THREADS));
+		String chunkSize = (ctx == null ? null : ctx.getValue(KW_FILE_CHUNK_SIZE));
+		String order = (ctx == null ? null : ctx.getValue(KW_FILE_ORDER));
+
+		if (threads != null) source.setThreads(Integer.parseInt(threads));
+		if (chunkSize != null) source.setChunkSize(Integer.parseInt(chunkSize));
+
+		if ("relaxed".equals(order))
+			source.setOrdered(false);
+		else if (order != null && !"strict".equals(order))
+			throw new IllegalArgumentException("unknown file order: " + order);
+
+		return source;
+	}
+
+	/**
+	 * Create a peer name resolver from the keyword arguments.
+	 */
+	private static PeerResolver createPeerResolver(Context ctx) {
+		String cacheSize = ctx.getValue(KW_PEER_NAME_CACHE_SIZE);
+		String ttl = ctx.getValue(KW_PEER_NAME_TTL);
+
+		return new PeerResolver(
+			PeerResolver.DNS,
+			cacheSize == null ? PeerResolver.DEFAULT_MAX_ENTRIES : Integer.parseInt(cacheSize),
+			ttl == null ? PeerResolver.DEFAULT_TTL : Long.parseLong(ttl) * 1000,
+			PeerResolver.DEFAULT_THREADS);
+	}
+
+	/**
+	 * Create a slab allocator from the keyword arguments.
+	 *
+	 * @return the allocator, or null if messages stay on the heap.
+	 */
+	private static SlabAllocator createSlabAllocator(Context ctx) {
+		String slabs = (ctx == null ? null : ctx.getValue(KW_OFF_HEAP_SLABS));
+
+		if (slabs == null) return null;
+
+		String slabSize = ctx.getValue(KW_OFF_HEAP_SLAB_SIZE);
+
+		return new SlabAllocator(
+			slabSize == null ? SlabAllocator.DEFAULT_SLAB_SIZE : Integer.parseInt(slabSize),
+			Integer.parseInt(slabs));
+	}
+
+	/**
+	 * Return a comma separated keyword argument as a list.
+	 *
+	 * @return the trimmed, non-empty items, or null if the argument wasn't
+	 *         given.
+	 */
+	private static List<String> getList(Context ctx, String key) {
+		String value = (ctx == null ? null : ctx.getValue(key));
+
+		if (value == null) return null;
+
+		List<String> ret = new ArrayList<String>();
+
+		for (String item : value.split(",")) {
+			item = item.trim();
+
+			if (item.length() > 0) ret.add(item);
+		}
+
+		return ret;
 	}
 }
@@ -0,0 +1,481 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.X509ExtendedKeyManager;
+
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.reporter.ReportEvent;
+
+
+/**
+ * A Flume event source for syslog over TLS, as described in RFC 5425.
+ *
+ * Like SyslogSocketSource, there is a thread per connection reading from a
+ * blocking socket. The bytes go through an SSLEngine, and the plaintext is
+ * fed to a SyslogPushParser with octet counting, which RFC 5425 requires.
+ * NL terminated frames are accepted as well.
+ *
+ * Reconnecting senders should resume their session rather than do a full
+ * handshake, so sessions are cached for as long as setSessionCacheSize()
+ * and setSessionTimeout() allow. With TLS 1.2 a sender only needs to keep
+ * the session id. TLS 1.3 resumes with tickets sent after the handshake,
+ * which senders that never read from the connection don't pick up.
+ *
+ * The expensive part of a handshake runs in the delegated tasks of the
+ * engine. At most one per processor runs at a time, so a reconnect storm
+ * queues up instead of starving the established connections.
+ *
+ * Full, resumed and failed handshakes are reported as metrics. A full
+ * handshake is one where the server certificate was chosen, which
+ * resumption skips.
+ */
+public class SyslogTlsSocketSource extends ServerSocketSource {
+	final public static String R_TLS_FULL_HANDSHAKES = "number of full tls handshakes";
+	final public static String R_TLS_RESUMED_HANDSHAKES = "number of resumed tls handshakes";
+	final public static String R_TLS_FAILED_HANDSHAKES = "number of failed tls handshakes";
+
+	final public static int DEFAULT_SESSION_CACHE_SIZE = 20000;
+	/// In seconds.
+	final public static int DEFAULT_SESSION_TIMEOUT = 24 * 60 * 60;
+
+	/// The source of handshake records. Never written to.
+	final private static ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private SSLContext context;
+	private Collection<String> sdParams;
+	/// Limits the CPU spent on handshakes.
+	private Semaphore handshakePermits = new Semaphore(Runtime.getRuntime().availableProcessors());
+	/// Engines whose handshake chose a certificate.
+	private Set<SSLEngine> fullHandshakes = Collections.synchronizedSet(new HashSet<SSLEngine>());
+	private AtomicLong numFullHandshakes = new AtomicLong();
+	private AtomicLong numResumedHandshakes = new AtomicLong();
+	private AtomicLong numFailedHandshakes = new AtomicLong();
+
+	/**
+	 * Construct a new source.
+	 *
+	 * @param addr the address to bind to and listen for connections on.
+	 * @param keyManagers the server certificates and keys.
+	 * @see #loadKeyManagers(File, String, char[])
+	 */
+	public SyslogTlsSocketSource(SocketAddress addr, KeyManager[] keyManagers) throws GeneralSecurityException {
+		super(addr, SyslogSocketSource.BACKLOG);
+
+		KeyManager[] kms = new KeyManager[keyManagers.length];
+
+		for (int i = 0; i < kms.length; ++i) {
+			if (keyManagers[i] instanceof X509ExtendedKeyManager)
+				kms[i] = new CountingKeyManager((X509ExtendedKeyManager) keyManagers[i]);
+			else
+				kms[i] = keyManagers[i];
+		}
+
+		context = SSLContext.getInstance("TLS");
+		context.init(kms, null, null);
+		setSessionCacheSize(DEFAULT_SESSION_CACHE_SIZE);
+		setSessionTimeout(DEFAULT_SESSION_TIMEOUT);
+	}
+
+	/**
+	 * Load the key managers of a key store file.
+	 *
+	 * @param type the key store type, like "JKS" or "PKCS12".
+	 * @param password the password of both the store and the keys.
+	 */
+	public static KeyManager[] loadKeyManagers(File keyStore, String type, char[] password) throws IOException, GeneralSecurityException {
+		KeyStore ks = KeyStore.getInstance(type);
+		InputStream in = new FileInputStream(keyStore);
+
+		try {
+			ks.load(in, password);
+		} finally {
+			in.close();
+		}
+
+		KeyManagerFactory f = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+
+		f.init(ks, password);
+
+		return f.getKeyManagers();
+	}
+
+	/**
+	 * Make attributes of some structured data parameters.
+	 *
+	 * Call before open().
+	 *
+	 * @see SyslogParser#setStructuredDataParams(Collection)
+	 */
+	public void setStructuredDataParams(Collection<String> params) {
+		sdParams = params;
+	}
+
+	/**
+	 * Set the maximum number of cached sessions.
+	 *
+	 * @param size the number of sessions, or 0 for no limit.
+	 */
+	public void setSessionCacheSize(int size) {
+		context.getServerSessionContext().setSessionCacheSize(size);
+	}
+
+	/**
+	 * Set how long a session can be resumed.
+	 *
+	 * @param seconds the time since the full handshake, or 0 for no limit.
+	 */
+	public void setSessionTimeout(int seconds) {
+		context.getServerSessionContext().setSessionTimeout(seconds);
+	}
+
+	@Override
+	protected SocketSource createSocketSource(Socket socket) throws IOException {
+		return new TlsSocketSourceImpl(socket);
+	}
+
+	@Override
+	synchronized public ReportEvent getMetrics() {
+		ReportEvent e = super.getMetrics();
+
+		e.setLongMetric(R_TLS_FULL_HANDSHAKES, numFullHandshakes.get());
+		e.setLongMetric(R_TLS_RESUMED_HANDSHAKES, numResumedHandshakes.get());
+		e.setLongMetric(R_TLS_FAILED_HANDSHAKES, numFailedHandshakes.get());
+
+		return e;
+	}
+
+	/**
+	 * Return a larger copy of a buffer in write mode.
+	 */
+	private static ByteBuffer grow(ByteBuffer b, int min) {
+		ByteBuffer ret = ByteBuffer.allocate(Math.max(2 * b.capacity(), min));
+
+		b.flip();
+		ret.put(b);
+
+		return ret;
+	}
+
+	private class TlsSocketSourceImpl implements SocketSource, SyslogPushParser.Handler {
+		private Socket socket;
+		private InputStream in;
+		private OutputStream out;
+		private SSLEngine engine;
+		private SyslogPushParser parser;
+		/// Records read from the socket, in read mode.
+		private ByteBuffer netIn;
+		/// Records to write, in write mode.
+		private ByteBuffer netOut;
+		/// Plaintext for the parser, in write mode.
+		private ByteBuffer appIn;
+		/// Parsed events not yet returned.
+		private LinkedList<Event> events = new LinkedList<Event>();
+		private boolean handshaking = true;
+		private boolean closed = false;
+
+		public TlsSocketSourceImpl(Socket socket) throws IOException {
+			this.socket = socket;
+			in = socket.getInputStream();
+			out = socket.getOutputStream();
+			engine = context.createSSLEngine(socket.getInetAddress().getHostAddress(), socket.getPort());
+			engine.setUseClientMode(false);
+
+			SSLSession session = engine.getSession();
+
+			netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+			netIn.flip();
+			netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+			appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+
+			parser = new SyslogPushParser(this, true, "UTF-8", true, SyslogPushParser.DEFAULT_MAX_FRAME_SIZE);
+			parser.setStructuredDataParams(sdParams);
+			parser.setFilter(getFilter());
+			parser.setRateLimiter(getRateLimiter());
+			parser.setSlabAllocator(getSlabAllocator());
+			parser.setKeyValueExtractor(getKeyValueExtractor());
+			parser.setListener(getListener());
+			parser.setPeer(socket.getInetAddress().getAddress());
+			parser.setPeerTag(createPeer(socket.getInetAddress()));
+			engine.beginHandshake();
+		}
+
+		@Override
+		public void close() throws IOException, InterruptedException {
+			fullHandshakes.remove(engine);
+			socket.close();
+		}
+
+		/**
+		 * Return the next event, or null once the connection is closed.
+		 *
+		 * TLS failures close the connection, since there is no telling
+		 * where the next record starts.
+		 */
+		@Override
+		public Event next() throws IOException, InterruptedException {
+			while (events.isEmpty() && !closed) {
+				try {
+					if (read()) {
+						pump();
+					} else {
+						if (handshaking) numFailedHandshakes.incrementAndGet();
+
+						closed = true;
+					}
+				} catch (SSLException ex) {
+					if (handshaking) {
+						numFailedHandshakes.incrementAndGet();
+						LOG.debug("TLS handshake with " + socket.getRemoteSocketAddress() + " failed: " + ex);
+					} else {
+						LOG.warn("TLS connection from " + socket.getRemoteSocketAddress() + " failed: " + ex);
+					}
+
+					closed = true;
+				}
+
+				if (closed) parser.finish();
+			}
+
+			return events.poll();
+		}
+
+		@Override
+		public int recover() throws IOException, InterruptedException {
+			// Only I/O errors get here, and those are fatal.
+			throw new IOException("TLS connection from " + socket.getRemoteSocketAddress() + " broken");
+		}
+
+		@Override
+		public void event(Event e) {
+			events.add(e);
+		}
+
+		@Override
+		public void rejected(IOException ex) {
+			addRejectedMessage();
+		}
+
+		/**
+		 * Read more records from the socket.
+		 *
+		 * @return false on EOF.
+		 */
+		private boolean read() throws IOException {
+			netIn.compact();
+
+			// A record larger than the engine said, or a partial one at
+			// the end of the buffer.
+			if (!netIn.hasRemaining())
+				netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+
+			int n = in.read(netIn.array(), netIn.position(), netIn.remaining());
+
+			if (n > 0) netIn.position(netIn.position() + n);
+
+			netIn.flip();
+
+			return (n >= 0);
+		}
+
+		/**
+		 * Run the engine until it needs more bytes from the socket.
+		 */
+		private void pump() throws IOException, InterruptedException {
+			for (;;) {
+				SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+
+				if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+					runTasks();
+					continue;
+				}
+
+				if (hs == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+					wrap();
+
+					if (closed) return;
+
+					continue;
+				}
+
+				SSLEngineResult r = engine.unwrap(netIn, appIn);
+
+				if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED)
+					handshakeFinished();
+
+				if (appIn.position() > 0) {
+					appIn.flip();
+					parser.feed(appIn);
+					appIn.clear();
+				}
+
+				SSLEngineResult.Status status = r.getStatus();
+
+				if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+					return;
+				} else if (status == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+					appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+				} else if (status == SSLEngineResult.Status.CLOSED) {
+					// Answer the close_notify, if the peer is still there.
+					if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP)
+						wrap();
+
+					closed = true;
+					return;
+				} else if (!netIn.hasRemaining() || r.bytesConsumed() == 0) {
+					hs = engine.getHandshakeStatus();
+
+					if (hs != SSLEngineResult.HandshakeStatus.NEED_TASK && hs != SSLEngineResult.HandshakeStatus.NEED_WRAP)
+						return;
+				}
+			}
+		}
+
+		/**
+		 * Write the records the engine wants to send.
+		 */
+		private void wrap() throws IOException {
+			netOut.clear();
+
+			SSLEngineResult r = engine.wrap(EMPTY, netOut);
+
+			if (r.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				// Retried by pump().
+				netOut = ByteBuffer.allocate(Math.max(2 * netOut.capacity(), engine.getSession().getPacketBufferSize()));
+				return;
+			}
+
+			out.write(netOut.array(), 0, netOut.position());
+			out.flush();
+
+			if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED)
+				handshakeFinished();
+
+			if (r.getStatus() == SSLEngineResult.Status.CLOSED)
+				closed = true;
+		}
+
+		/**
+		 * Run the delegated tasks of the engine, one connection per
+		 * processor at a time.
+		 */
+		private void runTasks() throws InterruptedException {
+			handshakePermits.acquire();
+
+			try {
+				Runnable task;
+
+				while ((task = engine.getDelegatedTask()) != null)
+					task.run();
+			} finally {
+				handshakePermits.release();
+			}
+		}
+
+		private void handshakeFinished() {
+			if (!handshaking) return;
+
+			handshaking = false;
+
+			if (fullHandshakes.remove(engine))
+				numFullHandshakes.incrementAndGet();
+			else
+				numResumedHandshakes.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Notes which engines choose a certificate, meaning a full handshake.
+	 */
+	private class CountingKeyManager extends X509ExtendedKeyManager {
+		private X509ExtendedKeyManager km;
+
+		public CountingKeyManager(X509ExtendedKeyManager km) {
+			this.km = km;
+		}
+
+		@Override
+		public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+			String alias = km.chooseEngineServerAlias(keyType, issuers, engine);
+
+			if (alias != null && engine != null) fullHandshakes.add(engine);
+
+			return alias;
+		}
+
+		@Override
+		public String chooseEngineClientAlias(String[] keyTypes, Principal[] issuers, SSLEngine engine) {
+			return km.chooseEngineClientAlias(keyTypes, issuers, engine);
+		}
+
+		@Override
+		public String[] getClientAliases(String keyType, Principal[] issuers) {
+			return km.getClientAliases(keyType, issuers);
+		}
+
+		@Override
+		public String chooseClientAlias(String[] keyTypes, Principal[] issuers, Socket socket) {
+			return km.chooseClientAlias(keyTypes, issuers, socket);
+		}
+
+		@Override
+		public String[] getServerAliases(String keyType, Principal[] issuers) {
+			return km.getServerAliases(keyType, issuers);
+		}
+
+		@Override
+		public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+			return km.chooseServerAlias(keyType, issuers, socket);
+		}
+
+		@Override
+		public X509Certificate[] getCertificateChain(String alias) {
+			return km.getCertificateChain(alias);
+		}
+
+		@Override
+		public PrivateKey getPrivateKey(String alias) {
+			return km.getPrivateKey(alias);
+		}
+	}
+}
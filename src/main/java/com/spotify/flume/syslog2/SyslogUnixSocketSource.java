@@ -0,0 +1,96 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+
+
+/**
+ * A Flume event source backed by a Unix domain stream socket.
+ *
+ * For collectors running next to the applications, this skips the
+ * loopback IP stack. Connections are handled exactly like TCP ones by
+ * SyslogSocketSource.
+ *
+ * Unix domain sockets need JDK 16, and the plugin built with the "unix"
+ * Maven profile, which adds the UnixServerSocket adapter. Like the JFR
+ * tracer, it is loaded by name, so the plugin still builds and runs on
+ * older JDKs without it. The JDK has no Unix domain datagram sockets, so
+ * only stream sockets are supported. The syslog(3) of glibc falls back to
+ * those when the socket isn't a datagram one.
+ */
+public class SyslogUnixSocketSource extends SyslogSocketSource {
+	final public static String UNIX_SERVER_SOCKET_CLASS = "com.spotify.flume.syslog2.unix.UnixServerSocket";
+
+	/**
+	 * Construct a new source.
+	 *
+	 * @param path the file system path of the socket.
+	 * @throws IllegalArgumentException if Unix domain sockets are not
+	 *                                  supported.
+	 */
+	public SyslogUnixSocketSource(String path) {
+		super(createAddress(path));
+	}
+
+	/**
+	 * Return true if Unix domain sockets can be used.
+	 */
+	public static boolean isSupported() {
+		try {
+			Class.forName("java.net.UnixDomainSocketAddress");
+			Class.forName(UNIX_SERVER_SOCKET_CLASS);
+
+			return true;
+		} catch (ClassNotFoundException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Return a UnixDomainSocketAddress for the path.
+	 */
+	static SocketAddress createAddress(String path) {
+		if (!isSupported())
+			throw new IllegalArgumentException("Unix domain sockets require JDK 16 and the unix build profile");
+
+		try {
+			return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, path);
+		} catch (InvocationTargetException ex) {
+			throw new IllegalArgumentException("bad socket path: " + path, ex.getCause());
+		} catch (Exception ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	@Override
+	protected ServerSocket createServerSocket(SocketAddress addr, int backlog) throws IOException {
+		try {
+			return (ServerSocket) Class.forName(UNIX_SERVER_SOCKET_CLASS).getConstructor(SocketAddress.class, int.class).newInstance(addr, backlog);
+		} catch (InvocationTargetException ex) {
+			if (ex.getCause() instanceof IOException)
+				throw (IOException) ex.getCause();
+
+			throw new RuntimeException(ex.getCause());
+		} catch (Exception ex) {
+			// isSupported() was checked by the constructor.
+			throw new RuntimeException(ex);
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.net.SocketAddress;
+
+import com.cloudera.flume.core.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Hooks for profiling the ingestion hot path.
+ *
+ * This base class does nothing, and is what you get unless the plugin was
+ * built with the "jfr" Maven profile and runs on a JVM with Flight Recorder.
+ * Then get() returns a tracer emitting JFR events instead, without us having
+ * to require a modern JVM for everyone.
+ *
+ * Spans are opaque objects returned by a begin method and passed to the
+ * matching end method. A null span means the tracer isn't interested, and
+ * callers should avoid extra work when they get one.
+ */
+public class Tracer {
+	static final Logger LOG = LoggerFactory.getLogger(Tracer.class);
+
+	final public static String JFR_TRACER_CLASS = "com.spotify.flume.syslog2.jfr.JfrTracer";
+
+	final private static Tracer INSTANCE = load();
+
+	/**
+	 * Return the tracer to use.
+	 */
+	public static Tracer get() {
+		return INSTANCE;
+	}
+
+	private static Tracer load() {
+		try {
+			return (Tracer) Class.forName(JFR_TRACER_CLASS).newInstance();
+		} catch (ClassNotFoundException ex) {
+			// Not built with JFR support.
+		} catch (Throwable ex) {
+			// Built with it, but the JVM doesn't have it.
+			LOG.info("Flight Recorder events disabled: " + ex);
+		}
+
+		return new Tracer();
+	}
+
+	/**
+	 * Called before parsing a message.
+	 */
+	public Object beginParse() {
+		return null;
+	}
+
+	/**
+	 * Called after a message has been parsed.
+	 *
+	 * @param span the return value of beginParse().
+	 * @param e the event, or null on EOF.
+	 */
+	public void endParse(Object span, Event e) {
+	}
+
+	/**
+	 * Called when a message is rejected by the parser.
+	 */
+	public void parseRejected(Exception ex) {
+	}
+
+	/**
+	 * Called before blocking to hand an event to the consumer.
+	 *
+	 * This should only be called once we know the queue is full.
+	 */
+	public Object beginQueuePut() {
+		return null;
+	}
+
+	/**
+	 * Called once a blocked hand-off has completed.
+	 */
+	public void endQueuePut(Object span) {
+	}
+
+	/**
+	 * Called when a stream connection has been accepted.
+	 *
+	 * @param remote the peer address.
+	 * @return a span to be closed by endConnection().
+	 */
+	public Object beginConnection(SocketAddress remote) {
+		return null;
+	}
+
+	/**
+	 * Called when a stream connection has been closed.
+	 *
+	 * @param numEvents the number of events read from the connection.
+	 * @param numRejected the number of messages rejected.
+	 */
+	public void endConnection(Object span, long numEvents, long numRejected) {
+	}
+
+	/**
+	 * Called when a datagram has been received.
+	 *
+	 * Called for every packet, so implementations should aggregate.
+	 *
+	 * @param length the number of bytes in the packet.
+	 */
+	public void datagramReceived(int length) {
+	}
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.testng.SkipException;
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+
+/**
+ * Bytes allocated per event on the hot paths.
+ *
+ * GC pressure is what limits us, so each path has a budget and a change
+ * exceeding it fails. If you make a path cheaper, lower its budget.
+ *
+ * Allocation is measured with ThreadMXBean.getThreadAllocatedBytes() after
+ * warming up, so the JIT has had a chance to remove what it can. The best
+ * of a few rounds is used to ignore noise.
+ */
+public class AllocationBudgetTest {
+	final public static int UDP_PORT = 43859;
+	final public static int TCP_PORT = 53860;
+
+	/// SyslogParser.readEvent() on a stream.
+	final public static long PARSER_BUDGET = 512;
+	/// SyslogDatagramSocketSource.next(), including parsing.
+	final public static long UDP_BUDGET = 512;
+	/// The TCP processor thread, including parsing.
+	final public static long TCP_BUDGET = 512;
+	/// SyslogParser.readEvent() dropping messages with a filter.
+	final public static long FILTERED_BUDGET = 0;
+	/// SyslogParser.readEvent() dropping messages over a rate limit.
+	final public static long RATE_LIMITED_BUDGET = 0;
+
+	final private static int WARMUP_ROUNDS = 20;
+	final private static int ROUNDS = 5;
+	/// Small enough to fit in a socket buffer.
+	final private static int EVENTS_PER_ROUND = 100;
+
+	private com.sun.management.ThreadMXBean threads;
+
+	@BeforeMethod
+	public void setUp() {
+		Object bean = ManagementFactory.getThreadMXBean();
+
+		if (!(bean instanceof com.sun.management.ThreadMXBean) || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported())
+			throw new SkipException("Thread allocation accounting not supported");
+
+		threads = (com.sun.management.ThreadMXBean) bean;
+	}
+
+	@Test
+	public void testParser() throws Exception {
+		byte[] data = createStream();
+		long best = Long.MAX_VALUE;
+
+		for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; ++round) {
+			SyslogParser p = new SyslogParser(new ByteArrayInputStream(data));
+			long before = getAllocatedBytes(Thread.currentThread());
+
+			for (int i = 0; i < EVENTS_PER_ROUND; ++i)
+				assertNotNull(p.readEvent());
+
+			long perEvent = (getAllocatedBytes(Thread.currentThread()) - before) / EVENTS_PER_ROUND;
+
+			if (round >= WARMUP_ROUNDS) best = Math.min(best, perEvent);
+		}
+
+		assertWithinBudget("SyslogParser.readEvent()", PARSER_BUDGET, best);
+	}
+
+	@Test
+	public void testFilteredParser() throws Exception {
+		byte[] data = createStream();
+		SyslogFilter filter = SyslogFilter.parse("appname=app,tag");
+		long best = Long.MAX_VALUE;
+
+		for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; ++round) {
+			SyslogParser p = new SyslogParser(new ByteArrayInputStream(data));
+
+			p.setFilter(filter);
+
+			long before = getAllocatedBytes(Thread.currentThread());
+
+			assertNull(p.readEvent());
+
+			long perEvent = (getAllocatedBytes(Thread.currentThread()) - before) / EVENTS_PER_ROUND;
+
+			if (round >= WARMUP_ROUNDS) best = Math.min(best, perEvent);
+		}
+
+		assertEquals((WARMUP_ROUNDS + ROUNDS) * EVENTS_PER_ROUND, filter.getDropped(0));
+		assertWithinBudget("SyslogParser.readEvent() with a filter", FILTERED_BUDGET, best);
+	}
+
+	@Test
+	public void testRateLimitedParser() throws Exception {
+		byte[] data = createStream();
+		RateLimiter limiter = new RateLimiter(RateLimiter.Key.APPNAME, 0.001, 1, 100);
+		long best = Long.MAX_VALUE;
+
+		for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; ++round) {
+			SyslogParser p = new SyslogParser(new ByteArrayInputStream(data));
+
+			p.setRateLimiter(limiter);
+
+			long before = getAllocatedBytes(Thread.currentThread());
+
+			// Only the first message of each appname gets through.
+			while (p.readEvent() != null)
+				;
+
+			long perEvent = (getAllocatedBytes(Thread.currentThread()) - before) / EVENTS_PER_ROUND;
+
+			if (round >= WARMUP_ROUNDS) best = Math.min(best, perEvent);
+		}
+
+		assertEquals((WARMUP_ROUNDS + ROUNDS) * EVENTS_PER_ROUND - 2, limiter.getLimited());
+		assertWithinBudget("SyslogParser.readEvent() with a rate limit", RATE_LIMITED_BUDGET, best);
+	}
+
+	@Test
+	public void testDatagramSource() throws Exception {
+		SyslogDatagramSocketSource s = new SyslogDatagramSocketSource(new InetSocketAddress("localhost", UDP_PORT), 4096);
+		DatagramSocket sender = new DatagramSocket();
+		byte[][] messages = createMessages();
+		long best = Long.MAX_VALUE;
+
+		s.open();
+
+		try {
+			for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; ++round) {
+				for (byte[] msg : messages)
+					sender.send(new DatagramPacket(msg, msg.length, InetAddress.getByName("localhost"), UDP_PORT));
+
+				long before = getAllocatedBytes(Thread.currentThread());
+
+				for (int i = 0; i < messages.length; ++i)
+					assertNotNull(s.next());
+
+				long perEvent = (getAllocatedBytes(Thread.currentThread()) - before) / messages.length;
+
+				if (round >= WARMUP_ROUNDS) best = Math.min(best, perEvent);
+			}
+		} finally {
+			s.close();
+			sender.close();
+		}
+
+		assertWithinBudget("SyslogDatagramSocketSource.next()", UDP_BUDGET, best);
+	}
+
+	@Test
+	public void testSocketSource() throws Exception {
+		SyslogSocketSource s = new SyslogSocketSource(new InetSocketAddress("localhost", TCP_PORT));
+		byte[] data = createStream();
+		long best = Long.MAX_VALUE;
+
+		s.open();
+
+		try {
+			Socket sender = new Socket("localhost", TCP_PORT);
+			OutputStream out = sender.getOutputStream();
+			Thread processor = null;
+
+			for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; ++round) {
+				long before = (processor != null ? getAllocatedBytes(processor) : 0);
+
+				out.write(data);
+				out.flush();
+
+				for (int i = 0; i < EVENTS_PER_ROUND; ++i)
+					assertNotNull(s.next());
+
+				if (processor == null) {
+					processor = findThread("socket-processor-");
+					continue;
+				}
+
+				long perEvent = (getAllocatedBytes(processor) - before) / EVENTS_PER_ROUND;
+
+				if (round >= WARMUP_ROUNDS) best = Math.min(best, perEvent);
+			}
+
+			sender.close();
+		} finally {
+			s.close();
+		}
+
+		assertWithinBudget("ServerSocketSource.Processor", TCP_BUDGET, best);
+	}
+
+	private void assertWithinBudget(String path, long budget, long actual) {
+		assertTrue(path + " allocates " + actual + " bytes per event, budget is " + budget, actual <= budget);
+	}
+
+	private long getAllocatedBytes(Thread t) {
+		return threads.getThreadAllocatedBytes(t.getId());
+	}
+
+	private static Thread findThread(String prefix) {
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if (t.getName().startsWith(prefix))
+				return t;
+		}
+
+		throw new IllegalStateException("No thread named " + prefix + "*");
+	}
+
+	/**
+	 * Return a mix of RFC 3164 and RFC 5424 messages.
+	 */
+	private static byte[][] createMessages() throws Exception {
+		byte[][] ret = new byte[EVENTS_PER_ROUND][];
+
+		for (int i = 0; i < ret.length; ++i) {
+			String msg;
+
+			if (i % 2 == 0)
+				msg = "<11>1 2011-10-05T12:23:34.567Z hostname app proc msg [a b=\"c\"] hello world " + i;
+			else
+				msg = "<11>Oct  5 12:23:34 hostname tag[123]: hello world " + i;
+
+			ret[i] = msg.getBytes("UTF-8");
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Return createMessages() as a newline separated stream.
+	 */
+	private static byte[] createStream() throws Exception {
+		StringBuilder sb = new StringBuilder();
+
+		for (byte[] msg : createMessages())
+			sb.append(new String(msg, "UTF-8")).append('\n');
+
+		return sb.toString().getBytes("UTF-8");
+	}
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.cloudera.flume.core.Event;
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+
+public class BatcherTest {
+	final private static String DATA =
+		"<14>1 2011-10-05T12:23:34.567Z host1 app1 proc msg [a b=\"c\"] one\n" +
+		"<11>Oct  5 12:23:34 host2 app2[123]: two\n" +
+		"<15>1 2011-10-05T12:23:36.567Z host1 app1 - - - three\n";
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		List<Event> events = parse(DATA);
+		Batcher b = new Batcher(Batcher.Key.NONE, 3, 1 << 16, 1000, 100);
+
+		b.add(events.get(0), 0);
+		b.add(events.get(1), 0);
+		assertNull(b.poll(0));
+		b.add(events.get(2), 0);
+
+		Event batch = b.poll(0);
+
+		assertNotNull(batch);
+		assertNull(b.poll(0));
+		assertTrue(BatchDecoder.isBatch(batch));
+		assertFalse(BatchDecoder.isBatch(events.get(0)));
+		assertEquals(3, ByteBuffer.wrap(batch.get(SyslogParser.SYSLOG_BATCH)).getLong());
+		assertEquals(events.get(0).getTimestamp(), batch.getTimestamp());
+		assertEquals("host1", batch.getHost());
+		// The most severe.
+		assertEquals(Event.Priority.ERROR, batch.getPriority());
+		assertEquals(1, b.getNumBatches());
+
+		List<Event> decoded = BatchDecoder.decode(batch);
+
+		assertEquals(3, decoded.size());
+
+		for (int i = 0; i < 3; ++i)
+			assertEquivalent(events.get(i), decoded.get(i));
+	}
+
+	@Test
+	public void testCompact() throws Exception {
+		List<Event> events = parse(DATA + DATA + DATA + DATA);
+		Batcher b = new Batcher(Batcher.Key.NONE, 100, 1 << 16, 1000, 100);
+
+		for (Event e : events)
+			b.add(e, 0);
+
+		Event batch = b.flush();
+		String body = new String(batch.getBody(), "ISO-8859-1");
+
+		// Attribute names are only written once.
+		assertEquals(body.indexOf(SyslogParser.SYSLOG_APPNAME), body.lastIndexOf(SyslogParser.SYSLOG_APPNAME));
+		assertEquals(12, BatchDecoder.decode(batch).size());
+	}
+
+	@Test
+	public void testKeys() throws Exception {
+		List<Event> events = parse(DATA);
+		Batcher b = new Batcher(Batcher.Key.APPNAME, 100, 1 << 16, 1000, 100);
+
+		for (Event e : events)
+			b.add(e, 0);
+
+		Event first = b.flush();
+		Event second = b.poll(0);
+
+		assertNull(b.poll(0));
+		assertEquals("app1", new String(first.get(SyslogParser.SYSLOG_APPNAME), "UTF-8"));
+		assertEquals(2, BatchDecoder.decode(first).size());
+		assertEquals("app2", new String(second.get(SyslogParser.SYSLOG_APPNAME), "UTF-8"));
+		assertEquals(1, BatchDecoder.decode(second).size());
+	}
+
+	@Test
+	public void testFacilityKey() throws Exception {
+		List<Event> events = parse(DATA);
+		Batcher b = new Batcher(Batcher.Key.FACILITY, 100, 1 << 16, 1000, 100);
+
+		for (Event e : events)
+			b.add(e, 0);
+
+		Event batch = b.flush();
+
+		assertEquals(1, batch.get(SyslogParser.SYSLOG_FACILITY)[0]);
+		assertEquals(3, BatchDecoder.decode(batch).size());
+	}
+
+	@Test
+	public void testLimits() throws Exception {
+		List<Event> events = parse(DATA);
+		Batcher b = new Batcher(Batcher.Key.NONE, 100, 10, 1000, 100);
+
+		// Each message exceeds the byte limit.
+		b.add(events.get(0), 0);
+		assertEquals(1, BatchDecoder.decode(b.poll(0)).size());
+
+		b = new Batcher(Batcher.Key.NONE, 100, 1 << 16, 1000, 100);
+		b.add(events.get(0), 0);
+		assertEquals(1000, b.getTimeout(0));
+		assertNull(b.poll(999));
+		assertNotNull(b.poll(1000));
+		assertEquals(0, b.getTimeout(1000));
+
+		b = new Batcher(Batcher.Key.HOST, 100, 1 << 16, 1000, 1);
+		b.add(events.get(0), 0);
+		// Closes the batch of host1.
+		b.add(events.get(1), 0);
+		assertEquals("host1", b.poll(0).getHost());
+		assertNull(b.poll(0));
+	}
+
+	@Test
+	public void testByteLimitBoundary() throws Exception {
+		List<Event> events = parse(DATA);
+		Batcher b = new Batcher(Batcher.Key.NONE, 100, 1 << 16, 1000, 100);
+
+		b.add(events.get(0), 0);
+		b.add(events.get(1), 0);
+
+		int length = b.flush().getBody().length;
+
+		// Exactly at the limit, both fit and the batch is closed.
+		b = new Batcher(Batcher.Key.NONE, 100, length, 1000, 100);
+		b.add(events.get(0), 0);
+		assertNull(b.poll(0));
+		b.add(events.get(1), 0);
+		assertEquals(2, BatchDecoder.decode(b.poll(0)).size());
+
+		// One byte less, and the second message starts a new batch.
+		b = new Batcher(Batcher.Key.NONE, 100, length - 1, 1000, 100);
+		b.add(events.get(0), 0);
+		b.add(events.get(1), 0);
+
+		Event first = b.poll(0);
+
+		assertTrue(first.getBody().length < length);
+		assertEquals(1, BatchDecoder.decode(first).size());
+		assertNull(b.poll(0));
+
+		List<Event> rest = BatchDecoder.decode(b.flush());
+
+		assertEquals(1, rest.size());
+		assertEquivalent(events.get(1), rest.get(0));
+		assertEquals(2, b.getNumBatches());
+	}
+
+	@Test(expectedExceptions = { IOException.class })
+	public void testTruncated() throws Exception {
+		List<Event> events = parse(DATA);
+		Batcher b = new Batcher(Batcher.Key.NONE, 100, 1 << 16, 1000, 100);
+
+		b.add(events.get(0), 0);
+
+		byte[] body = b.flush().getBody();
+		byte[] truncated = new byte[body.length - 1];
+
+		System.arraycopy(body, 0, truncated, 0, truncated.length);
+		BatchDecoder.decode(truncated);
+	}
+
+	@Test(expectedExceptions = { IOException.class })
+	public void testUnknownVersion() throws Exception {
+		BatchDecoder.decode(new byte[] { 2 });
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testUnknownKey() {
+		Batcher.parseKey("severity");
+	}
+
+	private static void assertEquivalent(Event expected, Event actual) throws Exception {
+		assertEquals(new String(expected.getBody(), "UTF-8"), new String(actual.getBody(), "UTF-8"));
+		assertEquals(expected.getTimestamp(), actual.getTimestamp());
+		assertEquals(expected.getNanos(), actual.getNanos());
+		assertEquals(expected.getPriority(), actual.getPriority());
+		assertEquals(expected.getHost(), actual.getHost());
+		assertEquals(expected.getAttrs().keySet(), actual.getAttrs().keySet());
+
+		for (String attr : expected.getAttrs().keySet())
+			assertEquals(new String(expected.get(attr), "UTF-8"), new String(actual.get(attr), "UTF-8"));
+	}
+
+	private static List<Event> parse(String data) throws Exception {
+		SyslogParser p = new SyslogParser(new ByteArrayInputStream(data.getBytes("UTF-8")));
+		List<Event> ret = new ArrayList<Event>();
+		Event e;
+
+		while ((e = p.readEvent()) != null)
+			ret.add(e);
+
+		return ret;
+	}
+}
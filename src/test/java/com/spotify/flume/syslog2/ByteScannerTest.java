@@ -0,0 +1,108 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+
+public class ByteScannerTest {
+	@Test(dataProvider = "delimiters")
+	public void testRandom(byte[] delimiters) {
+		ByteScanner scanner = new ByteScanner(delimiters);
+		Random r = new Random(42);
+
+		for (int n = 0; n < 2000; ++n) {
+			// Sparse delimiters, and some sign-bit noise.
+			byte[] data = new byte[r.nextInt(64)];
+
+			for (int i = 0; i < data.length; ++i)
+				data[i] = (r.nextInt(16) == 0 ? delimiters[r.nextInt(delimiters.length)] : (byte) (r.nextInt(256) | 0x20));
+
+			int from = (data.length == 0 ? 0 : r.nextInt(data.length));
+			int to = from + r.nextInt(data.length - from + 1);
+			int expected = naiveIndexIn(data, from, to, delimiters);
+
+			for (ByteBuffer buf : buffers(data)) {
+				assertEquals(buf.toString(), expected, scanner.indexIn(buf, from, to));
+			}
+		}
+	}
+
+	@DataProvider(name = "delimiters")
+	public Object[][] createDelimiters() {
+		return new Object[][] {
+			{ new byte[] { '\n' } },
+			{ new byte[] { ' ', '\n' } },
+			{ new byte[] { ']', '\r', '\n' } },
+			{ new byte[] { ':', '[', '\r', '\n' } },
+			{ new byte[] { (byte) 0x80, 0 } },
+		};
+	}
+
+	@Test
+	public void testHighBytes() {
+		// 0x80 ^ 0x0A must not look like a zero byte.
+		byte[] data = new byte[] { (byte) 0x8A, (byte) 0x8A, (byte) 0x8A, (byte) 0x8A, (byte) 0x8A, (byte) 0x8A, (byte) 0x8A, (byte) 0x8A, '\n' };
+
+		for (ByteBuffer buf : buffers(data))
+			assertEquals(8, new ByteScanner((byte) '\n').indexIn(buf, 0, data.length));
+	}
+
+	@Test
+	public void testAdjacentMatches() {
+		// A borrow from a matching byte could cause a false positive in
+		// the next one, which is what big endian scans first.
+		byte[] data = "ab\n\u0001\n".getBytes();
+
+		for (ByteBuffer buf : buffers(data)) {
+			assertEquals(2, new ByteScanner((byte) '\n').indexIn(buf, 0, data.length));
+			assertEquals(3, new ByteScanner((byte) 1).indexIn(buf, 0, data.length));
+		}
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testTooManyDelimiters() {
+		new ByteScanner((byte) 1, (byte) 2, (byte) 3, (byte) 4, (byte) 5);
+	}
+
+	private static ByteBuffer[] buffers(byte[] data) {
+		ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+
+		direct.put(data).clear();
+
+		return new ByteBuffer[] {
+			ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN),
+			ByteBuffer.wrap(data).order(ByteOrder.BIG_ENDIAN),
+			direct.duplicate().order(ByteOrder.LITTLE_ENDIAN),
+			direct.duplicate().order(ByteOrder.BIG_ENDIAN),
+		};
+	}
+
+	private static int naiveIndexIn(byte[] data, int from, int to, byte[] delimiters) {
+		for (int i = from; i < to; ++i) {
+			for (byte d : delimiters) {
+				if (data[i] == d) return i;
+			}
+		}
+
+		return -1;
+	}
+}
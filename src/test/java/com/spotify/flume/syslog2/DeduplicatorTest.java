@@ -0,0 +1,154 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.core.EventImpl;
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+
+public class DeduplicatorTest {
+	@Test
+	public void testRepeats() throws Exception {
+		Deduplicator d = new Deduplicator(1000, 100);
+		Event e = createEvent("host", "app", "hello", 10);
+
+		assertSame(e, d.offer(e, 0));
+		assertNull(d.offer(createEvent("host", "app", "hello", 20), 100));
+		assertNull(d.offer(createEvent("host", "app", "hello", 30), 200));
+		assertNull(d.poll(999));
+
+		Event s = d.poll(1000);
+
+		assertNotNull(s);
+		assertEquals("hello", new String(s.getBody(), "UTF-8"));
+		assertEquals("host", s.getHost());
+		assertEquals(30, s.getTimestamp());
+		assertEquals(2, ByteBuffer.wrap(s.get(SyslogParser.SYSLOG_REPEATED)).getLong());
+		assertEquals("app", new String(s.get(SyslogParser.SYSLOG_APPNAME), "UTF-8"));
+		assertNull(d.poll(1000));
+		assertEquals(2, d.getSuppressed());
+
+		// The window is closed, so this starts a new one.
+		assertNotNull(d.offer(createEvent("host", "app", "hello", 40), 1000));
+	}
+
+	@Test
+	public void testNoRepeats() throws Exception {
+		Deduplicator d = new Deduplicator(1000, 100);
+
+		assertNotNull(d.offer(createEvent("host", "app", "hello", 10), 0));
+		assertNotNull(d.offer(createEvent("host2", "app", "hello", 10), 0));
+		assertNotNull(d.offer(createEvent("host", "app2", "hello", 10), 0));
+		assertNotNull(d.offer(createEvent("host", "app", "hello2", 10), 0));
+		assertNotNull(d.offer(createEvent("host", null, "hello", 10), 0));
+		assertNull(d.poll(5000));
+		assertNull(d.flush());
+		assertEquals(0, d.getSuppressed());
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		Deduplicator d = new Deduplicator(1000, 1);
+
+		assertNotNull(d.offer(createEvent("host", "app", "a", 10), 0));
+		assertNull(d.offer(createEvent("host", "app", "a", 10), 0));
+		assertNotNull(d.offer(createEvent("host", "app", "b", 10), 0));
+
+		Event s = d.poll(0);
+
+		assertEquals("a", new String(s.getBody(), "UTF-8"));
+		assertEquals(1, ByteBuffer.wrap(s.get(SyslogParser.SYSLOG_REPEATED)).getLong());
+	}
+
+	@Test
+	public void testFlush() throws Exception {
+		Deduplicator d = new Deduplicator(1000, 100);
+
+		d.offer(createEvent("host", "app", "a", 10), 0);
+		d.offer(createEvent("host", "app", "a", 10), 0);
+		d.offer(createEvent("host", "app", "b", 10), 0);
+		d.offer(createEvent("host", "app", "b", 10), 0);
+
+		assertEquals("a", new String(d.flush().getBody(), "UTF-8"));
+		assertEquals("b", new String(d.poll(0).getBody(), "UTF-8"));
+		assertNull(d.poll(0));
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		Deduplicator d = new Deduplicator(1000, 100);
+
+		assertEquals(0, d.getTimeout(0));
+		d.offer(createEvent("host", "app", "a", 10), 100);
+		d.offer(createEvent("host", "app", "b", 10), 200);
+		assertEquals(900, d.getTimeout(200));
+		assertEquals(1, d.getTimeout(5000));
+	}
+
+	@Test
+	public void testDecoratedFirst() throws Exception {
+		Deduplicator d = new Deduplicator(1000, 100);
+		Event e = createEvent("host", "app", "hello", 10);
+
+		assertSame(e, d.offer(e, 0));
+		// The first event belongs to Flume now, and may be decorated.
+		e.set("decorated", new byte[] { 1 });
+		assertNull(d.offer(createEvent("host", "app", "hello", 20), 10));
+
+		Event summary = d.flush();
+
+		assertNull(summary.get("decorated"));
+		// A decorator can add the attribute to the summary too.
+		summary.set("decorated", new byte[] { 2 });
+		assertEquals("hello", new String(summary.getBody(), "UTF-8"));
+	}
+
+	@Test
+	public void testSyslogEvents() throws Exception {
+		String data =
+			"<14>1 2011-10-05T12:23:34.567Z host1 app1 - - - hello\n" +
+			"<11>Oct  5 12:23:35 host1 app1[123]: hello\n" +
+			"<14>1 2011-10-05T12:23:34.567Z host1 app1 - - - hello again\n";
+		SyslogParser p = new SyslogParser(new ByteArrayInputStream(data.getBytes("UTF-8")));
+		Event a = p.readEvent();
+		Event b = p.readEvent();
+		Event c = p.readEvent();
+
+		// The priority, timestamp and pid don't matter.
+		assertEquals(Deduplicator.fingerprint(a), Deduplicator.fingerprint(b));
+		assertFalse(Deduplicator.fingerprint(a) == Deduplicator.fingerprint(c));
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testInvalidWindow() {
+		new Deduplicator(0, 100);
+	}
+
+	private static Event createEvent(String host, String appname, String body, long timestamp) throws Exception {
+		Map<String, byte[]> attrs = new HashMap<String, byte[]>();
+
+		if (appname != null) attrs.put(SyslogParser.SYSLOG_APPNAME, appname.getBytes("UTF-8"));
+
+		return new EventImpl(body.getBytes("UTF-8"), timestamp, Event.Priority.INFO, 0, host, attrs);
+	}
+}
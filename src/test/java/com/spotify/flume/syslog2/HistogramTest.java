@@ -0,0 +1,83 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+
+public class HistogramTest {
+	@Test
+	public void testEmpty() {
+		Histogram h = new Histogram();
+
+		assertEquals(0, h.getCount());
+		assertEquals(0, h.getPercentile(50));
+		assertEquals(0, h.getMax());
+	}
+
+	@Test
+	public void testSmallValuesAreExact() {
+		Histogram h = new Histogram();
+
+		h.record(0);
+		h.record(1);
+		h.record(2);
+		h.record(3);
+
+		assertEquals(1, h.getPercentile(50));
+		assertEquals(3, h.getPercentile(100));
+	}
+
+	@Test
+	public void testPercentiles() {
+		Histogram h = new Histogram();
+
+		for (int i = 1; i <= 1000; ++i)
+			h.record(i);
+
+		assertEquals(1000, h.getCount());
+		assertEquals(1000, h.getMax());
+		assertEquals(500, h.getPercentile(50), 500 / 4);
+		assertEquals(990, h.getPercentile(99), 990 / 4);
+		assertTrue(h.getPercentile(50) >= 500);
+	}
+
+	@Test
+	public void testLargeValues() {
+		Histogram h = new Histogram();
+
+		h.record(Long.MAX_VALUE);
+
+		assertEquals(Long.MAX_VALUE, h.getPercentile(50));
+	}
+
+	@Test
+	public void testClear() {
+		Histogram h = new Histogram();
+
+		h.record(42);
+		h.clear();
+
+		assertEquals(0, h.getCount());
+		assertEquals(0, h.getMax());
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testNegative() {
+		new Histogram().record(-1);
+	}
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+
+public class HyperLogLogTest {
+	@Test
+	public void testEmpty() {
+		assertEquals(0, new HyperLogLog().cardinality());
+	}
+
+	@Test
+	public void testDuplicates() {
+		HyperLogLog h = new HyperLogLog();
+
+		for (int i = 0; i < 1000; ++i)
+			h.offer(HyperLogLog.hash("host" + (i % 10)));
+
+		assertEquals(10, h.cardinality());
+	}
+
+	@Test(dataProvider = "cardinalities")
+	public void testAccuracy(int n) {
+		HyperLogLog h = new HyperLogLog();
+
+		for (int i = 0; i < n; ++i)
+			h.offer(HyperLogLog.hash(("host" + i).getBytes()));
+
+		// Four standard errors should make this deterministic enough.
+		assertEquals((double) n, (double) h.cardinality(), n * 4 * 1.04 / 64);
+	}
+
+	@DataProvider(name = "cardinalities")
+	public Object[][] createCardinalities() {
+		return new Object[][] { { 100 }, { 5000 }, { 200000 } };
+	}
+
+	@Test
+	public void testClear() {
+		HyperLogLog h = new HyperLogLog();
+
+		h.offer(HyperLogLog.hash("a"));
+		h.clear();
+
+		assertEquals(0, h.cardinality());
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testInvalidPrecision() {
+		new HyperLogLog(20);
+	}
+}
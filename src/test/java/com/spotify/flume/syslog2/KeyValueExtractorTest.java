@@ -0,0 +1,112 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.ByteArrayInputStream;
+
+import com.cloudera.flume.core.Event;
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+
+public class KeyValueExtractorTest {
+	@Test
+	public void testExtract() throws Exception {
+		Event e = parse("nginx:status,bytes,path", "<11>1 2011-10-05T12:23:34.567Z host nginx - - - GET path=/index.html status=200 bytes=512 status=404");
+
+		assertEquals("200", get(e, "status"));
+		assertEquals("512", get(e, "bytes"));
+		assertEquals("/index.html", get(e, "path"));
+		assertEquals("GET path=/index.html status=200 bytes=512 status=404", new String(e.getBody(), "UTF-8"));
+	}
+
+	@Test
+	public void testQuoted() throws Exception {
+		Event e = parse("app:msg,user", "<11>1 2011-10-05T12:23:34.567Z host app - - - msg=\"say \\\"hi\\\" to\\\\all\" user=bob");
+
+		assertEquals("say \"hi\" to\\all", get(e, "msg"));
+		assertEquals("bob", get(e, "user"));
+	}
+
+	@Test
+	public void testUnterminatedQuote() throws Exception {
+		Event e = parse("app:msg", "<11>1 2011-10-05T12:23:34.567Z host app - - - msg=\"open ended");
+
+		assertEquals("open ended", get(e, "msg"));
+	}
+
+	@Test
+	public void testPerAppname() throws Exception {
+		String spec = "nginx:status;sshd:user;*:id";
+
+		Event e = parse(spec, "<11>1 2011-10-05T12:23:34.567Z host nginx - - - status=200 user=root id=1");
+
+		assertEquals("200", get(e, "status"));
+		assertNull(get(e, "user"));
+		assertEquals("1", get(e, "id"));
+
+		e = parse(spec, "<11>Oct  5 12:23:34 host sshd[42]: status=200 user=root id=2");
+
+		assertNull(get(e, "status"));
+		assertEquals("root", get(e, "user"));
+		assertEquals("2", get(e, "id"));
+
+		e = parse(spec, "<11>1 2011-10-05T12:23:34.567Z host other - - - status=200 id=3");
+
+		assertNull(get(e, "status"));
+		assertEquals("3", get(e, "id"));
+	}
+
+	@Test
+	public void testNoPairs() throws Exception {
+		Event e = parse("id", "<11>1 2011-10-05T12:23:34.567Z host app - - - no pairs = here, id");
+
+		assertNull(get(e, "id"));
+		assertNull(get(e, "no"));
+	}
+
+	@Test
+	public void testEmptyValue() throws Exception {
+		Event e = parse("a,b", "<11>1 2011-10-05T12:23:34.567Z host app - - - a= b=2");
+
+		assertEquals("", get(e, "a"));
+		assertEquals("2", get(e, "b"));
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testEmptySpec() {
+		KeyValueExtractor.parse(" ; ");
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testBadKey() {
+		KeyValueExtractor.parse("app:a=b");
+	}
+
+	private static Event parse(String spec, String msg) throws Exception {
+		SyslogParser p = new SyslogParser(new ByteArrayInputStream((msg + "\n").getBytes("UTF-8")));
+
+		p.setKeyValueExtractor(KeyValueExtractor.parse(spec));
+
+		return p.readEvent();
+	}
+
+	private static String get(Event e, String key) throws Exception {
+		byte[] v = e.get(SyslogParser.SYSLOG_KV_PREFIX + key);
+
+		return (v == null ? null : new String(v, "UTF-8"));
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.ByteArrayInputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import com.cloudera.flume.core.Event;
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+
+public class MultiLineAssemblerTest {
+	@Test
+	public void testStackTrace() throws Exception {
+		MultiLineAssembler a = new MultiLineAssembler(MultiLineAssembler.JAVA, 1000, 100, 1 << 16, 100);
+
+		assertNull(a.offer(parse("<11>Oct  5 12:23:34 host app[1]: java.lang.RuntimeException: boom"), 0));
+		assertNull(a.offer(parse("<11>Oct  5 12:23:34 host app[1]: \tat Foo.bar(Foo.java:1)"), 10));
+		assertNull(a.offer(parse("<11>Oct  5 12:23:34 host app[1]: Caused by: java.io.IOException"), 20));
+		assertNull(a.offer(parse("<11>Oct  5 12:23:34 host app[1]: \t... 5 more"), 30));
+		assertNull(a.poll(1029));
+
+		Event e = a.poll(1030);
+
+		assertEquals("java.lang.RuntimeException: boom\n\tat Foo.bar(Foo.java:1)\nCaused by: java.io.IOException\n\t... 5 more", new String(e.getBody(), "UTF-8"));
+		assertEquals("host", e.getHost());
+		assertEquals("app", new String(e.get(SyslogParser.SYSLOG_APPNAME), "UTF-8"));
+		assertEquals(4, ByteBuffer.wrap(e.get(SyslogParser.SYSLOG_LINES)).getLong());
+		assertEquals(3, a.getNumJoined());
+		assertNull(a.poll(5000));
+	}
+
+	@Test
+	public void testSingleLines() throws Exception {
+		MultiLineAssembler a = new MultiLineAssembler(MultiLineAssembler.JAVA, 1000, 100, 1 << 16, 100);
+		Event first = parse("<11>Oct  5 12:23:34 host app[1]: one");
+
+		assertNull(a.offer(first, 0));
+		// A new message closes the previous one of the process.
+		assertSame(first, a.offer(parse("<11>Oct  5 12:23:34 host app[1]: two"), 0));
+		assertEquals("two", new String(a.flush().getBody(), "UTF-8"));
+		assertNull(a.flush());
+		assertEquals(0, a.getNumJoined());
+	}
+
+	@Test
+	public void testGroups() throws Exception {
+		MultiLineAssembler a = new MultiLineAssembler("indent", 1000, 100, 1 << 16, 100);
+
+		a.offer(parse("<11>Oct  5 12:23:34 host app[1]: a"), 0);
+		a.offer(parse("<11>Oct  5 12:23:34 host app[2]: b"), 0);
+		a.offer(parse("<11>Oct  5 12:23:34 host2 app[1]: c"), 0);
+		a.offer(parse("<11>Oct  5 12:23:34 host app[2]: \tb2"), 0);
+		a.offer(parse("<11>Oct  5 12:23:34 host app[1]: \ta2"), 0);
+
+		// Least recently extended first.
+		assertEquals("c", new String(a.flush().getBody(), "UTF-8"));
+		assertEquals("b\n\tb2", new String(a.poll(0).getBody(), "UTF-8"));
+		assertEquals("a\n\ta2", new String(a.poll(0).getBody(), "UTF-8"));
+		assertNull(a.poll(0));
+	}
+
+	@Test
+	public void testMaxLines() throws Exception {
+		MultiLineAssembler a = new MultiLineAssembler("indent", 1000, 2, 1 << 16, 100);
+
+		assertNull(a.offer(parse("<11>Oct  5 12:23:34 host app[1]: a"), 0));
+
+		Event e = a.offer(parse("<11>Oct  5 12:23:34 host app[1]: \ta2"), 0);
+
+		assertEquals("a\n\ta2", new String(e.getBody(), "UTF-8"));
+
+		// Without an open message, a continuation starts one.
+		assertNull(a.offer(parse("<11>Oct  5 12:23:34 host app[1]: \ta3"), 0));
+		assertEquals("\ta3", new String(a.flush().getBody(), "UTF-8"));
+	}
+
+	@Test
+	public void testMaxBytes() throws Exception {
+		MultiLineAssembler a = new MultiLineAssembler("indent", 1000, 100, 8, 100);
+
+		// Exactly at the limit, the line is joined and the message closed.
+		assertNull(a.offer(parse("<11>Oct  5 12:23:34 host app[1]: abc"), 0));
+		assertEquals("abc\n\tdef", new String(a.offer(parse("<11>Oct  5 12:23:34 host app[1]: \tdef"), 0).getBody(), "UTF-8"));
+
+		// One byte more, and the line starts a new message instead.
+		a = new MultiLineAssembler("indent", 1000, 100, 7, 100);
+		assertNull(a.offer(parse("<11>Oct  5 12:23:34 host app[1]: abc"), 0));
+		assertEquals("abc", new String(a.offer(parse("<11>Oct  5 12:23:34 host app[1]: \tdef"), 0).getBody(), "UTF-8"));
+		assertEquals("\tdef", new String(a.flush().getBody(), "UTF-8"));
+		assertEquals(0, a.getNumJoined());
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		MultiLineAssembler a = new MultiLineAssembler("indent", 1000, 100, 1 << 16, 1);
+
+		assertNull(a.offer(parse("<11>Oct  5 12:23:34 host app[1]: a"), 0));
+		assertEquals("a", new String(a.offer(parse("<11>Oct  5 12:23:34 host app[2]: b"), 0).getBody(), "UTF-8"));
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		MultiLineAssembler a = new MultiLineAssembler("indent", 1000, 100, 1 << 16, 100);
+
+		assertEquals(0, a.getTimeout(0));
+		a.offer(parse("<11>Oct  5 12:23:34 host app[1]: a"), 0);
+		assertEquals(1000, a.getTimeout(0));
+		a.offer(parse("<11>Oct  5 12:23:34 host app[1]: \ta2"), 500);
+		// Measured from the last line.
+		assertEquals(1000, a.getTimeout(500));
+		assertNull(a.poll(1000));
+		assertNotNull(a.poll(1500));
+	}
+
+	@Test
+	public void testSource() throws Exception {
+		SyslogDatagramSocketSource s = new SyslogDatagramSocketSource(new InetSocketAddress("localhost", SyslogDatagramSocketSourceTest.PORT), 4096);
+		DatagramSocket sender = new DatagramSocket();
+
+		s.setMultiLineAssembler(new MultiLineAssembler(MultiLineAssembler.JAVA, 100, 100, 1 << 16, 100));
+		s.open();
+
+		try {
+			for (String line : new String[] { "boom", "\tat Foo.bar()", "next" }) {
+				byte[] b = ("<11>Oct  5 12:23:34 host app[1]: " + line).getBytes("UTF-8");
+
+				sender.send(new DatagramPacket(b, b.length, InetAddress.getByName("localhost"), SyslogDatagramSocketSourceTest.PORT));
+			}
+
+			assertEquals("boom\n\tat Foo.bar()", new String(s.next().getBody(), "UTF-8"));
+			// Closed by the timeout.
+			assertEquals("next", new String(s.next().getBody(), "UTF-8"));
+			assertEquals(1, (long) s.getMetrics().getLongMetric(BaseSource.R_NUM_JOINED));
+		} finally {
+			s.close();
+			sender.close();
+		}
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testNoRules() {
+		new MultiLineAssembler(";", 1000, 100, 1 << 16, 100);
+	}
+
+	private static Event parse(String msg) throws Exception {
+		return new SyslogParser(new ByteArrayInputStream((msg + "\n").getBytes("UTF-8"))).readEvent();
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+
+public class PeerResolverTest {
+	/**
+	 * Names addresses "host-N", N being the number of the call.
+	 */
+	private static class CountingResolver implements PeerResolver.Resolver {
+		final AtomicInteger calls = new AtomicInteger();
+		volatile boolean fail = false;
+
+		@Override
+		public String resolve(InetAddress address) throws Exception {
+			int n = calls.incrementAndGet();
+
+			if (fail) throw new Exception("No DNS");
+
+			return "host-" + n;
+		}
+	}
+
+	@Test
+	public void testLookup() throws Exception {
+		CountingResolver r = new CountingResolver();
+		PeerResolver p = new PeerResolver(r);
+		InetAddress a = InetAddress.getByName("192.0.2.1");
+
+		assertEquals("host-1", await(p, a, null));
+		assertEquals("host-1", p.lookup(a));
+		assertEquals(1, r.calls.get());
+		assertEquals(1, p.getMisses());
+		assertEquals(1, p.getNumEntries());
+	}
+
+	@Test
+	public void testNoName() throws Exception {
+		final AtomicInteger calls = new AtomicInteger();
+		PeerResolver p = new PeerResolver(new PeerResolver.Resolver() {
+			@Override
+			public String resolve(InetAddress address) {
+				calls.incrementAndGet();
+
+				return null;
+			}
+		});
+		InetAddress a = InetAddress.getByName("192.0.2.1");
+
+		p.lookup(a);
+
+		while (calls.get() == 0)
+			Thread.sleep(1);
+
+		Thread.sleep(50);
+
+		// Cached as nameless.
+		assertNull(p.lookup(a));
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	public void testExpiry() throws Exception {
+		CountingResolver r = new CountingResolver();
+		PeerResolver p = new PeerResolver(r, 100, 50, 1);
+		InetAddress a = InetAddress.getByName("192.0.2.1");
+
+		assertEquals("host-1", await(p, a, null));
+		Thread.sleep(100);
+
+		// The stale name is served while refreshing.
+		String name = p.lookup(a);
+
+		assertTrue("host-1".equals(name) || "host-2".equals(name));
+		assertEquals("host-2", await(p, a, "host-1"));
+		assertEquals(1, p.getMisses());
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		CountingResolver r = new CountingResolver();
+		PeerResolver p = new PeerResolver(r, 100, 50, 1);
+		InetAddress a = InetAddress.getByName("192.0.2.1");
+
+		assertEquals("host-1", await(p, a, null));
+		r.fail = true;
+		Thread.sleep(100);
+		p.lookup(a);
+
+		while (r.calls.get() < 2)
+			Thread.sleep(1);
+
+		Thread.sleep(50);
+		assertEquals("host-1", p.lookup(a));
+	}
+
+	@Test
+	public void testBounded() throws Exception {
+		PeerResolver p = new PeerResolver(new CountingResolver(), 2, 1000, 1);
+
+		p.lookup(InetAddress.getByName("192.0.2.1"));
+		p.lookup(InetAddress.getByName("192.0.2.2"));
+		p.lookup(InetAddress.getByName("192.0.2.3"));
+
+		assertEquals(2, p.getNumEntries());
+		assertEquals(3, p.getMisses());
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testInvalid() {
+		new PeerResolver(new CountingResolver(), 0, 1000, 1);
+	}
+
+	/**
+	 * Look up an address until the name is no longer the given one.
+	 */
+	static String await(PeerResolver p, InetAddress a, String old) throws Exception {
+		for (;;) {
+			String name = p.lookup(a);
+
+			if (name != null && !name.equals(old)) return name;
+
+			Thread.sleep(1);
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.ByteArrayInputStream;
+
+import com.cloudera.flume.core.Event;
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+
+public class RateLimiterTest {
+	/// Nanoseconds.
+	final private static long MS = 1000000;
+
+	@Test
+	public void testBurstAndRefill() throws Exception {
+		RateLimiter l = new RateLimiter(RateLimiter.Key.PEER, 10, 2, 100);
+
+		assertTrue(acquire(l, "a", 0));
+		assertTrue(acquire(l, "a", 0));
+		assertFalse(acquire(l, "a", 0));
+		assertFalse(acquire(l, "a", 50 * MS));
+		assertTrue(acquire(l, "a", 100 * MS));
+		assertFalse(acquire(l, "a", 100 * MS));
+		// Never more than the burst.
+		assertTrue(acquire(l, "a", 10000 * MS));
+		assertTrue(acquire(l, "a", 10000 * MS));
+		assertFalse(acquire(l, "a", 10000 * MS));
+		assertEquals(4, l.getLimited());
+	}
+
+	@Test
+	public void testKeys() throws Exception {
+		RateLimiter l = new RateLimiter(RateLimiter.Key.PEER, 1, 1, 100);
+
+		assertTrue(acquire(l, "a", 0));
+		assertFalse(acquire(l, "a", 0));
+		assertTrue(acquire(l, "b", 0));
+		assertTrue(acquire(l, "", 0));
+		// Missing keys share the empty key.
+		assertFalse(l.acquire(null, 0, -1, 0));
+		assertEquals(3, l.getNumKeys());
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		RateLimiter l = new RateLimiter(RateLimiter.Key.PEER, 1, 1, 2);
+
+		assertTrue(acquire(l, "a", 0));
+		assertTrue(acquire(l, "b", 0));
+		assertFalse(acquire(l, "a", 0));
+		// b is the most idle.
+		assertTrue(acquire(l, "c", 0));
+		assertEquals(2, l.getNumKeys());
+		assertFalse(acquire(l, "a", 0));
+		assertTrue(acquire(l, "b", 0));
+	}
+
+	@Test
+	public void testLimitedKeys() throws Exception {
+		RateLimiter l = new RateLimiter(RateLimiter.Key.PEER, 1, 1, 100);
+
+		for (int i = 0; i < 3; ++i) {
+			acquire(l, "a", 0);
+			acquire(l, "b", 0);
+			acquire(l, "c", 0);
+		}
+
+		assertEquals(3, l.getLimitedKeys());
+		assertEquals(0, l.getLimitedKeys());
+		assertFalse(acquire(l, "a", 0));
+		assertEquals(1, l.getLimitedKeys());
+		assertEquals(7, l.getLimited());
+	}
+
+	@Test
+	public void testParseKey() {
+		assertEquals(RateLimiter.Key.PEER, RateLimiter.parseKey("peer"));
+		assertEquals(RateLimiter.Key.APPNAME, RateLimiter.parseKey("appname"));
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testUnknownKey() {
+		RateLimiter.parseKey("facility");
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testInvalidRate() {
+		new RateLimiter(RateLimiter.Key.PEER, 0, 1, 100);
+	}
+
+	@Test
+	public void testParserByAppname() throws Exception {
+		String data =
+			"<14>1 2011-10-05T12:23:34.567Z host1 app1 - - - one\n" +
+			"<14>1 2011-10-05T12:23:34.567Z host1 app1 - - - limited\n" +
+			"<14>1 2011-10-05T12:23:34.567Z host1 app2 - - - two\n" +
+			"<14>Oct  5 12:23:34 host1 app1: limited\n" +
+			"<14>Oct  5 12:23:34 host1 app3[1]: three\n";
+		RateLimiter l = new RateLimiter(RateLimiter.Key.APPNAME, 0.001, 1, 100);
+		SyslogParser p = new SyslogParser(new ByteArrayInputStream(data.getBytes("UTF-8")));
+
+		p.setRateLimiter(l);
+
+		assertEquals("one", new String(p.readEvent().getBody(), "UTF-8"));
+		assertEquals("two", new String(p.readEvent().getBody(), "UTF-8"));
+		assertEquals("three", new String(p.readEvent().getBody(), "UTF-8"));
+		assertNull(p.readEvent());
+		assertEquals(2, l.getLimited());
+	}
+
+	@Test
+	public void testParserByHost() throws Exception {
+		String data =
+			"<14>Oct  5 12:23:34 host1 app: one\n" +
+			"<14>Oct  5 12:23:34 host1 app: limited\n" +
+			"<14>Oct  5 12:23:34 host2 app: two\n";
+		RateLimiter l = new RateLimiter(RateLimiter.Key.HOST, 0.001, 1, 100);
+		SyslogParser p = new SyslogParser(new ByteArrayInputStream(data.getBytes("UTF-8")));
+
+		p.setRateLimiter(l);
+
+		assertEquals("one", new String(p.readEvent().getBody(), "UTF-8"));
+		assertEquals("two", new String(p.readEvent().getBody(), "UTF-8"));
+		assertNull(p.readEvent());
+		assertEquals(1, l.getLimited());
+	}
+
+	@Test
+	public void testParserByPeer() throws Exception {
+		String data =
+			"<15>Oct  5 12:23:34 host1 app: filtered\n" +
+			"<14>Oct  5 12:23:34 host1 app: one\n" +
+			"<14>Oct  5 12:23:34 host2 app: limited\n";
+		RateLimiter l = new RateLimiter(RateLimiter.Key.PEER, 0.001, 1, 100);
+		SyslogParser p = new SyslogParser(new ByteArrayInputStream(data.getBytes("UTF-8")));
+
+		p.setFilter(SyslogFilter.parse("severity=debug"));
+		p.setRateLimiter(l);
+		p.setPeer(new byte[] { 10, 0, 0, 1 });
+
+		// Filtered messages don't use up tokens.
+		assertEquals("one", new String(p.readEvent().getBody(), "UTF-8"));
+		assertNull(p.readEvent());
+		assertEquals(1, l.getLimited());
+	}
+
+	@Test
+	public void testRawByHost() throws Exception {
+		String data = "<14>one\n<14>limited\n";
+		RateLimiter l = new RateLimiter(RateLimiter.Key.HOST, 0.001, 1, 100);
+		SyslogParser p = new SyslogParser(new ByteArrayInputStream(data.getBytes("UTF-8")));
+
+		p.setRateLimiter(l);
+		p.setPeer(new byte[] { 10, 0, 0, 1 });
+
+		Event e = p.readRawEvent("10.0.0.1");
+
+		assertEquals("one", new String(e.getBody(), "UTF-8"));
+		assertNull(p.readRawEvent("10.0.0.1"));
+		assertEquals(1, l.getLimited());
+	}
+
+	private static boolean acquire(RateLimiter l, String key, long now) throws Exception {
+		byte[] b = ("xx" + key).getBytes("UTF-8");
+
+		return l.acquire(b, 2, b.length - 2, now);
+	}
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloudera.flume.core.Event;
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+
+/**
+ * A long-running connection scaling test of ServerSocketSource.
+ *
+ * Keeps thousands of connections open, sending traffic while randomly
+ * closing and reopening them. Every message is unique, and the consumer
+ * checks that none are lost or duplicated. Thread count, heap, file
+ * descriptors and throughput are printed as we go.
+ *
+ * This is in the "stress" group, which is only run with -Pstress. Scale it
+ * with -Dsoak.connections=N and -Dsoak.duration=SECONDS.
+ */
+public class ServerSocketSourceSoakTest {
+	final public static int PORT = 53859;
+
+	/// Number of client threads sharing the connections.
+	final private static int NUM_CLIENTS = 16;
+	/// Probability of reconnecting after each message.
+	final private static double CHURN = 0.01;
+	/// Seconds between samples.
+	final private static int SAMPLE_INTERVAL = 5;
+
+	private volatile boolean running = true;
+	private AtomicLong numSent = new AtomicLong();
+
+	@Test(groups = { "stress" })
+	public void testSoak() throws Exception {
+		int connections = Integer.getInteger("soak.connections", 2000);
+		int duration = Integer.getInteger("soak.duration", 60);
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		int baseThreads = threads.getThreadCount();
+		long baseFds = getOpenFileDescriptors();
+		final SyslogSocketSource source = new SyslogSocketSource(new InetSocketAddress("localhost", PORT));
+		final Set<String> received = new HashSet<String>();
+		final AtomicLong numReceived = new AtomicLong();
+		final AtomicLong numDuplicates = new AtomicLong();
+
+		source.open();
+
+		Thread consumer = new Thread("soak-consumer") {
+			public void run() {
+				try {
+					Event e;
+
+					while ((e = source.next()) != null) {
+						synchronized (received) {
+							if (!received.add(new String(e.getBody(), "UTF-8")))
+								numDuplicates.incrementAndGet();
+						}
+
+						numReceived.incrementAndGet();
+					}
+				} catch (Exception ex) {
+					// Closed.
+				}
+			}
+		};
+
+		consumer.start();
+
+		List<Client> clients = new ArrayList<Client>();
+
+		for (int i = 0; i < NUM_CLIENTS; ++i)
+			clients.add(new Client(i, connections / NUM_CLIENTS));
+
+		for (Client c : clients)
+			c.start();
+
+		long lastReceived = 0;
+
+		for (int t = 0; t < duration; t += SAMPLE_INTERVAL) {
+			Thread.sleep(SAMPLE_INTERVAL * 1000L);
+
+			long n = numReceived.get();
+
+			printSample(t + SAMPLE_INTERVAL, (n - lastReceived) / SAMPLE_INTERVAL);
+			lastReceived = n;
+		}
+
+		running = false;
+
+		for (Client c : clients)
+			c.join();
+
+		// Wait for the source to drain.
+		for (long last = -1; numReceived.get() != last; ) {
+			last = numReceived.get();
+			Thread.sleep(1000);
+		}
+
+		long closeStart = System.currentTimeMillis();
+
+		source.close();
+		consumer.join();
+		System.out.println("soak: close took " + (System.currentTimeMillis() - closeStart) + " ms");
+		printSample(-1, 0);
+
+		assertEquals("duplicates", 0, numDuplicates.get());
+		assertEquals("lost", numSent.get(), numReceived.get());
+		// Allow for some unrelated JVM threads coming and going.
+		assertTrue("leaked threads", threads.getThreadCount() <= baseThreads + 2);
+
+		if (baseFds >= 0)
+			assertTrue("leaked file descriptors", getOpenFileDescriptors() <= baseFds + 16);
+	}
+
+	private void printSample(int t, long rate) {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+		System.out.println("soak: t=" + t + "s" +
+			" threads=" + ManagementFactory.getThreadMXBean().getThreadCount() +
+			" heap=" + (memory.getHeapMemoryUsage().getUsed() >> 20) + "MB" +
+			" fds=" + getOpenFileDescriptors() +
+			" sent=" + numSent.get() +
+			" next/s=" + rate);
+	}
+
+	/**
+	 * Return the number of open file descriptors, or -1 if unknown.
+	 */
+	private static long getOpenFileDescriptors() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+		if (os instanceof com.sun.management.UnixOperatingSystemMXBean)
+			return ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+
+		return -1;
+	}
+
+	/**
+	 * A thread writing to a set of connections round-robin.
+	 */
+	private class Client extends Thread {
+		private int id;
+		private Socket[] sockets;
+		private OutputStream[] outs;
+		private int[] generations;
+		private Random random;
+
+		public Client(int id, int numConnections) {
+			super("soak-client-" + id);
+			this.id = id;
+			this.sockets = new Socket[numConnections];
+			this.outs = new OutputStream[numConnections];
+			this.generations = new int[numConnections];
+			this.random = new Random(id);
+		}
+
+		public void run() {
+			try {
+				for (int i = 0; i < sockets.length; ++i)
+					connect(i);
+
+				for (long seq = 0; running; ++seq) {
+					int i = (int) (seq % sockets.length);
+					String msg = "<11>1 2011-10-05T12:23:34.567Z host app - - - c" + id + "." + i + "-g" + generations[i] + "-m" + seq + "\n";
+
+					outs[i].write(msg.getBytes("UTF-8"));
+					outs[i].flush();
+					numSent.incrementAndGet();
+
+					if (random.nextDouble() < CHURN) {
+						sockets[i].close();
+						++generations[i];
+						connect(i);
+					}
+				}
+
+				for (Socket s : sockets)
+					s.close();
+			} catch (IOException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+
+		private void connect(int i) throws IOException {
+			sockets[i] = new Socket("localhost", PORT);
+			outs[i] = new BufferedOutputStream(sockets[i].getOutputStream());
+		}
+	}
+}
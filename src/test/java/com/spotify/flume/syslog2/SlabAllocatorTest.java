@@ -0,0 +1,123 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.ByteArrayInputStream;
+
+import com.cloudera.flume.core.Event;
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+
+public class SlabAllocatorTest {
+	@Test
+	public void testCopy() throws Exception {
+		SlabAllocator a = new SlabAllocator(16, 1);
+		byte[] b = "xhelloworld".getBytes("UTF-8");
+		SlabAllocator.Slice s1 = a.allocate(b, 1, 5);
+		SlabAllocator.Slice s2 = a.allocate(b, 6, 5);
+
+		assertEquals(5, s1.length());
+		assertEquals("world", new String(s2.copy(), "UTF-8"));
+		assertEquals("hello", new String(s1.copy(), "UTF-8"));
+		assertEquals(1, a.getNumSlabs());
+		assertEquals(0, a.getFallbacks());
+	}
+
+	@Test
+	public void testRecycle() throws Exception {
+		SlabAllocator a = new SlabAllocator(8, 2);
+		byte[] b = new byte[6];
+		SlabAllocator.Slice s1 = a.allocate(b, 0, 6);
+		SlabAllocator.Slice s2 = a.allocate(b, 0, 6);
+
+		assertEquals(2, a.getSlabsInUse());
+		// The first slab is full, so its last slice frees it.
+		s1.release();
+		assertEquals(1, a.getSlabsInUse());
+
+		SlabAllocator.Slice s3 = a.allocate(b, 0, 6);
+
+		assertNotNull(s3);
+		assertEquals(2, a.getNumSlabs());
+		assertEquals(2, a.getSlabsInUse());
+		s2.release();
+		s3.release();
+		// The slab being filled is kept.
+		assertEquals(1, a.getSlabsInUse());
+	}
+
+	@Test
+	public void testFallback() throws Exception {
+		SlabAllocator a = new SlabAllocator(8, 1);
+		byte[] b = new byte[9];
+
+		assertNull(a.allocate(b, 0, 9));
+		assertNotNull(a.allocate(b, 0, 6));
+		// The only slab is still referenced.
+		assertNull(a.allocate(b, 0, 6));
+		assertEquals(2, a.getFallbacks());
+	}
+
+	@Test(expectedExceptions = { IllegalStateException.class })
+	public void testDoubleRelease() throws Exception {
+		SlabAllocator a = new SlabAllocator(8, 1);
+		SlabAllocator.Slice s = a.allocate(new byte[1], 0, 1);
+
+		s.release();
+		s.release();
+	}
+
+	@Test
+	public void testParser() throws Exception {
+		String data = "<11>1 2011-10-05T12:23:34.567Z host app proc msg [a b=\"c\"] hello\n<11>Oct  5 12:23:34 host tag[123]: world\n";
+		SyslogParser heap = new SyslogParser(new ByteArrayInputStream(data.getBytes("UTF-8")));
+		SyslogParser offHeap = new SyslogParser(new ByteArrayInputStream(data.getBytes("UTF-8")));
+		SlabAllocator a = new SlabAllocator(64, 4);
+
+		offHeap.setSlabAllocator(a);
+
+		Event h1 = heap.readEvent();
+		Event h2 = heap.readEvent();
+		Event o1 = offHeap.readEvent();
+		Event o2 = offHeap.readEvent();
+
+		// One slab per message.
+		assertEquals(2, a.getSlabsInUse());
+		assertEquals(h1.toString(), o1.toString());
+		assertEquals(1, a.getSlabsInUse());
+		assertEquals("world", new String(o2.getBody(), "UTF-8"));
+		assertEquals(h2.toString(), o2.toString());
+		assertEquals(1, a.getSlabsInUse());
+		assertEquals(0, a.getFallbacks());
+	}
+
+	@Test
+	public void testRelease() throws Exception {
+		SyslogParser p = new SyslogParser(new ByteArrayInputStream("<11>Oct  5 12:23:34 host tag: a\n<11>Oct  5 12:23:34 host tag: b\n".getBytes("UTF-8")));
+		SlabAllocator a = new SlabAllocator(32, 4);
+
+		p.setSlabAllocator(a);
+
+		SyslogEvent e1 = (SyslogEvent) p.readEvent();
+		SyslogEvent e2 = (SyslogEvent) p.readEvent();
+
+		assertEquals(2, a.getSlabsInUse());
+		e1.release();
+		e2.release();
+		assertEquals(1, a.getSlabsInUse());
+	}
+}
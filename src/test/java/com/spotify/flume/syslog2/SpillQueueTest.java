@@ -0,0 +1,197 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.core.EventImpl;
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+
+public class SpillQueueTest {
+	private File dir;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		dir = File.createTempFile("spill", "test");
+		dir.delete();
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		File[] files = dir.listFiles();
+
+		if (files != null) {
+			for (File f : files)
+				f.delete();
+		}
+
+		dir.delete();
+	}
+
+	@Test
+	public void testMemory() throws Exception {
+		SpillQueue q = new SpillQueue(dir, 10, 4096, 4);
+
+		assertTrue(q.offer(createEvent(0)));
+		q.put(createEvent(1));
+		assertEquals(2, q.size());
+		assertEquals("0", new String(q.take().getBody(), "UTF-8"));
+		assertEquals("1", new String(q.poll().getBody(), "UTF-8"));
+		assertNull(q.poll());
+		assertEquals(0, q.getTotalSpilled());
+		assertEquals(0, countSegments());
+	}
+
+	@Test
+	public void testSpill() throws Exception {
+		SpillQueue q = new SpillQueue(dir, 2, 4096, 100);
+
+		for (int i = 0; i < 200; ++i)
+			q.put(createEvent(i));
+
+		assertEquals(198, q.getTotalSpilled());
+		assertEquals(198, q.getNumSpilled());
+		assertEquals(200, q.size());
+		// Keeps the order.
+		assertFalse(q.offer(createEvent(-1)));
+		assertTrue(countSegments() > 1);
+
+		for (int i = 0; i < 200; ++i)
+			assertEvent(i, q.poll(1, TimeUnit.SECONDS));
+
+		assertNull(q.poll());
+		assertEquals(0, q.getNumSpilled());
+		// The last segment and a spare.
+		assertEquals(2, countSegments());
+
+		// Back to memory.
+		assertTrue(q.offer(createEvent(0)));
+
+		q.close();
+		assertEquals(0, countSegments());
+	}
+
+	@Test
+	public void testInterleaved() throws Exception {
+		SpillQueue q = new SpillQueue(dir, 3, 4096, 100);
+		int next = 0;
+
+		for (int i = 0; i < 500; ++i) {
+			q.put(createEvent(i));
+
+			// Fall behind, then catch up now and then.
+			if (i % 3 == 0) assertEvent(next++, q.poll());
+
+			if (i % 100 == 99) {
+				while (next <= i)
+					assertEvent(next++, q.poll());
+			}
+		}
+
+		assertNull(q.poll());
+		assertTrue(q.getTotalSpilled() > 0);
+	}
+
+	@Test
+	public void testFull() throws Exception {
+		SpillQueue q = new SpillQueue(dir, 1, 1024, 1);
+		int n = 0;
+
+		while (q.offer(createEvent(n), 10, TimeUnit.MILLISECONDS))
+			++n;
+
+		assertTrue(n > 2);
+		assertEquals(1, countSegments());
+		assertEvent(0, q.poll());
+		assertEvent(1, q.poll());
+		// Still no room, since the segment is only reused once read.
+		assertFalse(q.offer(createEvent(n), 10, TimeUnit.MILLISECONDS));
+
+		for (int i = 2; i < n; ++i)
+			assertEvent(i, q.poll());
+
+		assertTrue(q.offer(createEvent(n), 10, TimeUnit.MILLISECONDS));
+		assertEvent(n, q.poll());
+	}
+
+	@Test
+	public void testTooLarge() throws Exception {
+		SpillQueue q = new SpillQueue(dir, 1, 1024, 4);
+		Event large = new EventImpl(new byte[2000]);
+
+		q.put(createEvent(0));
+		q.put(createEvent(1));
+		assertFalse(q.offer(large, 10, TimeUnit.MILLISECONDS));
+		assertEvent(0, q.poll());
+		assertEvent(1, q.poll());
+		// Goes in memory once there is room.
+		assertTrue(q.offer(large, 10, TimeUnit.MILLISECONDS));
+		assertSame(large, q.poll());
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testInvalid() throws Exception {
+		new SpillQueue(dir, 0, 4096, 4);
+	}
+
+	private int countSegments() {
+		String[] names = dir.list();
+		int n = 0;
+
+		for (String name : names) {
+			if (name.startsWith(SpillQueue.SEGMENT_PREFIX)) ++n;
+		}
+
+		return n;
+	}
+
+	private static Event createEvent(int i) throws Exception {
+		Map<String, byte[]> attrs = new HashMap<String, byte[]>();
+
+		attrs.put(SyslogParser.SYSLOG_APPNAME, ("app" + (i % 7)).getBytes("UTF-8"));
+		attrs.put(SyslogParser.SYSLOG_SEVERITY, new byte[] { (byte) (i % 8) });
+
+		return new EventImpl(Integer.toString(i).getBytes("UTF-8"), 1000L * i, Event.Priority.INFO, 7L * i, getHost(i), attrs);
+	}
+
+	private static String getHost(int i) {
+		// Some events have no host, which is not the same as an empty one.
+		switch (i % 3) {
+		case 0:
+			return null;
+		case 1:
+			return "";
+		default:
+			return "host" + i;
+		}
+	}
+
+	private static void assertEvent(int i, Event e) throws Exception {
+		assertNotNull(e);
+		assertEquals(Integer.toString(i), new String(e.getBody(), "UTF-8"));
+		assertEquals(1000L * i, e.getTimestamp());
+		assertEquals(7L * i, e.getNanos());
+		assertEquals(getHost(i), e.getHost());
+		assertEquals("app" + (i % 7), new String(e.get(SyslogParser.SYSLOG_APPNAME), "UTF-8"));
+		assertEquals(i % 8, e.get(SyslogParser.SYSLOG_SEVERITY)[0]);
+	}
+}
@@ -16,14 +16,18 @@
 package com.spotify.flume.syslog2;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 import com.cloudera.flume.core.Event;
+import com.cloudera.flume.reporter.ReportEvent;
 import org.testng.annotations.*;
 import static org.testng.AssertJUnit.*;
 
@@ -60,4 +64,308 @@ public class SyslogDatagramSocketSourceTest {
 			s.close();
 		}
 	}
+
+	@Test
+	public void testDistinctMetrics() throws Exception {
+		SyslogDatagramSocketSource s = new SyslogDatagramSocketSource(new InetSocketAddress("localhost", PORT), 4096);
+		DatagramSocket sender = new DatagramSocket();
+		String[] data = {
+			"<11>1 2011-10-05T12:23:34.567Z host1 app1 - msg1 - hello world",
+			"<11>1 2011-10-05T12:23:34.567Z host2 app1 - msg2 - hello world",
+			"<11>1 2011-10-05T12:23:34.567Z host1 app1 - msg3 - hello world",
+		};
+
+		s.open();
+
+		try {
+			for (String d : data) {
+				byte[] bytes = d.getBytes("UTF-8");
+
+				sender.send(new DatagramPacket(bytes, bytes.length, InetAddress.getByName("localhost"), PORT));
+				s.next();
+			}
+
+			ReportEvent r = s.getMetrics();
+
+			assertEquals(2, (long) r.getLongMetric(BaseSource.R_DISTINCT_HOSTNAMES));
+			assertEquals(1, (long) r.getLongMetric(BaseSource.R_DISTINCT_APPNAMES));
+			assertEquals(3, (long) r.getLongMetric(BaseSource.R_DISTINCT_MSG_IDS));
+
+			// The estimates are per reporting interval.
+			assertEquals(0, (long) s.getMetrics().getLongMetric(BaseSource.R_DISTINCT_HOSTNAMES));
+		} finally {
+			s.close();
+		}
+	}
+
+	@Test
+	public void testLagMetrics() throws Exception {
+		SyslogDatagramSocketSource s = new SyslogDatagramSocketSource(new InetSocketAddress("localhost", PORT), 4096);
+		DatagramSocket sender = new DatagramSocket();
+		String[] data = {
+			"<11>2011-10-05T12:23:34.567Z hostname tag: hello world",
+			"<11>2099-10-05T12:23:34.567Z hostname tag: hello world",
+		};
+
+		s.open();
+
+		try {
+			for (String d : data) {
+				byte[] bytes = d.getBytes("UTF-8");
+
+				sender.send(new DatagramPacket(bytes, bytes.length, InetAddress.getByName("localhost"), PORT));
+				s.next();
+			}
+
+			ReportEvent r = s.getMetrics();
+
+			assertEquals(0.5, r.getDoubleMetric(BaseSource.R_FUTURE_SHARE), 0);
+			assertEquals(0, (long) r.getLongMetric(BaseSource.R_LAG_P50));
+			assertTrue(r.getLongMetric(BaseSource.R_LAG_MAX) > 365L * 24 * 3600 * 1000);
+		} finally {
+			s.close();
+		}
+	}
+
+	@Test
+	public void testNextRaw() throws Exception {
+		SyslogDatagramSocketSource s = new SyslogDatagramSocketSource(new InetSocketAddress("localhost", PORT), 4096);
+		DatagramSocket sender = new DatagramSocket();
+		byte[] empty = new byte[0];
+		byte[] bytes = "<11>not really syslog".getBytes("UTF-8");
+
+		s.setRaw(true);
+		s.open();
+
+		try {
+			// Empty packets are ignored.
+			sender.send(new DatagramPacket(empty, empty.length, InetAddress.getByName("localhost"), PORT));
+			sender.send(new DatagramPacket(bytes, bytes.length, InetAddress.getByName("localhost"), PORT));
+
+			Event e = s.next();
+
+			assertEquals("not really syslog", new String(e.getBody(), "UTF-8"));
+			assertEquals("127.0.0.1", e.getHost());
+			assertEquals(1, e.get(SyslogParser.SYSLOG_FACILITY)[0]);
+		} finally {
+			sender.close();
+			s.close();
+		}
+	}
+
+	@Test
+	public void testFilterMetrics() throws Exception {
+		SyslogDatagramSocketSource s = new SyslogDatagramSocketSource(new InetSocketAddress("localhost", PORT), 4096);
+		DatagramSocket sender = new DatagramSocket();
+		String[] data = {
+			"<15>1 2011-10-05T12:23:34.567Z host1 app1 - - - dropped",
+			"<14>1 2011-10-05T12:23:34.567Z host1 noisy - - - dropped",
+			"<14>1 2011-10-05T12:23:34.567Z host1 app1 - - - kept",
+		};
+
+		s.setFilter(SyslogFilter.parse("severity=debug;appname=noisy"));
+		s.open();
+
+		try {
+			for (String d : data) {
+				byte[] bytes = d.getBytes("UTF-8");
+
+				sender.send(new DatagramPacket(bytes, bytes.length, InetAddress.getByName("localhost"), PORT));
+			}
+
+			assertEquals("kept", new String(s.next().getBody(), "UTF-8"));
+
+			ReportEvent r = s.getMetrics();
+
+			assertEquals(2, (long) r.getLongMetric(BaseSource.R_NUM_FILTERED));
+			assertEquals(1, (long) r.getLongMetric(BaseSource.R_NUM_FILTERED_BY + "severity=debug"));
+			assertEquals(1, (long) r.getLongMetric(BaseSource.R_NUM_FILTERED_BY + "appname=noisy"));
+			assertEquals(0, (long) r.getLongMetric(BaseSource.R_NUM_REJECTED));
+		} finally {
+			sender.close();
+			s.close();
+		}
+	}
+
+	@Test
+	public void testRateLimitMetrics() throws Exception {
+		SyslogDatagramSocketSource s = new SyslogDatagramSocketSource(new InetSocketAddress("localhost", PORT), 4096);
+		DatagramSocket sender = new DatagramSocket();
+		String[] data = {
+			"<14>1 2011-10-05T12:23:34.567Z host1 app1 - - - kept",
+			"<14>1 2011-10-05T12:23:34.567Z host1 app1 - - - limited",
+			"<14>1 2011-10-05T12:23:34.567Z host1 app1 - - - limited",
+			"<14>1 2011-10-05T12:23:34.567Z host1 app2 - - - kept too",
+		};
+
+		s.setRateLimiter(new RateLimiter(RateLimiter.Key.APPNAME, 0.001, 1, 100));
+		s.open();
+
+		try {
+			for (String d : data) {
+				byte[] bytes = d.getBytes("UTF-8");
+
+				sender.send(new DatagramPacket(bytes, bytes.length, InetAddress.getByName("localhost"), PORT));
+			}
+
+			assertEquals("kept", new String(s.next().getBody(), "UTF-8"));
+			assertEquals("kept too", new String(s.next().getBody(), "UTF-8"));
+
+			ReportEvent r = s.getMetrics();
+
+			assertEquals(2, (long) r.getLongMetric(BaseSource.R_NUM_RATE_LIMITED));
+			assertEquals(1, (long) r.getLongMetric(BaseSource.R_RATE_LIMITED_KEYS));
+			assertEquals(2, (long) r.getLongMetric(BaseSource.R_RATE_LIMITER_KEYS));
+			assertEquals(0, (long) r.getLongMetric(BaseSource.R_NUM_REJECTED));
+		} finally {
+			sender.close();
+			s.close();
+		}
+	}
+
+	@Test
+	public void testDedup() throws Exception {
+		SyslogDatagramSocketSource s = new SyslogDatagramSocketSource(new InetSocketAddress("localhost", PORT), 4096);
+		DatagramSocket sender = new DatagramSocket();
+		String[] data = {
+			"<14>1 2011-10-05T12:23:34.567Z host1 app1 - - - storm",
+			"<14>1 2011-10-05T12:23:35.567Z host1 app1 - - - storm",
+			"<14>1 2011-10-05T12:23:36.567Z host1 app1 - - - storm",
+			"<14>1 2011-10-05T12:23:37.567Z host1 app1 - - - calm",
+		};
+
+		s.setDeduplicator(new Deduplicator(200, 100));
+		s.open();
+
+		try {
+			for (String d : data) {
+				byte[] bytes = d.getBytes("UTF-8");
+
+				sender.send(new DatagramPacket(bytes, bytes.length, InetAddress.getByName("localhost"), PORT));
+			}
+
+			assertEquals("storm", new String(s.next().getBody(), "UTF-8"));
+			assertEquals("calm", new String(s.next().getBody(), "UTF-8"));
+
+			// Comes once the window has closed.
+			Event e = s.next();
+
+			assertEquals("storm", new String(e.getBody(), "UTF-8"));
+			assertEquals(2, ByteBuffer.wrap(e.get(SyslogParser.SYSLOG_REPEATED)).getLong());
+			assertEquals(2, (long) s.getMetrics().getLongMetric(BaseSource.R_NUM_SUPPRESSED));
+		} finally {
+			sender.close();
+			s.close();
+		}
+	}
+
+	@Test
+	public void testBatch() throws Exception {
+		SyslogDatagramSocketSource s = new SyslogDatagramSocketSource(new InetSocketAddress("localhost", PORT), 4096);
+		DatagramSocket sender = new DatagramSocket();
+		String[] data = {
+			"<14>1 2011-10-05T12:23:34.567Z host1 app1 - - - one",
+			"<14>1 2011-10-05T12:23:34.567Z host1 app2 - - - two",
+			"<14>1 2011-10-05T12:23:34.567Z host1 app1 - - - three",
+		};
+
+		s.setBatcher(new Batcher(Batcher.Key.APPNAME, 2, 1 << 16, 200, 100));
+		s.open();
+
+		try {
+			for (String d : data) {
+				byte[] bytes = d.getBytes("UTF-8");
+
+				sender.send(new DatagramPacket(bytes, bytes.length, InetAddress.getByName("localhost"), PORT));
+			}
+
+			// Full.
+			List<Event> app1 = BatchDecoder.decode(s.next());
+
+			assertEquals(2, app1.size());
+			assertEquals("one", new String(app1.get(0).getBody(), "UTF-8"));
+			assertEquals("three", new String(app1.get(1).getBody(), "UTF-8"));
+
+			// Comes once the delay has passed.
+			List<Event> app2 = BatchDecoder.decode(s.next());
+
+			assertEquals(1, app2.size());
+			assertEquals("two", new String(app2.get(0).getBody(), "UTF-8"));
+
+			ReportEvent r = s.getMetrics();
+
+			assertEquals(2, (long) r.getLongMetric(BaseSource.R_NUM_BATCHES));
+			assertEquals(2, (long) r.getLongMetric(BaseSource.R_DISTINCT_APPNAMES));
+		} finally {
+			sender.close();
+			s.close();
+		}
+	}
+
+	@Test
+	public void testSpill() throws Exception {
+		SyslogDatagramSocketSource s = new SyslogDatagramSocketSource(new InetSocketAddress("localhost", PORT), 4096);
+		DatagramSocket sender = new DatagramSocket();
+		File dir = File.createTempFile("spill", "test");
+		SpillQueue q;
+
+		dir.delete();
+		q = new SpillQueue(dir, 1, 4096, 4);
+		s.setSpillQueue(q);
+		s.open();
+
+		try {
+			for (int i = 0; i < 20; ++i) {
+				byte[] bytes = ("<14>Oct  5 12:23:34 host tag: " + i).getBytes("UTF-8");
+
+				sender.send(new DatagramPacket(bytes, bytes.length, InetAddress.getByName("localhost"), PORT));
+			}
+
+			// Received without us calling next().
+			for (int i = 0; i < 100 && q.size() < 20; ++i)
+				Thread.sleep(10);
+
+			assertEquals(20, q.size());
+
+			for (int i = 0; i < 20; ++i)
+				assertEquals("" + i, new String(s.next().getBody(), "UTF-8"));
+
+			ReportEvent r = s.getMetrics();
+
+			assertEquals(19, (long) r.getLongMetric(BaseSource.R_NUM_SPILLED));
+			assertEquals(0, (long) r.getLongMetric(BaseSource.R_SPILL_BACKLOG));
+			assertEquals(20, (long) r.getLongMetric("number of events"));
+		} finally {
+			sender.close();
+			s.close();
+			for (File f : dir.listFiles())
+				f.delete();
+
+			dir.delete();
+		}
+
+		assertEquals(0, q.size());
+	}
+
+	@Test
+	public void testPeerAddress() throws Exception {
+		SyslogDatagramSocketSource s = new SyslogDatagramSocketSource(new InetSocketAddress("127.0.0.1", PORT), 4096);
+		DatagramSocket sender = new DatagramSocket();
+		byte[] bytes = "<11>Oct  5 12:23:34 localhost tag: hello world".getBytes("UTF-8");
+
+		s.setPeerAttributes(true);
+		s.open();
+
+		try {
+			sender.send(new DatagramPacket(bytes, bytes.length, InetAddress.getByName("127.0.0.1"), PORT));
+
+			Event e = s.next();
+
+			assertEquals("127.0.0.1", new String(e.get(SyslogParser.SYSLOG_PEER), "UTF-8"));
+			assertNull(e.get(SyslogParser.SYSLOG_PEER_NAME));
+		} finally {
+			s.close();
+			sender.close();
+		}
+	}
 }
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.core.EventImpl;
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+
+public class SyslogEventTest {
+	final static String ENCODING = "UTF-8";
+	final static String MSG = "<11>1 2011-10-05T12:23:34Z hostname app 42 - [a b=\"c\"] hello\r world";
+
+	@Test
+	public void testFields() throws Exception {
+		Event e = parse(MSG);
+
+		assertTrue(e instanceof SyslogEvent);
+		assertEquals("hostname", e.getHost());
+		assertEquals("hello world", new String(e.getBody(), ENCODING));
+		assertEquals("app", new String(e.get(SyslogParser.SYSLOG_APPNAME), ENCODING));
+		assertEquals("42", new String(e.get(SyslogParser.SYSLOG_PROC_ID), ENCODING));
+		assertEquals(null, e.get(SyslogParser.SYSLOG_MSG_ID));
+		assertEquals("[a b=\"c\"]", new String(e.get(SyslogParser.SYSLOG_STRUCTURED_DATA), ENCODING));
+		assertEquals(3, e.get(SyslogParser.SYSLOG_SEVERITY)[0]);
+		assertEquals(6, e.getAttrs().size());
+	}
+
+	@Test
+	public void testSameAsEventImpl() throws Exception {
+		Event e = parse(MSG);
+		EventImpl target = new EventImpl(e.getBody(), e.getTimestamp(), e.getPriority(), e.getNanos(), e.getHost(), e.getAttrs());
+
+		assertEquals(target.toString(), e.toString());
+	}
+
+	@Test
+	public void testSet() throws Exception {
+		Event e = parse(MSG);
+
+		e.set("extra", new byte[] { 1 });
+
+		assertEquals(7, e.getAttrs().size());
+		assertEquals(3, e.get(SyslogParser.SYSLOG_SEVERITY)[0]);
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testSetExisting() throws Exception {
+		// The attributes must exist before anyone looks at them.
+		parse(MSG).set(SyslogParser.SYSLOG_APPNAME, new byte[] { 1 });
+	}
+
+	@Test
+	public void testMerge() throws Exception {
+		Event e = parse(MSG);
+		Event other = new EventImpl(new byte[0]);
+
+		other.set("extra", new byte[] { 1 });
+		other.set(SyslogParser.SYSLOG_APPNAME, new byte[] { 1 });
+		e.merge(other);
+
+		Map<String, byte[]> attrs = e.getAttrs();
+
+		assertTrue(Arrays.equals(new byte[] { 1 }, attrs.get("extra")));
+		assertEquals("app", new String(attrs.get(SyslogParser.SYSLOG_APPNAME), ENCODING));
+	}
+
+	@Test
+	public void testFrameReuse() throws Exception {
+		// Events must not refer to the parser's buffer.
+		byte[] frame = MSG.getBytes(ENCODING);
+		SyslogParser p = new SyslogParser(true, ENCODING);
+
+		p.reset(frame, 0, frame.length);
+
+		Event e = p.readEvent();
+
+		Arrays.fill(frame, (byte) 'x');
+
+		assertEquals("hostname", e.getHost());
+		assertEquals("hello world", new String(e.getBody(), ENCODING));
+	}
+
+	@Test
+	public void testOffer() throws Exception {
+		SyslogEvent e = (SyslogEvent) parse(MSG);
+		HyperLogLog h = new HyperLogLog();
+
+		e.offer(SyslogEvent.MSG_ID, h);
+		assertEquals(0, h.cardinality());
+
+		e.offer(SyslogEvent.HOST, h);
+		e.offer(SyslogEvent.HOST, h);
+		assertEquals(1, h.cardinality());
+	}
+
+	@Test
+	public void testStructuredDataParams() throws Exception {
+		String msg = "<11>1 2011-10-05T12:23:34Z hostname app - - " +
+			"[origin ip=\"10.0.0.1\" ip=\"10.0.0.2\"][meta x=\"\\\"a\\]\\n\\\\\" sequenceId=\"7\"][empty] hello";
+		SyslogEvent e = (SyslogEvent) parse(msg, Arrays.asList("origin.ip", "meta.x", "meta.missing", "empty.x"));
+
+		// Found in the index without creating attributes.
+		assertEquals("7", new String(e.getStructuredDataParam("meta".getBytes(), "sequenceId".getBytes()), ENCODING));
+		assertEquals(null, e.getStructuredDataParam("meta".getBytes(), "ip".getBytes()));
+
+		Map<String, byte[]> attrs = e.getAttrs();
+
+		assertEquals("10.0.0.1", new String(attrs.get("syslog.sd.origin.ip"), ENCODING));
+		assertEquals("\"a]\\n\\", new String(attrs.get("syslog.sd.meta.x"), ENCODING));
+		assertFalse(attrs.containsKey("syslog.sd.meta.missing"));
+		assertFalse(attrs.containsKey("syslog.sd.meta.sequenceId"));
+		assertFalse(attrs.containsKey("syslog.sd.empty.x"));
+		assertEquals("hello", new String(e.getBody(), ENCODING));
+	}
+
+	@Test
+	public void testStructuredDataParamsAcrossRefills() throws Exception {
+		String msg = "<11>1 2011-10-05T12:23:34Z hostname app - - [origin ip=\"10.0.0.1\"] hello";
+		SyslogParser p = new SyslogParser(new SyslogParserTest.TrickleInputStream(new ByteArrayInputStream(msg.getBytes(ENCODING))), true, ENCODING);
+
+		p.setStructuredDataParams(Arrays.asList("origin.ip"));
+
+		assertEquals("10.0.0.1", new String(p.readEvent().get("syslog.sd.origin.ip"), ENCODING));
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testInvalidStructuredDataParam() throws Exception {
+		new SyslogParser(true, ENCODING).setStructuredDataParams(Arrays.asList("origin"));
+	}
+
+	private Event parse(String msg) throws Exception {
+		return parse(msg, null);
+	}
+
+	private Event parse(String msg, List<String> sdParams) throws Exception {
+		byte[] b = msg.getBytes(ENCODING);
+		SyslogParser p = new SyslogParser(true, ENCODING);
+
+		p.setStructuredDataParams(sdParams);
+
+		p.reset(b, 0, b.length);
+
+		return p.readEvent();
+	}
+}
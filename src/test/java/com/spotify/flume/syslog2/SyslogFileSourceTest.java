@@ -0,0 +1,168 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import com.cloudera.flume.core.Event;
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+
+public class SyslogFileSourceTest {
+	final private static int NUM_MESSAGES = 10000;
+
+	private File file;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		file = File.createTempFile("syslog", ".log");
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		file.delete();
+	}
+
+	/**
+	 * Write NUM_MESSAGES messages numbered from 0, and every 100th line
+	 * garbage.
+	 */
+	private void writeMessages(OutputStream out) throws Exception {
+		for (int i = 0; i < NUM_MESSAGES; ++i) {
+			if (i % 100 == 99)
+				out.write("<garbage\n".getBytes("UTF-8"));
+
+			out.write(("<11>Oct  5 12:23:34 host tag: " + i + "\n").getBytes("UTF-8"));
+		}
+
+		out.close();
+	}
+
+	private List<String> readAll(SyslogFileSource s) throws Exception {
+		List<String> ret = new ArrayList<String>();
+		Event e;
+
+		s.open();
+
+		try {
+			while ((e = s.next()) != null)
+				ret.add(new String(e.getBody(), "UTF-8"));
+
+			// EOF is sticky.
+			assertNull(s.next());
+			assertEquals(NUM_MESSAGES / 100, (long) s.getMetrics().getLongMetric(BaseSource.R_NUM_REJECTED));
+		} finally {
+			s.close();
+		}
+
+		return ret;
+	}
+
+	private static List<String> expected() {
+		List<String> ret = new ArrayList<String>();
+
+		for (int i = 0; i < NUM_MESSAGES; ++i)
+			ret.add("" + i);
+
+		return ret;
+	}
+
+	@Test
+	public void testOrdered() throws Exception {
+		writeMessages(new FileOutputStream(file));
+
+		SyslogFileSource s = new SyslogFileSource(file);
+
+		s.setThreads(4);
+		s.setChunkSize(4096);
+		assertEquals(expected(), readAll(s));
+	}
+
+	@Test
+	public void testRelaxed() throws Exception {
+		writeMessages(new FileOutputStream(file));
+
+		SyslogFileSource s = new SyslogFileSource(file);
+
+		s.setThreads(4);
+		s.setChunkSize(4096);
+		s.setOrdered(false);
+
+		List<String> actual = readAll(s);
+		List<String> expected = expected();
+
+		Collections.sort(actual);
+		Collections.sort(expected);
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	public void testGzip() throws Exception {
+		writeMessages(new GZIPOutputStream(new FileOutputStream(file)));
+
+		SyslogFileSource s = new SyslogFileSource(file);
+
+		s.setThreads(2);
+		s.setChunkSize(4096);
+		assertEquals(expected(), readAll(s));
+	}
+
+	@Test
+	public void testLongLines() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		OutputStream out = new FileOutputStream(file);
+
+		for (int i = 0; i < 1000; ++i)
+			sb.append("long ");
+
+		out.write(("<11>Oct  5 12:23:34 host tag: " + sb + "\n<11>Oct  5 12:23:34 host tag: short").getBytes("UTF-8"));
+		out.close();
+
+		SyslogFileSource s = new SyslogFileSource(file);
+
+		s.setChunkSize(64);
+		s.open();
+
+		try {
+			assertEquals(sb.toString(), new String(s.next().getBody(), "UTF-8"));
+			// Without a NL at the end.
+			assertEquals("short", new String(s.next().getBody(), "UTF-8"));
+			assertNull(s.next());
+		} finally {
+			s.close();
+		}
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		SyslogFileSource s = new SyslogFileSource(file);
+
+		s.open();
+
+		try {
+			assertNull(s.next());
+		} finally {
+			s.close();
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.ByteArrayInputStream;
+
+import com.cloudera.flume.core.Event;
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+
+public class SyslogFilterTest {
+	@Test(dataProvider = "decisions")
+	public void testDrop(String spec, int priority, String appname, boolean drop) throws Exception {
+		SyslogFilter f = SyslogFilter.parse(spec);
+		byte[] app = (appname == null ? null : appname.getBytes("UTF-8"));
+
+		assertEquals(drop, f.drop(priority, app, 0, app == null ? -1 : app.length));
+		assertEquals(drop ? 1 : 0, f.getDropped(0));
+	}
+
+	@DataProvider(name = "decisions")
+	public Object[][] createDecisions() {
+		// Priority is facility * 8 + severity.
+		return new Object[][] {
+			{ "severity>warning", 8 * 1 + 4, null, false },
+			{ "severity>warning", 8 * 1 + 5, null, true },
+			{ "severity >= 7", 8 * 1 + 7, null, true },
+			{ "severity<err", 8 * 1 + 2, null, true },
+			{ "severity<=error", 8 * 1 + 4, null, false },
+			{ "severity=debug,info", 8 * 1 + 6, null, true },
+			{ "severity!=debug,info", 8 * 1 + 6, null, false },
+			{ "facility=local7", 8 * 23 + 3, null, true },
+			{ "facility!=local7", 8 * 23 + 3, null, false },
+			{ "facility=kern", 0, null, true },
+			{ "appname=cron,sshd", 0, "sshd", true },
+			{ "appname=cron,sshd", 0, "sshd2", false },
+			{ "appname=cron", 0, null, false },
+			{ "appname!=cron", 0, null, true },
+			{ "appname=cron & severity=debug", 7, "cron", true },
+			{ "appname=cron & severity=debug", 6, "cron", false },
+		};
+	}
+
+	@Test
+	public void testFirstRuleCounts() {
+		SyslogFilter f = SyslogFilter.parse("severity=debug; facility=user ;");
+
+		assertEquals(2, f.getNumRules());
+		assertEquals("facility=user", f.getRule(1));
+		assertTrue(f.drop(8 + 7, null, 0, -1));
+		assertTrue(f.drop(8 + 6, null, 0, -1));
+		assertFalse(f.drop(16 + 6, null, 0, -1));
+		assertEquals(1, f.getDropped(0));
+		assertEquals(1, f.getDropped(1));
+	}
+
+	@Test(dataProvider = "invalid-specs", expectedExceptions = { IllegalArgumentException.class })
+	public void testInvalid(String spec) {
+		SyslogFilter.parse(spec);
+	}
+
+	@DataProvider(name = "invalid-specs")
+	public Object[][] createInvalidSpecs() {
+		return new Object[][] {
+			{ "" },
+			{ "severity" },
+			{ "hostname=foo" },
+			{ "severity>loud" },
+			{ "severity>8" },
+			{ "severity>info,debug" },
+			{ "appname<foo" },
+		};
+	}
+
+	@Test
+	public void testParser() throws Exception {
+		String data = "<15>Oct  5 12:23:34 hostname cron: noise\n" +
+			"<14>Oct  5 12:23:34 hostname cron: keep\n" +
+			"<15>1 2011-10-05T12:23:34Z hostname sshd - - - keep\n" +
+			"<11>Oct  5 12:23:34 hostname cron: keep\n";
+		SyslogFilter f = SyslogFilter.parse("appname=cron & severity=debug");
+		SyslogParser p = new SyslogParser(new ByteArrayInputStream(data.getBytes("UTF-8")));
+
+		p.setFilter(f);
+
+		for (int i = 0; i < 3; ++i)
+			assertEquals("keep", new String(p.readEvent().getBody(), "UTF-8"));
+
+		assertNull(p.readEvent());
+		assertEquals(1, f.getDropped(0));
+	}
+
+	@Test
+	public void testParserPriorityOnly() throws Exception {
+		// Dropped before the invalid timestamp is seen.
+		String data = "<15>garbage\n<14>Oct  5 12:23:34 hostname cron: keep\n";
+		SyslogFilter f = SyslogFilter.parse("severity=debug");
+		SyslogParser p = new SyslogParser(new ByteArrayInputStream(data.getBytes("UTF-8")));
+
+		p.setFilter(f);
+
+		assertEquals("keep", new String(p.readEvent().getBody(), "UTF-8"));
+		assertNull(p.readEvent());
+		assertEquals(1, f.getDropped(0));
+	}
+
+	@Test
+	public void testParserRaw() throws Exception {
+		String data = "<15>noise\n<14>keep\n";
+		SyslogFilter f = SyslogFilter.parse("severity=debug");
+		SyslogParser p = new SyslogParser(new ByteArrayInputStream(data.getBytes("UTF-8")));
+
+		p.setFilter(f);
+
+		Event e = p.readRawEvent("10.0.0.1");
+
+		assertEquals("keep", new String(e.getBody(), "UTF-8"));
+		assertNull(p.readRawEvent("10.0.0.1"));
+		assertEquals(1, f.getDropped(0));
+	}
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.reporter.ReportEvent;
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+
+public class SyslogMultiSourceTest {
+	final public static int TCP_PORT = 53861;
+	final public static int UDP_PORT = 43861;
+
+	final private static String MESSAGE = "<11>2011-10-05T12:23:34.567Z hostname tag: hello world";
+
+	@Test
+	public void testNext() throws Exception {
+		SyslogMultiSource s = createSource();
+
+		s.open();
+
+		try {
+			send();
+
+			Set<String> listeners = new HashSet<String>();
+
+			for (int i = 0; i < 2; ++i) {
+				Event e = s.next();
+
+				assertEquals("hello world", new String(e.getBody(), "UTF-8"));
+				listeners.add(new String(e.get(SyslogParser.SYSLOG_LISTENER), "UTF-8"));
+			}
+
+			assertTrue(listeners.contains("tcp"));
+			assertTrue(listeners.contains("udp"));
+		} finally {
+			s.close();
+		}
+
+		assertNull(s.next());
+	}
+
+	@Test
+	public void testCloseWhileBlocked() throws Exception {
+		final SyslogMultiSource s = createSource();
+		final Event[] result = { ServerSocketSource.WAKE_EVENT };
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					result[0] = s.next();
+				} catch (Exception ex) {
+					// Leave the result, so the test fails.
+				}
+			}
+		};
+
+		s.open();
+
+		try {
+			t.start();
+			Thread.sleep(100);
+		} finally {
+			s.close();
+		}
+
+		t.join(2000);
+		assertFalse(t.isAlive());
+		assertNull(result[0]);
+	}
+
+	@Test
+	public void testBatcher() throws Exception {
+		SyslogMultiSource s = createSource();
+
+		s.setBatcher(new Batcher(Batcher.Key.NONE, 2, 1 << 16, 60000, Batcher.DEFAULT_MAX_BATCHES));
+		s.open();
+
+		try {
+			send();
+
+			// One batch, from both listeners.
+			assertEquals(2, BatchDecoder.decode(s.next()).size());
+		} finally {
+			s.close();
+		}
+	}
+
+	@Test
+	public void testReports() throws Exception {
+		SyslogMultiSource s = createSource();
+		Map<String, ReportEvent> reports = new HashMap<String, ReportEvent>();
+
+		s.open();
+
+		try {
+			Socket sender = new Socket("localhost", TCP_PORT);
+			PrintStream ps = new PrintStream(sender.getOutputStream());
+
+			ps.println("<11>2011-AA-05T12:23:34.567Z hostname tag: bad date");
+			ps.println(MESSAGE);
+			ps.flush();
+			sender.close();
+			assertNotNull(s.next());
+		} finally {
+			s.close();
+		}
+
+		s.getReports("", reports);
+		assertEquals(3, reports.size());
+		assertEquals(Long.valueOf(1), reports.get("SyslogMultiSource").getLongMetric(BaseSource.R_NUM_REJECTED));
+		assertEquals(Long.valueOf(1), reports.get("SyslogMultiSource").getLongMetric("number of events"));
+		assertNotNull(reports.get("SyslogMultiSource.tcp.SyslogSocketSource"));
+		assertNotNull(reports.get("SyslogMultiSource.udp.SyslogDatagramSocketSource"));
+	}
+
+	@Test
+	public void testBindFailure() throws Exception {
+		SyslogMultiSource s = new SyslogMultiSource();
+
+		s.addListener("a", new SyslogSocketSource(new InetSocketAddress("localhost", TCP_PORT)));
+		s.addListener("b", new SyslogSocketSource(new InetSocketAddress("localhost", TCP_PORT)));
+
+		try {
+			s.open();
+			fail("Opened two listeners on one port");
+		} catch (IOException ex) {
+			// The first one must have been closed.
+			SyslogSocketSource t = new SyslogSocketSource(new InetSocketAddress("localhost", TCP_PORT));
+
+			t.open();
+			t.close();
+		}
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testDuplicateListener() {
+		SyslogMultiSource s = new SyslogMultiSource();
+
+		s.addListener("tcp", new SyslogSocketSource(new InetSocketAddress("localhost", TCP_PORT)));
+		s.addListener("tcp", new SyslogSocketSource(new InetSocketAddress("localhost", TCP_PORT + 1)));
+	}
+
+	private static SyslogMultiSource createSource() {
+		SyslogMultiSource s = new SyslogMultiSource();
+
+		s.addListener("tcp", new SyslogSocketSource(new InetSocketAddress("localhost", TCP_PORT)));
+		s.addListener("udp", new SyslogDatagramSocketSource(new InetSocketAddress("localhost", UDP_PORT), 4096));
+
+		return s;
+	}
+
+	/**
+	 * Send MESSAGE to each listener.
+	 */
+	private static void send() throws Exception {
+		Socket sender = new Socket("localhost", TCP_PORT);
+		PrintStream ps = new PrintStream(sender.getOutputStream());
+
+		ps.println(MESSAGE);
+		ps.flush();
+		sender.close();
+
+		DatagramSocket dsender = new DatagramSocket();
+		byte[] b = MESSAGE.getBytes("UTF-8");
+
+		dsender.send(new DatagramPacket(b, b.length, InetAddress.getByName("localhost"), UDP_PORT));
+		dsender.close();
+	}
+}
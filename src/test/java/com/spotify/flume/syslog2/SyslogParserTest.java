@@ -16,6 +16,7 @@
 package com.spotify.flume.syslog2;
 
 import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.util.Calendar;
@@ -62,6 +63,118 @@ public class SyslogParserTest {
 		assertEventEquals(target, e);
 	}
 
+	/**
+	 * Same as testReadEvent, but tokens span buffer refills.
+	 */
+	@Test(dataProvider = "messages")
+	public void testReadEventTrickle(String msg, Event target) throws Exception {
+		InputStream in = new TrickleInputStream(toInputStream(msg));
+		SyslogParser p = new SyslogParser(in, true, ENCODING);
+		Event e = p.readEvent();
+
+		assertEventEquals(target, e);
+	}
+
+	@Test
+	public void testLongLine() throws Exception {
+		StringBuilder body = new StringBuilder();
+
+		for (int i = 0; i < 3000; ++i)
+			body.append("word" + i + " ");
+
+		InputStream in = toInputStream("<11>2011-10-05T12:23:34Z hostname " + body + "\r\n" +
+			"<11>2011-10-05T12:23:34Z hostname hello world\n");
+		SyslogParser p = new SyslogParser(in, false, ENCODING);
+
+		assertEquals(body.toString(), new String(p.readEvent().getBody(), ENCODING));
+		assertEquals("hello world", new String(p.readEvent().getBody(), ENCODING));
+		assertEquals(null, p.readEvent());
+	}
+
+	@Test(dataProvider = "raw")
+	public void testDropLongLine(boolean raw) throws Exception {
+		StringBuilder body = new StringBuilder();
+
+		while (body.length() < 100000)
+			body.append("spam ");
+
+		ReadSizeInputStream in = new ReadSizeInputStream(toInputStream("<15>Oct  5 12:23:34 hostname tag: " + body + "\n" +
+			"<11>Oct  5 12:23:34 hostname tag: hello world\n"));
+		SyslogParser p = new SyslogParser(in, true, ENCODING);
+
+		p.setFilter(SyslogFilter.parse("severity=debug"));
+
+		Event e = (raw ? p.readRawEvent("peer") : p.readEvent());
+
+		assertTrue(new String(e.getBody(), ENCODING).endsWith("hello world"));
+		assertNull(p.readEvent());
+		// The dropped line never made the buffer grow.
+		assertTrue(in.maxLength <= 8192);
+	}
+
+	@DataProvider(name = "raw")
+	public Object[][] createRaw() {
+		return new Object[][] { { false }, { true } };
+	}
+
+	@Test
+	public void testLocalHost() throws Exception {
+		InputStream in = toInputStream("<13>Oct  5 12:23:34 app[123]: hello world\n" +
+			"<13>1 2011-10-05T12:23:34Z hostname app - - - hello again\n");
+		SyslogParser p = new SyslogParser(in, true, ENCODING);
+
+		p.setLocalHost("localbox");
+
+		// Like glibc sends to /dev/log.
+		Event e = p.readEvent();
+
+		assertEquals("localbox", e.getHost());
+		assertEquals("app", new String(e.get(SyslogParser.SYSLOG_APPNAME), ENCODING));
+		assertEquals("123", new String(e.get(SyslogParser.SYSLOG_PROC_ID), ENCODING));
+		assertEquals("hello world", new String(e.getBody(), ENCODING));
+
+		// RFC 5424 messages have a hostname.
+		e = p.readEvent();
+		assertEquals("hostname", e.getHost());
+		assertEquals("hello again", new String(e.getBody(), ENCODING));
+	}
+
+	@Test
+	public void testReadRawEvent() throws Exception {
+		InputStream in = toInputStream("<11>Oct  5 12:23:34 hostname tag: hello\r\n" +
+			"\r\n" +
+			"no priority\r\r\n" +
+			"<191>");
+		SyslogParser p = new SyslogParser(in, true, ENCODING);
+		long t = Clock.unixTime();
+		Event e = p.readRawEvent("10.0.0.1");
+
+		assertEquals("Oct  5 12:23:34 hostname tag: hello", new String(e.getBody(), ENCODING));
+		assertEquals("10.0.0.1", e.getHost());
+		assertEquals(Event.Priority.ERROR, e.getPriority());
+		assertTrue(e.getTimestamp() >= t);
+		assertEquals(1, e.get(SyslogParser.SYSLOG_FACILITY)[0]);
+		assertEquals(3, e.get(SyslogParser.SYSLOG_SEVERITY)[0]);
+		assertEquals(null, e.get(SyslogParser.SYSLOG_VERSION));
+		assertEquals(null, e.get(SyslogParser.SYSLOG_APPNAME));
+
+		// Only the CR of the CRLF is dropped, and blank lines are skipped.
+		e = p.readRawEvent("10.0.0.1");
+		assertEquals("no priority\r", new String(e.getBody(), ENCODING));
+		assertEquals(0, e.get(SyslogParser.SYSLOG_SEVERITY)[0]);
+
+		e = p.readRawEvent("10.0.0.1");
+		assertEquals("", new String(e.getBody(), ENCODING));
+		assertEquals(23, e.get(SyslogParser.SYSLOG_FACILITY)[0]);
+
+		assertEquals(null, p.readRawEvent("10.0.0.1"));
+	}
+
+	@Test(expectedExceptions = { IOException.class })
+	public void testReadRawEventInvalidPriority() throws Exception {
+		new SyslogParser(toInputStream("<11 hello"), true, ENCODING).readRawEvent("10.0.0.1");
+	}
+
 	@DataProvider(name = "messages")
 	public Object[][] createValidMessageData() throws Exception {
 		// XXX: The BSD timestamp tests will fail if we run them while
@@ -280,4 +393,36 @@ public class SyslogParserTest {
 	protected InputStream toInputStream(String data) throws Exception {
 		return new ByteArrayInputStream(data.getBytes(ENCODING));
 	}
+
+	/**
+	 * Returns a single byte per read.
+	 */
+	static class TrickleInputStream extends FilterInputStream {
+		public TrickleInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return super.read(b, off, Math.min(len, 1));
+		}
+	}
+
+	/**
+	 * Records the largest read, which is the free space of the buffer.
+	 */
+	static class ReadSizeInputStream extends FilterInputStream {
+		int maxLength = 0;
+
+		public ReadSizeInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			maxLength = Math.max(maxLength, len);
+
+			return super.read(b, off, len);
+		}
+	}
 }
@@ -0,0 +1,209 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.cloudera.flume.core.Event;
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+
+public class SyslogPushParserTest {
+	final static String ENCODING = "UTF-8";
+	final static String STREAM =
+		"<11>2011-10-05T12:23:34Z hostname tag: hello world\n" +
+		"<11>Oct  5 12:23:34 hostname tag[pid]: hello world 2\r\n" +
+		"<11>1 2011-10-05T12:23:34Z hostname app proc msg [a b=\"c\"][aa bb=\"cc\"] hello world 3\n";
+
+	private List<Event> events = new ArrayList<Event>();
+	private List<IOException> rejections = new ArrayList<IOException>();
+	private SyslogPushParser.Handler handler = new SyslogPushParser.Handler() {
+		public void event(Event e) {
+			events.add(e);
+		}
+
+		public void rejected(IOException ex) {
+			rejections.add(ex);
+		}
+	};
+
+	@BeforeMethod
+	public void setUp() {
+		// TestNG runs every method and data provider row on one instance.
+		events.clear();
+		rejections.clear();
+	}
+
+	@Test(dataProvider = "chunk-sizes")
+	public void testSameAsPullParser(int chunkSize) throws Exception {
+		SyslogPushParser p = new SyslogPushParser(handler);
+
+		feed(p, STREAM, chunkSize);
+		p.finish();
+
+		assertEventsEqual(readAll(STREAM), events);
+		assertEquals(0, rejections.size());
+	}
+
+	@DataProvider(name = "chunk-sizes")
+	public Object[][] createChunkSizes() {
+		return new Object[][] { { 1 }, { 2 }, { 7 }, { 64 }, { 4096 } };
+	}
+
+	@Test(dataProvider = "chunk-sizes")
+	public void testOctetCounting(int chunkSize) throws Exception {
+		SyslogPushParser p = new SyslogPushParser(handler, true, ENCODING, true, SyslogPushParser.DEFAULT_MAX_FRAME_SIZE);
+		String a = "<11>2011-10-05T12:23:34Z hostname tag: hello world";
+		String b = "<11>2011-10-05T12:23:34Z hostname tag: hello world 2";
+
+		// Octet counted and NL terminated frames can be mixed.
+		feed(p, a.length() + " " + a + b.length() + " " + b + a + "\n", chunkSize);
+		p.finish();
+
+		assertEventsEqual(readAll(a + "\n" + b + "\n" + a), events);
+		assertEquals(0, rejections.size());
+	}
+
+	@Test(dataProvider = "chunk-sizes")
+	public void testOctetCountedLines(int chunkSize) throws Exception {
+		SyslogPushParser p = new SyslogPushParser(handler, true, ENCODING, true, SyslogPushParser.DEFAULT_MAX_FRAME_SIZE);
+		String a = "<11>2011-10-05T12:23:34Z hostname tag: Exception\n\tat Foo.bar(Foo.java:1)\n";
+		String b = "<11>2011-10-05T12:23:34Z hostname tag: hello\nworld";
+
+		// The whole frame is the body, except a trailing NL.
+		feed(p, a.length() + " " + a + b.length() + " " + b + STREAM, chunkSize);
+		p.finish();
+
+		assertEquals(5, events.size());
+		assertEquals("Exception\n\tat Foo.bar(Foo.java:1)", new String(events.get(0).getBody(), ENCODING));
+		assertEquals("hello\nworld", new String(events.get(1).getBody(), ENCODING));
+		assertEventsEqual(readAll(STREAM), events.subList(2, 5));
+		assertEquals(0, rejections.size());
+	}
+
+	@Test
+	public void testDirectBuffer() throws Exception {
+		SyslogPushParser p = new SyslogPushParser(handler);
+		byte[] bytes = STREAM.getBytes(ENCODING);
+		ByteBuffer buf = ByteBuffer.allocateDirect(bytes.length);
+
+		buf.put(bytes);
+		buf.flip();
+		p.feed(buf);
+
+		assertFalse(buf.hasRemaining());
+		assertEventsEqual(readAll(STREAM), events);
+	}
+
+	@Test
+	public void testRecover() throws Exception {
+		SyslogPushParser p = new SyslogPushParser(handler);
+
+		feed(p, "<11>2011-AA-05T12:23:34.567Z hostname tag: hello world\n\n" + STREAM, 5);
+
+		assertEquals(1, rejections.size());
+		assertEventsEqual(readAll(STREAM), events);
+	}
+
+	@Test
+	public void testLineTooLong() throws Exception {
+		SyslogPushParser p = new SyslogPushParser(handler, true, ENCODING, false, 128);
+		StringBuilder sb = new StringBuilder("<11>2011-10-05T12:23:34Z hostname tag: ");
+
+		while (sb.length() < 200) sb.append("spam ");
+
+		feed(p, sb + "\n" + STREAM, 16);
+
+		assertEquals(1, rejections.size());
+		assertEventsEqual(readAll(STREAM), events);
+	}
+
+	@Test(dataProvider = "chunk-sizes")
+	public void testLineTooLongWithNL(int chunkSize) throws Exception {
+		SyslogPushParser p = new SyslogPushParser(handler, true, ENCODING, false, 128);
+		StringBuilder sb = new StringBuilder("<11>2011-10-05T12:23:34Z hostname tag: ");
+
+		// Just over the limit, so the NL may arrive in the same chunk.
+		while (sb.length() <= 128) sb.append("x");
+
+		feed(p, sb + "\n" + STREAM, chunkSize);
+		p.finish();
+
+		assertEquals(1, rejections.size());
+		assertEventsEqual(readAll(STREAM), events);
+	}
+
+	@Test
+	public void testFrameTooLarge() throws Exception {
+		SyslogPushParser p = new SyslogPushParser(handler, true, ENCODING, true, 128);
+
+		feed(p, "1000000 <11>2011-10-05T12:23:34Z hostname tag: hello\n" + STREAM, 3);
+
+		assertEquals(1, rejections.size());
+		assertEventsEqual(readAll(STREAM), events);
+	}
+
+	@Test
+	public void testFinish() throws Exception {
+		SyslogPushParser p = new SyslogPushParser(handler, true, ENCODING, true, SyslogPushParser.DEFAULT_MAX_FRAME_SIZE);
+
+		feed(p, "<11>2011-10-05T12:23:34Z hostname tag: hello world", 4096);
+		assertEquals(0, events.size());
+
+		p.finish();
+		assertEquals(1, events.size());
+
+		feed(p, "100 <11>2011", 4096);
+		p.finish();
+		assertEquals(1, events.size());
+		assertEquals(1, rejections.size());
+	}
+
+	private void feed(SyslogPushParser p, String data, int chunkSize) throws Exception {
+		byte[] bytes = data.getBytes(ENCODING);
+
+		for (int i = 0; i < bytes.length; i += chunkSize) {
+			ByteBuffer buf = ByteBuffer.wrap(bytes, i, Math.min(chunkSize, bytes.length - i));
+
+			p.feed(buf);
+			assertFalse(buf.hasRemaining());
+		}
+	}
+
+	private static List<Event> readAll(String data) throws Exception {
+		SyslogParser p = new SyslogParser(new ByteArrayInputStream(data.getBytes(ENCODING)));
+		List<Event> ret = new ArrayList<Event>();
+		Event e;
+
+		while ((e = p.readEvent()) != null)
+			ret.add(e);
+
+		return ret;
+	}
+
+	private static void assertEventsEqual(List<Event> expected, List<Event> actual) {
+		assertEquals(expected.size(), actual.size());
+
+		// This works since EventImpl.toString() sorts the fields first.
+		for (int i = 0; i < expected.size(); ++i)
+			assertEquals(expected.get(i).toString(), actual.get(i).toString());
+	}
+}
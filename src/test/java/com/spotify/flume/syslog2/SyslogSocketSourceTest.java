@@ -16,11 +16,15 @@
 package com.spotify.flume.syslog2;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.Queue;
 
 import com.cloudera.flume.core.Event;
 import org.testng.annotations.*;
@@ -113,4 +117,286 @@ public class SyslogSocketSourceTest {
 			s.close();
 		}
 	}
+
+	@Test
+	public void testNextRaw() throws Exception {
+		SyslogSocketSource s = new SyslogSocketSource(new InetSocketAddress("localhost", PORT));
+		String data = "<11>not really syslog\r";
+
+		s.setRaw(true);
+		s.open();
+
+		try {
+			Socket sender = new Socket("localhost", PORT);
+			PrintStream ps = new PrintStream(sender.getOutputStream());
+
+			ps.println(data);
+			ps.flush();
+			sender.close();
+
+			Event e = s.next();
+
+			assertEquals("not really syslog", new String(e.getBody(), "UTF-8"));
+			assertEquals("127.0.0.1", e.getHost());
+			assertEquals(3, e.get(SyslogParser.SYSLOG_SEVERITY)[0]);
+		} finally {
+			s.close();
+		}
+	}
+
+	@Test
+	public void testRateLimitByPeer() throws Exception {
+		SyslogSocketSource s = new SyslogSocketSource(new InetSocketAddress("localhost", PORT));
+		RateLimiter limiter = new RateLimiter(RateLimiter.Key.PEER, 0.001, 2, 100);
+
+		s.setRateLimiter(limiter);
+		s.open();
+
+		try {
+			// The bucket is shared between connections from the same peer.
+			for (int i = 0; i < 2; ++i) {
+				Socket sender = new Socket("localhost", PORT);
+				PrintStream ps = new PrintStream(sender.getOutputStream());
+
+				ps.println("<11>Oct  5 12:23:34 host tag: one");
+				ps.println("<11>Oct  5 12:23:34 host tag: two");
+				ps.flush();
+				sender.close();
+			}
+
+			assertNotNull(s.next());
+			assertNotNull(s.next());
+
+			for (int i = 0; i < 100 && limiter.getLimited() < 2; ++i)
+				Thread.sleep(10);
+
+			assertEquals(2, limiter.getLimited());
+			assertEquals(1, limiter.getNumKeys());
+		} finally {
+			s.close();
+		}
+	}
+
+	@Test
+	public void testDedup() throws Exception {
+		SyslogSocketSource s = new SyslogSocketSource(new InetSocketAddress("localhost", PORT));
+
+		s.setDeduplicator(new Deduplicator(200, 100));
+		s.open();
+
+		try {
+			Socket sender = new Socket("localhost", PORT);
+			PrintStream ps = new PrintStream(sender.getOutputStream());
+
+			for (int i = 0; i < 3; ++i)
+				ps.println("<11>Oct  5 12:23:34 host tag: storm");
+
+			ps.flush();
+			sender.close();
+
+			assertNull(s.next().get(SyslogParser.SYSLOG_REPEATED));
+
+			Event e = s.next();
+
+			assertEquals("storm", new String(e.getBody(), "UTF-8"));
+			assertEquals(2, ByteBuffer.wrap(e.get(SyslogParser.SYSLOG_REPEATED)).getLong());
+		} finally {
+			s.close();
+		}
+	}
+
+	@Test
+	public void testSpill() throws Exception {
+		SyslogSocketSource s = new SyslogSocketSource(new InetSocketAddress("localhost", PORT));
+		File dir = File.createTempFile("spill", "test");
+		SpillQueue q;
+
+		dir.delete();
+		q = new SpillQueue(dir, 1, 4096, 4);
+		s.setSpillQueue(q);
+		s.open();
+
+		try {
+			Socket sender = new Socket("localhost", PORT);
+			PrintStream ps = new PrintStream(sender.getOutputStream());
+
+			for (int i = 0; i < 20; ++i)
+				ps.println("<11>Oct  5 12:23:34 host tag: " + i);
+
+			ps.flush();
+			sender.close();
+
+			// The processor isn't blocked by us not calling next().
+			for (int i = 0; i < 100 && q.size() < 20; ++i)
+				Thread.sleep(10);
+
+			assertEquals(20, q.size());
+			assertEquals(19, q.getTotalSpilled());
+
+			for (int i = 0; i < 20; ++i)
+				assertEquals("" + i, new String(s.next().getBody(), "UTF-8"));
+		} finally {
+			s.close();
+
+			for (File f : dir.listFiles())
+				f.delete();
+
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void testCloseWhileBlocked() throws Exception {
+		SyslogSocketSource s = new SyslogSocketSource(new InetSocketAddress("localhost", PORT));
+		File dir = File.createTempFile("spill", "test");
+
+		dir.delete();
+
+		// Refuse wake ups, like a queue with events on disk does.
+		s.setSpillQueue(new SpillQueue(dir, 10, 4096, 4) {
+			@Override
+			synchronized public boolean offer(Event e) {
+				return (e != ServerSocketSource.WAKE_EVENT && super.offer(e));
+			}
+		});
+
+		assertCloseEndsNext(s);
+		dir.delete();
+	}
+
+	@Test
+	public void testCloseWhileBlockedOffHeap() throws Exception {
+		SyslogSocketSource s = new SyslogSocketSource(new InetSocketAddress("localhost", PORT));
+
+		s.setSlabAllocator(new SlabAllocator(256, 4));
+		assertCloseEndsNext(s);
+	}
+
+	@Test
+	public void testDiscardQueued() throws Exception {
+		SyslogSocketSource s = new SyslogSocketSource(new InetSocketAddress("localhost", PORT));
+		SyslogParser p = new SyslogParser(new ByteArrayInputStream("<11>Oct  5 12:23:34 host tag: hello\n".getBytes("UTF-8")));
+		SlabAllocator a = new SlabAllocator(256, 4);
+		Queue<Event> q = new LinkedList<Event>();
+
+		s.setSlabAllocator(a);
+		p.setSlabAllocator(a);
+		q.add(p.readEvent());
+		q.add(ServerSocketSource.WAKE_EVENT);
+		s.discardQueued(q);
+
+		// Only the message is dropped, a next() call may need the wake up.
+		assertEquals(1, q.size());
+		assertSame(ServerSocketSource.WAKE_EVENT, q.peek());
+	}
+
+	/**
+	 * Open a source, and check that closing it ends a blocked next().
+	 */
+	private static void assertCloseEndsNext(final SyslogSocketSource s) throws Exception {
+		final Event[] result = { ServerSocketSource.WAKE_EVENT };
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					result[0] = s.next();
+				} catch (Exception ex) {
+					// Leave the result, so the test fails.
+				}
+			}
+		};
+
+		s.open();
+
+		try {
+			t.start();
+			Thread.sleep(100);
+		} finally {
+			s.close();
+		}
+
+		t.join(2000);
+		assertFalse(t.isAlive());
+		assertNull(result[0]);
+	}
+
+	@Test
+	public void testOffHeap() throws Exception {
+		SyslogSocketSource s = new SyslogSocketSource(new InetSocketAddress("localhost", PORT));
+		File dir = File.createTempFile("spill", "test");
+		SlabAllocator a = new SlabAllocator(256, 4);
+		SpillQueue q;
+
+		dir.delete();
+		q = new SpillQueue(dir, 100, 4096, 4);
+		s.setSpillQueue(q);
+		s.setSlabAllocator(a);
+		s.open();
+
+		try {
+			Socket sender = new Socket("localhost", PORT);
+			PrintStream ps = new PrintStream(sender.getOutputStream());
+
+			for (int i = 0; i < 20; ++i)
+				ps.println("<11>Oct  5 12:23:34 host tag: " + i);
+
+			ps.flush();
+			sender.close();
+
+			for (int i = 0; i < 100 && q.size() < 20; ++i)
+				Thread.sleep(10);
+
+			// 20 messages of about 32 bytes are queued off-heap, and
+			// maybe a wake up from the processor.
+			assertTrue(q.size() >= 20);
+			assertEquals(3, a.getSlabsInUse());
+
+			for (int i = 0; i < 20; ++i)
+				assertEquals("" + i, new String(s.next().getBody(), "UTF-8"));
+
+			assertEquals(1, a.getSlabsInUse());
+			assertEquals(1, (long) s.getMetrics().getLongMetric(BaseSource.R_OFF_HEAP_SLABS));
+		} finally {
+			s.close();
+
+			for (File f : dir.listFiles())
+				f.delete();
+
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void testPeerName() throws Exception {
+		SyslogSocketSource s = new SyslogSocketSource(new InetSocketAddress("127.0.0.1", PORT));
+		PeerResolver r = new PeerResolver(new PeerResolver.Resolver() {
+			@Override
+			public String resolve(InetAddress address) {
+				return "sender.example.com";
+			}
+		});
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+
+		// Warm the cache, or the first message may go without the name.
+		PeerResolverTest.await(r, loopback, null);
+		s.setPeerResolver(r);
+		s.open();
+
+		try {
+			Socket sender = new Socket(loopback, PORT);
+			PrintStream ps = new PrintStream(sender.getOutputStream());
+
+			ps.println("<11>Oct  5 12:23:34 localhost tag: hello world");
+			ps.flush();
+			sender.close();
+
+			Event e = s.next();
+
+			assertEquals("localhost", e.getHost());
+			assertEquals("127.0.0.1", new String(e.get(SyslogParser.SYSLOG_PEER), "UTF-8"));
+			assertEquals("sender.example.com", new String(e.get(SyslogParser.SYSLOG_PEER_NAME), "UTF-8"));
+		} finally {
+			s.close();
+		}
+	}
 }
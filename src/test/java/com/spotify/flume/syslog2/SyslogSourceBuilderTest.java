@@ -15,6 +15,12 @@
  */
 package com.spotify.flume.syslog2;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.cloudera.flume.conf.Context;
 import com.cloudera.flume.core.EventSource;
 import org.testng.annotations.*;
 import static org.testng.AssertJUnit.*;
@@ -35,4 +41,373 @@ public class SyslogSourceBuilderTest {
 		assertTrue(new SyslogSourceBuilder().build("udp", "localhost", "12345") instanceof EventSource);
 		assertTrue(new SyslogSourceBuilder().build("udp", "localhost", "12345", "4096") instanceof EventSource);
 	}
+
+	@Test
+	public void testStructuredDataParams() {
+		Context ctx = new Context();
+
+		ctx.putValue("sdParams", "origin.ip, meta.sequenceId");
+
+		assertTrue(new SyslogSourceBuilder().build(ctx, "tcp") instanceof EventSource);
+		assertTrue(new SyslogSourceBuilder().build(ctx, "udp") instanceof EventSource);
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testInvalidStructuredDataParams() {
+		Context ctx = new Context();
+
+		ctx.putValue("sdParams", "origin");
+		new SyslogSourceBuilder().build(ctx, "tcp");
+	}
+
+	@Test
+	public void testRaw() {
+		Context ctx = new Context();
+
+		ctx.putValue("format", "raw");
+
+		assertTrue(new SyslogSourceBuilder().build(ctx, "tcp") instanceof EventSource);
+		assertTrue(new SyslogSourceBuilder().build(ctx, "udp") instanceof EventSource);
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testUnknownFormat() {
+		Context ctx = new Context();
+
+		ctx.putValue("format", "json");
+		new SyslogSourceBuilder().build(ctx, "tcp");
+	}
+
+	@Test
+	public void testFilter() {
+		Context ctx = new Context();
+
+		ctx.putValue("filter", "severity>warning;appname=cron");
+
+		assertTrue(new SyslogSourceBuilder().build(ctx, "tcp") instanceof EventSource);
+		assertTrue(new SyslogSourceBuilder().build(ctx, "udp") instanceof EventSource);
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testInvalidFilter() {
+		Context ctx = new Context();
+
+		ctx.putValue("filter", "severity>loud");
+		new SyslogSourceBuilder().build(ctx, "udp");
+	}
+
+	@Test
+	public void testRateLimit() {
+		Context ctx = new Context();
+
+		ctx.putValue("rateLimit", "100");
+		ctx.putValue("rateLimitBurst", "1000");
+		ctx.putValue("rateLimitBy", "appname");
+
+		assertTrue(new SyslogSourceBuilder().build(ctx, "tcp") instanceof EventSource);
+		assertTrue(new SyslogSourceBuilder().build(ctx, "udp") instanceof EventSource);
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testInvalidRateLimit() {
+		Context ctx = new Context();
+
+		ctx.putValue("rateLimit", "lots");
+		new SyslogSourceBuilder().build(ctx, "udp");
+	}
+
+	@Test
+	public void testDedup() {
+		Context ctx = new Context();
+
+		ctx.putValue("dedupWindow", "5000");
+
+		assertTrue(new SyslogSourceBuilder().build(ctx, "tcp") instanceof EventSource);
+		assertTrue(new SyslogSourceBuilder().build(ctx, "udp") instanceof EventSource);
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testInvalidDedup() {
+		Context ctx = new Context();
+
+		ctx.putValue("dedupWindow", "0");
+		new SyslogSourceBuilder().build(ctx, "tcp");
+	}
+
+	@Test
+	public void testBatch() {
+		Context ctx = new Context();
+
+		ctx.putValue("batchSize", "100");
+		ctx.putValue("batchDelay", "500");
+		ctx.putValue("batchBy", "appname");
+
+		assertTrue(new SyslogSourceBuilder().build(ctx, "tcp") instanceof EventSource);
+		assertTrue(new SyslogSourceBuilder().build(ctx, "udp") instanceof EventSource);
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testInvalidBatch() {
+		Context ctx = new Context();
+
+		ctx.putValue("batchSize", "100");
+		ctx.putValue("batchBy", "severity");
+		new SyslogSourceBuilder().build(ctx, "udp");
+	}
+
+	@Test
+	public void testSpill() throws Exception {
+		Context ctx = new Context();
+		File dir = File.createTempFile("spill", "test");
+
+		dir.delete();
+		ctx.putValue("spillDir", dir.getPath());
+		ctx.putValue("spillWatermark", "100");
+
+		try {
+			assertTrue(new SyslogSourceBuilder().build(ctx, "tcp") instanceof EventSource);
+			assertTrue(new SyslogSourceBuilder().build(ctx, "udp") instanceof EventSource);
+			assertTrue(dir.isDirectory());
+		} finally {
+			dir.delete();
+		}
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testInvalidSpill() {
+		Context ctx = new Context();
+
+		ctx.putValue("spillDir", "/tmp");
+		ctx.putValue("spillMaxSegments", "0");
+		new SyslogSourceBuilder().build(ctx, "tcp");
+	}
+
+	@Test
+	public void testOffHeap() {
+		Context ctx = new Context();
+
+		ctx.putValue("offHeapSlabs", "16");
+		ctx.putValue("offHeapSlabSize", "65536");
+
+		assertTrue(new SyslogSourceBuilder().build(ctx, "tcp") instanceof EventSource);
+		assertTrue(new SyslogSourceBuilder().build(ctx, "udp") instanceof EventSource);
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testInvalidOffHeap() {
+		Context ctx = new Context();
+
+		ctx.putValue("offHeapSlabs", "0");
+		new SyslogSourceBuilder().build(ctx, "tcp");
+	}
+
+	@Test
+	public void testTls() throws Exception {
+		Context ctx = new Context();
+
+		ctx.putValue("keyStore", SyslogTlsSocketSourceTest.getKeyStore().getPath());
+		ctx.putValue("keyStorePassword", SyslogTlsSocketSourceTest.PASSWORD);
+		ctx.putValue("tlsSessionCacheSize", "100");
+		ctx.putValue("tlsSessionTimeout", "3600");
+
+		assertTrue(new SyslogSourceBuilder().build(ctx, "tls") instanceof SyslogTlsSocketSource);
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testTlsWithoutKeyStore() {
+		new SyslogSourceBuilder().build(new Context(), "tls");
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testInvalidTls() {
+		Context ctx = new Context();
+
+		ctx.putValue("keyStore", "/nonexistent.jks");
+		new SyslogSourceBuilder().build(ctx, "tls");
+	}
+
+	@Test
+	public void testUnix() throws Exception {
+		File path = File.createTempFile("syslog", ".sock");
+
+		try {
+			assertTrue(new SyslogSourceBuilder().build(new Context(), "unix", path.getPath()) instanceof SyslogUnixSocketSource);
+			assertTrue(SyslogUnixSocketSource.isSupported());
+		} catch (IllegalArgumentException ex) {
+			assertFalse(SyslogUnixSocketSource.isSupported());
+		} finally {
+			path.delete();
+		}
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testUnixWithoutPath() {
+		new SyslogSourceBuilder().build(new Context(), "unix");
+	}
+
+	@Test
+	public void testFile() {
+		Context ctx = new Context();
+
+		ctx.putValue("fileThreads", "2");
+		ctx.putValue("fileChunkSize", "65536");
+		ctx.putValue("fileOrder", "relaxed");
+
+		assertTrue(new SyslogSourceBuilder().build(ctx, "file", "/var/log/messages.gz") instanceof SyslogFileSource);
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testInvalidFile() {
+		Context ctx = new Context();
+
+		ctx.putValue("fileOrder", "random");
+		new SyslogSourceBuilder().build(ctx, "file", "/var/log/messages");
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testFileWithoutPath() {
+		new SyslogSourceBuilder().build(new Context(), "file");
+	}
+
+	@Test
+	public void testFileWithSpill() throws Exception {
+		assertRejectedBeforeSpill("file", "/var/log/messages");
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testFileWithPeer() {
+		Context ctx = new Context();
+
+		ctx.putValue("peer", "name");
+		new SyslogSourceBuilder().build(ctx, "file", "/var/log/messages");
+	}
+
+	@Test
+	public void testHostless() {
+		Context ctx = new Context();
+
+		ctx.putValue("hostless", "true");
+		assertTrue(new SyslogSourceBuilder().build(ctx, "tcp") instanceof SyslogSocketSource);
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testHostlessOverUdp() {
+		Context ctx = new Context();
+
+		ctx.putValue("hostless", "true");
+		new SyslogSourceBuilder().build(ctx, "udp");
+	}
+
+	@Test
+	public void testUnknownProtocol() throws Exception {
+		assertRejectedBeforeSpill("sctp");
+	}
+
+	/**
+	 * Check that a spilling source is rejected before the spill directory
+	 * is created.
+	 */
+	private static void assertRejectedBeforeSpill(String... argv) throws Exception {
+		Context ctx = new Context();
+		File dir = File.createTempFile("spill", "test");
+
+		dir.delete();
+		ctx.putValue("spillDir", dir.getPath());
+
+		try {
+			new SyslogSourceBuilder().build(ctx, argv);
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException ex) {
+			assertFalse(dir.exists());
+		} finally {
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void testMulti() throws Exception {
+		Context ctx = new Context();
+
+		ctx.putValue("keyStore", SyslogTlsSocketSourceTest.getKeyStore().getPath());
+		ctx.putValue("keyStorePassword", SyslogTlsSocketSourceTest.PASSWORD);
+		ctx.putValue("batchSize", "10");
+
+		List<String> argv = new ArrayList<String>(Arrays.asList("multi", "udp:0.0.0.0:514", "tcp:[::1]:514", "tls"));
+
+		// Unix listeners are only available in the unix build profile.
+		if (SyslogUnixSocketSource.isSupported())
+			argv.add("unix:/run/syslog.sock");
+
+		EventSource s = new SyslogSourceBuilder().build(ctx, argv.toArray(new String[argv.size()]));
+
+		assertTrue(s instanceof SyslogMultiSource);
+		assertEquals(SyslogUnixSocketSource.isSupported() ? 4 : 3, ((SyslogMultiSource) s).getNumListeners());
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testMultiWithoutListeners() {
+		new SyslogSourceBuilder().build(new Context(), "multi");
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testInvalidListener() {
+		new SyslogSourceBuilder().build(new Context(), "multi", "tcp:localhost");
+	}
+
+	@Test
+	public void testPeer() {
+		Context ctx = new Context();
+
+		ctx.putValue("peer", "name");
+		ctx.putValue("peerNameCacheSize", "100");
+		ctx.putValue("peerNameTtl", "60");
+
+		assertTrue(new SyslogSourceBuilder().build(ctx, "udp") instanceof SyslogDatagramSocketSource);
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testInvalidPeer() {
+		Context ctx = new Context();
+
+		ctx.putValue("peer", "dns");
+		new SyslogSourceBuilder().build(ctx, "tcp");
+	}
+
+	@Test
+	public void testKeyValueFields() {
+		Context ctx = new Context();
+
+		ctx.putValue("kvFields", "nginx:status,bytes;*:request_id");
+
+		assertTrue(new SyslogSourceBuilder().build(ctx, "tcp") instanceof SyslogSocketSource);
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testInvalidKeyValueFields() {
+		Context ctx = new Context();
+
+		ctx.putValue("kvFields", ":status");
+		new SyslogSourceBuilder().build(ctx, "tcp");
+	}
+
+	@Test
+	public void testMultiLine() {
+		Context ctx = new Context();
+
+		ctx.putValue("multiLine", "java");
+		ctx.putValue("multiLineTimeout", "500");
+		ctx.putValue("multiLineMaxLines", "200");
+		ctx.putValue("multiLineMaxBytes", "32768");
+
+		assertTrue(new SyslogSourceBuilder().build(ctx, "udp") instanceof SyslogDatagramSocketSource);
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testInvalidMultiLine() {
+		Context ctx = new Context();
+
+		ctx.putValue("multiLine", "java");
+		ctx.putValue("multiLineTimeout", "0");
+		new SyslogSourceBuilder().build(ctx, "tcp");
+	}
 }
@@ -0,0 +1,215 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.KeyStore;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.testng.SkipException;
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+
+public class SyslogTlsSocketSourceTest {
+	final public static int PORT = 56514;
+	final public static String PASSWORD = "secret";
+
+	private static File keyStore;
+	private SSLContext client;
+
+	/**
+	 * Return a key store with a self-signed certificate for localhost.
+	 *
+	 * It is created with keytool on first use, and deleted on exit.
+	 */
+	static synchronized File getKeyStore() throws Exception {
+		if (keyStore != null) return keyStore;
+
+		File f = File.createTempFile("syslog", ".jks");
+
+		f.delete();
+		f.deleteOnExit();
+
+		Process p = new ProcessBuilder(
+			new File(new File(System.getProperty("java.home"), "bin"), "keytool").getPath(),
+			"-genkeypair", "-alias", "syslog", "-keyalg", "RSA", "-keysize", "2048",
+			"-dname", "CN=localhost", "-validity", "3650",
+			"-keystore", f.getPath(), "-storetype", "JKS",
+			"-storepass", PASSWORD, "-keypass", PASSWORD)
+			.redirectErrorStream(true)
+			.start();
+
+		while (p.getInputStream().read() >= 0)
+			;
+
+		if (p.waitFor() != 0 || !f.exists())
+			throw new SkipException("keytool failed");
+
+		keyStore = f;
+
+		return f;
+	}
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		KeyStore ks = KeyStore.getInstance("JKS");
+		FileInputStream in = new FileInputStream(getKeyStore());
+
+		try {
+			ks.load(in, PASSWORD.toCharArray());
+		} finally {
+			in.close();
+		}
+
+		TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+
+		tmf.init(ks);
+		// A new client, with an empty session cache.
+		client = SSLContext.getInstance("TLS");
+		client.init(null, tmf.getTrustManagers(), null);
+	}
+
+	private SyslogTlsSocketSource createSource() throws Exception {
+		return new SyslogTlsSocketSource(
+			new InetSocketAddress("localhost", PORT),
+			SyslogTlsSocketSource.loadKeyManagers(getKeyStore(), "JKS", PASSWORD.toCharArray()));
+	}
+
+	private SSLSocket connect(String protocol) throws Exception {
+		SSLSocket s = (SSLSocket) client.getSocketFactory().createSocket("localhost", PORT);
+
+		s.setEnabledProtocols(new String[] { protocol });
+
+		return s;
+	}
+
+	@Test
+	public void testFraming() throws Exception {
+		SyslogTlsSocketSource s = createSource();
+		String a = "<11>Oct  5 12:23:34 host tag: octet\ncounted";
+		String b = "<11>Oct  5 12:23:34 host tag: line";
+
+		s.open();
+
+		try {
+			SSLSocket sender = connect("TLSv1.2");
+			OutputStream out = sender.getOutputStream();
+
+			out.write((a.length() + " " + a + b + "\n").getBytes("UTF-8"));
+			out.flush();
+			sender.close();
+
+			assertEquals("octet\ncounted", new String(s.next().getBody(), "UTF-8"));
+			assertEquals("line", new String(s.next().getBody(), "UTF-8"));
+			assertEquals(1, (long) s.getMetrics().getLongMetric(SyslogTlsSocketSource.R_TLS_FULL_HANDSHAKES));
+		} finally {
+			s.close();
+		}
+	}
+
+	@Test
+	public void testResumption() throws Exception {
+		SyslogTlsSocketSource s = createSource();
+
+		s.open();
+
+		try {
+			for (int i = 0; i < 3; ++i) {
+				SSLSocket sender = connect("TLSv1.2");
+				OutputStream out = sender.getOutputStream();
+
+				out.write(("<11>Oct  5 12:23:34 host tag: " + i + "\n").getBytes("UTF-8"));
+				out.flush();
+				assertEquals("" + i, new String(s.next().getBody(), "UTF-8"));
+				sender.close();
+			}
+
+			assertEquals(1, (long) s.getMetrics().getLongMetric(SyslogTlsSocketSource.R_TLS_FULL_HANDSHAKES));
+			assertEquals(2, (long) s.getMetrics().getLongMetric(SyslogTlsSocketSource.R_TLS_RESUMED_HANDSHAKES));
+		} finally {
+			s.close();
+		}
+	}
+
+	@Test
+	public void testTicketResumption() throws Exception {
+		SyslogTlsSocketSource s = createSource();
+
+		s.open();
+
+		try {
+			for (int i = 0; i < 2; ++i) {
+				SSLSocket sender = connect("TLSv1.3");
+				OutputStream out = sender.getOutputStream();
+
+				out.write(("<11>Oct  5 12:23:34 host tag: " + i + "\n").getBytes("UTF-8"));
+				out.flush();
+				assertEquals("" + i, new String(s.next().getBody(), "UTF-8"));
+
+				// Pick up the ticket sent after the handshake.
+				sender.setSoTimeout(100);
+
+				try {
+					sender.getInputStream().read();
+				} catch (SocketTimeoutException ex) {
+					// Expected.
+				}
+
+				sender.close();
+			}
+
+			assertEquals(1, (long) s.getMetrics().getLongMetric(SyslogTlsSocketSource.R_TLS_FULL_HANDSHAKES));
+			assertEquals(1, (long) s.getMetrics().getLongMetric(SyslogTlsSocketSource.R_TLS_RESUMED_HANDSHAKES));
+		} finally {
+			s.close();
+		}
+	}
+
+	@Test
+	public void testPlaintext() throws Exception {
+		SyslogTlsSocketSource s = createSource();
+
+		s.open();
+
+		try {
+			Socket sender = new Socket("localhost", PORT);
+			OutputStream out = sender.getOutputStream();
+
+			out.write("<11>Oct  5 12:23:34 host tag: plaintext\n".getBytes("UTF-8"));
+			out.flush();
+
+			// The server gives up on us.
+			assertEquals(-1, sender.getInputStream().read());
+			sender.close();
+
+			for (int i = 0; i < 100 && s.getMetrics().getLongMetric(SyslogTlsSocketSource.R_TLS_FAILED_HANDSHAKES) == 0; ++i)
+				Thread.sleep(10);
+
+			assertEquals(1, (long) s.getMetrics().getLongMetric(SyslogTlsSocketSource.R_TLS_FAILED_HANDSHAKES));
+			assertEquals(0, (long) s.getMetrics().getLongMetric(SyslogTlsSocketSource.R_TLS_FULL_HANDSHAKES));
+		} finally {
+			s.close();
+		}
+	}
+}
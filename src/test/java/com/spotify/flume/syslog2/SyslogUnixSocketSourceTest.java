@@ -0,0 +1,95 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import com.cloudera.flume.core.Event;
+import org.testng.SkipException;
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+
+public class SyslogUnixSocketSourceTest {
+	private File path;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		if (!SyslogUnixSocketSource.isSupported())
+			throw new SkipException("Unix domain sockets not supported");
+
+		path = File.createTempFile("syslog", ".sock");
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		if (path != null) path.delete();
+	}
+
+	private void send(String data) throws Exception {
+		// Unix domain channels are opened by connecting to such an address.
+		SocketChannel c = SocketChannel.open(SyslogUnixSocketSource.createAddress(path.getPath()));
+
+		try {
+			c.write(ByteBuffer.wrap(data.getBytes("UTF-8")));
+		} finally {
+			c.close();
+		}
+	}
+
+	@Test
+	public void testNext() throws Exception {
+		// The temporary file is in the way, like one left by a crash.
+		SyslogUnixSocketSource s = new SyslogUnixSocketSource(path.getPath());
+
+		s.open();
+
+		try {
+			send("<11>Oct  5 12:23:34 host tag: hello\n<11>Oct  5 12:23:34 host tag: world\n");
+			assertEquals("hello", new String(s.next().getBody(), "UTF-8"));
+			assertEquals("world", new String(s.next().getBody(), "UTF-8"));
+		} finally {
+			s.close();
+		}
+
+		assertFalse(path.exists());
+	}
+
+	@Test
+	public void testNulTerminated() throws Exception {
+		SyslogUnixSocketSource s = new SyslogUnixSocketSource(path.getPath());
+
+		s.setHostless(true);
+		s.open();
+
+		try {
+			// Like glibc syslog(3) on a stream socket, without a hostname.
+			send("<11>Oct  5 12:23:34 tag[123]: hello\0<11>Oct  5 12:23:34 tag[123]: world\0");
+
+			Event e = s.next();
+
+			assertEquals("hello", new String(e.getBody(), "UTF-8"));
+			assertEquals("tag", new String(e.get(SyslogParser.SYSLOG_APPNAME), "UTF-8"));
+			assertEquals(InetAddress.getLocalHost().getHostName(), e.getHost());
+			assertEquals("world", new String(s.next().getBody(), "UTF-8"));
+		} finally {
+			s.close();
+		}
+	}
+}
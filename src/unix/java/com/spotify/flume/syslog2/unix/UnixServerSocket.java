@@ -0,0 +1,100 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2.unix;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+
+
+/**
+ * A ServerSocket listening on a Unix domain stream socket.
+ *
+ * ServerSocketSource is written against ServerSocket and Socket, which
+ * can't do Unix domain sockets. This adapts a ServerSocketChannel instead,
+ * so the source works unchanged. Only what the sources use is implemented.
+ *
+ * A file left at the path by an earlier run is removed before binding,
+ * and the file is removed again on close(), like syslog daemons do.
+ *
+ * @see com.spotify.flume.syslog2.SyslogUnixSocketSource
+ */
+public class UnixServerSocket extends ServerSocket {
+	private UnixDomainSocketAddress addr;
+	private ServerSocketChannel channel;
+
+	/**
+	 * Bind a new socket.
+	 *
+	 * @param addr a UnixDomainSocketAddress.
+	 * @param backlog the maximum number of outstanding incoming connections.
+	 */
+	public UnixServerSocket(SocketAddress addr, int backlog) throws IOException {
+		this.addr = (UnixDomainSocketAddress) addr;
+
+		Files.deleteIfExists(this.addr.getPath());
+		channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+
+		try {
+			channel.bind(addr, backlog);
+		} catch (IOException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	@Override
+	public Socket accept() throws IOException {
+		return new UnixSocket(channel.accept());
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!channel.isOpen()) return;
+
+		try {
+			channel.close();
+		} finally {
+			Files.deleteIfExists(addr.getPath());
+			super.close();
+		}
+	}
+
+	@Override
+	public boolean isBound() {
+		return true;
+	}
+
+	@Override
+	public boolean isClosed() {
+		return !channel.isOpen();
+	}
+
+	@Override
+	public SocketAddress getLocalSocketAddress() {
+		return addr;
+	}
+
+	@Override
+	public String toString() {
+		return "UnixServerSocket[" + addr + "]";
+	}
+}
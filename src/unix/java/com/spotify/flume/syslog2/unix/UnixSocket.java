@@ -0,0 +1,126 @@
+/**
+ * Copyright 2011 Spotify Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.flume.syslog2.unix;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * A Socket for an accepted Unix domain stream connection.
+ *
+ * The peer address is the loopback address, since the connection is
+ * local. That is what raw events get as their host, and what rate limits
+ * by peer use as the key.
+ *
+ * The syslog(3) of glibc terminates messages with a NUL byte instead of a
+ * NL on stream sockets, so NULs are read as NLs.
+ *
+ * @see UnixServerSocket
+ */
+class UnixSocket extends Socket {
+	private SocketChannel channel;
+	private SocketAddress remoteAddress;
+	private InputStream in;
+	private OutputStream out;
+
+	public UnixSocket(SocketChannel channel) throws IOException {
+		this.channel = channel;
+		this.remoteAddress = channel.getRemoteAddress();
+		this.in = new NulToNewlineInputStream(Channels.newInputStream(channel));
+		this.out = Channels.newOutputStream(channel);
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return in;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return out;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+		super.close();
+	}
+
+	@Override
+	public boolean isConnected() {
+		return true;
+	}
+
+	@Override
+	public boolean isClosed() {
+		return !channel.isOpen();
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return InetAddress.getLoopbackAddress();
+	}
+
+	@Override
+	public int getPort() {
+		return 0;
+	}
+
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		return remoteAddress;
+	}
+
+	@Override
+	public String toString() {
+		return "UnixSocket[" + remoteAddress + "]";
+	}
+
+	/**
+	 * Replaces NUL bytes with NL bytes.
+	 */
+	private static class NulToNewlineInputStream extends FilterInputStream {
+		public NulToNewlineInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int c = in.read();
+
+			return (c == 0 ? '\n' : c);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+
+			for (int i = off; i < off + n; ++i) {
+				if (b[i] == 0) b[i] = '\n';
+			}
+
+			return n;
+		}
+	}
+}